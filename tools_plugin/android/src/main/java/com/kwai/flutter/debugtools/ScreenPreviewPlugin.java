@@ -17,28 +17,58 @@
 package com.kwai.flutter.debugtools;
 
 import android.app.Activity;
+import android.app.Application;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.hardware.display.DisplayManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.graphics.Point;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
+import android.view.Display;
 import android.view.WindowManager;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
 
+import com.kwai.flutter.debugtools.dbview.DbViewChannel;
+import com.kwai.flutter.debugtools.fileserver.FileServerChannel;
+import com.kwai.flutter.debugtools.logcat.LogcatChannel;
+import com.kwai.flutter.debugtools.metrics.ProcessMetricsChannel;
+import com.kwai.flutter.debugtools.metrics.ProcessMetricsSampler;
+import com.kwai.flutter.debugtools.screen.CaptureGovernor;
+import com.kwai.flutter.debugtools.screen.ChunkRecordingSink;
+import com.kwai.flutter.debugtools.screen.DisplayCaptureSession;
+import com.kwai.flutter.debugtools.screen.DisplayWindows;
+import com.kwai.flutter.debugtools.screen.EncoderRegistry;
+import com.kwai.flutter.debugtools.screen.FileRecordingSink;
+import com.kwai.flutter.debugtools.screen.FrameClock;
+import com.kwai.flutter.debugtools.screen.FrameMemoryBudget;
+import com.kwai.flutter.debugtools.screen.FrameTimingCollector;
+import com.kwai.flutter.debugtools.screen.FrameTimingLog;
+import com.kwai.flutter.debugtools.screen.PreviewEncoder;
+import com.kwai.flutter.debugtools.screen.RecordConfig;
+import com.kwai.flutter.debugtools.screen.RecordingIndex;
+import com.kwai.flutter.debugtools.screen.RecordingSink;
+import com.kwai.flutter.debugtools.screen.ScreenBurstRecorder;
 import com.kwai.flutter.debugtools.screen.ScreenCaptureService;
 import com.kwai.flutter.debugtools.screen.ScreenPreviewRecorder;
 import com.kwai.flutter.debugtools.screen.ScreenPreviewSender;
+import com.kwai.flutter.debugtools.screen.ScreenThreads;
+import com.kwai.flutter.debugtools.screen.SocketRecordingSink;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
@@ -57,16 +87,73 @@ public class ScreenPreviewPlugin implements FlutterPlugin, ActivityAware, Method
     private MethodChannel channel;
     private Activity activity;
     private MethodChannel.Result _startCallResult;
+    //默认录制宽度
+    private static final int DEFAULT_RECORD_WIDTH = 720;
+    //感兴趣区域使用高分辨率时的最大抓取宽度
+    private static final int MAX_RECORD_WIDTH = 1440;
     //录制宽度, 高度会按比例计算
-    private int mRecordWidth = 720;
+    private int mRecordWidth = DEFAULT_RECORD_WIDTH;
     private int mRecordHeight = 0;
     private int mDensityDpi = 0;
     private String fileAbsolutePath = "";
+    //API 29以上是否使用HardwareBuffer取帧
+    private boolean mAllowHardwareBuffer = true;
+    //web端预览连接数, 没有连接时不向抓取服务注册预览接收者
+    private int mPreviewClients = 0;
+    //预览客户端正在使用的格式
+    private List<String> mPreviewFormats;
+    //抓取降级控制
+    private CaptureGovernor mGovernor;
+    //web端配置的降级阶梯, 为空使用默认
+    private List<CaptureGovernor.Level> mGovernorLadder;
+    //所有屏幕的抓取共用的帧内存预算
+    private final FrameMemoryBudget mFrameBudget = new FrameMemoryBudget();
+    //副屏的抓取会话, 主屏仍使用mScreenCaptureService
+    private final Map<Integer, DisplayCaptureSession> mDisplaySessions = new HashMap<>();
+    //副屏会话共用的抓取线程
+    private HandlerThread mDisplayCaptureThread;
+    //进程指标, 独立的channel
+    private final ProcessMetricsSampler mMetricsSampler = new ProcessMetricsSampler();
+    private final ProcessMetricsChannel mMetricsChannel = new ProcessMetricsChannel(mMetricsSampler);
+    //本进程的logcat, 独立的channel
+    private final LogcatChannel mLogcatChannel = new LogcatChannel();
+    //数据库分页查询, 独立的channel
+    private final DbViewChannel mDbViewChannel = new DbViewChannel();
+    //原生文件下载服务, 独立的channel
+    private final FileServerChannel mFileServerChannel = new FileServerChannel();
+    //宿主的渲染帧耗时, 预览期间采集
+    private final FrameTimingCollector mFrameTiming = new FrameTimingCollector();
+    //web端设置的画面静止后补发高质量帧的等待时间 ms
+    private long mRefineIdleMs = ScreenPreviewSender.DEFAULT_REFINE_IDLE_MS;
+    //预热耗时 ms, -1为还没有完成
+    private volatile long mWarmUpMs = -1;
+    private boolean mWarmUpStarted = false;
+    //屏幕尺寸变化(旋转、折叠屏、分屏)时调整抓取尺寸
+    private final DisplayManager.DisplayListener mDisplayListener = new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int displayId) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+            stopDisplaySession(displayId);
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            if (displayId == Display.DEFAULT_DISPLAY) {
+                onDisplaySizeChanged();
+            } else {
+                onSecondaryDisplayChanged(displayId);
+            }
+        }
+    };
 
     private ScreenCaptureService mScreenCaptureService;
     private int SCREEN_PREVIEW_REQUEST_CODE = 666;
     private ScreenPreviewRecorder mVideoRecorder;
     private ScreenPreviewSender mPreviewSender;
+    private ScreenBurstRecorder mBurstRecorder;
 
     public ScreenPreviewPlugin() {
     }
@@ -77,6 +164,11 @@ public class ScreenPreviewPlugin implements FlutterPlugin, ActivityAware, Method
         instance.context = registrar.context();
         instance.channel.setMethodCallHandler(instance);
         instance.activity = registrar.activity();
+        instance.mMetricsChannel.attach(registrar.messenger());
+        instance.mLogcatChannel.attach(registrar.messenger());
+        instance.mDbViewChannel.attach(registrar.messenger());
+        instance.mFileServerChannel.attach(registrar.messenger());
+        instance.onAttached();
     }
 
     @Override
@@ -84,12 +176,46 @@ public class ScreenPreviewPlugin implements FlutterPlugin, ActivityAware, Method
         channel = new MethodChannel(binding.getBinaryMessenger(), "kdebugtools/screen_preview");
         context = binding.getApplicationContext();
         channel.setMethodCallHandler(this);
+        mMetricsChannel.attach(binding.getBinaryMessenger());
+        mLogcatChannel.attach(binding.getBinaryMessenger());
+        mDbViewChannel.attach(binding.getBinaryMessenger());
+        mFileServerChannel.attach(binding.getBinaryMessenger());
+        onAttached();
     }
 
     @Override
     public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
         channel.setMethodCallHandler(null);
         channel = null;
+        mMetricsChannel.detach();
+        mLogcatChannel.detach();
+        mDbViewChannel.detach();
+        mFileServerChannel.detach();
+        DisplayManager displayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+        displayManager.unregisterDisplayListener(mDisplayListener);
+        for (Integer displayId : new ArrayList<>(mDisplaySessions.keySet())) {
+            stopDisplaySession(displayId);
+        }
+    }
+
+    /**
+     * 监听屏幕变化, 记录副屏上的Activity
+     */
+    private void onAttached() {
+        //投屏链路的cpu消耗
+        mMetricsSampler.setPipelineCostSource(new ProcessMetricsSampler.IPipelineCostSource() {
+            @Override
+            public long getCpuTimeNanos() {
+                ScreenCaptureService service = mScreenCaptureService;
+                return service == null ? 0 : service.getCpuTimeNanos();
+            }
+        });
+        DisplayManager displayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+        displayManager.registerDisplayListener(mDisplayListener, new Handler(Looper.getMainLooper()));
+        Context app = context.getApplicationContext();
+        if (app instanceof Application) {
+            DisplayWindows.install((Application) app);
+        }
     }
 
     @Override
@@ -100,27 +226,138 @@ public class ScreenPreviewPlugin implements FlutterPlugin, ActivityAware, Method
                 boolean isServiceRunning = mScreenCaptureService != null;
                 boolean recording = mVideoRecorder != null && mVideoRecorder.isEncodingStarted();
                 boolean previewing = mPreviewSender != null && mPreviewSender.isRunning();
+                boolean bursting = mBurstRecorder != null && mBurstRecorder.isRunning();
                 Map<String, Object> data = new HashMap<>();
                 data.put("recording", recording);
+                data.put("recordPaused", recording && mVideoRecorder.isPaused());
                 data.put("previewing", previewing);
+                data.put("bursting", bursting);
+                //服务停止后仍存活的线程说明有泄漏
+                data.put("threads", ScreenThreads.getLiveThreadNames());
+                data.put("threadErrors", ScreenThreads.getUncaughtCount());
+                if (isServiceRunning) {
+                    data.put("receivers", mScreenCaptureService.getReceiverStats());
+                    data.put("captureBackend", mScreenCaptureService.getBackendName());
+                    data.put("suspended", mScreenCaptureService.isSuspended());
+                    Map<String, Object> startup = mScreenCaptureService.getStartupMetrics();
+                    startup.put("warmUpMs", mWarmUpMs);
+                    data.put("startup", startup);
+                    data.put("width", mScreenCaptureService.getWidth());
+                    data.put("height", mScreenCaptureService.getHeight());
+                    float[] region = mScreenCaptureService.getRegion();
+                    if (region != null) {
+                        Map<String, Object> regionData = new HashMap<>();
+                        regionData.put("left", region[0]);
+                        regionData.put("top", region[1]);
+                        regionData.put("right", region[2]);
+                        regionData.put("bottom", region[3]);
+                        regionData.put("width", mScreenCaptureService.getOutputWidth());
+                        regionData.put("height", mScreenCaptureService.getOutputHeight());
+                        data.put("region", regionData);
+                    }
+                    if (mPreviewSender != null) {
+                        data.put("previewFormats", mPreviewSender.getFormatStats());
+                        data.put("previewRefine", mPreviewSender.getRefineState());
+                    }
+                    if (mGovernor != null) {
+                        data.put("governor", mGovernor.getState());
+                    }
+                }
+                data.put("memory", mFrameBudget.getState());
+                data.put("frameTiming", mFrameTiming.getState());
+                List<Map<String, Object>> sessions = new ArrayList<>();
+                for (DisplayCaptureSession session : mDisplaySessions.values()) {
+                    sessions.add(session.getState());
+                }
+                data.put("displaySessions", sessions);
                 callResult(result, 0, "success", data);
                 break;
+            case "displays":
+                displays(result);
+                break;
+            case "startDisplayPreview":
+                startDisplayPreview(call, result);
+                break;
+            case "stopDisplayPreview":
+                Integer stopDisplayId = call.argument("displayId");
+                if (stopDisplayId != null && stopDisplaySession(stopDisplayId)) {
+                    callResult(result, 0, "success", null);
+                } else {
+                    callResult(result, -1, "stop failed: not previewing", null);
+                }
+                break;
             case "startPreview":
+                Boolean allowHardwareBuffer = call.argument("hardwareBuffer");
+                mAllowHardwareBuffer = allowHardwareBuffer == null || allowHardwareBuffer;
                 _startCallResult = result;
                 startPreview();
                 break;
+            case "warmUp":
+                warmUp();
+                callResult(result, 0, "success", null);
+                break;
             case "stopPreview":
                 stopPreview(result);
                 break;
             case "startRecordToFile":
                 startRecordToFile(call, result);
                 break;
+            case "startRecordToStream":
+                startRecordToStream(call, result);
+                break;
             case "stopRecordToFile":
                 stopRecordToFile(result);
                 break;
+            case "encoderCapabilities":
+                encoderCapabilities(result);
+                break;
+            case "setGovernorLadder":
+                setGovernorLadder(call, result);
+                break;
+            case "setRegion":
+                setRegion(call, result);
+                break;
+            case "setMemoryBudget":
+                setMemoryBudget(call, result);
+                break;
+            case "setPreviewRefine":
+                setPreviewRefine(call, result);
+                break;
+            case "setPreviewClients":
+                setPreviewClients(call, result);
+                break;
+            case "frameTimings":
+                frameTimings(call, result);
+                break;
+            case "recordingTiming":
+                recordingTiming(call, result);
+                break;
+            case "recordingIndex":
+                recordingIndex(call, result);
+                break;
+            case "pauseRecord":
+                pauseRecord(result);
+                break;
+            case "resumeRecord":
+                resumeRecord(result);
+                break;
+            case "startBurst":
+                startBurst(call, result);
+                break;
+            case "stopBurst":
+                stopBurst(result);
+                break;
+            case "exportBurstFrame":
+                exportBurstFrame(call, result);
+                break;
             case "takeCapture":
                 takeCapture(call, result);
                 break;
+            case "previewFormats":
+                Map<String, Object> formats = new HashMap<>();
+                formats.put("formats", PreviewEncoder.getSupportedFormats());
+                callResult(result, 0, "success", formats);
+                break;
             case "lastPreviewJpg":
                 lastPreviewJpg(call, result);
                 break;
@@ -142,6 +379,7 @@ public class ScreenPreviewPlugin implements FlutterPlugin, ActivityAware, Method
     @Override
     public void onAttachedToActivity(@NonNull ActivityPluginBinding binding) {
         activity = binding.getActivity();
+        mFrameTiming.setWindow(activity.getWindow());
         binding.addActivityResultListener(this);
     }
 
@@ -223,24 +461,385 @@ public class ScreenPreviewPlugin implements FlutterPlugin, ActivityAware, Method
         calcResolution();
 
         mPreviewSender = new ScreenPreviewSender(channel);
+        mPreviewSender.setFormats(mPreviewFormats, true);
+        mPreviewSender.setRefineIdleMs(mRefineIdleMs);
+        mPreviewSender.setFrameTimingCollector(mFrameTiming);
+        mFrameTiming.start(activity == null ? null : activity.getWindow());
 
-        mScreenCaptureService = new ScreenCaptureService(mRecordWidth, mRecordHeight, mDensityDpi, projection);
+        mScreenCaptureService = new ScreenCaptureService(mRecordWidth, mRecordHeight, mDensityDpi, projection,
+                mAllowHardwareBuffer, mFrameBudget);
         mScreenCaptureService.setStateCallback(new ScreenCaptureService.IStateCallback() {
             @Override
             public void onRelease() {
+                //高分辨率只对本次预览的感兴趣区域有效
+                mRecordWidth = DEFAULT_RECORD_WIDTH;
+                if (mGovernor != null) {
+                    mGovernor.stop();
+                    mGovernor = null;
+                }
                 if (mVideoRecorder != null) {
                     mVideoRecorder.stopEncoding();
                     mVideoRecorder = null;
                 }
+                if (mBurstRecorder != null) {
+                    mBurstRecorder.stop();
+                    mBurstRecorder = null;
+                }
                 if (mPreviewSender != null) {
                     mPreviewSender.quit();
                     mPreviewSender = null;
                 }
+                //可能在抓取线程中回调, 采集器需要在主线程停止
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mFrameTiming.stop();
+                    }
+                });
             }
         });
-        mScreenCaptureService.addScreenDataReceiver(mPreviewSender);
         mScreenCaptureService.start(activity);
         mPreviewSender.start();
+        updatePreviewReceiver();
+        startGovernor();
+    }
+
+    /**
+     * 屏幕列表, 副屏是否有可抓取的窗口, 已开启的会话状态
+     */
+    private void displays(Result result) {
+        DisplayManager displayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (Display display : displayManager.getDisplays()) {
+            int displayId = display.getDisplayId();
+            Map<String, Object> item = new HashMap<>();
+            item.put("displayId", displayId);
+            item.put("name", display.getName());
+            item.put("presentation", (display.getFlags() & Display.FLAG_PRESENTATION) != 0);
+            boolean primary = displayId == Display.DEFAULT_DISPLAY;
+            item.put("capturable", primary || (DisplayCaptureSession.isSupported() && DisplayWindows.get(displayId) != null));
+            item.put("previewing", primary ? mScreenCaptureService != null && mScreenCaptureService.isRunning()
+                    : mDisplaySessions.containsKey(displayId));
+            list.add(item);
+        }
+        Map<String, Object> data = new HashMap<>();
+        data.put("displays", list);
+        callResult(result, 0, "success", data);
+    }
+
+    /**
+     * 开启副屏预览, 通过PixelCopy抓取副屏上的窗口, 不需要MediaProjection授权
+     * 副屏只支持预览, 录制、连拍和感兴趣区域只用于主屏
+     */
+    private void startDisplayPreview(MethodCall call, Result result) {
+        Integer displayId = call.argument("displayId");
+        if (displayId == null || displayId == Display.DEFAULT_DISPLAY) {
+            callResult(result, -1, "start failed: use startPreview for default display", null);
+            return;
+        }
+        if (mDisplaySessions.containsKey(displayId)) {
+            callResult(result, 0, "already started", null);
+            return;
+        }
+        if (!DisplayCaptureSession.isSupported()) {
+            callResult(result, -1, "start failed: requires API 26", null);
+            return;
+        }
+        DisplayManager displayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+        Display display = displayManager.getDisplay(displayId);
+        android.view.Window window = DisplayWindows.get(displayId);
+        if (display == null || window == null) {
+            callResult(result, -1, "start failed: no window on display " + displayId, null);
+            return;
+        }
+        int[] size = calcDisplayResolution(display);
+        if (mDisplayCaptureThread == null) {
+            mDisplayCaptureThread = ScreenThreads.startHandlerThread(TAG + "-display", ScreenThreads.PRIORITY_CAPTURE);
+        }
+        DisplayCaptureSession session = new DisplayCaptureSession(displayId, window, size[0], size[1], size[2],
+                channel, mFrameBudget);
+        session.getSender().setRefineIdleMs(mRefineIdleMs);
+        session.start(context, mDisplayCaptureThread.getLooper());
+        mDisplaySessions.put(displayId, session);
+        Map<String, Object> data = new HashMap<>();
+        data.put("width", size[0]);
+        data.put("height", size[1]);
+        callResult(result, 0, "success", data);
+    }
+
+    /**
+     * @return 没有该屏幕的会话时返回false
+     */
+    private boolean stopDisplaySession(int displayId) {
+        DisplayCaptureSession session = mDisplaySessions.remove(displayId);
+        if (session == null) {
+            return false;
+        }
+        session.quit();
+        if (mDisplaySessions.isEmpty() && mDisplayCaptureThread != null) {
+            mDisplayCaptureThread.quit();
+            mDisplayCaptureThread = null;
+        }
+        return true;
+    }
+
+    private void onSecondaryDisplayChanged(int displayId) {
+        DisplayCaptureSession session = mDisplaySessions.get(displayId);
+        if (session == null) {
+            return;
+        }
+        DisplayManager displayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+        Display display = displayManager.getDisplay(displayId);
+        if (display != null) {
+            int[] size = calcDisplayResolution(display);
+            session.resize(size[0], size[1], size[2]);
+        }
+    }
+
+    /**
+     * 副屏的抓取尺寸, 宽度不超过默认录制宽度
+     *
+     * @return [width, height, dpi]
+     */
+    private int[] calcDisplayResolution(Display display) {
+        DisplayMetrics metrics = new DisplayMetrics();
+        display.getRealMetrics(metrics);
+        Point size = new Point();
+        display.getRealSize(size);
+        int width = Math.min(DEFAULT_RECORD_WIDTH, size.x) & ~1;
+        int height = (int) (1.0 * width * size.y / size.x) & ~1;
+        return new int[]{width, height, metrics.densityDpi};
+    }
+
+    /**
+     * 屏幕尺寸变化 在主线程回调, 重新计算分辨率后原地调整抓取尺寸
+     * 预览和连拍直接使用新尺寸的帧, 录制中的视频保持原尺寸, 下次录制使用新尺寸
+     */
+    private void onDisplaySizeChanged() {
+        if (mScreenCaptureService == null || !mScreenCaptureService.isRunning()) {
+            return;
+        }
+        int width = mRecordWidth;
+        int height = mRecordHeight;
+        int dpi = mDensityDpi;
+        calcResolution();
+        if (width == mRecordWidth && height == mRecordHeight && dpi == mDensityDpi) {
+            return;
+        }
+        mScreenCaptureService.resize(mRecordWidth, mRecordHeight, mDensityDpi);
+    }
+
+    /**
+     * 开启降级控制, 按级别调整抓取帧率、预览分辨率和录制码率
+     */
+    private void startGovernor() {
+        final ScreenCaptureService service = mScreenCaptureService;
+        mGovernor = new CaptureGovernor(new CaptureGovernor.SystemSensorSource(context, service), mGovernorLadder);
+        mGovernor.setListener(new CaptureGovernor.ILevelListener() {
+            @Override
+            public void onLevelChanged(int index, CaptureGovernor.Level level) {
+                service.setMaxCaptureFps(level.maxFps);
+                ScreenPreviewSender sender = mPreviewSender;
+                if (sender != null) {
+                    sender.setScaleFactor(level.scale);
+                }
+                ScreenPreviewRecorder recorder = mVideoRecorder;
+                if (recorder != null) {
+                    recorder.setBitrateFactor(level.bitrateFactor);
+                }
+            }
+        });
+        mGovernor.start();
+    }
+
+    /**
+     * 预热 在授权弹窗期间加载编码器列表和jpeg编码库, 缩短开始后第一帧的耗时
+     * 不预先创建MediaCodec实例, 硬件编码器数量有限, 在开始录制时创建
+     */
+    private void warmUp() {
+        if (mWarmUpStarted) {
+            return;
+        }
+        mWarmUpStarted = true;
+        ScreenThreads.start(TAG + "-warmUp", ScreenThreads.PRIORITY_BACKGROUND, new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.uptimeMillis();
+                try {
+                    EncoderRegistry.getEncoders();
+                    ScreenPreviewSender.warmUpEncoder();
+                } catch (Exception e) {
+                    Log.w(TAG, "warm up failed", e);
+                }
+                mWarmUpMs = SystemClock.uptimeMillis() - start;
+                Log.d(TAG, "warm up cost: " + mWarmUpMs + "ms");
+            }
+        });
+    }
+
+    /**
+     * 编码器能力, 第一次调用时探测, 放在子线程避免阻塞主线程
+     */
+    private void encoderCapabilities(final Result result) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        ScreenThreads.start(TAG + "-probe", ScreenThreads.PRIORITY_BACKGROUND, new Runnable() {
+            @Override
+            public void run() {
+                final Map<String, Object> data = new HashMap<>();
+                String error = null;
+                try {
+                    data.put("encoders", EncoderRegistry.getCapabilities());
+                } catch (Exception e) {
+                    Log.e(TAG, "probe encoders failed", e);
+                    error = "probe failed: " + e.getMessage();
+                }
+                final String msg = error;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (msg == null) {
+                            callResult(result, 0, "success", data);
+                        } else {
+                            callResult(result, -1, msg, null);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 设置降级阶梯 levels: [{fps, scale, bitrate}], 第0级为正常, 下次开启预览时生效
+     */
+    private void setGovernorLadder(MethodCall call, Result result) {
+        List<Map<String, Object>> levels = call.argument("levels");
+        if (levels == null || levels.isEmpty()) {
+            mGovernorLadder = null;
+        } else {
+            List<CaptureGovernor.Level> ladder = new ArrayList<>();
+            for (Map<String, Object> level : levels) {
+                Number fps = (Number) level.get("fps");
+                Number scale = (Number) level.get("scale");
+                Number bitrate = (Number) level.get("bitrate");
+                ladder.add(new CaptureGovernor.Level(fps == null ? 0 : fps.intValue(),
+                        scale == null ? 1f : scale.floatValue(),
+                        bitrate == null ? 1f : bitrate.floatValue()));
+            }
+            mGovernorLadder = ladder;
+        }
+        callResult(result, 0, "success", null);
+    }
+
+    /**
+     * 设置感兴趣区域 left, top, right, bottom 为相对屏幕的比例, 不传为整个屏幕
+     * highRes 为true时按屏幕实际分辨率抓取(最大{@link #MAX_RECORD_WIDTH}), 区域更清晰
+     * 正在录制的视频保持原尺寸, 下次录制使用区域尺寸
+     */
+    private void setRegion(MethodCall call, Result result) {
+        if (mScreenCaptureService == null || !mScreenCaptureService.isRunning()) {
+            callResult(result, -1, "set region failed: not previewing", null);
+            return;
+        }
+        Number left = call.argument("left");
+        Number top = call.argument("top");
+        Number right = call.argument("right");
+        Number bottom = call.argument("bottom");
+        Boolean highRes = call.argument("highRes");
+        float[] region = null;
+        if (left != null && top != null && right != null && bottom != null) {
+            if (left.floatValue() < 0 || top.floatValue() < 0 || right.floatValue() > 1 || bottom.floatValue() > 1
+                    || left.floatValue() >= right.floatValue() || top.floatValue() >= bottom.floatValue()) {
+                callResult(result, -1, "set region failed: invalid region", null);
+                return;
+            }
+            region = new float[]{left.floatValue(), top.floatValue(), right.floatValue(), bottom.floatValue()};
+        }
+        int recordWidth = DEFAULT_RECORD_WIDTH;
+        if (region != null && highRes != null && highRes) {
+            WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+            Point screenSize = new Point();
+            windowManager.getDefaultDisplay().getRealSize(screenSize);
+            recordWidth = Math.max(DEFAULT_RECORD_WIDTH, Math.min(MAX_RECORD_WIDTH, screenSize.x & ~1));
+        }
+        if (recordWidth != mRecordWidth) {
+            mRecordWidth = recordWidth;
+            calcResolution();
+            mScreenCaptureService.resize(mRecordWidth, mRecordHeight, mDensityDpi);
+        }
+        mScreenCaptureService.setRegion(region);
+        Map<String, Object> data = new HashMap<>();
+        data.put("width", mScreenCaptureService.getOutputWidth());
+        data.put("height", mScreenCaptureService.getOutputHeight());
+        callResult(result, 0, "success", data);
+    }
+
+    /**
+     * 设置帧内存预算 limitMb, <=0 恢复默认(下次开启预览时生效), 已开启时立即生效
+     */
+    private void setMemoryBudget(MethodCall call, Result result) {
+        Number limitMb = call.argument("limitMb");
+        long limitBytes = limitMb == null ? 0 : limitMb.longValue() * 1024 * 1024;
+        mFrameBudget.setLimitBytes(limitBytes > 0 ? limitBytes : FrameMemoryBudget.getDefaultLimitBytes());
+        callResult(result, 0, "success", null);
+    }
+
+    /**
+     * 设置画面静止多久后补发高质量帧, idleMs <=0 不补发, 不传使用默认
+     */
+    private void setPreviewRefine(MethodCall call, Result result) {
+        Number idleMs = call.argument("idleMs");
+        mRefineIdleMs = idleMs == null ? ScreenPreviewSender.DEFAULT_REFINE_IDLE_MS : idleMs.longValue();
+        if (mPreviewSender != null) {
+            mPreviewSender.setRefineIdleMs(mRefineIdleMs);
+        }
+        for (DisplayCaptureSession session : mDisplaySessions.values()) {
+            session.getSender().setRefineIdleMs(mRefineIdleMs);
+        }
+        callResult(result, 0, "success", null);
+    }
+
+    /**
+     * web端预览连接数变化
+     */
+    private void setPreviewClients(MethodCall call, Result result) {
+        Integer count = call.argument("count");
+        List<String> formats = call.argument("formats");
+        Boolean keyFrame = call.argument("keyFrame");
+        Integer displayId = call.argument("displayId");
+        if (displayId != null && displayId != Display.DEFAULT_DISPLAY) {
+            DisplayCaptureSession session = mDisplaySessions.get(displayId);
+            if (session == null) {
+                callResult(result, -1, "display " + displayId + " not previewing", null);
+                return;
+            }
+            session.setPreviewClients(count == null ? 0 : Math.max(0, count), formats,
+                    keyFrame != null && keyFrame);
+            callResult(result, 0, "success", null);
+            return;
+        }
+        mPreviewClients = count == null ? 0 : Math.max(0, count);
+        if (formats != null) {
+            mPreviewFormats = formats;
+        }
+        if (mPreviewSender != null) {
+            mPreviewSender.setFormats(mPreviewFormats, keyFrame != null && keyFrame);
+        }
+        updatePreviewReceiver();
+        callResult(result, 0, "success", null);
+    }
+
+    /**
+     * 有预览连接时才注册预览接收者, 全部接收者移除后抓取服务会暂停
+     */
+    private void updatePreviewReceiver() {
+        if (mScreenCaptureService == null || mPreviewSender == null) {
+            return;
+        }
+        if (mPreviewClients > 0) {
+            mScreenCaptureService.addScreenDataReceiver(mPreviewSender);
+        } else {
+            mScreenCaptureService.removeScreenDataReceiver(mPreviewSender);
+        }
     }
 
 
@@ -254,6 +853,7 @@ public class ScreenPreviewPlugin implements FlutterPlugin, ActivityAware, Method
             _startCallResult = null;
             return;
         }
+        warmUp();
         requestPermission(SCREEN_PREVIEW_REQUEST_CODE);
     }
 
@@ -275,27 +875,23 @@ public class ScreenPreviewPlugin implements FlutterPlugin, ActivityAware, Method
      * 返回最后一张preview的jpg
      */
     private void lastPreviewJpg(MethodCall call, Result result) {
-        if (mPreviewSender == null || !mPreviewSender.isRunning()) {
+        Integer displayId = call.argument("displayId");
+        ScreenPreviewSender sender = mPreviewSender;
+        if (displayId != null && displayId != Display.DEFAULT_DISPLAY) {
+            DisplayCaptureSession session = mDisplaySessions.get(displayId);
+            sender = session == null ? null : session.getSender();
+        }
+        if (sender == null || !sender.isRunning()) {
             callResult(result, -1, "preview not started", null);
             return;
         }
-        if (mPreviewSender.getLastFineJpg() == null) {
+        String format = call.argument("format");
+        //直接返回bytes
+        byte[] b = sender.encodeLastFrame(format == null ? PreviewEncoder.FORMAT_JPEG : format, 100);
+        if (b == null) {
             callResult(result, -1, "last jpg not exist", null);
             return;
         }
-        //直接返回bytes
-        Bitmap bmp = mPreviewSender.getLastFineJpg();
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        bmp.compress(Bitmap.CompressFormat.JPEG, 100, byteArrayOutputStream);
-        byte[] b = byteArrayOutputStream.toByteArray();
-        try {
-            byteArrayOutputStream.flush();
-            byteArrayOutputStream.close();
-        } catch (IOException e) {
-            Log.e(TAG, "close error", e);
-        } finally {
-            bmp.recycle();
-        }
         result.success(b);
     }
 
@@ -375,25 +971,156 @@ public class ScreenPreviewPlugin implements FlutterPlugin, ActivityAware, Method
             if (!f.createNewFile()) {
                 throw new IOException("can not write file: " + fileAbsolutePath);
             }
-            mVideoRecorder = new ScreenPreviewRecorder(mRecordWidth, mRecordHeight, new ScreenPreviewRecorder.ICompleteCallback() {
+            startRecord(call, result, new FileRecordingSink(f));
+        } catch (Exception e) {
+            Log.e(TAG, "startRecordToFile failed", e);
+            callResult(result, -1, "start failed: " + e.getMessage(), null);
+        }
+    }
+
+    /**
+     * 开始录制到流, 不落盘
+     * sink: chunk 通过onRecordChunk分块回调, socket 写入本机port端口
+     *
+     * @param call 请求参数
+     */
+    private void startRecordToStream(MethodCall call, Result result) {
+        Log.d(TAG, "startRecordToStream...");
+        try {
+            String sink = call.argument("sink");
+            RecordingSink recordingSink;
+            if ("socket".equals(sink)) {
+                Integer port = call.argument("port");
+                if (port == null) {
+                    throw new IllegalArgumentException("port not specified");
+                }
+                recordingSink = new SocketRecordingSink(port);
+            } else {
+                String id = call.argument("id");
+                recordingSink = new ChunkRecordingSink(channel, id == null ? "" : id);
+            }
+            startRecord(call, result, recordingSink);
+        } catch (Exception e) {
+            Log.e(TAG, "startRecordToStream failed", e);
+            callResult(result, -1, "start failed: " + e.getMessage(), null);
+        }
+    }
+
+    private void startRecord(MethodCall call, Result result, RecordingSink sink) {
+        if (mVideoRecorder != null && mVideoRecorder.isEncodingStarted()) {
+            callResult(result, -1, "start failed, already started", null);
+            return;
+        }
+        try {
+            if (mScreenCaptureService == null || !mScreenCaptureService.isRunning()) {
+                throw new IllegalStateException("service not started");
+            }
+            Map<String, Object> args = call.arguments();
+            RecordConfig config = RecordConfig.fromArguments(args);
+            //有感兴趣区域时只编码区域
+            mVideoRecorder = new ScreenPreviewRecorder(mScreenCaptureService.getOutputWidth(),
+                    mScreenCaptureService.getOutputHeight(), config, new ScreenPreviewRecorder.ICompleteCallback() {
                 @Override
                 public void onComplete(File outputFile) {
-                    Log.d(TAG, "Recorder complete: " + outputFile.getAbsolutePath());
+                    Log.d(TAG, "Recorder complete: " + (outputFile == null ? "stream" : outputFile.getAbsolutePath()));
                 }
             });
-            mScreenCaptureService.addScreenDataReceiver(mVideoRecorder);
-            mVideoRecorder.setOutputFile(f);
+            mVideoRecorder.setSink(sink);
+            mVideoRecorder.setFrameTimingCollector(mFrameTiming);
+            if (mGovernor != null) {
+                mVideoRecorder.setBitrateFactor(mGovernor.getLevel().bitrateFactor);
+            }
             //start
             mVideoRecorder.startEncoding();
-            Map<String, String> data = new HashMap<>();
-            data.put("path", f.getAbsolutePath());
+            mScreenCaptureService.addScreenDataReceiver(mVideoRecorder);
+            Map<String, Object> data = new HashMap<>(mVideoRecorder.describeSink());
+            data.put("config", config.toMap());
             callResult(result, 0, "success", data);
         } catch (Exception e) {
-            Log.e(TAG, "startRecordToFile failed", e);
+            Log.e(TAG, "start record failed", e);
             callResult(result, -1, "start failed: " + e.getMessage(), null);
         }
     }
 
+    /**
+     * 最近的渲染帧, 用于预览时绘制帧耗时曲线
+     * 参数sinceTs 单调时间 微秒, 只返回之后结束的帧
+     */
+    private void frameTimings(MethodCall call, Result result) {
+        Number sinceTs = call.argument("sinceTs");
+        long[] frames = mFrameTiming.copySince(sinceTs == null ? 0 : sinceTs.longValue() * 1000);
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] /= 1000;
+        }
+        Map<String, Object> data = new HashMap<>();
+        //[endTs, dur, ...] 微秒
+        data.put("frames", frames);
+        data.put("source", mFrameTiming.getSource());
+        data.put("clockOffset", FrameClock.wallOffsetMicros());
+        callResult(result, 0, "success", data);
+    }
+
+    private void recordingTiming(MethodCall call, Result result) {
+        try {
+            String path = call.argument("path");
+            if (path == null) {
+                throw new IllegalArgumentException("path not specified");
+            }
+            callResult(result, 0, "success", FrameTimingLog.read(new File(path)));
+        } catch (Exception e) {
+            Log.e(TAG, "read recording timing failed", e);
+            callResult(result, -1, "read timing failed: " + e.getMessage(), null);
+        }
+    }
+
+    /**
+     * 录制视频的关键帧索引
+     */
+    private void recordingIndex(MethodCall call, Result result) {
+        try {
+            String path = call.argument("path");
+            if (path == null) {
+                throw new IllegalArgumentException("path not specified");
+            }
+            callResult(result, 0, "success", RecordingIndex.read(new File(path)));
+        } catch (Exception e) {
+            Log.e(TAG, "read recording index failed", e);
+            callResult(result, -1, "read index failed: " + e.getMessage(), null);
+        }
+    }
+
+    /**
+     * 暂停录制, 移除接收者但保留编码器
+     */
+    private void pauseRecord(Result result) {
+        if (mVideoRecorder == null || !mVideoRecorder.isEncodingStarted()) {
+            callResult(result, -1, "pause failed: not recording", null);
+            return;
+        }
+        mVideoRecorder.pause();
+        if (mScreenCaptureService != null) {
+            mScreenCaptureService.removeScreenDataReceiver(mVideoRecorder);
+        }
+        callResult(result, 0, "success", null);
+    }
+
+    /**
+     * 恢复录制
+     */
+    private void resumeRecord(Result result) {
+        if (mVideoRecorder == null || !mVideoRecorder.isEncodingStarted()) {
+            callResult(result, -1, "resume failed: not recording", null);
+            return;
+        }
+        if (mScreenCaptureService == null || !mScreenCaptureService.isRunning()) {
+            callResult(result, -1, "resume failed: service not started", null);
+            return;
+        }
+        mVideoRecorder.resume();
+        mScreenCaptureService.addScreenDataReceiver(mVideoRecorder);
+        callResult(result, 0, "success", null);
+    }
+
     /**
      * 停止录制到文件
      */
@@ -402,8 +1129,7 @@ public class ScreenPreviewPlugin implements FlutterPlugin, ActivityAware, Method
         if (mVideoRecorder != null && mVideoRecorder.isEncodingStarted()) {
             mScreenCaptureService.removeScreenDataReceiver(mVideoRecorder);
             mVideoRecorder.stopEncoding();
-            Map<String, String> data = new HashMap<>();
-            data.put("path", mVideoRecorder.getOutputFile().getAbsolutePath());
+            Map<String, Object> data = new HashMap<>(mVideoRecorder.describeSink());
             mVideoRecorder = null;
             callResult(result, 0, "success", data);
         } else {
@@ -411,6 +1137,125 @@ public class ScreenPreviewPlugin implements FlutterPlugin, ActivityAware, Method
         }
     }
 
+    /**
+     * 开始连拍 保存每帧或每N帧到容器文件
+     *
+     * @param call 请求参数 fileAbsolutePath, interval, durationMs
+     */
+    private void startBurst(MethodCall call, Result result) {
+        Log.d(TAG, "startBurst...");
+        if (mBurstRecorder != null && mBurstRecorder.isRunning()) {
+            callResult(result, -1, "start failed, already started", null);
+            return;
+        }
+        try {
+            if (mScreenCaptureService == null || !mScreenCaptureService.isRunning()) {
+                throw new IllegalStateException("service not started");
+            }
+            fileAbsolutePath = call.argument("fileAbsolutePath");
+            if (fileAbsolutePath == null) {
+                throw new IllegalArgumentException("fileAbsolutePath not specified");
+            }
+            Integer interval = call.argument("interval");
+            Number durationMs = call.argument("durationMs");
+            File f = new File(fileAbsolutePath);
+            if (f.exists()) {
+                throw new IOException("file: " + fileAbsolutePath + " exist");
+            }
+            f.getParentFile().mkdirs();
+            final ScreenBurstRecorder burstRecorder = new ScreenBurstRecorder(f,
+                    interval == null ? 1 : interval,
+                    durationMs == null ? 0 : durationMs.longValue(),
+                    new ScreenBurstRecorder.ICompleteCallback() {
+                        @Override
+                        public void onComplete(final File outputFile, int frameCount, int droppedCount) {
+                            Log.d(TAG, "Burst complete: " + outputFile.getAbsolutePath() + ", frames: " + frameCount);
+                            //按时长结束时在分发线程中回调, 到主线程移除接收者, 否则会一直收到帧也不会空闲暂停
+                            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (mBurstRecorder != null && mBurstRecorder.getOutputFile().equals(outputFile)) {
+                                        removeBurstRecorder();
+                                    }
+                                }
+                            });
+                        }
+                    });
+            //上一次连拍已结束但还没有移除
+            removeBurstRecorder();
+            burstRecorder.setMemoryBudget(mScreenCaptureService.getMemoryBudget());
+            burstRecorder.start(mScreenCaptureService.getOutputWidth(), mScreenCaptureService.getOutputHeight());
+            mBurstRecorder = burstRecorder;
+            mScreenCaptureService.addScreenDataReceiver(burstRecorder);
+            Map<String, String> data = new HashMap<>();
+            data.put("path", f.getAbsolutePath());
+            callResult(result, 0, "success", data);
+        } catch (Exception e) {
+            Log.e(TAG, "startBurst failed", e);
+            callResult(result, -1, "start failed: " + e.getMessage(), null);
+        }
+    }
+
+    //移除已结束的连拍接收者, 在主线程调用
+    private void removeBurstRecorder() {
+        if (mBurstRecorder == null) {
+            return;
+        }
+        if (mScreenCaptureService != null) {
+            mScreenCaptureService.removeScreenDataReceiver(mBurstRecorder);
+        }
+        mBurstRecorder = null;
+    }
+
+    /**
+     * 停止连拍
+     */
+    private void stopBurst(Result result) {
+        Log.d(TAG, "stopBurst...");
+        if (mBurstRecorder != null) {
+            if (mScreenCaptureService != null) {
+                mScreenCaptureService.removeScreenDataReceiver(mBurstRecorder);
+            }
+            mBurstRecorder.stop();
+            Map<String, Object> data = new HashMap<>();
+            data.put("path", mBurstRecorder.getOutputFile().getAbsolutePath());
+            data.put("frames", mBurstRecorder.getFrameCount());
+            data.put("dropped", mBurstRecorder.getDroppedCount());
+            mBurstRecorder = null;
+            callResult(result, 0, "success", data);
+        } else {
+            callResult(result, -1, "stop failed: not bursting", null);
+        }
+    }
+
+    /**
+     * 从连拍容器中导出单帧到png
+     *
+     * @param call 请求参数 containerPath, index, fileAbsolutePath
+     */
+    private void exportBurstFrame(MethodCall call, Result result) {
+        try {
+            String containerPath = call.argument("containerPath");
+            Integer index = call.argument("index");
+            fileAbsolutePath = call.argument("fileAbsolutePath");
+            if (containerPath == null || index == null || fileAbsolutePath == null) {
+                throw new IllegalArgumentException("containerPath, index, fileAbsolutePath required");
+            }
+            File f = new File(fileAbsolutePath);
+            if (f.exists()) {
+                throw new IOException("file: " + fileAbsolutePath + " exist");
+            }
+            f.getParentFile().mkdirs();
+            ScreenBurstRecorder.exportFrame(new File(containerPath), index, f);
+            Map<String, String> data = new HashMap<>();
+            data.put("path", f.getAbsolutePath());
+            callResult(result, 0, "success", data);
+        } catch (Exception e) {
+            Log.e(TAG, "export burst frame failed", e);
+            callResult(result, -1, "export failed: " + e.getMessage(), null);
+        }
+    }
+
     /**
      * 请求权限
      */
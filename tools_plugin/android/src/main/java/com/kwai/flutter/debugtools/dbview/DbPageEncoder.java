@@ -0,0 +1,130 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.dbview;
+
+import android.database.Cursor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * 把一页查询结果编码为列式的批次, 同一列的值连续存放, web端按列解码
+ * <p>
+ * 格式(大端): magic(4) version(1) flags(1) colCount(2) rowCount(4) nextLen(2) next | name* | column*
+ * <br>flags: bit0 还有下一页, bit1 游标分页; next为下一页的游标, utf8, 没有时长度为0
+ * <br>name: len(2) utf8
+ * <br>column: bodyLen(4) type*rowCount(1) value*, type为Cursor.FIELD_TYPE_*
+ * <br>value: NULL无内容, INTEGER为8字节, FLOAT为double, STRING和BLOB为len(4) bytes
+ */
+public class DbPageEncoder {
+    private static final int MAGIC = 0x4B444442; //KDDB
+    private static final int VERSION = 1;
+    public static final int FLAG_HAS_MORE = 1;
+    public static final int FLAG_KEYSET = 1 << 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private DbPageEncoder() {
+    }
+
+    /**
+     * @param keyIndex 游标分页时第0列是分页的键, 不输出, 最后一行的键作为下一页的游标
+     * @param limit    查询时多取了一行, 用来判断是否还有下一页
+     */
+    static byte[] encode(Cursor cursor, int keyIndex, int limit, boolean keyset) {
+        int colCount = cursor.getColumnCount() - keyIndex;
+        ByteArrayOutputStream[] typeBytes = new ByteArrayOutputStream[colCount];
+        ByteArrayOutputStream[] valueBytes = new ByteArrayOutputStream[colCount];
+        DataOutputStream[] values = new DataOutputStream[colCount];
+        for (int i = 0; i < colCount; i++) {
+            typeBytes[i] = new ByteArrayOutputStream(limit);
+            valueBytes[i] = new ByteArrayOutputStream(limit * 8);
+            values[i] = new DataOutputStream(valueBytes[i]);
+        }
+        int rowCount = 0;
+        boolean hasMore = false;
+        String next = null;
+        try {
+            while (cursor.moveToNext()) {
+                if (rowCount == limit) {
+                    hasMore = true;
+                    break;
+                }
+                for (int i = 0; i < colCount; i++) {
+                    int col = i + keyIndex;
+                    int type = cursor.getType(col);
+                    typeBytes[i].write(type);
+                    switch (type) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values[i].writeLong(cursor.getLong(col));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values[i].writeDouble(cursor.getDouble(col));
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            writeBytes(values[i], cursor.getString(col).getBytes(UTF8));
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            writeBytes(values[i], cursor.getBlob(col));
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                if (keyIndex > 0) {
+                    //亲和性的列中也可能存了其他类型的值, 只有整数和文本可以作为游标
+                    //没有游标时web端按offset请求下一页
+                    int keyType = cursor.getType(0);
+                    next = keyType == Cursor.FIELD_TYPE_INTEGER || keyType == Cursor.FIELD_TYPE_STRING
+                            ? cursor.getString(0) : null;
+                }
+                rowCount++;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + rowCount * colCount * 9);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte((hasMore ? FLAG_HAS_MORE : 0) | (keyset ? FLAG_KEYSET : 0));
+            out.writeShort(colCount);
+            out.writeInt(rowCount);
+            byte[] nextBytes = next == null ? new byte[0] : next.getBytes(UTF8);
+            out.writeShort(nextBytes.length);
+            out.write(nextBytes);
+            for (int i = 0; i < colCount; i++) {
+                byte[] name = cursor.getColumnName(i + keyIndex).getBytes(UTF8);
+                out.writeShort(name.length);
+                out.write(name);
+            }
+            for (int i = 0; i < colCount; i++) {
+                out.writeInt(typeBytes[i].size() + valueBytes[i].size());
+                typeBytes[i].writeTo(out);
+                valueBytes[i].writeTo(out);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            //ByteArrayOutputStream不会抛出
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.dbview;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * 数据表的只读分页查询
+ * <p>
+ * rowid表和单列主键的WITHOUT ROWID表按游标分页: where key > ? order by key limit ?,
+ * 每页的代价与翻到第几页无关; 视图、联合主键以及主键不是INTEGER/TEXT亲和性的表退回offset分页
+ * <p>
+ * 游标以字符串绑定, INTEGER亲和性的列比较时会转换回整数, TEXT直接比较;
+ * REAL转为字符串会丢失精度, BLOB不能转为字符串, 无类型的列整数和文本不能比较, 这些都不使用游标
+ * <p>
+ * 连接以只读方式打开并按路径缓存, app自己的连接仍可以正常写入;
+ * 表结构和行数按数据库文件的修改时间缓存, 大表只给估算行数
+ * <p>
+ * 不是线程安全的, 只在查询线程中调用
+ */
+public class DbQueryEngine {
+    private static final String TAG = "DbQueryEngine";
+    //缓存的连接数
+    private static final int MAX_CONNECTIONS = 4;
+    //单页最大行数
+    public static final int MAX_PAGE_SIZE = 1000;
+    //估算行数小于该值时才执行count(*)
+    private static final long EXACT_COUNT_LIMIT = 200000;
+    private static final Pattern WITHOUT_ROWID = Pattern.compile("\\bWITHOUT\\s+ROWID\\b", Pattern.CASE_INSENSITIVE);
+    //rowid的别名, 可能被同名的列占用
+    private static final String[] ROWID_NAMES = {"rowid", "_rowid_", "oid"};
+
+    /**
+     * 缓存的表信息
+     */
+    public static class TableMeta {
+        public final String name;
+        //与PRAGMA table_info的字段相同
+        public final List<Map<String, Object>> columns;
+        //分页的键, 已加引号, null时使用offset分页
+        public final String keyColumn;
+        public final boolean isRowid;
+        public final long count;
+        public final boolean countExact;
+        //读取时的文件状态, 变化后重新读取
+        final long stamp;
+
+        TableMeta(String name, List<Map<String, Object>> columns, String keyColumn, boolean isRowid,
+                  long count, boolean countExact, long stamp) {
+            this.name = name;
+            this.columns = columns;
+            this.keyColumn = keyColumn;
+            this.isRowid = isRowid;
+            this.count = count;
+            this.countExact = countExact;
+            this.stamp = stamp;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("name", name);
+            map.put("columns", columns);
+            map.put("count", count);
+            map.put("countExact", countExact);
+            map.put("paging", keyColumn != null ? "keyset" : "offset");
+            return map;
+        }
+    }
+
+    //按访问顺序, 超出后关闭最久未用的连接
+    private final LinkedHashMap<String, SQLiteDatabase> mConnections = new LinkedHashMap<>(8, 0.75f, true);
+    //path + '\n' + table
+    private final Map<String, TableMeta> mMetaCache = new HashMap<>();
+
+    /**
+     * 表信息, 文件没有变化时直接使用缓存
+     */
+    public TableMeta getTableMeta(String path, String table) {
+        String cacheKey = path + '\n' + table;
+        long stamp = fileStamp(path);
+        TableMeta meta = mMetaCache.get(cacheKey);
+        if (meta != null && meta.stamp == stamp) {
+            return meta;
+        }
+        meta = loadTableMeta(open(path), table, stamp);
+        mMetaCache.put(cacheKey, meta);
+        return meta;
+    }
+
+    /**
+     * 查询一页数据, 编码为列式的批次, 格式见 {@link DbPageEncoder}
+     *
+     * @param after  上一页返回的游标, null时从offset开始
+     * @param offset 没有游标时跳过的行数, 游标分页时只在跳页时使用
+     */
+    public byte[] queryPage(String path, String table, String after, long offset, int limit) {
+        TableMeta meta = getTableMeta(path, table);
+        limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        String quoted = quote(meta.name);
+        String sql;
+        String[] args;
+        if (meta.keyColumn == null) {
+            sql = "select * from " + quoted + " limit " + (limit + 1) + " offset " + Math.max(0, offset);
+            args = null;
+        } else if (after != null && !after.isEmpty()) {
+            if (meta.isRowid) {
+                //rowid只接受整数, 避免文本比较
+                after = String.valueOf(Long.parseLong(after));
+            }
+            sql = "select " + meta.keyColumn + ", * from " + quoted + " where " + meta.keyColumn + " > ?"
+                    + " order by " + meta.keyColumn + " limit " + (limit + 1);
+            args = new String[]{after};
+        } else {
+            sql = "select " + meta.keyColumn + ", * from " + quoted
+                    + " order by " + meta.keyColumn + " limit " + (limit + 1) + " offset " + Math.max(0, offset);
+            args = null;
+        }
+        Cursor cursor = open(path).rawQuery(sql, args);
+        try {
+            return DbPageEncoder.encode(cursor, meta.keyColumn != null ? 1 : 0, limit, meta.keyColumn != null);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 关闭指定路径的连接, path为null时全部关闭
+     */
+    public void close(String path) {
+        Iterator<Map.Entry<String, SQLiteDatabase>> it = mConnections.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, SQLiteDatabase> entry = it.next();
+            if (path == null || path.equals(entry.getKey())) {
+                entry.getValue().close();
+                it.remove();
+            }
+        }
+        Iterator<String> keys = mMetaCache.keySet().iterator();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (path == null || key.startsWith(path + '\n')) {
+                keys.remove();
+            }
+        }
+    }
+
+    private SQLiteDatabase open(String path) {
+        SQLiteDatabase db = mConnections.get(path);
+        if (db != null && db.isOpen()) {
+            return db;
+        }
+        if (!new File(path).isFile()) {
+            throw new IllegalArgumentException("no such file: " + path);
+        }
+        //只读连接不会修改journal模式, WAL数据库读取时不阻塞app的写入
+        db = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY
+                | SQLiteDatabase.NO_LOCALIZED_COLLATORS | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+        mConnections.put(path, db);
+        if (mConnections.size() > MAX_CONNECTIONS) {
+            Iterator<Map.Entry<String, SQLiteDatabase>> it = mConnections.entrySet().iterator();
+            Map.Entry<String, SQLiteDatabase> eldest = it.next();
+            Log.d(TAG, "close idle connection: " + eldest.getKey());
+            eldest.getValue().close();
+            it.remove();
+        }
+        return db;
+    }
+
+    private TableMeta loadTableMeta(SQLiteDatabase db, String table, long stamp) {
+        String type = null;
+        String createSql = null;
+        Cursor cursor = db.rawQuery("select type, sql from sqlite_master where name = ? and type in ('table', 'view')",
+                new String[]{table});
+        try {
+            if (cursor.moveToNext()) {
+                type = cursor.getString(0);
+                createSql = cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (type == null) {
+            throw new IllegalArgumentException("no such table: " + table);
+        }
+        String quoted = quote(table);
+        List<Map<String, Object>> columns = new ArrayList<>();
+        List<String> pkColumns = new ArrayList<>();
+        List<String> pkTypes = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        cursor = db.rawQuery("PRAGMA table_info(" + quoted + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                Map<String, Object> column = new HashMap<>();
+                String name = cursor.getString(cursor.getColumnIndex("name"));
+                int pk = cursor.getInt(cursor.getColumnIndex("pk"));
+                column.put("cid", cursor.getInt(cursor.getColumnIndex("cid")));
+                column.put("name", name);
+                column.put("type", cursor.getString(cursor.getColumnIndex("type")));
+                column.put("notnull", cursor.getInt(cursor.getColumnIndex("notnull")));
+                column.put("pk", pk);
+                columns.add(column);
+                names.add(name.toLowerCase(Locale.US));
+                if (pk > 0) {
+                    pkColumns.add(name);
+                    pkTypes.add(cursor.getString(cursor.getColumnIndex("type")));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        String keyColumn = null;
+        boolean isRowid = false;
+        if ("table".equals(type)) {
+            if (createSql == null || !WITHOUT_ROWID.matcher(createSql).find()) {
+                for (String alias : ROWID_NAMES) {
+                    if (!names.contains(alias)) {
+                        keyColumn = alias;
+                        isRowid = true;
+                        break;
+                    }
+                }
+            } else if (pkColumns.size() == 1 && isKeysetAffinity(pkTypes.get(0))) {
+                keyColumn = quote(pkColumns.get(0));
+            }
+        }
+
+        long count = -1;
+        boolean exact = false;
+        long estimate = estimateCount(db, table, isRowid ? keyColumn : null);
+        if (estimate < 0 || estimate <= EXACT_COUNT_LIMIT || keyColumn == null) {
+            //offset分页需要准确的行数
+            count = simpleLong(db, "select count(*) from " + quoted);
+            exact = true;
+        } else {
+            count = estimate;
+        }
+        return new TableMeta(table, columns, keyColumn, isRowid, count, exact, stamp);
+    }
+
+    /**
+     * 估算行数, 优先使用ANALYZE的统计, 其次是最大rowid, 都没有时返回-1
+     */
+    private long estimateCount(SQLiteDatabase db, String table, String rowidName) {
+        try {
+            Cursor cursor = db.rawQuery("select stat from sqlite_stat1 where tbl = ? limit 1", new String[]{table});
+            try {
+                if (cursor.moveToNext() && !cursor.isNull(0)) {
+                    String stat = cursor.getString(0).trim();
+                    int space = stat.indexOf(' ');
+                    return Long.parseLong(space > 0 ? stat.substring(0, space) : stat);
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (Exception e) {
+            //没有执行过ANALYZE
+        }
+        if (rowidName != null) {
+            //走索引, 只读一页; 删除过数据时偏大
+            return simpleLong(db, "select max(" + rowidName + ") from " + quote(table));
+        }
+        return -1;
+    }
+
+    /**
+     * 按SQLite的列亲和性规则判断声明类型是否为INTEGER或TEXT
+     */
+    static boolean isKeysetAffinity(String declaredType) {
+        String type = declaredType == null ? "" : declaredType.toUpperCase(Locale.US);
+        if (type.contains("INT")) {
+            return true;
+        }
+        return type.contains("CHAR") || type.contains("CLOB") || type.contains("TEXT");
+    }
+
+    private static long simpleLong(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            return cursor.moveToNext() && !cursor.isNull(0) ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 数据库和WAL文件的状态, 有写入时会变化
+     */
+    private static long fileStamp(String path) {
+        File db = new File(path);
+        File wal = new File(path + "-wal");
+        return db.lastModified() * 31 + db.length() + (wal.lastModified() * 31 + wal.length()) * 17;
+    }
+
+    static String quote(String name) {
+        return '"' + name.replace("\"", "\"\"") + '"';
+    }
+}
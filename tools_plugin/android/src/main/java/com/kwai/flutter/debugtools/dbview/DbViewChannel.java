@@ -0,0 +1,145 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.dbview;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.kwai.flutter.debugtools.screen.ScreenThreads;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * 数据库浏览的method channel, 查询都在单独的线程中执行
+ * 分页数据直接返回字节, 格式见 {@link DbPageEncoder}
+ */
+public class DbViewChannel implements MethodCallHandler {
+    private static final String TAG = "DbViewChannel";
+    public static final String CHANNEL = "kdebugtools/dbview";
+
+    private final DbQueryEngine mEngine = new DbQueryEngine();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private MethodChannel mChannel;
+    private HandlerThread mQueryThread;
+    private Handler mQueryHandler;
+
+    public void attach(BinaryMessenger messenger) {
+        mChannel = new MethodChannel(messenger, CHANNEL);
+        mChannel.setMethodCallHandler(this);
+    }
+
+    public void detach() {
+        if (mChannel != null) {
+            mChannel.setMethodCallHandler(null);
+            mChannel = null;
+        }
+        if (mQueryThread != null) {
+            mQueryHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mEngine.close(null);
+                }
+            });
+            mQueryThread.quitSafely();
+            mQueryThread = null;
+            mQueryHandler = null;
+        }
+    }
+
+    @Override
+    public void onMethodCall(@NonNull final MethodCall call, @NonNull final Result result) {
+        switch (call.method) {
+            case "tableInfo":
+            case "page":
+            case "close":
+                if (mQueryThread == null) {
+                    mQueryThread = ScreenThreads.startHandlerThread("DbQuery", ScreenThreads.PRIORITY_BACKGROUND);
+                    mQueryHandler = new Handler(mQueryThread.getLooper());
+                }
+                mQueryHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        query(call, result);
+                    }
+                });
+                break;
+            default:
+                result.notImplemented();
+        }
+    }
+
+    /**
+     * 在查询线程中执行, 结果回到主线程
+     */
+    private void query(MethodCall call, final Result result) {
+        String path = call.argument("path");
+        Object data = null;
+        String error = null;
+        try {
+            switch (call.method) {
+                case "tableInfo":
+                    data = mEngine.getTableMeta(path, (String) call.argument("table")).toMap();
+                    break;
+                case "page":
+                    Number offset = call.argument("offset");
+                    Number limit = call.argument("limit");
+                    data = mEngine.queryPage(path, (String) call.argument("table"), (String) call.argument("after"),
+                            offset == null ? 0 : offset.longValue(), limit == null ? 100 : limit.intValue());
+                    break;
+                default:
+                    mEngine.close(path);
+                    break;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, call.method + " failed: " + path, e);
+            error = call.method + " failed: " + e.getMessage();
+        }
+        final Object resultData = data;
+        final String msg = error;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (msg != null) {
+                    callResult(result, -1, msg, null);
+                } else if (resultData instanceof byte[]) {
+                    result.success(resultData);
+                } else {
+                    callResult(result, 0, "success", (Map) resultData);
+                }
+            }
+        });
+    }
+
+    private void callResult(Result result, int code, String msg, Map resultData) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("ts", System.currentTimeMillis());
+        map.put("code", code);
+        map.put("msg", msg);
+        map.put("data", resultData);
+        result.success(map);
+    }
+}
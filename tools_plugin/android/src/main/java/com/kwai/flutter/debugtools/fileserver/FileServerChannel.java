@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.fileserver;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.kwai.flutter.debugtools.screen.ScreenThreads;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * 原生文件服务的method channel, dart端登记路径后把浏览器重定向到返回的地址
+ */
+public class FileServerChannel implements MethodCallHandler {
+    private static final String TAG = "FileServerChannel";
+    public static final String CHANNEL = "kdebugtools/file_server";
+
+    private final NativeFileServer mServer = new NativeFileServer();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private MethodChannel mChannel;
+
+    public void attach(BinaryMessenger messenger) {
+        mChannel = new MethodChannel(messenger, CHANNEL);
+        mChannel.setMethodCallHandler(this);
+    }
+
+    public void detach() {
+        if (mChannel != null) {
+            mChannel.setMethodCallHandler(null);
+            mChannel = null;
+        }
+        mServer.stop();
+    }
+
+    @Override
+    public void onMethodCall(@NonNull final MethodCall call, @NonNull final Result result) {
+        switch (call.method) {
+            case "register":
+                if (mServer.isRunning()) {
+                    register(call, result);
+                } else {
+                    //在后台线程中监听端口
+                    ScreenThreads.start(TAG + "-start", ScreenThreads.PRIORITY_BACKGROUND, new Runnable() {
+                        @Override
+                        public void run() {
+                            String error = null;
+                            try {
+                                Number port = call.argument("preferredPort");
+                                mServer.start(port == null ? 0 : port.intValue());
+                            } catch (Exception e) {
+                                Log.e(TAG, "start file server failed", e);
+                                error = "start failed: " + e.getMessage();
+                            }
+                            final String msg = error;
+                            mMainHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (msg == null) {
+                                        register(call, result);
+                                    } else {
+                                        callResult(result, -1, msg, null);
+                                    }
+                                }
+                            });
+                        }
+                    });
+                }
+                break;
+            case "stop":
+                mServer.stop();
+                callResult(result, 0, "success", null);
+                break;
+            case "state":
+                callResult(result, 0, "success", mServer.getState());
+                break;
+            default:
+                result.notImplemented();
+        }
+    }
+
+    private void register(MethodCall call, Result result) {
+        String path = call.argument("path");
+        if (path == null || path.isEmpty()) {
+            callResult(result, -1, "path not specified", null);
+            return;
+        }
+        Boolean attachment = call.argument("attachment");
+        Map<String, Object> data = new HashMap<>();
+        data.put("port", mServer.getPort());
+        data.put("path", mServer.register(path, (String) call.argument("mime"), (String) call.argument("name"),
+                attachment != null && attachment));
+        callResult(result, 0, "success", data);
+    }
+
+    private void callResult(Result result, int code, String msg, Map resultData) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("ts", System.currentTimeMillis());
+        map.put("code", code);
+        map.put("msg", msg);
+        map.put("data", resultData);
+        result.success(map);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.fileserver;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * 单个字节范围, 解析Range请求头
+ * <p>
+ * 只支持单个范围, 多个范围时忽略Range返回整个文件, 这是RFC 7233允许的
+ */
+class HttpRange {
+    //范围超出文件时返回416
+    static final HttpRange UNSATISFIABLE = new HttpRange(-1, -1);
+
+    final long start;
+    //包含
+    final long end;
+
+    HttpRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * 支持 bytes=a-b, bytes=a-, bytes=-n
+     *
+     * @return 格式不支持时返回null, 此时应忽略Range
+     */
+    static HttpRange parse(String header, long fileLength) {
+        if (header == null) {
+            return null;
+        }
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6) || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                //最后n个字节
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || fileLength == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new HttpRange(Math.max(0, fileLength - suffix), fileLength - 1);
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? fileLength - 1 : Math.min(Long.parseLong(last), fileLength - 1);
+            if (start >= fileLength || end < start) {
+                return UNSATISFIABLE;
+            }
+            return new HttpRange(start, end);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * If-Range为ETag或者Last-Modified时间, 与当前文件一致时Range才有效
+     */
+    static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            //只能强比较
+            return ifRange.equals(etag);
+        }
+        try {
+            Date date = newDateFormat().parse(ifRange);
+            return date.getTime() / 1000 == lastModified / 1000;
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    static String formatDate(long time) {
+        return newDateFormat().format(new Date(time));
+    }
+
+    private static SimpleDateFormat newDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+}
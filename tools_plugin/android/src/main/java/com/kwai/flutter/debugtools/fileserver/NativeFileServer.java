@@ -0,0 +1,537 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.fileserver;
+
+import android.util.Log;
+
+import com.kwai.flutter.debugtools.screen.ScreenThreads;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 原生的文件下载服务
+ * <p>
+ * dart端鉴权后为路径登记token, 再把浏览器重定向到这里, 只能访问登记过的路径;
+ * 文件内容用FileChannel.transferTo直接写入socket, 不经过dart isolate,
+ * 支持Range/If-Range, 浏览器可以续传, video可以拖动;
+ * 文件夹边读边压缩为zip输出, 不生成临时文件
+ * <p>
+ * 每个连接只处理一个请求, 响应后关闭
+ */
+public class NativeFileServer {
+    private static final String TAG = "NativeFileServer";
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    //token空闲超过该时间失效
+    private static final long TOKEN_IDLE_MS = 10 * 60 * 1000;
+    private static final int MAX_TOKENS = 64;
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    //同时处理的连接数, 多出的排队
+    private static final int WORKER_COUNT = 4;
+    private static final int READ_TIMEOUT_MS = 30 * 1000;
+    //transferTo单次最大长度
+    private static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+    private static final int ZIP_BUFFER_SIZE = 64 * 1024;
+    //已经压缩过的格式, zip时不再压缩
+    private static final Set<String> STORED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "mp4", "h264", "h265", "webm", "mkv", "mp3", "aac", "m4a", "jpg", "jpeg", "png", "webp", "gif",
+            "zip", "gz", "apk", "jar", "so", "7z"));
+
+    /**
+     * 登记的路径
+     */
+    static class FileToken {
+        final String path;
+        final String mime;
+        //下载时的文件名
+        final String name;
+        //是否作为附件下载, 否则浏览器直接显示
+        final boolean attachment;
+        volatile long lastAccess;
+
+        FileToken(String path, String mime, String name, boolean attachment) {
+            this.path = path;
+            this.mime = mime;
+            this.name = name;
+            this.attachment = attachment;
+            this.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 请求行和请求头, 头的名字为小写
+     */
+    static class Request {
+        String method;
+        String path;
+        final Map<String, String> headers = new HashMap<>();
+    }
+
+    private final Map<String, FileToken> mTokens = new ConcurrentHashMap<>();
+    private final SecureRandom mRandom = new SecureRandom();
+    private final AtomicInteger mActiveConnections = new AtomicInteger();
+    private final AtomicLong mServedBytes = new AtomicLong();
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private ServerSocketChannel mServer;
+    private Thread mAcceptThread;
+    private ExecutorService mWorkers;
+
+    /**
+     * 开始监听, 优先使用[preferredPort], 被占用时使用随机端口
+     *
+     * @return 实际监听的端口
+     */
+    public synchronized int start(int preferredPort) throws IOException {
+        if (mServer != null) {
+            return mServer.socket().getLocalPort();
+        }
+        ServerSocketChannel server = null;
+        if (preferredPort > 0) {
+            try {
+                server = bind(preferredPort);
+            } catch (IOException e) {
+                Log.w(TAG, "bind " + preferredPort + " failed, use any port. " + e.getMessage());
+            }
+        }
+        if (server == null) {
+            server = bind(0);
+        }
+        final ServerSocketChannel acceptServer = server;
+        mServer = server;
+        mWorkers = Executors.newFixedThreadPool(WORKER_COUNT,
+                ScreenThreads.factory("FileServer", ScreenThreads.PRIORITY_BACKGROUND));
+        final ExecutorService workers = mWorkers;
+        mAcceptThread = ScreenThreads.start("FileServer-accept", ScreenThreads.PRIORITY_BACKGROUND, new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop(acceptServer, workers);
+            }
+        });
+        Log.d(TAG, "listen on " + server.socket().getLocalPort());
+        return server.socket().getLocalPort();
+    }
+
+    public synchronized void stop() {
+        if (mServer == null) {
+            return;
+        }
+        closeQuietly(mServer);
+        mServer = null;
+        mWorkers.shutdownNow();
+        mWorkers = null;
+        ScreenThreads.join(mAcceptThread, 1000);
+        mAcceptThread = null;
+        mTokens.clear();
+    }
+
+    public synchronized boolean isRunning() {
+        return mServer != null;
+    }
+
+    public synchronized int getPort() {
+        return mServer == null ? -1 : mServer.socket().getLocalPort();
+    }
+
+    /**
+     * 登记路径, 同一路径重复登记时返回相同的token
+     *
+     * @return 访问路径 /f/token/name
+     */
+    public String register(String path, String mime, String name, boolean attachment) {
+        long now = System.currentTimeMillis();
+        FileToken oldest = null;
+        String oldestKey = null;
+        Iterator<Map.Entry<String, FileToken>> it = mTokens.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, FileToken> entry = it.next();
+            FileToken token = entry.getValue();
+            if (now - token.lastAccess > TOKEN_IDLE_MS) {
+                it.remove();
+            } else if (token.path.equals(path) && token.attachment == attachment && equals(token.mime, mime)) {
+                token.lastAccess = now;
+                return buildPath(entry.getKey(), token.name);
+            } else if (oldest == null || token.lastAccess < oldest.lastAccess) {
+                oldest = token;
+                oldestKey = entry.getKey();
+            }
+        }
+        if (mTokens.size() >= MAX_TOKENS && oldestKey != null) {
+            mTokens.remove(oldestKey);
+        }
+        byte[] bytes = new byte[16];
+        mRandom.nextBytes(bytes);
+        StringBuilder key = new StringBuilder(32);
+        for (byte b : bytes) {
+            key.append(String.format(Locale.US, "%02x", b & 0xFF));
+        }
+        if (name == null || name.isEmpty()) {
+            name = path.substring(path.lastIndexOf('/') + 1);
+        }
+        mTokens.put(key.toString(), new FileToken(path, mime, name, attachment));
+        return buildPath(key.toString(), name);
+    }
+
+    public Map<String, Object> getState() {
+        Map<String, Object> state = new HashMap<>();
+        state.put("running", isRunning());
+        state.put("port", getPort());
+        state.put("tokens", mTokens.size());
+        state.put("activeConnections", mActiveConnections.get());
+        state.put("requests", mRequestCount.get());
+        state.put("servedBytes", mServedBytes.get());
+        return state;
+    }
+
+    private static ServerSocketChannel bind(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(port));
+            return server;
+        } catch (IOException e) {
+            closeQuietly(server);
+            throw e;
+        }
+    }
+
+    private void acceptLoop(ServerSocketChannel server, ExecutorService workers) {
+        while (true) {
+            final SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                //stop时关闭
+                break;
+            }
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(client);
+                    }
+                });
+            } catch (RuntimeException e) {
+                closeQuietly(client);
+                break;
+            }
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        mActiveConnections.incrementAndGet();
+        try {
+            client.socket().setSoTimeout(READ_TIMEOUT_MS);
+            Request request = readRequest(client.socket().getInputStream());
+            if (request != null) {
+                mRequestCount.incrementAndGet();
+                serve(client, request);
+            }
+        } catch (IOException e) {
+            //浏览器取消下载或者拖动video时会主动断开
+            Log.d(TAG, "connection closed: " + e.getMessage());
+        } finally {
+            closeQuietly(client);
+            mActiveConnections.decrementAndGet();
+        }
+    }
+
+    private void serve(SocketChannel client, Request request) throws IOException {
+        if ("OPTIONS".equals(request.method)) {
+            Map<String, String> headers = newHeaders();
+            headers.put("Access-Control-Allow-Methods", "GET, HEAD, OPTIONS");
+            //web端的请求会带Pin等自定义头, 原样允许
+            String requested = request.headers.get("access-control-request-headers");
+            headers.put("Access-Control-Allow-Headers", requested != null ? requested : "Range, If-Range");
+            headers.put("Content-Length", "0");
+            writeHead(client, "204 No Content", headers);
+            return;
+        }
+        if (!"GET".equals(request.method) && !"HEAD".equals(request.method)) {
+            writeError(client, "405 Method Not Allowed");
+            return;
+        }
+        //  /f/token/name
+        String[] segments = request.path.split("/");
+        FileToken token = segments.length >= 3 && "f".equals(segments[1]) ? mTokens.get(segments[2]) : null;
+        if (token == null || System.currentTimeMillis() - token.lastAccess > TOKEN_IDLE_MS) {
+            writeError(client, "404 Not Found");
+            return;
+        }
+        token.lastAccess = System.currentTimeMillis();
+        File file = new File(token.path);
+        if (file.isDirectory()) {
+            serveZip(client, request, file, token);
+        } else if (file.isFile()) {
+            serveFile(client, request, file, token);
+        } else {
+            writeError(client, "404 Not Found");
+        }
+    }
+
+    private void serveFile(SocketChannel client, Request request, File file, FileToken token) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            long length = channel.size();
+            long lastModified = file.lastModified();
+            String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+            HttpRange range = null;
+            String rangeHeader = request.headers.get("range");
+            if (rangeHeader != null && HttpRange.ifRangeMatches(request.headers.get("if-range"), etag, lastModified)) {
+                range = HttpRange.parse(rangeHeader, length);
+            }
+            Map<String, String> headers = newHeaders();
+            headers.put("Accept-Ranges", "bytes");
+            headers.put("ETag", etag);
+            headers.put("Last-Modified", HttpRange.formatDate(lastModified));
+            if (range == HttpRange.UNSATISFIABLE) {
+                headers.put("Content-Range", "bytes */" + length);
+                headers.put("Content-Length", "0");
+                writeHead(client, "416 Range Not Satisfiable", headers);
+                return;
+            }
+            headers.put("Content-Type", token.mime == null ? "application/octet-stream" : token.mime);
+            if (token.attachment) {
+                headers.put("Content-Disposition", contentDisposition(token.name));
+            }
+            long start = 0;
+            long count = length;
+            String status = "200 OK";
+            if (range != null) {
+                start = range.start;
+                count = range.length();
+                status = "206 Partial Content";
+                headers.put("Content-Range", "bytes " + range.start + "-" + range.end + "/" + length);
+            }
+            headers.put("Content-Length", String.valueOf(count));
+            writeHead(client, status, headers);
+            if ("HEAD".equals(request.method)) {
+                return;
+            }
+            //sendfile, 数据不经过用户空间
+            long position = start;
+            long end = start + count;
+            while (position < end) {
+                long sent = channel.transferTo(position, Math.min(end - position, TRANSFER_CHUNK), client);
+                if (sent <= 0) {
+                    //文件被截断
+                    break;
+                }
+                position += sent;
+                mServedBytes.addAndGet(sent);
+            }
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * 文件夹边读边压缩, 长度未知, 以关闭连接结束
+     */
+    private void serveZip(SocketChannel client, Request request, File dir, FileToken token) throws IOException {
+        Map<String, String> headers = newHeaders();
+        headers.put("Content-Type", "application/zip");
+        headers.put("Content-Disposition", contentDisposition(token.name.endsWith(".zip") ? token.name : token.name + ".zip"));
+        writeHead(client, "200 OK", headers);
+        if ("HEAD".equals(request.method)) {
+            return;
+        }
+        OutputStream socketOut = new BufferedOutputStream(Channels.newOutputStream(client), ZIP_BUFFER_SIZE);
+        ZipOutputStream zip = new ZipOutputStream(socketOut);
+        byte[] buffer = new byte[ZIP_BUFFER_SIZE];
+        //包含文件夹名, 与dart端的ZipFileEncoder一致
+        ArrayDeque<File> dirs = new ArrayDeque<>();
+        ArrayDeque<String> prefixes = new ArrayDeque<>();
+        dirs.push(dir);
+        prefixes.push(dir.getName() + "/");
+        while (!dirs.isEmpty()) {
+            File current = dirs.pop();
+            String prefix = prefixes.pop();
+            File[] children = current.listFiles();
+            if (children == null || children.length == 0) {
+                zip.putNextEntry(new ZipEntry(prefix));
+                zip.closeEntry();
+                continue;
+            }
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    dirs.push(child);
+                    prefixes.push(prefix + child.getName() + "/");
+                } else if (child.isFile()) {
+                    writeZipEntry(zip, child, prefix + child.getName(), buffer);
+                }
+            }
+        }
+        zip.finish();
+        socketOut.flush();
+    }
+
+    private void writeZipEntry(ZipOutputStream zip, File file, String name, byte[] buffer) throws IOException {
+        FileInputStream input;
+        try {
+            input = new FileInputStream(file);
+        } catch (IOException e) {
+            //没有权限的文件跳过
+            Log.w(TAG, "skip " + file + ": " + e.getMessage());
+            return;
+        }
+        try {
+            String ext = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.US);
+            //压缩率优先让位于速度, 目标是跑满网络
+            zip.setLevel(STORED_EXTENSIONS.contains(ext) ? Deflater.NO_COMPRESSION : Deflater.BEST_SPEED);
+            ZipEntry entry = new ZipEntry(name);
+            entry.setTime(file.lastModified());
+            zip.putNextEntry(entry);
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                zip.write(buffer, 0, read);
+                mServedBytes.addAndGet(read);
+            }
+            zip.closeEntry();
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    private static Request readRequest(InputStream socketIn) throws IOException {
+        InputStream in = new BufferedInputStream(socketIn, 4096);
+        byte[] head = new byte[MAX_HEADER_BYTES];
+        int length = 0;
+        //读到空行为止
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                return null;
+            }
+            if (length == head.length) {
+                throw new IOException("header too large");
+            }
+            head[length++] = (byte) b;
+            if (length >= 4 && head[length - 4] == '\r' && head[length - 3] == '\n'
+                    && head[length - 2] == '\r' && head[length - 1] == '\n') {
+                break;
+            }
+        }
+        String[] lines = new String(head, 0, length, ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length < 2) {
+            return null;
+        }
+        Request request = new Request();
+        request.method = requestLine[0].toUpperCase(Locale.US);
+        String path = requestLine[1];
+        int query = path.indexOf('?');
+        request.path = query >= 0 ? path.substring(0, query) : path;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                request.headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US),
+                        lines[i].substring(colon + 1).trim());
+            }
+        }
+        return request;
+    }
+
+    private static Map<String, String> newHeaders() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        //web页面在dart服务的端口, 跨域读取
+        headers.put("Access-Control-Allow-Origin", "*");
+        headers.put("Access-Control-Expose-Headers", "Content-Length, Content-Range, Accept-Ranges, Content-Disposition");
+        headers.put("Cache-Control", "no-cache");
+        headers.put("Connection", "close");
+        return headers;
+    }
+
+    private static void writeHead(SocketChannel client, String status, Map<String, String> headers) throws IOException {
+        StringBuilder builder = new StringBuilder(512);
+        builder.append("HTTP/1.1 ").append(status).append("\r\n");
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            builder.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        builder.append("\r\n");
+        ByteBuffer buffer = ByteBuffer.wrap(builder.toString().getBytes(ISO_8859_1));
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+
+    private static void writeError(SocketChannel client, String status) throws IOException {
+        Map<String, String> headers = newHeaders();
+        headers.put("Content-Length", "0");
+        writeHead(client, status, headers);
+    }
+
+    /**
+     * 文件名可能包含非ASCII字符, 使用RFC 5987编码
+     */
+    private static String contentDisposition(String name) throws IOException {
+        String encoded = URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+        return "attachment; filename=\"" + encoded + "\"; filename*=UTF-8''" + encoded;
+    }
+
+    private static String buildPath(String token, String name) {
+        try {
+            return "/f/" + token + "/" + URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+        } catch (IOException e) {
+            return "/f/" + token;
+        }
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.logcat;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.plugin.common.BasicMessageChannel;
+import io.flutter.plugin.common.BinaryCodec;
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * logcat的控制channel和批次数据channel
+ * 批次通过BinaryCodec直接发送字节, 不经过StandardMessageCodec编解码
+ */
+public class LogcatChannel implements MethodCallHandler, LogcatStreamer.IBatchListener {
+    private static final String TAG = "LogcatChannel";
+    public static final String CHANNEL = "kdebugtools/logcat";
+    public static final String DATA_CHANNEL = "kdebugtools/logcat_data";
+
+    private final LogcatStreamer mStreamer = new LogcatStreamer(this);
+    private MethodChannel mChannel;
+    private BasicMessageChannel<ByteBuffer> mDataChannel;
+
+    public void attach(BinaryMessenger messenger) {
+        mChannel = new MethodChannel(messenger, CHANNEL);
+        mChannel.setMethodCallHandler(this);
+        mDataChannel = new BasicMessageChannel<>(messenger, DATA_CHANNEL, BinaryCodec.INSTANCE);
+    }
+
+    public void detach() {
+        mStreamer.stop();
+        if (mChannel != null) {
+            mChannel.setMethodCallHandler(null);
+            mChannel = null;
+        }
+        mDataChannel = null;
+    }
+
+    @Override
+    public void onMethodCall(@NonNull MethodCall call, @NonNull Result result) {
+        switch (call.method) {
+            case "start":
+                try {
+                    mStreamer.setFilter(LogcatFilter.fromArguments(call.<Map<String, Object>>arguments()));
+                    mStreamer.start();
+                    callResult(result, 0, "success", mStreamer.getState());
+                } catch (Exception e) {
+                    Log.e(TAG, "start logcat failed", e);
+                    callResult(result, -1, "start failed: " + e.getMessage(), null);
+                }
+                break;
+            case "stop":
+                mStreamer.stop();
+                callResult(result, 0, "success", null);
+                break;
+            case "setFilter":
+                try {
+                    mStreamer.setFilter(LogcatFilter.fromArguments(call.<Map<String, Object>>arguments()));
+                    callResult(result, 0, "success", mStreamer.getState());
+                } catch (IllegalArgumentException e) {
+                    callResult(result, -1, e.getMessage(), null);
+                }
+                break;
+            case "history":
+                //直接返回字节, 和批次格式相同
+                Number since = call.argument("since");
+                result.success(mStreamer.getHistory(since == null ? 0 : since.longValue()));
+                break;
+            case "state":
+                callResult(result, 0, "success", mStreamer.getState());
+                break;
+            default:
+                result.notImplemented();
+        }
+    }
+
+    @Override
+    public void onBatch(byte[] batch) {
+        BasicMessageChannel<ByteBuffer> channel = mDataChannel;
+        if (channel == null) {
+            return;
+        }
+        //engine要求direct buffer
+        ByteBuffer buffer = ByteBuffer.allocateDirect(batch.length);
+        buffer.put(batch);
+        buffer.flip();
+        channel.send(buffer);
+    }
+
+    private void callResult(Result result, int code, String msg, Map resultData) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("ts", System.currentTimeMillis());
+        map.put("code", code);
+        map.put("msg", msg);
+        map.put("data", resultData);
+        result.success(map);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.logcat;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * logcat过滤条件, 在读取线程中过滤后再发送给dart
+ * 不可变, 修改时整体替换
+ */
+public class LogcatFilter {
+    public static final LogcatFilter ALL = new LogcatFilter(Log.VERBOSE, null, null);
+
+    //最低级别 android.util.Log.VERBOSE ~ ASSERT
+    public final int minLevel;
+    //只保留这些tag, 为空不限制
+    public final Set<String> tags;
+    //tag或内容匹配, 为null不限制
+    public final Pattern regex;
+
+    public LogcatFilter(int minLevel, Set<String> tags, Pattern regex) {
+        this.minLevel = minLevel;
+        this.tags = tags == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(new HashSet<>(tags));
+        this.regex = regex;
+    }
+
+    /**
+     * @param args level: V/D/I/W/E/F, tags: [tag], regex
+     * @throws IllegalArgumentException regex不合法
+     */
+    public static LogcatFilter fromArguments(Map<String, Object> args) {
+        if (args == null) {
+            return ALL;
+        }
+        Object level = args.get("level");
+        Object tags = args.get("tags");
+        Object regex = args.get("regex");
+        Pattern pattern = null;
+        if (regex instanceof String && !((String) regex).isEmpty()) {
+            try {
+                pattern = Pattern.compile((String) regex);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("bad regex: " + e.getMessage());
+            }
+        }
+        Set<String> tagSet = null;
+        if (tags instanceof List) {
+            tagSet = new HashSet<>();
+            for (Object tag : (List) tags) {
+                if (tag != null) {
+                    tagSet.add(tag.toString());
+                }
+            }
+        }
+        return new LogcatFilter(level instanceof String ? parseLevel((String) level) : Log.VERBOSE, tagSet, pattern);
+    }
+
+    public boolean accept(int level, String tag, String msg) {
+        if (level < minLevel) {
+            return false;
+        }
+        if (!tags.isEmpty() && !tags.contains(tag)) {
+            return false;
+        }
+        return regex == null || regex.matcher(tag).find() || regex.matcher(msg).find();
+    }
+
+    /**
+     * logcat中的级别字母
+     *
+     * @return 不认识时为VERBOSE
+     */
+    public static int parseLevel(String level) {
+        if (level.isEmpty()) {
+            return Log.VERBOSE;
+        }
+        switch (level.charAt(0)) {
+            case 'D':
+                return Log.DEBUG;
+            case 'I':
+                return Log.INFO;
+            case 'W':
+                return Log.WARN;
+            case 'E':
+                return Log.ERROR;
+            case 'F':
+            case 'A':
+                return Log.ASSERT;
+            default:
+                return Log.VERBOSE;
+        }
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("minLevel", minLevel);
+        map.put("tags", new ArrayList<>(tags));
+        map.put("regex", regex == null ? null : regex.pattern());
+        return map;
+    }
+}
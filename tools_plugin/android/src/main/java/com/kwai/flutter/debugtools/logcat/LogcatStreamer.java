@@ -0,0 +1,385 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.logcat;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.kwai.flutter.debugtools.screen.ScreenThreads;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 读取本进程的logcat
+ * <p>
+ * 在后台线程中解析每行, 最近的记录保存在环形缓冲中供后连接的web读取;
+ * 通过过滤的记录编码到批次中, 按时间或大小在主线程发出, 避免每行一条消息
+ * <p>
+ * 批次格式(大端): magic(4) count(4) dropped(4) | record*
+ * record: seq(8) time(8) tid(4) level(1) tagLen(2) tag msgLen(4) msg, 字符串为utf8, time为墙上时间 毫秒
+ */
+public class LogcatStreamer {
+    private static final String TAG = "LogcatStreamer";
+    private static final int MAGIC = 0x4B444C43; //KDLC
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    //环形缓冲条数, 也是启动时从logcat缓冲区读取的条数
+    public static final int RING_CAPACITY = 5000;
+    //单条内容最大长度, 超出截断
+    private static final int MAX_MESSAGE_LENGTH = 4096;
+    //批次最长等待时间
+    private static final long FLUSH_INTERVAL_MS = 200;
+    //批次达到该大小立即发出
+    private static final int FLUSH_BYTES = 64 * 1024;
+    //主线程繁忙发不出去时最多积压, 超出丢弃新记录
+    private static final int MAX_PENDING_BYTES = 1024 * 1024;
+    //threadtime格式 "MM-DD HH:MM:SS.mmm" 的长度
+    private static final int TIME_LENGTH = 18;
+
+    /**
+     * 批次回调, 在主线程中调用
+     */
+    public interface IBatchListener {
+        void onBatch(byte[] batch);
+    }
+
+    //环形缓冲, 保存全部记录, 读取历史时再过滤
+    private final long[] mTimes = new long[RING_CAPACITY];
+    private final int[] mTids = new int[RING_CAPACITY];
+    private final byte[] mLevels = new byte[RING_CAPACITY];
+    private final String[] mTags = new String[RING_CAPACITY];
+    private final String[] mMessages = new String[RING_CAPACITY];
+    //累计记录数, 下一条的序号
+    private long mTotal;
+
+    //等待发出的批次
+    private final ByteArrayOutputStream mPendingBytes = new ByteArrayOutputStream(FLUSH_BYTES);
+    private final DataOutputStream mPending = new DataOutputStream(mPendingBytes);
+    private int mPendingCount;
+    //积压超出后丢弃的条数, 随下一个批次发出
+    private int mDropped;
+    private long mDroppedTotal;
+    private long mSentTotal;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private final IBatchListener mListener;
+    private volatile LogcatFilter mFilter = LogcatFilter.ALL;
+    private final int mPid = Process.myPid();
+    private java.lang.Process mProcess;
+    private Thread mThread;
+    //最后一条的时间, 只在读取线程中修改
+    private volatile long mLastTime;
+    //重新开始时跳过已经读取过的记录
+    private long mSkipBefore;
+    //只在读取线程中使用
+    private final Calendar mCalendar = Calendar.getInstance();
+
+    public LogcatStreamer(IBatchListener listener) {
+        mListener = listener;
+    }
+
+    public void setFilter(LogcatFilter filter) {
+        mFilter = filter == null ? LogcatFilter.ALL : filter;
+    }
+
+    public LogcatFilter getFilter() {
+        return mFilter;
+    }
+
+    public synchronized boolean isRunning() {
+        return mThread != null;
+    }
+
+    public synchronized void start() throws IOException {
+        if (mThread != null) {
+            return;
+        }
+        List<String> cmd = new ArrayList<>();
+        cmd.add("logcat");
+        cmd.add("-v");
+        cmd.add("threadtime");
+        cmd.add("-T");
+        cmd.add(String.valueOf(RING_CAPACITY));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            cmd.add("--pid=" + mPid);
+        }
+        mSkipBefore = mLastTime;
+        final java.lang.Process process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        mProcess = process;
+        mThread = ScreenThreads.start("logcat", ScreenThreads.PRIORITY_BACKGROUND, new Runnable() {
+            @Override
+            public void run() {
+                readLoop(process);
+            }
+        });
+    }
+
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        //结束进程后读取线程会读到EOF
+        mProcess.destroy();
+        mProcess = null;
+        mThread = null;
+    }
+
+    private void readLoop(java.lang.Process process) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                parseLine(line);
+            }
+        } catch (IOException e) {
+            //进程被结束
+        } finally {
+            synchronized (this) {
+                if (mProcess == process) {
+                    //logcat自己退出了
+                    Log.w(TAG, "logcat exited");
+                    mProcess = null;
+                    mThread = null;
+                }
+            }
+            process.destroy();
+        }
+    }
+
+    /**
+     * threadtime格式: "MM-DD HH:MM:SS.mmm  PID  TID L TAG     : msg"
+     */
+    private void parseLine(String line) {
+        int length = line.length();
+        if (length < TIME_LENGTH + 8 || line.charAt(2) != '-' || line.charAt(8) != ':') {
+            //"--------- beginning of main" 等
+            return;
+        }
+        int pos = skipSpaces(line, TIME_LENGTH);
+        int pidEnd = skipDigits(line, pos);
+        int pid = parseInt(line, pos, pidEnd);
+        pos = skipSpaces(line, pidEnd);
+        int tidEnd = skipDigits(line, pos);
+        int tid = parseInt(line, pos, tidEnd);
+        pos = skipSpaces(line, tidEnd);
+        if (pid < 0 || tid < 0 || pos + 2 >= length || pid != mPid) {
+            return;
+        }
+        int level = LogcatFilter.parseLevel(line.substring(pos, pos + 1));
+        int tagStart = pos + 2;
+        int colon = line.indexOf(": ", tagStart);
+        String tag;
+        String msg;
+        if (colon < 0) {
+            //空内容时没有": "
+            tag = line.substring(tagStart).trim();
+            msg = "";
+        } else {
+            tag = line.substring(tagStart, colon).trim();
+            msg = line.substring(colon + 2);
+        }
+        if (msg.length() > MAX_MESSAGE_LENGTH) {
+            msg = msg.substring(0, MAX_MESSAGE_LENGTH);
+        }
+        long time = parseTime(line);
+        if (time <= mSkipBefore) {
+            return;
+        }
+        mLastTime = time;
+        onRecord(time, tid, level, tag, msg);
+    }
+
+    //MM-DD HH:MM:SS.mmm 没有年份, 取最近的一年
+    private long parseTime(String line) {
+        Calendar calendar = mCalendar;
+        long now = System.currentTimeMillis();
+        calendar.setTimeInMillis(now);
+        int year = calendar.get(Calendar.YEAR);
+        calendar.set(year, parseInt(line, 0, 2) - 1, parseInt(line, 3, 5),
+                parseInt(line, 6, 8), parseInt(line, 9, 11), parseInt(line, 12, 14));
+        calendar.set(Calendar.MILLISECOND, parseInt(line, 15, 18));
+        long time = calendar.getTimeInMillis();
+        if (time > now + 24 * 3600 * 1000L) {
+            calendar.set(Calendar.YEAR, year - 1);
+            time = calendar.getTimeInMillis();
+        }
+        return time;
+    }
+
+    private synchronized void onRecord(long time, int tid, int level, String tag, String msg) {
+        long seq = mTotal;
+        int index = (int) (seq % RING_CAPACITY);
+        mTimes[index] = time;
+        mTids[index] = tid;
+        mLevels[index] = (byte) level;
+        mTags[index] = tag;
+        mMessages[index] = msg;
+        mTotal++;
+        if (!mFilter.accept(level, tag, msg)) {
+            return;
+        }
+        if (mPendingBytes.size() >= MAX_PENDING_BYTES) {
+            mDropped++;
+            mDroppedTotal++;
+            return;
+        }
+        try {
+            writeRecord(mPending, seq, time, tid, level, tag, msg);
+        } catch (IOException e) {
+            //写内存不会失败
+            return;
+        }
+        mPendingCount++;
+        if (mPendingCount == 1) {
+            mMainHandler.postDelayed(mFlushTask, FLUSH_INTERVAL_MS);
+        } else if (mPendingBytes.size() >= FLUSH_BYTES) {
+            //已经有等待的任务时提前执行, 主线程中最多只有一个
+            mMainHandler.removeCallbacks(mFlushTask);
+            mMainHandler.post(mFlushTask);
+        }
+    }
+
+    //在主线程中调用
+    private void flush() {
+        byte[] batch;
+        synchronized (this) {
+            if (mPendingCount == 0) {
+                return;
+            }
+            batch = buildBatch(mPendingCount, mDropped, mPendingBytes.toByteArray());
+            mSentTotal += mPendingCount;
+            mPendingBytes.reset();
+            mPendingCount = 0;
+            mDropped = 0;
+        }
+        mListener.onBatch(batch);
+    }
+
+    /**
+     * 环形缓冲中通过当前过滤的记录, 编码为一个批次
+     *
+     * @param sinceSeq 只返回该序号之后的记录
+     */
+    public synchronized byte[] getHistory(long sinceSeq) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        LogcatFilter filter = mFilter;
+        int count = 0;
+        try {
+            for (long seq = Math.max(sinceSeq, Math.max(0, mTotal - RING_CAPACITY)); seq < mTotal; seq++) {
+                int index = (int) (seq % RING_CAPACITY);
+                if (filter.accept(mLevels[index], mTags[index], mMessages[index])) {
+                    writeRecord(out, seq, mTimes[index], mTids[index], mLevels[index], mTags[index], mMessages[index]);
+                    count++;
+                }
+            }
+        } catch (IOException e) {
+            //写内存不会失败
+        }
+        return buildBatch(count, 0, bytes.toByteArray());
+    }
+
+    public synchronized Map<String, Object> getState() {
+        Map<String, Object> state = new HashMap<>();
+        state.put("running", mThread != null);
+        state.put("filter", mFilter.toMap());
+        state.put("total", mTotal);
+        state.put("sent", mSentTotal);
+        state.put("dropped", mDroppedTotal);
+        state.put("capacity", RING_CAPACITY);
+        return state;
+    }
+
+    private static void writeRecord(DataOutputStream out, long seq, long time, int tid, int level,
+                                    String tag, String msg) throws IOException {
+        byte[] tagBytes = tag.getBytes(UTF8);
+        byte[] msgBytes = msg.getBytes(UTF8);
+        out.writeLong(seq);
+        out.writeLong(time);
+        out.writeInt(tid);
+        out.writeByte(level);
+        out.writeShort(tagBytes.length);
+        out.write(tagBytes);
+        out.writeInt(msgBytes.length);
+        out.write(msgBytes);
+    }
+
+    private static byte[] buildBatch(int count, int dropped, byte[] records) {
+        byte[] batch = new byte[12 + records.length];
+        writeInt(batch, 0, MAGIC);
+        writeInt(batch, 4, count);
+        writeInt(batch, 8, dropped);
+        System.arraycopy(records, 0, batch, 12, records.length);
+        return batch;
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int skipSpaces(String line, int pos) {
+        while (pos < line.length() && line.charAt(pos) == ' ') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int skipDigits(String line, int pos) {
+        while (pos < line.length() && Character.isDigit(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @return 不是数字时返回-1
+     */
+    private static int parseInt(String line, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
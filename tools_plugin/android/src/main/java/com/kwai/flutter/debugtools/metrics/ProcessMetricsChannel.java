@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.metrics;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * 进程指标的method channel, 预览期间由dart端开启并定时拉取批次
+ */
+public class ProcessMetricsChannel implements MethodCallHandler {
+    public static final String CHANNEL = "kdebugtools/process_metrics";
+
+    private final ProcessMetricsSampler mSampler;
+    private MethodChannel mChannel;
+
+    public ProcessMetricsChannel(ProcessMetricsSampler sampler) {
+        mSampler = sampler;
+    }
+
+    public void attach(BinaryMessenger messenger) {
+        mChannel = new MethodChannel(messenger, CHANNEL);
+        mChannel.setMethodCallHandler(this);
+    }
+
+    public void detach() {
+        if (mChannel != null) {
+            mChannel.setMethodCallHandler(null);
+            mChannel = null;
+        }
+        mSampler.stop();
+    }
+
+    @Override
+    public void onMethodCall(@NonNull MethodCall call, @NonNull Result result) {
+        switch (call.method) {
+            case "start":
+                Number intervalMs = call.argument("intervalMs");
+                mSampler.start(intervalMs == null ? ProcessMetricsSampler.DEFAULT_INTERVAL_MS : intervalMs.longValue());
+                callResult(result, 0, "success", mSampler.getState());
+                break;
+            case "stop":
+                mSampler.stop();
+                callResult(result, 0, "success", null);
+                break;
+            case "batch":
+                Number since = call.argument("since");
+                callResult(result, 0, "success", mSampler.getBatch(since == null ? 0 : since.longValue()));
+                break;
+            case "state":
+                callResult(result, 0, "success", mSampler.getState());
+                break;
+            default:
+                result.notImplemented();
+        }
+    }
+
+    private void callResult(Result result, int code, String msg, Map resultData) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("ts", System.currentTimeMillis());
+        map.put("code", code);
+        map.put("msg", msg);
+        map.put("data", resultData);
+        result.success(map);
+    }
+}
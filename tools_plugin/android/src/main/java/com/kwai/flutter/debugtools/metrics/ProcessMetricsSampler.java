@@ -0,0 +1,479 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.metrics;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.kwai.flutter.debugtools.screen.FrameClock;
+import com.kwai.flutter.debugtools.screen.ScreenThreads;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 进程指标采样
+ * <p>
+ * 在一个低优先级线程中定时采样进程/线程cpu、java和native堆、PSS、GC次数和投屏链路的cpu消耗,
+ * 保存在固定大小的环形缓冲中; 读取时按批次返回, 每行与上一行做差, 累计值的差很小便于传输
+ * 采样本身的cpu时间也作为一列记录, 用于确认采样没有影响app
+ */
+public class ProcessMetricsSampler {
+    private static final String TAG = "ProcessMetricsSampler";
+    public static final long DEFAULT_INTERVAL_MS = 1000;
+    private static final long MIN_INTERVAL_MS = 200;
+    //Debug.getMemoryInfo较慢 单独限制频率
+    private static final long PSS_INTERVAL_MS = 5000;
+    //1s采样约10分钟
+    private static final int CAPACITY = 600;
+    //每次采样记录cpu消耗最多的线程数
+    private static final int TOP_THREADS = 8;
+    //线程数上限, 超出的线程不统计
+    private static final int MAX_THREADS = 1024;
+    //proc中的cpu时间单位, USER_HZ固定为100
+    private static final long MS_PER_JIFFY = 10;
+
+    //列, 除threadCount外都是累计值或当前值
+    public static final String[] COLUMNS = {
+            //采样时的单调时间 ms
+            "ts",
+            //进程累计cpu时间 ms
+            "cpuMs",
+            "javaHeapKb",
+            "nativeHeapKb",
+            //按PSS_INTERVAL_MS更新, 之间重复上一次的值
+            "pssKb",
+            //API 23以下为-1
+            "gcCount",
+            "gcTimeMs",
+            //投屏抓取和分发线程累计cpu时间 ms
+            "pipelineCpuMs",
+            "threadCount",
+            //采样线程自身累计cpu时间 微秒
+            "samplerCpuUs"
+    };
+    private static final int COL_TS = 0;
+    private static final int COL_CPU = 1;
+    private static final int COL_JAVA_HEAP = 2;
+    private static final int COL_NATIVE_HEAP = 3;
+    private static final int COL_PSS = 4;
+    private static final int COL_GC_COUNT = 5;
+    private static final int COL_GC_TIME = 6;
+    private static final int COL_PIPELINE_CPU = 7;
+    private static final int COL_THREAD_COUNT = 8;
+    private static final int COL_SAMPLER_CPU = 9;
+
+    /**
+     * 投屏链路的cpu消耗
+     */
+    public interface IPipelineCostSource {
+        /**
+         * @return 累计cpu时间 纳秒
+         */
+        long getCpuTimeNanos();
+    }
+
+    //环形缓冲 [CAPACITY * COLUMNS.length]
+    private final long[] mRows = new long[CAPACITY * COLUMNS.length];
+    //每行的top线程 [CAPACITY * TOP_THREADS], 本次采样间隔内的cpu ms
+    private final int[] mTopTids = new int[CAPACITY * TOP_THREADS];
+    private final int[] mTopCpuMs = new int[CAPACITY * TOP_THREADS];
+    private final int[] mTopCounts = new int[CAPACITY];
+    //累计采样次数, 下一行的序号
+    private long mTotal;
+
+    //以下只在采样线程中使用
+    //上一次和本次的线程cpu, 按tid排序
+    private int[] mPrevTids = new int[MAX_THREADS];
+    private long[] mPrevJiffies = new long[MAX_THREADS];
+    private int mPrevCount;
+    private int[] mCurTids = new int[MAX_THREADS];
+    private long[] mCurJiffies = new long[MAX_THREADS];
+    //本次间隔内的线程cpu, 用于选出top
+    private final int[] mDeltaTids = new int[MAX_THREADS];
+    private final long[] mDeltaJiffies = new long[MAX_THREADS];
+    private int mDeltaCount;
+    private final byte[] mReadBuffer = new byte[1024];
+    private final long[] mStatValues = new long[2];
+    private final Debug.MemoryInfo mMemoryInfo = new Debug.MemoryInfo();
+    private long mLastPssTs;
+    private long mLastPssKb;
+    private volatile long mSamplerCpuNanos;
+
+    //线程名 只记录进入过top的线程
+    private final Map<Integer, String> mThreadNames = new HashMap<>();
+    private volatile IPipelineCostSource mPipelineSource;
+    private volatile long mIntervalMs = DEFAULT_INTERVAL_MS;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private final Runnable mSampleTask = new Runnable() {
+        @Override
+        public void run() {
+            long start = Debug.threadCpuTimeNanos();
+            sample();
+            mSamplerCpuNanos += Debug.threadCpuTimeNanos() - start;
+            Handler handler = mHandler;
+            if (handler != null) {
+                handler.postDelayed(this, mIntervalMs);
+            }
+        }
+    };
+
+    public void setPipelineCostSource(IPipelineCostSource source) {
+        mPipelineSource = source;
+    }
+
+    public synchronized boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * 开始采样, 已经开始时只修改间隔
+     */
+    public synchronized void start(long intervalMs) {
+        mIntervalMs = Math.max(MIN_INTERVAL_MS, intervalMs);
+        if (mThread != null) {
+            return;
+        }
+        mThread = ScreenThreads.startHandlerThread("metrics", ScreenThreads.PRIORITY_BACKGROUND);
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mSampleTask);
+    }
+
+    /**
+     * 停止采样, 已采样的数据保留
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mHandler.removeCallbacks(mSampleTask);
+        mHandler = null;
+        mThread.quit();
+        mThread = null;
+    }
+
+    public long getIntervalMs() {
+        return mIntervalMs;
+    }
+
+    //在采样线程中调用
+    private void sample() {
+        long ts = FrameClock.nowNanos() / 1000000;
+        long cpuMs = readStat("/proc/self/stat") ? (mStatValues[0] + mStatValues[1]) * MS_PER_JIFFY : 0;
+        Runtime runtime = Runtime.getRuntime();
+        long javaHeapKb = (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+        long nativeHeapKb = Debug.getNativeHeapAllocatedSize() / 1024;
+        if (mLastPssTs == 0 || ts - mLastPssTs >= PSS_INTERVAL_MS) {
+            Debug.getMemoryInfo(mMemoryInfo);
+            mLastPssKb = mMemoryInfo.getTotalPss();
+            mLastPssTs = ts;
+        }
+        long gcCount = -1;
+        long gcTimeMs = -1;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            gcCount = parseLong(Debug.getRuntimeStat("art.gc.gc-count"));
+            gcTimeMs = parseLong(Debug.getRuntimeStat("art.gc.gc-time"));
+        }
+        IPipelineCostSource source = mPipelineSource;
+        long pipelineCpuMs = source == null ? 0 : source.getCpuTimeNanos() / 1000000;
+        int threadCount = sampleThreads();
+
+        synchronized (this) {
+            int row = (int) (mTotal % CAPACITY);
+            int offset = row * COLUMNS.length;
+            mRows[offset + COL_TS] = ts;
+            mRows[offset + COL_CPU] = cpuMs;
+            mRows[offset + COL_JAVA_HEAP] = javaHeapKb;
+            mRows[offset + COL_NATIVE_HEAP] = nativeHeapKb;
+            mRows[offset + COL_PSS] = mLastPssKb;
+            mRows[offset + COL_GC_COUNT] = gcCount;
+            mRows[offset + COL_GC_TIME] = gcTimeMs;
+            mRows[offset + COL_PIPELINE_CPU] = pipelineCpuMs;
+            mRows[offset + COL_THREAD_COUNT] = threadCount;
+            mRows[offset + COL_SAMPLER_CPU] = mSamplerCpuNanos / 1000;
+            fillTopThreads(row);
+            mTotal++;
+        }
+    }
+
+    /**
+     * 读取所有线程的cpu时间, 和上一次比较得到本次间隔内的cpu
+     *
+     * @return 线程数
+     */
+    private int sampleThreads() {
+        String[] tasks = new File("/proc/self/task").list();
+        int count = 0;
+        if (tasks != null) {
+            for (String task : tasks) {
+                if (count >= MAX_THREADS) {
+                    break;
+                }
+                int tid;
+                try {
+                    tid = Integer.parseInt(task);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (!readStat("/proc/self/task/" + task + "/stat")) {
+                    //线程已经结束
+                    continue;
+                }
+                mCurTids[count] = tid;
+                mCurJiffies[count] = mStatValues[0] + mStatValues[1];
+                count++;
+            }
+        }
+        //目录基本按tid顺序, 插入排序接近线性
+        for (int i = 1; i < count; i++) {
+            int tid = mCurTids[i];
+            long jiffies = mCurJiffies[i];
+            int j = i - 1;
+            while (j >= 0 && mCurTids[j] > tid) {
+                mCurTids[j + 1] = mCurTids[j];
+                mCurJiffies[j + 1] = mCurJiffies[j];
+                j--;
+            }
+            mCurTids[j + 1] = tid;
+            mCurJiffies[j + 1] = jiffies;
+        }
+        //与上一次归并比较, 新线程按全部cpu计算
+        int deltaCount = 0;
+        int p = 0;
+        for (int i = 0; i < count; i++) {
+            int tid = mCurTids[i];
+            while (p < mPrevCount && mPrevTids[p] < tid) {
+                p++;
+            }
+            long prev = p < mPrevCount && mPrevTids[p] == tid ? mPrevJiffies[p] : 0;
+            long delta = mCurJiffies[i] - prev;
+            if (delta > 0) {
+                mDeltaTids[deltaCount] = tid;
+                mDeltaJiffies[deltaCount] = delta;
+                deltaCount++;
+            }
+        }
+        //交换缓冲
+        int[] tids = mPrevTids;
+        mPrevTids = mCurTids;
+        mCurTids = tids;
+        long[] jiffies = mPrevJiffies;
+        mPrevJiffies = mCurJiffies;
+        mCurJiffies = jiffies;
+        boolean first = mTotal == 0 && mPrevCount == 0;
+        mPrevCount = count;
+        //第一次没有间隔
+        mDeltaCount = first ? 0 : deltaCount;
+        return count;
+    }
+
+    //选出本次cpu最多的线程写入row, 持有锁
+    private void fillTopThreads(int row) {
+        int offset = row * TOP_THREADS;
+        int top = 0;
+        for (int i = 0; i < mDeltaCount; i++) {
+            long delta = mDeltaJiffies[i];
+            //按cpu降序插入
+            int pos = top;
+            while (pos > 0 && mTopCpuMs[offset + pos - 1] < delta * MS_PER_JIFFY) {
+                pos--;
+            }
+            if (pos >= TOP_THREADS) {
+                continue;
+            }
+            int last = Math.min(top, TOP_THREADS - 1);
+            for (int j = last; j > pos; j--) {
+                mTopTids[offset + j] = mTopTids[offset + j - 1];
+                mTopCpuMs[offset + j] = mTopCpuMs[offset + j - 1];
+            }
+            mTopTids[offset + pos] = mDeltaTids[i];
+            mTopCpuMs[offset + pos] = (int) (delta * MS_PER_JIFFY);
+            top = Math.min(top + 1, TOP_THREADS);
+        }
+        mTopCounts[row] = top;
+        for (int i = 0; i < top; i++) {
+            int tid = mTopTids[offset + i];
+            if (!mThreadNames.containsKey(tid)) {
+                mThreadNames.put(tid, readThreadName(tid));
+            }
+        }
+    }
+
+    /**
+     * 读取stat中的utime和stime到mStatValues, 单位jiffies
+     */
+    private boolean readStat(String path) {
+        int length = 0;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(path);
+            int read;
+            while (length < mReadBuffer.length
+                    && (read = in.read(mReadBuffer, length, mReadBuffer.length - length)) > 0) {
+                length += read;
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+            }
+        }
+        //线程名中可能有空格和括号, 从最后一个')'之后开始, 之后第1个字段为state(第3列), utime和stime为第14、15列
+        int pos = length - 1;
+        while (pos >= 0 && mReadBuffer[pos] != ')') {
+            pos--;
+        }
+        if (pos < 0) {
+            return false;
+        }
+        int field = 2;
+        int found = 0;
+        long value = 0;
+        boolean inNumber = false;
+        for (int i = pos + 1; i < length && found < 2; i++) {
+            byte b = mReadBuffer[i];
+            if (b == ' ') {
+                if (inNumber) {
+                    if (field == 14 || field == 15) {
+                        mStatValues[found++] = value;
+                    }
+                    inNumber = false;
+                }
+                field++;
+                value = 0;
+            } else if (field == 14 || field == 15) {
+                if (b >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                    inNumber = true;
+                }
+            }
+        }
+        return found == 2;
+    }
+
+    private static String readThreadName(int tid) {
+        byte[] buffer = new byte[64];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream("/proc/self/task/" + tid + "/comm");
+            int length = Math.max(0, in.read(buffer));
+            return new String(buffer, 0, length, "UTF-8").trim();
+        } catch (IOException e) {
+            return String.valueOf(tid);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "bad runtime stat: " + value);
+            return -1;
+        }
+    }
+
+    /**
+     * 读取 sinceSeq 之后的采样
+     * <p>
+     * data为按行展开的COLUMNS, 第一行为原值, 之后每行为与上一行的差;
+     * threads每行为 count, tid, cpuMs, tid, cpuMs...
+     *
+     * @param sinceSeq 上一批返回的seq, 第一次传0
+     * @return seq: 下一批的起点, dropped: 已被覆盖没有返回的行数
+     */
+    public synchronized Map<String, Object> getBatch(long sinceSeq) {
+        if (sinceSeq > mTotal) {
+            //app重启过, 从头开始
+            sinceSeq = 0;
+        }
+        long from = Math.max(sinceSeq, Math.max(0, mTotal - CAPACITY));
+        int rows = (int) (mTotal - from);
+        long[] data = new long[rows * COLUMNS.length];
+        int threadLength = 0;
+        for (long seq = from; seq < mTotal; seq++) {
+            threadLength += 1 + mTopCounts[(int) (seq % CAPACITY)] * 2;
+        }
+        int[] threads = new int[threadLength];
+        Map<String, String> names = new HashMap<>();
+        int t = 0;
+        for (int r = 0; r < rows; r++) {
+            int row = (int) ((from + r) % CAPACITY);
+            int prevRow = (int) ((from + r - 1 + CAPACITY) % CAPACITY);
+            for (int c = 0; c < COLUMNS.length; c++) {
+                long value = mRows[row * COLUMNS.length + c];
+                data[r * COLUMNS.length + c] = r == 0 ? value : value - mRows[prevRow * COLUMNS.length + c];
+            }
+            int top = mTopCounts[row];
+            threads[t++] = top;
+            for (int i = 0; i < top; i++) {
+                int tid = mTopTids[row * TOP_THREADS + i];
+                threads[t++] = tid;
+                threads[t++] = mTopCpuMs[row * TOP_THREADS + i];
+                String name = mThreadNames.get(tid);
+                if (name != null) {
+                    //json的key只能是字符串
+                    names.put(String.valueOf(tid), name);
+                }
+            }
+        }
+        Map<String, Object> batch = new HashMap<>();
+        batch.put("seq", mTotal);
+        batch.put("dropped", from - sinceSeq);
+        batch.put("columns", Arrays.asList(COLUMNS));
+        batch.put("rows", rows);
+        batch.put("data", data);
+        batch.put("threads", threads);
+        batch.put("threadNames", names);
+        batch.put("intervalMs", mIntervalMs);
+        //ts加上clockOffset为墙上时间 ms
+        batch.put("clockOffset", FrameClock.wallOffsetMicros() / 1000);
+        return batch;
+    }
+
+    public synchronized Map<String, Object> getState() {
+        Map<String, Object> state = new HashMap<>();
+        state.put("running", mThread != null);
+        state.put("intervalMs", mIntervalMs);
+        state.put("samples", mTotal);
+        state.put("capacity", CAPACITY);
+        state.put("samplerCpuUs", mSamplerCpuNanos / 1000);
+        return state;
+    }
+}
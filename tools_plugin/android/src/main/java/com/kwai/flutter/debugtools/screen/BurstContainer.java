@@ -0,0 +1,212 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kwai.flutter.debugtools.screen;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 连拍帧容器文件
+ * <p>
+ * 格式: header | frame* | index | trailer
+ * <ul>
+ * <li>header: magic(4) version(4) width(4) height(4)</li>
+ * <li>frame: seq(4) ts(8) size(4) data(size), ts为抓取时的单调时间 纳秒, data为png</li>
+ * <li>index: 每帧 seq(4) ts(8) offset(8) size(4), offset指向data</li>
+ * <li>trailer: count(4) indexOffset(8) magic(4)</li>
+ * </ul>
+ * 只追加写入, 没有写入index时(进程被杀)可以顺序扫描frame恢复
+ */
+public class BurstContainer {
+    private static final int MAGIC_HEADER = 0x4B444246; //KDBF
+    private static final int MAGIC_INDEX = 0x4B444249; //KDBI
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int FRAME_HEADER_SIZE = 16;
+    private static final int TRAILER_SIZE = 16;
+    //写缓冲 尽量大块顺序写
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * 帧索引
+     */
+    public static class FrameEntry {
+        public final int seq;
+        public final long ts;
+        public final long offset;
+        public final int size;
+
+        FrameEntry(int seq, long ts, long offset, int size) {
+            this.seq = seq;
+            this.ts = ts;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    /**
+     * 追加写入, 只能在一个线程中调用
+     */
+    public static class Writer {
+        private final DataOutputStream mOut;
+        private final List<FrameEntry> mEntries = new ArrayList<>();
+        private long mPosition;
+        private boolean mClosed;
+
+        public Writer(File file, int width, int height) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), WRITE_BUFFER_SIZE));
+            mOut.writeInt(MAGIC_HEADER);
+            mOut.writeInt(VERSION);
+            mOut.writeInt(width);
+            mOut.writeInt(height);
+            mPosition = HEADER_SIZE;
+        }
+
+        public void append(int seq, long ts, byte[] data) throws IOException {
+            if (mClosed) {
+                throw new IOException("container closed");
+            }
+            mOut.writeInt(seq);
+            mOut.writeLong(ts);
+            mOut.writeInt(data.length);
+            mOut.write(data);
+            mEntries.add(new FrameEntry(seq, ts, mPosition + FRAME_HEADER_SIZE, data.length));
+            mPosition += FRAME_HEADER_SIZE + data.length;
+        }
+
+        public int getFrameCount() {
+            return mEntries.size();
+        }
+
+        /**
+         * 写入index并关闭
+         */
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                long indexOffset = mPosition;
+                for (FrameEntry entry : mEntries) {
+                    mOut.writeInt(entry.seq);
+                    mOut.writeLong(entry.ts);
+                    mOut.writeLong(entry.offset);
+                    mOut.writeInt(entry.size);
+                }
+                mOut.writeInt(mEntries.size());
+                mOut.writeLong(indexOffset);
+                mOut.writeInt(MAGIC_INDEX);
+                mOut.flush();
+            } finally {
+                mOut.close();
+            }
+        }
+    }
+
+    /**
+     * 读取帧索引, 按seq排序
+     */
+    public static List<FrameEntry> readIndex(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC_HEADER) {
+                throw new IOException("not a burst container: " + file.getAbsolutePath());
+            }
+            List<FrameEntry> entries = readTrailerIndex(raf);
+            if (entries == null) {
+                entries = scanFrames(raf);
+            }
+            Collections.sort(entries, new Comparator<FrameEntry>() {
+                @Override
+                public int compare(FrameEntry o1, FrameEntry o2) {
+                    return Integer.compare(o1.seq, o2.seq);
+                }
+            });
+            return entries;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 读取单帧数据
+     */
+    public static byte[] readFrame(File file, FrameEntry entry) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[entry.size];
+            raf.seek(entry.offset);
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static List<FrameEntry> readTrailerIndex(RandomAccessFile raf) throws IOException {
+        long length = raf.length();
+        if (length < HEADER_SIZE + TRAILER_SIZE) {
+            return null;
+        }
+        raf.seek(length - TRAILER_SIZE);
+        int count = raf.readInt();
+        long indexOffset = raf.readLong();
+        if (raf.readInt() != MAGIC_INDEX || indexOffset < HEADER_SIZE || indexOffset > length - TRAILER_SIZE) {
+            return null;
+        }
+        List<FrameEntry> entries = new ArrayList<>(count);
+        raf.seek(indexOffset);
+        for (int i = 0; i < count; i++) {
+            entries.add(new FrameEntry(raf.readInt(), raf.readLong(), raf.readLong(), raf.readInt()));
+        }
+        return entries;
+    }
+
+    //没有index时顺序扫描, 忽略最后不完整的帧
+    private static List<FrameEntry> scanFrames(RandomAccessFile raf) throws IOException {
+        List<FrameEntry> entries = new ArrayList<>();
+        long length = raf.length();
+        long position = HEADER_SIZE;
+        try {
+            while (position + FRAME_HEADER_SIZE <= length) {
+                raf.seek(position);
+                int seq = raf.readInt();
+                long ts = raf.readLong();
+                int size = raf.readInt();
+                long dataOffset = position + FRAME_HEADER_SIZE;
+                if (size < 0 || dataOffset + size > length) {
+                    break;
+                }
+                entries.add(new FrameEntry(seq, ts, dataOffset, size));
+                position = dataOffset + size;
+            }
+        } catch (EOFException e) {
+            //ignore
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.graphics.Rect;
+import android.media.ImageReader;
+import android.os.Build;
+
+/**
+ * 从ImageReader中取帧的方式
+ * <p>
+ * API 29以上使用HardwareBuffer, 帧一直保存在图形内存中, 需要读像素的接收者在自己线程中转换一次
+ * 其他情况使用拷贝到Java堆的方式
+ */
+abstract class CaptureBackend {
+    //有图像被释放时的回调, 用于取帧失败后重试
+    protected Runnable mOnImageReleased;
+    //感兴趣区域 抓取尺寸下的像素坐标, 为null时输出整个屏幕
+    protected volatile Rect mRegion;
+
+    /**
+     * @param allowHardware 是否允许使用HardwareBuffer
+     */
+    static CaptureBackend create(boolean allowHardware) {
+        if (allowHardware && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return new HardwareBufferCaptureBackend();
+        }
+        return new CopyCaptureBackend();
+    }
+
+    abstract String getName();
+
+    abstract ImageReader createImageReader(int width, int height);
+
+    /**
+     * 在抓取线程中调用, 取最新的一帧
+     *
+     * @return 没有可用图像时返回null
+     */
+    abstract SharedFrame acquireLatestFrame(ImageReader reader, long frameId);
+
+    /**
+     * 只输出屏幕中的一个区域, 在抓取线程中调用, 之后取到的帧生效
+     *
+     * @param region 已限制在图像范围内, null为整个屏幕
+     */
+    void setRegion(Rect region) {
+        mRegion = region;
+    }
+
+    void setOnImageReleasedListener(Runnable listener) {
+        mOnImageReleased = listener;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 抓取降级控制
+ * <p>
+ * 定时读取温控状态、插件线程cpu占用、单帧处理耗时和帧内存预算占用, 压力大时沿着降级阶梯逐级降低帧率、分辨率和码率,
+ * 连续几次空闲后逐级恢复. 数据来源通过 {@link ISensorSource} 注入, {@link #evaluate(long)} 不依赖系统时间和线程
+ */
+public class CaptureGovernor {
+    private static final String TAG = "CaptureGovernor";
+    //评估间隔
+    private static final long EVALUATE_INTERVAL_MS = 2000;
+    //插件线程cpu占用(相对单核) 超过降级, 低于才允许恢复
+    static final double CPU_LOAD_HIGH = 0.6;
+    static final double CPU_LOAD_LOW = 0.3;
+    //单帧处理耗时 ms
+    static final double PROCESS_TIME_HIGH_MS = 60;
+    static final double PROCESS_TIME_LOW_MS = 30;
+    //帧内存预算占用比例
+    static final double MEMORY_USAGE_HIGH = 0.8;
+    static final double MEMORY_USAGE_LOW = 0.5;
+    //连续空闲多少次后恢复一级
+    static final int RECOVER_COUNT = 3;
+
+    /**
+     * 降级阶梯中的一级
+     */
+    public static class Level {
+        //最大抓取帧率, <=0 不限制
+        public final int maxFps;
+        //分辨率缩放 (0, 1]
+        public final float scale;
+        //码率系数 (0, 1]
+        public final float bitrateFactor;
+
+        public Level(int maxFps, float scale, float bitrateFactor) {
+            this.maxFps = maxFps;
+            this.scale = clamp(scale);
+            this.bitrateFactor = clamp(bitrateFactor);
+        }
+
+        private static float clamp(float value) {
+            return value <= 0 || value > 1 ? 1 : value;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("fps", maxFps);
+            map.put("scale", scale);
+            map.put("bitrate", bitrateFactor);
+            return map;
+        }
+    }
+
+    /**
+     * 负载数据来源, 计数类数据均为只增不减的累计值
+     */
+    public interface ISensorSource {
+        /**
+         * 温控状态 PowerManager.THERMAL_STATUS_*, 不支持时返回-1
+         */
+        int getThermalStatus();
+
+        /**
+         * 插件处理帧的线程消耗的cpu时间 纳秒
+         */
+        long getCpuTimeNanos();
+
+        /**
+         * 处理帧的总耗时 纳秒
+         */
+        long getProcessTimeNanos();
+
+        /**
+         * 已处理的帧数
+         */
+        long getProcessedFrames();
+
+        /**
+         * 帧内存预算的占用比例
+         */
+        float getMemoryUsage();
+    }
+
+    public interface ILevelListener {
+        /**
+         * 在评估线程中回调
+         */
+        void onLevelChanged(int index, Level level);
+    }
+
+    /**
+     * 默认降级阶梯, 第0级为不限制
+     */
+    public static List<Level> defaultLadder() {
+        List<Level> ladder = new ArrayList<>();
+        ladder.add(new Level(0, 1f, 1f));
+        ladder.add(new Level(20, 1f, 0.75f));
+        ladder.add(new Level(15, 0.75f, 0.5f));
+        ladder.add(new Level(10, 0.5f, 0.35f));
+        ladder.add(new Level(5, 0.5f, 0.25f));
+        return ladder;
+    }
+
+    private final ISensorSource mSensor;
+    private final List<Level> mLadder;
+    private ILevelListener mListener;
+    private volatile int mLevel = 0;
+    private int mHealthyCount = 0;
+    //上次评估
+    private long mLastEvaluateTs = -1;
+    private long mLastCpuNanos;
+    private long mLastProcessNanos;
+    private long mLastFrames;
+    //最近一次评估结果
+    private volatile int mThermalStatus = -1;
+    private volatile double mCpuLoad = 0;
+    private volatile double mProcessTimeMs = 0;
+    private volatile double mMemoryUsage = 0;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private final Runnable mEvaluateTask = new Runnable() {
+        @Override
+        public void run() {
+            evaluate(FrameClock.nowNanos());
+            Handler handler = mHandler;
+            if (handler != null) {
+                handler.postDelayed(this, EVALUATE_INTERVAL_MS);
+            }
+        }
+    };
+
+    public CaptureGovernor(ISensorSource sensor, List<Level> ladder) {
+        mSensor = sensor;
+        mLadder = ladder == null || ladder.isEmpty() ? defaultLadder() : Collections.unmodifiableList(new ArrayList<>(ladder));
+    }
+
+    public void setListener(ILevelListener listener) {
+        mListener = listener;
+    }
+
+    public int getLevelIndex() {
+        return mLevel;
+    }
+
+    public Level getLevel() {
+        return mLadder.get(mLevel);
+    }
+
+    /**
+     * 开始定时评估
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = ScreenThreads.startHandlerThread(TAG, ScreenThreads.PRIORITY_BACKGROUND);
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.postDelayed(mEvaluateTask, EVALUATE_INTERVAL_MS);
+    }
+
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mHandler.removeCallbacks(mEvaluateTask);
+        mHandler = null;
+        mThread.quit();
+        mThread = null;
+    }
+
+    /**
+     * 评估一次, 每次最多变化一级
+     *
+     * @param nowNanos 单调时间 纳秒
+     * @return 评估后的级别
+     */
+    public int evaluate(long nowNanos) {
+        int thermal = mSensor.getThermalStatus();
+        long cpuNanos = mSensor.getCpuTimeNanos();
+        long processNanos = mSensor.getProcessTimeNanos();
+        long frames = mSensor.getProcessedFrames();
+        mThermalStatus = thermal;
+        mMemoryUsage = mSensor.getMemoryUsage();
+        if (mLastEvaluateTs < 0 || nowNanos <= mLastEvaluateTs) {
+            //第一次只记录基准
+            saveSample(nowNanos, cpuNanos, processNanos, frames);
+            return mLevel;
+        }
+        mCpuLoad = 1.0 * (cpuNanos - mLastCpuNanos) / (nowNanos - mLastEvaluateTs);
+        long frameCount = frames - mLastFrames;
+        mProcessTimeMs = frameCount > 0 ? (processNanos - mLastProcessNanos) / 1000000.0 / frameCount : 0;
+        saveSample(nowNanos, cpuNanos, processNanos, frames);
+
+        int target = mLevel;
+        if (thermal >= PowerManager.THERMAL_STATUS_SEVERE) {
+            //严重过热直接降到最低
+            target = mLadder.size() - 1;
+            mHealthyCount = 0;
+        } else if (thermal >= PowerManager.THERMAL_STATUS_MODERATE
+                || mCpuLoad > CPU_LOAD_HIGH || mProcessTimeMs > PROCESS_TIME_HIGH_MS
+                || mMemoryUsage > MEMORY_USAGE_HIGH) {
+            target = mLevel + 1;
+            mHealthyCount = 0;
+        } else if (thermal < PowerManager.THERMAL_STATUS_LIGHT
+                && mCpuLoad < CPU_LOAD_LOW && mProcessTimeMs < PROCESS_TIME_LOW_MS
+                && mMemoryUsage < MEMORY_USAGE_LOW) {
+            if (++mHealthyCount >= RECOVER_COUNT) {
+                target = mLevel - 1;
+                mHealthyCount = 0;
+            }
+        } else {
+            //轻微压力 保持
+            mHealthyCount = 0;
+        }
+        setLevel(target);
+        return mLevel;
+    }
+
+    /**
+     * 当前状态, 用于state接口
+     */
+    public Map<String, Object> getState() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("level", mLevel);
+        map.put("levels", mLadder.size());
+        map.put("current", getLevel().toMap());
+        map.put("thermalStatus", mThermalStatus);
+        map.put("cpuLoad", Math.round(mCpuLoad * 100) / 100.0);
+        map.put("processTimeMs", Math.round(mProcessTimeMs * 10) / 10.0);
+        map.put("memoryUsage", Math.round(mMemoryUsage * 100) / 100.0);
+        return map;
+    }
+
+    private void saveSample(long nowNanos, long cpuNanos, long processNanos, long frames) {
+        mLastEvaluateTs = nowNanos;
+        mLastCpuNanos = cpuNanos;
+        mLastProcessNanos = processNanos;
+        mLastFrames = frames;
+    }
+
+    private void setLevel(int target) {
+        target = Math.max(0, Math.min(mLadder.size() - 1, target));
+        if (target == mLevel) {
+            return;
+        }
+        Log.d(TAG, "level " + mLevel + " -> " + target + ", thermal: " + mThermalStatus
+                + ", cpu: " + mCpuLoad + ", process: " + mProcessTimeMs + "ms, memory: " + mMemoryUsage);
+        mLevel = target;
+        ILevelListener listener = mListener;
+        if (listener != null) {
+            listener.onLevelChanged(target, mLadder.get(target));
+        }
+    }
+
+    /**
+     * 系统数据来源: 温控(API 29+)和抓取服务的统计
+     */
+    public static class SystemSensorSource implements ISensorSource {
+        private final PowerManager mPowerManager;
+        private final ScreenCaptureService mService;
+
+        public SystemSensorSource(Context context, ScreenCaptureService service) {
+            mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            mService = service;
+        }
+
+        @Override
+        public int getThermalStatus() {
+            if (mPowerManager == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+                return -1;
+            }
+            return mPowerManager.getCurrentThermalStatus();
+        }
+
+        @Override
+        public long getCpuTimeNanos() {
+            return mService.getCpuTimeNanos();
+        }
+
+        @Override
+        public long getProcessTimeNanos() {
+            return mService.getProcessTimeNanos();
+        }
+
+        @Override
+        public long getProcessedFrames() {
+            return mService.getProcessedFrames();
+        }
+
+        @Override
+        public float getMemoryUsage() {
+            return mService.getMemoryBudget().getUsage();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * 编码数据按块通过method channel发送给dart, 不落盘
+ * <p>
+ * 输出为Annex-B裸流(AVC/HEVC), 攒够一块或超过一定时间发送一次
+ * dart端处理不过来时丢弃数据, 并请求编码器尽快输出关键帧以便恢复
+ */
+public class ChunkRecordingSink extends RecordingSink {
+    private static final String TAG = "ChunkRecordingSink";
+    //单块大小
+    private static final int CHUNK_SIZE = 64 * 1024;
+    //最长攒多久发送
+    private static final long CHUNK_INTERVAL_MS = 200;
+    //已发送未确认的最大字节数
+    private static final long MAX_PENDING_BYTES = 8 * 1024 * 1024;
+
+    private final MethodChannel mChannel;
+    private final String mStreamId;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream(CHUNK_SIZE * 2);
+    private final AtomicLong mPendingBytes = new AtomicLong();
+    private long mLastFlushTs;
+    private int mSeq = 0;
+    private boolean mWaitKeyFrame = false;
+    //等待期间已经请求过关键帧, 收到关键帧后清除
+    private boolean mKeyFrameRequested = false;
+    private long mDroppedBytes = 0;
+    private String mMimeType;
+
+    public ChunkRecordingSink(MethodChannel channel, String streamId) {
+        mChannel = channel;
+        mStreamId = streamId;
+    }
+
+    @Override
+    void open() {
+        mLastFlushTs = FrameClock.nowNanos();
+    }
+
+    @Override
+    void onOutputFormat(MediaFormat format) {
+        mMimeType = format.getString(MediaFormat.KEY_MIME);
+    }
+
+    @Override
+    void writeSample(ByteBuffer data, MediaCodec.BufferInfo info) {
+        boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        boolean congested = mPendingBytes.get() > MAX_PENDING_BYTES;
+        if (!config && congested && !mWaitKeyFrame) {
+            mWaitKeyFrame = true;
+            //不等关键帧间隔, 积压消化后尽快恢复画面
+            mKeyFrameRequested = true;
+            requestKeyFrame();
+        }
+        if (mWaitKeyFrame && !config) {
+            if (keyFrame) {
+                mKeyFrameRequested = false;
+            }
+            if (!keyFrame || congested) {
+                mDroppedBytes += info.size;
+                if (!congested && !mKeyFrameRequested) {
+                    //请求的关键帧到达时仍然积压被丢弃了, 积压消化后再请求一次
+                    mKeyFrameRequested = true;
+                    requestKeyFrame();
+                }
+                return;
+            }
+            Log.w(TAG, "receiver too slow, dropped " + mDroppedBytes + " bytes");
+            mWaitKeyFrame = false;
+        }
+        byte[] bytes = new byte[info.size];
+        data.get(bytes);
+        mBuffer.write(bytes, 0, bytes.length);
+        if (mBuffer.size() >= CHUNK_SIZE || FrameClock.elapsedMillis(mLastFlushTs) >= CHUNK_INTERVAL_MS) {
+            flush(false);
+        }
+    }
+
+    @Override
+    void onIdle() {
+        //画面静止时编码器没有输出, 不等下一个sample 按时间发送最后不完整的块
+        if (mBuffer.size() > 0 && FrameClock.elapsedMillis(mLastFlushTs) >= CHUNK_INTERVAL_MS) {
+            flush(false);
+        }
+    }
+
+    @Override
+    void close(boolean abort) {
+        if (abort) {
+            mBuffer.reset();
+        }
+        flush(true);
+    }
+
+    private void flush(boolean eos) {
+        mLastFlushTs = FrameClock.nowNanos();
+        if (mBuffer.size() == 0 && !eos) {
+            return;
+        }
+        final byte[] chunk = mBuffer.toByteArray();
+        mBuffer.reset();
+        mPendingBytes.addAndGet(chunk.length);
+        final Map<String, Object> map = new HashMap<>();
+        map.put("id", mStreamId);
+        map.put("seq", mSeq++);
+        map.put("eos", eos);
+        map.put("data", chunk);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mChannel.invokeMethod("onRecordChunk", map, new MethodChannel.Result() {
+                    @Override
+                    public void success(Object o) {
+                        mPendingBytes.addAndGet(-chunk.length);
+                    }
+
+                    @Override
+                    public void error(String s, String s1, Object o) {
+                        mPendingBytes.addAndGet(-chunk.length);
+                    }
+
+                    @Override
+                    public void notImplemented() {
+                        mPendingBytes.addAndGet(-chunk.length);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    Map<String, Object> describe() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("sink", "chunk");
+        map.put("id", mStreamId);
+        map.put("mimeType", mMimeType);
+        return map;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.graphics.Bitmap;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.ImageReader;
+
+/**
+ * 拷贝像素到Java堆, 所有版本可用
+ */
+class CopyCaptureBackend extends CaptureBackend {
+
+    @Override
+    String getName() {
+        return "copy";
+    }
+
+    @Override
+    ImageReader createImageReader(int width, int height) {
+        return ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
+    }
+
+    @Override
+    SharedFrame acquireLatestFrame(ImageReader reader, long frameId) {
+        //获取最新图
+        Image img = reader.acquireLatestImage();
+        if (img == null) {
+            return null;
+        }
+        //使用图像自身的单调时间戳 而不是处理时的时间
+        long ts = img.getTimestamp();
+        Bitmap rawBitmap;
+        int width;
+        int height;
+        try {
+            width = img.getWidth();
+            height = img.getHeight();
+            Image.Plane[] planes = img.getPlanes();
+            int pixelStride = planes[0].getPixelStride();
+            int rowStride = planes[0].getRowStride();
+            int rowPadding = rowStride - pixelStride * width;
+            //读取到rawBitmap 宽度右边会有一个padding
+            rawBitmap = Bitmap.createBitmap(width + rowPadding / pixelStride, height, Bitmap.Config.ARGB_8888);
+            rawBitmap.copyPixelsFromBuffer(planes[0].getBuffer());
+        } finally {
+            //关闭img
+            img.close();
+        }
+        //生成没有padding的图片, 有感兴趣区域时只保留区域, 接收者处理的像素随之减少
+        Rect region = mRegion;
+        Bitmap bitmap = region == null ? Bitmap.createBitmap(rawBitmap, 0, 0, width, height)
+                : Bitmap.createBitmap(rawBitmap, region.left, region.top, region.width(), region.height());
+        //回收rawBitmap
+        rawBitmap.recycle();
+        return new SharedFrame(frameId, ts, bitmap);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Looper;
+import android.view.Window;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * 副屏的抓取会话, 每个屏幕有自己的抓取、预览和统计
+ * <p>
+ * 所有会话共用内存预算和抓取线程, 屏幕增加时不会成倍占用资源
+ */
+public class DisplayCaptureSession {
+    public final int displayId;
+    private final ScreenCaptureService mService;
+    private final ScreenPreviewSender mSender;
+    private int mPreviewClients = 0;
+
+    /**
+     * PixelCopy抓取窗口需要API 26
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    /**
+     * @param window 副屏上要抓取的窗口, 见{@link DisplayWindows}
+     * @param budget 所有屏幕共用的内存预算
+     */
+    public DisplayCaptureSession(int displayId, Window window, int width, int height, int dpi,
+                                 MethodChannel channel, FrameMemoryBudget budget) {
+        if (!isSupported()) {
+            throw new IllegalStateException("capture display " + displayId + " requires API 26");
+        }
+        this.displayId = displayId;
+        mService = new ScreenCaptureService(width, height, dpi, new WindowFrameSource(displayId, window), budget,
+                "display" + displayId);
+        mSender = new ScreenPreviewSender(channel, displayId);
+    }
+
+    /**
+     * @param looper 共用的抓取线程
+     */
+    public void start(Context context, Looper looper) {
+        mService.start(context, looper);
+        mSender.start();
+    }
+
+    public void quit() {
+        mService.quit();
+        mSender.quit();
+    }
+
+    public boolean isRunning() {
+        return mService.isRunning();
+    }
+
+    public ScreenPreviewSender getSender() {
+        return mSender;
+    }
+
+    public void resize(int width, int height, int dpi) {
+        mService.resize(width, height, dpi);
+    }
+
+    /**
+     * 有预览连接时才注册预览接收者, 没有接收者时抓取会暂停
+     */
+    public void setPreviewClients(int count, List<String> formats, boolean keyFrame) {
+        mPreviewClients = count;
+        mSender.setFormats(formats, keyFrame);
+        if (count > 0) {
+            mService.addScreenDataReceiver(mSender);
+        } else {
+            mService.removeScreenDataReceiver(mSender);
+        }
+    }
+
+    public Map<String, Object> getState() {
+        Map<String, Object> state = new HashMap<>();
+        state.put("displayId", displayId);
+        state.put("captureBackend", mService.getBackendName());
+        state.put("previewClients", mPreviewClients);
+        state.put("suspended", mService.isSuspended());
+        state.put("width", mService.getWidth());
+        state.put("height", mService.getHeight());
+        state.put("receivers", mService.getReceiverStats());
+        state.put("startup", mService.getStartupMetrics());
+        state.put("previewFormats", mSender.getFormatStats());
+        return state;
+    }
+}
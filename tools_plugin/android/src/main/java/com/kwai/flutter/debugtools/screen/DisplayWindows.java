@@ -0,0 +1,132 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.app.Activity;
+import android.app.Application;
+import android.app.Presentation;
+import android.os.Bundle;
+import android.view.Display;
+import android.view.Window;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 副屏上可以抓取的窗口, 按display id记录, 每个屏幕只记录最后一个
+ * <p>
+ * MediaProjection只能抓取主屏, 副屏通过PixelCopy抓取窗口.
+ * 桌面模式等显示在副屏上的Activity自动记录, Presentation需要调用{@link #register(Presentation)}
+ */
+public final class DisplayWindows {
+    private static final Map<Integer, WeakReference<Window>> sWindows = new ConcurrentHashMap<>();
+    private static Application.ActivityLifecycleCallbacks sCallbacks;
+
+    private DisplayWindows() {
+    }
+
+    /**
+     * 记录Presentation的窗口, 在show之后调用
+     */
+    public static void register(Presentation presentation) {
+        Display display = presentation.getDisplay();
+        if (display != null) {
+            register(display.getDisplayId(), presentation.getWindow());
+        }
+    }
+
+    public static void register(int displayId, Window window) {
+        if (displayId == Display.DEFAULT_DISPLAY || window == null) {
+            return;
+        }
+        sWindows.put(displayId, new WeakReference<>(window));
+    }
+
+    public static void unregister(Window window) {
+        for (Map.Entry<Integer, WeakReference<Window>> entry : sWindows.entrySet()) {
+            Window w = entry.getValue().get();
+            if (w == null || w == window) {
+                sWindows.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return 没有记录或者已经回收时返回null
+     */
+    public static Window get(int displayId) {
+        WeakReference<Window> ref = sWindows.get(displayId);
+        return ref == null ? null : ref.get();
+    }
+
+    /**
+     * 有可抓取窗口的副屏
+     */
+    public static List<Integer> getDisplayIds() {
+        List<Integer> ids = new ArrayList<>();
+        for (Map.Entry<Integer, WeakReference<Window>> entry : sWindows.entrySet()) {
+            if (entry.getValue().get() != null) {
+                ids.add(entry.getKey());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 自动记录副屏上的Activity, 重复调用只注册一次
+     */
+    public static synchronized void install(Application application) {
+        if (sCallbacks != null) {
+            return;
+        }
+        sCallbacks = new Application.ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+            }
+
+            @Override
+            public void onActivityStarted(Activity activity) {
+            }
+
+            @Override
+            public void onActivityResumed(Activity activity) {
+                //Activity的WindowManager绑定在其所在的屏幕
+                register(activity.getWindowManager().getDefaultDisplay().getDisplayId(), activity.getWindow());
+            }
+
+            @Override
+            public void onActivityPaused(Activity activity) {
+            }
+
+            @Override
+            public void onActivityStopped(Activity activity) {
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+            }
+
+            @Override
+            public void onActivityDestroyed(Activity activity) {
+                unregister(activity.getWindow());
+            }
+        };
+        application.registerActivityLifecycleCallbacks(sCallbacks);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 视频编码器能力
+ * <p>
+ * 每个进程只遍历一次MediaCodecList并缓存结果, 选择编码器时硬件编码优先
+ */
+public final class EncoderRegistry {
+    private static final String TAG = "EncoderRegistry";
+    //输入为YUV420SP(NV12), 按优先级排列
+    //semi-planar直接拷贝; Flexible通过getInputImage按平面和步长写入, 很多codec2硬件编码器只支持这种
+    //不支持planar(I420), 直接拷贝NV12会导致色度错乱
+    private static final int[] PREFERRED_COLOR_FORMATS = {
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar,
+            MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar,
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible,
+    };
+
+    private static List<EncoderInfo> sEncoders;
+
+    private EncoderRegistry() {
+    }
+
+    /**
+     * 单个编码器对某个mime的能力
+     */
+    public static class EncoderInfo {
+        public final String name;
+        public final String mimeType;
+        public final boolean hardware;
+        public final int[] colorFormats;
+        public final MediaCodecInfo.CodecProfileLevel[] profileLevels;
+        //输入使用的颜色格式, 没有支持的格式时为-1
+        public final int inputColorFormat;
+        public final int widthAlignment;
+        public final int heightAlignment;
+        public final int maxWidth;
+        public final int maxHeight;
+        public final int maxFps;
+        public final int maxBitrate;
+        public final boolean supportsCbr;
+        public final boolean supportsVbr;
+        public final boolean supportsCq;
+        private final MediaCodecInfo mCodecInfo;
+        private final MediaCodecInfo.VideoCapabilities mVideoCapabilities;
+
+        EncoderInfo(MediaCodecInfo codecInfo, String mimeType) {
+            MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(mimeType);
+            this.mCodecInfo = codecInfo;
+            this.name = codecInfo.getName();
+            this.mimeType = mimeType;
+            this.hardware = isHardware(codecInfo);
+            this.colorFormats = capabilities.colorFormats;
+            this.profileLevels = capabilities.profileLevels;
+            this.inputColorFormat = pickColorFormat(capabilities.colorFormats);
+            mVideoCapabilities = capabilities.getVideoCapabilities();
+            if (mVideoCapabilities != null) {
+                widthAlignment = mVideoCapabilities.getWidthAlignment();
+                heightAlignment = mVideoCapabilities.getHeightAlignment();
+                maxWidth = mVideoCapabilities.getSupportedWidths().getUpper();
+                maxHeight = mVideoCapabilities.getSupportedHeights().getUpper();
+                maxFps = mVideoCapabilities.getSupportedFrameRates().getUpper();
+                maxBitrate = mVideoCapabilities.getBitrateRange().getUpper();
+            } else {
+                widthAlignment = 2;
+                heightAlignment = 2;
+                maxWidth = 0;
+                maxHeight = 0;
+                maxFps = 0;
+                maxBitrate = 0;
+            }
+            MediaCodecInfo.EncoderCapabilities encoderCapabilities = capabilities.getEncoderCapabilities();
+            supportsCbr = encoderCapabilities != null
+                    && encoderCapabilities.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
+            supportsVbr = encoderCapabilities != null
+                    && encoderCapabilities.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR);
+            supportsCq = encoderCapabilities != null
+                    && encoderCapabilities.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ);
+        }
+
+        public MediaCodecInfo getCodecInfo() {
+            return mCodecInfo;
+        }
+
+        /**
+         * @param width <=0 不要求
+         */
+        public boolean isSizeSupported(int width, int height) {
+            return width <= 0 || height <= 0 || mVideoCapabilities == null
+                    || mVideoCapabilities.isSizeSupported(width, height);
+        }
+
+        /**
+         * @param profile <=0 不要求
+         */
+        public boolean isProfileSupported(int profile) {
+            if (profile <= 0) {
+                return true;
+            }
+            if (profileLevels == null) {
+                return false;
+            }
+            for (MediaCodecInfo.CodecProfileLevel profileLevel : profileLevels) {
+                if (profileLevel.profile == profile) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("name", name);
+            map.put("mimeType", mimeType);
+            map.put("hardware", hardware);
+            List<Integer> formats = new ArrayList<>();
+            if (colorFormats != null) {
+                for (int format : colorFormats) {
+                    formats.add(format);
+                }
+            }
+            map.put("colorFormats", formats);
+            map.put("inputColorFormat", inputColorFormat);
+            List<Map<String, Object>> profiles = new ArrayList<>();
+            if (profileLevels != null) {
+                for (MediaCodecInfo.CodecProfileLevel profileLevel : profileLevels) {
+                    Map<String, Object> pl = new HashMap<>();
+                    pl.put("profile", profileLevel.profile);
+                    pl.put("level", profileLevel.level);
+                    profiles.add(pl);
+                }
+            }
+            map.put("profileLevels", profiles);
+            map.put("widthAlignment", widthAlignment);
+            map.put("heightAlignment", heightAlignment);
+            map.put("maxWidth", maxWidth);
+            map.put("maxHeight", maxHeight);
+            map.put("maxFps", maxFps);
+            map.put("maxBitrate", maxBitrate);
+            map.put("cbr", supportsCbr);
+            map.put("vbr", supportsVbr);
+            map.put("cq", supportsCq);
+            return map;
+        }
+    }
+
+    /**
+     * 所有视频编码器, 第一次调用时遍历
+     */
+    public static synchronized List<EncoderInfo> getEncoders() {
+        if (sEncoders == null) {
+            sEncoders = Collections.unmodifiableList(probe());
+        }
+        return sEncoders;
+    }
+
+    /**
+     * 选择编码器: 支持mime、尺寸、profile且有可用输入颜色格式, 硬件编码优先, 同类按系统列表顺序
+     *
+     * @param profile <=0 不要求
+     * @param width   <=0 不要求尺寸
+     * @return 没有合适的编码器时返回null
+     */
+    public static EncoderInfo select(String mimeType, int profile, int width, int height) {
+        EncoderInfo software = null;
+        for (EncoderInfo info : getEncoders()) {
+            if (!info.mimeType.equalsIgnoreCase(mimeType) || info.inputColorFormat < 0
+                    || !info.isSizeSupported(width, height) || !info.isProfileSupported(profile)) {
+                continue;
+            }
+            if (info.hardware) {
+                return info;
+            }
+            if (software == null) {
+                software = info;
+            }
+        }
+        return software;
+    }
+
+    /**
+     * 探测结果, 用于method call
+     */
+    public static List<Map<String, Object>> getCapabilities() {
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (EncoderInfo info : getEncoders()) {
+            list.add(info.toMap());
+        }
+        return list;
+    }
+
+    private static List<EncoderInfo> probe() {
+        long start = FrameClock.nowNanos();
+        List<EncoderInfo> encoders = new ArrayList<>();
+        MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        for (MediaCodecInfo codecInfo : infos) {
+            if (!codecInfo.isEncoder()) {
+                continue;
+            }
+            for (String type : codecInfo.getSupportedTypes()) {
+                if (!type.toLowerCase(Locale.US).startsWith("video/")) {
+                    continue;
+                }
+                try {
+                    encoders.add(new EncoderInfo(codecInfo, type));
+                } catch (Exception e) {
+                    //部分厂商编码器查询能力时会抛异常
+                    Log.w(TAG, "probe " + codecInfo.getName() + " failed", e);
+                }
+            }
+        }
+        Log.d(TAG, "probe " + encoders.size() + " encoders cost " + FrameClock.elapsedMillis(start) + "ms");
+        return encoders;
+    }
+
+    private static boolean isHardware(MediaCodecInfo codecInfo) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return codecInfo.isHardwareAccelerated();
+        }
+        String name = codecInfo.getName().toLowerCase(Locale.US);
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.")
+                && !name.contains(".sw.") && !name.endsWith(".sw");
+    }
+
+    private static int pickColorFormat(int[] colorFormats) {
+        if (colorFormats == null) {
+            return -1;
+        }
+        for (int preferred : PREFERRED_COLOR_FORMATS) {
+            for (int format : colorFormats) {
+                if (format == preferred) {
+                    return format;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 通过MediaMuxer写入mp4文件
+ */
+public class FileRecordingSink extends RecordingSink {
+    private static final String TAG = "FileRecordingSink";
+    private final File mFile;
+    private MediaMuxer mMuxer;
+    private int mTrackIndex;
+    private boolean mMuxerStarted = false;
+
+    public FileRecordingSink(File file) {
+        mFile = file;
+    }
+
+    @Override
+    void open() throws IOException {
+        try {
+            mMuxer = new MediaMuxer(mFile.getCanonicalPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException e) {
+            throw new IOException("MediaMuxer creation failed. " + e.getMessage());
+        }
+    }
+
+    @Override
+    void onOutputFormat(MediaFormat format) {
+        mTrackIndex = mMuxer.addTrack(format);
+        mMuxer.start();
+        mMuxerStarted = true;
+    }
+
+    @Override
+    void writeSample(ByteBuffer data, MediaCodec.BufferInfo info) {
+        //codec config已经在format中 不需要写入
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || !mMuxerStarted) {
+            return;
+        }
+        mMuxer.writeSampleData(mTrackIndex, data, info);
+    }
+
+    @Override
+    void close(boolean abort) {
+        try {
+            if (mMuxer != null) {
+                if (mMuxerStarted) {
+                    mMuxer.stop();
+                }
+                mMuxer.release();
+                mMuxer = null;
+                Log.d(TAG, "RELEASE MUXER");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "RELEASE MUXER ERROR", e);
+        }
+        if (abort) {
+            mFile.delete();
+        }
+    }
+
+    @Override
+    File getFile() {
+        return mFile;
+    }
+
+    @Override
+    Map<String, Object> describe() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("sink", "file");
+        map.put("path", mFile.getAbsolutePath());
+        return map;
+    }
+}
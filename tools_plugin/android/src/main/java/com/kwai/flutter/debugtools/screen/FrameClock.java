@@ -0,0 +1,59 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kwai.flutter.debugtools.screen;
+
+/**
+ * 帧时间
+ * <p>
+ * 整个链路统一使用单调时钟(CLOCK_MONOTONIC, 即System.nanoTime, 与Image.getTimestamp同源), 单位纳秒
+ * 需要给浏览器展示时通过 {@link #wallOffsetMicros()} 换算为墙上时间
+ */
+public final class FrameClock {
+
+    private FrameClock() {
+    }
+
+    /**
+     * 当前单调时间 纳秒
+     */
+    public static long nowNanos() {
+        return System.nanoTime();
+    }
+
+    /**
+     * 距今过去的毫秒数
+     *
+     * @param frameTs 单调时间 纳秒
+     */
+    public static long elapsedMillis(long frameTs) {
+        return (System.nanoTime() - frameTs) / 1000000;
+    }
+
+    /**
+     * 墙上时间与单调时间的差值 微秒, wallUs = monotonicUs + offset
+     */
+    public static long wallOffsetMicros() {
+        return System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+    }
+
+    /**
+     * 单调时间转为墙上时间 毫秒
+     */
+    public static long toWallMillis(long frameTs) {
+        return (frameTs / 1000 + wallOffsetMicros()) / 1000;
+    }
+}
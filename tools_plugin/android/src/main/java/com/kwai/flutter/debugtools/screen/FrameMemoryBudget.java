@@ -0,0 +1,209 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 帧内存预算, 抓取、分发、录制、连拍共用
+ * <p>
+ * 两类记账:
+ * <ul>
+ * <li>allocate: 实际分配的内存(帧bitmap、转换的软件帧、待写入的编码数据), 同时计入总量和组件</li>
+ * <li>hold: 只是持有引用(接收者队列中的帧), 只计入组件配额</li>
+ * </ul>
+ * 超出时由调用方按自己的策略丢弃或降级, 保证调试工具不会导致被调试的app OOM
+ */
+public class FrameMemoryBudget {
+    //默认预算占最大堆的比例, 以及上下限
+    private static final int DEFAULT_HEAP_DIVISOR = 4;
+    private static final long MIN_LIMIT_BYTES = 24L * 1024 * 1024;
+    private static final long MAX_LIMIT_BYTES = 96L * 1024 * 1024;
+
+    private volatile long mLimitBytes;
+    private final AtomicLong mUsedBytes = new AtomicLong();
+    private final AtomicLong mPeakBytes = new AtomicLong();
+    private final List<Account> mAccounts = new CopyOnWriteArrayList<>();
+
+    /**
+     * 单个组件的记账
+     */
+    public class Account {
+        public final String name;
+        //占总预算的比例
+        private final float mQuotaRatio;
+        private final AtomicLong mUsed = new AtomicLong();
+        private final AtomicLong mDenied = new AtomicLong();
+
+        Account(String name, float quotaRatio) {
+            this.name = name;
+            this.mQuotaRatio = quotaRatio;
+        }
+
+        public long getQuotaBytes() {
+            return (long) (mLimitBytes * mQuotaRatio);
+        }
+
+        /**
+         * 分配实际内存, 超出组件配额或者总预算时失败
+         */
+        public boolean tryAllocate(long bytes) {
+            if (!tryCharge(bytes)) {
+                return false;
+            }
+            for (; ; ) {
+                long used = mUsedBytes.get();
+                if (used + bytes > mLimitBytes) {
+                    mUsed.addAndGet(-bytes);
+                    mDenied.incrementAndGet();
+                    return false;
+                }
+                if (mUsedBytes.compareAndSet(used, used + bytes)) {
+                    updatePeak(used + bytes);
+                    return true;
+                }
+            }
+        }
+
+        public void free(long bytes) {
+            mUsed.addAndGet(-bytes);
+            mUsedBytes.addAndGet(-bytes);
+        }
+
+        /**
+         * 持有引用, 只检查组件配额
+         */
+        public boolean tryHold(long bytes) {
+            return tryCharge(bytes);
+        }
+
+        public void unhold(long bytes) {
+            mUsed.addAndGet(-bytes);
+        }
+
+        public long getUsedBytes() {
+            return mUsed.get();
+        }
+
+        /**
+         * 移除组件, 之后不再出现在统计中
+         */
+        public void close() {
+            mAccounts.remove(this);
+        }
+
+        private boolean tryCharge(long bytes) {
+            long quota = getQuotaBytes();
+            for (; ; ) {
+                long used = mUsed.get();
+                //配额内至少允许一帧, 避免单帧超过配额时永远失败
+                if (used > 0 && used + bytes > quota) {
+                    mDenied.incrementAndGet();
+                    return false;
+                }
+                if (mUsed.compareAndSet(used, used + bytes)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    public FrameMemoryBudget() {
+        this(getDefaultLimitBytes());
+    }
+
+    public FrameMemoryBudget(long limitBytes) {
+        mLimitBytes = limitBytes;
+    }
+
+    /**
+     * 默认预算, 按最大堆内存计算
+     */
+    public static long getDefaultLimitBytes() {
+        long limit = Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_DIVISOR;
+        return Math.max(MIN_LIMIT_BYTES, Math.min(MAX_LIMIT_BYTES, limit));
+    }
+
+    /**
+     * 新建组件记账
+     *
+     * @param quotaRatio 最多占用总预算的比例
+     */
+    public Account openAccount(String name, float quotaRatio) {
+        Account account = new Account(name, quotaRatio);
+        mAccounts.add(account);
+        return account;
+    }
+
+    public void setLimitBytes(long limitBytes) {
+        mLimitBytes = limitBytes;
+    }
+
+    public long getLimitBytes() {
+        return mLimitBytes;
+    }
+
+    public long getUsedBytes() {
+        return mUsedBytes.get();
+    }
+
+    /**
+     * 剩余的可分配内存是否足够
+     */
+    public boolean canAllocate(long bytes) {
+        return mUsedBytes.get() + bytes <= mLimitBytes;
+    }
+
+    /**
+     * 已使用比例
+     */
+    public float getUsage() {
+        long limit = mLimitBytes;
+        return limit <= 0 ? 0 : 1f * mUsedBytes.get() / limit;
+    }
+
+    public Map<String, Object> getState() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", mLimitBytes);
+        map.put("used", mUsedBytes.get());
+        map.put("peak", mPeakBytes.get());
+        List<Map<String, Object>> accounts = new ArrayList<>();
+        for (Account account : mAccounts) {
+            Map<String, Object> item = new HashMap<>();
+            item.put("name", account.name);
+            item.put("used", account.mUsed.get());
+            item.put("quota", account.getQuotaBytes());
+            item.put("denied", account.mDenied.get());
+            accounts.add(item);
+        }
+        map.put("accounts", accounts);
+        return map;
+    }
+
+    private void updatePeak(long used) {
+        for (; ; ) {
+            long peak = mPeakBytes.get();
+            if (used <= peak || mPeakBytes.compareAndSet(peak, used)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.view.FrameMetrics;
+import android.view.Window;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 宿主app的渲染帧耗时
+ * <p>
+ * API 24以上通过FrameMetrics获取每帧的渲染耗时, 以下通过Choreographer获取相邻两帧的间隔;
+ * 时间和抓取帧一样使用单调时钟 纳秒, 可以按抓取时间找到产生该画面的渲染帧
+ * 最近的帧保存在环形缓冲中, 没有对象分配
+ */
+public class FrameTimingCollector {
+    public static final String SOURCE_FRAME_METRICS = "frameMetrics";
+    public static final String SOURCE_CHOREOGRAPHER = "choreographer";
+    //60fps约34s
+    public static final int DEFAULT_CAPACITY = 2048;
+    //超过该耗时计为卡顿 纳秒
+    private static final long JANK_THRESHOLD_NS = 32 * 1000000L;
+
+    /**
+     * 渲染帧回调, 在采集线程中调用
+     */
+    public interface IFrameTimingListener {
+        /**
+         * @param endTs      帧结束的单调时间 纳秒
+         * @param durationNs 帧耗时
+         */
+        void onFrameTiming(long endTs, long durationNs);
+    }
+
+    /**
+     * 一段时间内的渲染帧汇总
+     */
+    public static class Summary {
+        //范围内最后一帧
+        public long lastEndTs;
+        public long lastDurationNs;
+        public int count;
+        public long maxDurationNs;
+        public int jankCount;
+    }
+
+    private final long[] mEndTs;
+    private final long[] mDurations;
+    //下一个写入位置
+    private int mNext;
+    //累计写入数量
+    private long mTotal;
+    private long mJankTotal;
+    private final List<IFrameTimingListener> mListeners = new CopyOnWriteArrayList<>();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mThread;
+    private Window mWindow;
+    private Object mMetricsListener;
+    private Choreographer.FrameCallback mFrameCallback;
+    private long mLastFrameTimeNanos;
+    private String mSource = SOURCE_CHOREOGRAPHER;
+    private volatile boolean mRunning;
+
+    public FrameTimingCollector() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FrameTimingCollector(int capacity) {
+        mEndTs = new long[Math.max(16, capacity)];
+        mDurations = new long[mEndTs.length];
+    }
+
+    public void addListener(IFrameTimingListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(IFrameTimingListener listener) {
+        mListeners.remove(listener);
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * 开始采集, 在主线程中调用
+     *
+     * @param window 宿主的窗口, 为null或API 24以下使用Choreographer
+     */
+    public void start(Window window) {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        if (window != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            mThread = ScreenThreads.startHandlerThread("frame-timing", ScreenThreads.PRIORITY_BACKGROUND);
+            mSource = SOURCE_FRAME_METRICS;
+            attachWindow(window);
+        } else {
+            mSource = SOURCE_CHOREOGRAPHER;
+            startChoreographer();
+        }
+    }
+
+    /**
+     * Activity重建后切换窗口, 在主线程中调用
+     */
+    public void setWindow(Window window) {
+        if (!mRunning || mThread == null || window == mWindow) {
+            return;
+        }
+        detachWindow();
+        if (window != null) {
+            attachWindow(window);
+        }
+    }
+
+    /**
+     * 停止采集, 在主线程中调用, 已采集的帧保留
+     */
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        detachWindow();
+        if (mThread != null) {
+            mThread.quit();
+            mThread = null;
+        }
+        if (mFrameCallback != null) {
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            mFrameCallback = null;
+        }
+    }
+
+    public String getSource() {
+        return mSource;
+    }
+
+    private void attachWindow(Window window) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return;
+        }
+        Window.OnFrameMetricsAvailableListener listener = new Window.OnFrameMetricsAvailableListener() {
+            @Override
+            public void onFrameMetricsAvailable(Window w, FrameMetrics frameMetrics, int dropCount) {
+                long duration = frameMetrics.getMetric(FrameMetrics.TOTAL_DURATION);
+                long endTs;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                    endTs = frameMetrics.getMetric(FrameMetrics.INTENDED_VSYNC_TIMESTAMP) + duration;
+                } else {
+                    //没有vsync时间 以收到回调的时间近似
+                    endTs = FrameClock.nowNanos();
+                }
+                record(endTs, duration);
+            }
+        };
+        window.addOnFrameMetricsAvailableListener(listener, new Handler(mThread.getLooper()));
+        mWindow = window;
+        mMetricsListener = listener;
+    }
+
+    private void detachWindow() {
+        if (mWindow != null && mMetricsListener != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            try {
+                mWindow.removeOnFrameMetricsAvailableListener((Window.OnFrameMetricsAvailableListener) mMetricsListener);
+            } catch (IllegalArgumentException e) {
+                //窗口已经销毁
+            }
+        }
+        mWindow = null;
+        mMetricsListener = null;
+    }
+
+    private void startChoreographer() {
+        mLastFrameTimeNanos = 0;
+        mFrameCallback = new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                if (!mRunning) {
+                    return;
+                }
+                //只能得到vsync间隔, 超过一个间隔说明上一帧掉帧
+                if (mLastFrameTimeNanos > 0) {
+                    record(frameTimeNanos, frameTimeNanos - mLastFrameTimeNanos);
+                }
+                mLastFrameTimeNanos = frameTimeNanos;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        };
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mFrameCallback != null) {
+                    Choreographer.getInstance().postFrameCallback(mFrameCallback);
+                }
+            }
+        });
+    }
+
+    void record(long endTs, long durationNs) {
+        synchronized (this) {
+            mEndTs[mNext] = endTs;
+            mDurations[mNext] = durationNs;
+            mNext = (mNext + 1) % mEndTs.length;
+            mTotal++;
+            if (durationNs > JANK_THRESHOLD_NS) {
+                mJankTotal++;
+            }
+        }
+        for (IFrameTimingListener listener : mListeners) {
+            listener.onFrameTiming(endTs, durationNs);
+        }
+    }
+
+    /**
+     * 汇总 (fromTs, toTs] 内结束的渲染帧, 最后一帧即产生toTs时刻画面的帧
+     *
+     * @param out 复用的结果
+     * @return 范围内没有帧时返回false
+     */
+    public synchronized boolean summarize(long fromTs, long toTs, Summary out) {
+        out.count = 0;
+        out.maxDurationNs = 0;
+        out.jankCount = 0;
+        out.lastEndTs = 0;
+        out.lastDurationNs = 0;
+        int size = (int) Math.min(mTotal, mEndTs.length);
+        //从最新往前找
+        for (int i = 1; i <= size; i++) {
+            int index = (mNext - i + mEndTs.length) % mEndTs.length;
+            long endTs = mEndTs[index];
+            if (endTs <= fromTs) {
+                break;
+            }
+            if (endTs > toTs) {
+                continue;
+            }
+            long duration = mDurations[index];
+            if (out.count == 0) {
+                out.lastEndTs = endTs;
+                out.lastDurationNs = duration;
+            }
+            out.count++;
+            out.maxDurationNs = Math.max(out.maxDurationNs, duration);
+            if (duration > JANK_THRESHOLD_NS) {
+                out.jankCount++;
+            }
+        }
+        return out.count > 0;
+    }
+
+    /**
+     * 缓冲中 fromTs 之后结束的帧
+     *
+     * @return [endTs, durationNs, ...] 按时间顺序 纳秒
+     */
+    public synchronized long[] copySince(long fromTs) {
+        int size = (int) Math.min(mTotal, mEndTs.length);
+        int count = 0;
+        while (count < size && mEndTs[(mNext - count - 1 + mEndTs.length) % mEndTs.length] > fromTs) {
+            count++;
+        }
+        long[] result = new long[count * 2];
+        for (int i = 0; i < count; i++) {
+            int index = (mNext - count + i + mEndTs.length) % mEndTs.length;
+            result[i * 2] = mEndTs[index];
+            result[i * 2 + 1] = mDurations[index];
+        }
+        return result;
+    }
+
+    public synchronized Map<String, Object> getState() {
+        Map<String, Object> state = new HashMap<>();
+        state.put("running", mRunning);
+        state.put("source", getSource());
+        state.put("capacity", mEndTs.length);
+        state.put("total", mTotal);
+        state.put("jank", mJankTotal);
+        return state;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 录制视频的渲染帧耗时, 保存在视频旁边的 .timing 文件中
+ * <p>
+ * 按行追加json, 时间均为单调时间 微秒:
+ * 编码帧 {"frame": pts, "cts": 抓取时间}, 渲染帧 {"render": 结束时间, "dur": 耗时}
+ * 读取时为每个编码帧找到抓取前最后结束的渲染帧
+ */
+public class FrameTimingLog implements FrameTimingCollector.IFrameTimingListener {
+    private static final String TAG = "FrameTimingLog";
+    private static final String SUFFIX = ".timing";
+
+    private Writer mWriter;
+
+    public static File timingFileOf(File video) {
+        return new File(video.getAbsolutePath() + SUFFIX);
+    }
+
+    FrameTimingLog(File video) throws IOException {
+        mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(timingFileOf(video)), "UTF-8"));
+    }
+
+    /**
+     * 编码了一帧, 在分发线程中调用
+     *
+     * @param frameTs 抓取时的单调时间 纳秒
+     */
+    synchronized void onFrame(long ptsUs, long frameTs) {
+        appendLine("{\"frame\":" + ptsUs + ",\"cts\":" + frameTs / 1000 + "}");
+    }
+
+    @Override
+    public synchronized void onFrameTiming(long endTs, long durationNs) {
+        appendLine("{\"render\":" + endTs / 1000 + ",\"dur\":" + durationNs / 1000 + "}");
+    }
+
+    synchronized void close() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close timing failed", e);
+            }
+            mWriter = null;
+        }
+    }
+
+    /**
+     * 取消录制
+     */
+    void delete(File video) {
+        close();
+        timingFileOf(video).delete();
+    }
+
+    private void appendLine(String line) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.write(line);
+            mWriter.write('\n');
+        } catch (IOException e) {
+            Log.w(TAG, "append timing failed", e);
+            close();
+        }
+    }
+
+    /**
+     * 读取视频的渲染帧耗时
+     *
+     * @return frames: [{pts, cts, renderTs, renderDur}], 没有对应渲染帧时renderTs为-1;
+     * render: [endTs, dur, ...] 录制期间所有渲染帧
+     */
+    public static Map<String, Object> read(File video) throws IOException {
+        File file = timingFileOf(video);
+        if (!file.exists()) {
+            throw new IOException("timing not found: " + file.getAbsolutePath());
+        }
+        List<long[]> frames = new ArrayList<>();
+        List<long[]> renders = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    JSONObject item = new JSONObject(line);
+                    if (item.has("frame")) {
+                        frames.add(new long[]{item.optLong("frame"), item.optLong("cts")});
+                    } else if (item.has("render")) {
+                        renders.add(new long[]{item.optLong("render"), item.optLong("dur")});
+                    }
+                } catch (JSONException e) {
+                    //最后一行可能不完整
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        //两种行都是按时间追加的, 一次遍历完成匹配
+        List<Map<String, Object>> frameList = new ArrayList<>(frames.size());
+        int r = -1;
+        for (long[] frame : frames) {
+            while (r + 1 < renders.size() && renders.get(r + 1)[0] <= frame[1]) {
+                r++;
+            }
+            Map<String, Object> map = new HashMap<>();
+            map.put("pts", frame[0]);
+            map.put("cts", frame[1]);
+            map.put("renderTs", r >= 0 ? renders.get(r)[0] : -1);
+            map.put("renderDur", r >= 0 ? renders.get(r)[1] : -1);
+            frameList.add(map);
+        }
+        long[] render = new long[renders.size() * 2];
+        for (int i = 0; i < renders.size(); i++) {
+            render[i * 2] = renders.get(i)[0];
+            render[i * 2 + 1] = renders.get(i)[1];
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("frames", frameList);
+        result.put("render", render);
+        return result;
+    }
+}
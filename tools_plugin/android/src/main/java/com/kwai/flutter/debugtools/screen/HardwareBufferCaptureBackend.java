@@ -0,0 +1,105 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.graphics.Bitmap;
+import android.graphics.ColorSpace;
+import android.graphics.PixelFormat;
+import android.hardware.HardwareBuffer;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * API 29+ 零拷贝取帧
+ * <p>
+ * 直接用Image的HardwareBuffer包装成HARDWARE bitmap, 没有padding也不需要拷贝像素
+ * Image要一直保持打开直到帧的引用全部释放, 否则buffer会被VirtualDisplay复用
+ */
+@RequiresApi(api = Build.VERSION_CODES.Q)
+class HardwareBufferCaptureBackend extends CaptureBackend {
+    private static final String TAG = "HardwareBufferBackend";
+    //同时持有的Image数量, 包括最后一帧和各接收者队列中的帧
+    private static final int MAX_IMAGES = 6;
+    private volatile boolean mAcquireFailed = false;
+
+    @Override
+    String getName() {
+        return "hardware_buffer";
+    }
+
+    @Override
+    ImageReader createImageReader(int width, int height) {
+        return ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, MAX_IMAGES,
+                HardwareBuffer.USAGE_GPU_SAMPLED_IMAGE);
+    }
+
+    @Override
+    SharedFrame acquireLatestFrame(ImageReader reader, long frameId) {
+        Image img;
+        try {
+            img = reader.acquireLatestImage();
+        } catch (IllegalStateException e) {
+            //Image都被帧持有 等有释放后重试
+            mAcquireFailed = true;
+            return null;
+        }
+        if (img == null) {
+            return null;
+        }
+        mAcquireFailed = false;
+        HardwareBuffer buffer = img.getHardwareBuffer();
+        Bitmap bitmap = null;
+        if (buffer != null) {
+            bitmap = Bitmap.wrapHardwareBuffer(buffer, ColorSpace.get(ColorSpace.Named.SRGB));
+            //bitmap持有自己的引用
+            buffer.close();
+        }
+        if (bitmap == null) {
+            Log.w(TAG, "wrap hardware buffer failed");
+            img.close();
+            return null;
+        }
+        ImageFrame frame = new ImageFrame(frameId, img.getTimestamp(), bitmap, img);
+        //HARDWARE bitmap不能直接裁剪, 在转换为软件帧时裁剪
+        frame.setCropRegion(mRegion);
+        return frame;
+    }
+
+    /**
+     * 持有Image的帧, 回收时关闭Image
+     */
+    private class ImageFrame extends SharedFrame {
+        private final Image mImage;
+
+        ImageFrame(long frameId, long frameTs, Bitmap bitmap, Image image) {
+            super(frameId, frameTs, bitmap);
+            mImage = image;
+        }
+
+        @Override
+        protected void onRecycle() {
+            super.onRecycle();
+            mImage.close();
+            if (mAcquireFailed && mOnImageReleased != null) {
+                mOnImageReleased.run();
+            }
+        }
+    }
+}
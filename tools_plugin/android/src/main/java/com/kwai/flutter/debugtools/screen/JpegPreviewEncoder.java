@@ -0,0 +1,49 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * jpeg预览
+ */
+class JpegPreviewEncoder extends PreviewEncoder {
+    //连续预览使用的质量
+    static final int PREVIEW_QUALITY = 30;
+    //画面静止后补发使用的质量
+    static final int REFINE_QUALITY = 90;
+    private final int mQuality;
+    //复用输出缓冲
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+
+    JpegPreviewEncoder(int quality) {
+        mQuality = quality;
+    }
+
+    @Override
+    public String getFormat() {
+        return FORMAT_JPEG;
+    }
+
+    @Override
+    protected byte[] onEncode(Bitmap bitmap) {
+        mOutput.reset();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, mQuality, mOutput);
+        return mOutput.toByteArray();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 读取mp4视频轨道的关键帧位置
+ * <p>
+ * MediaMuxer不提供写入位置, 结束后解析moov中的stbl(stsz/stco/co64/stsc/stss)计算
+ */
+final class Mp4SampleTable {
+    //moov最大读取大小
+    private static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+
+    private Mp4SampleTable() {
+    }
+
+    /**
+     * 关键帧
+     */
+    static class SyncSample {
+        //从0开始的帧序号
+        final int index;
+        final long offset;
+        final int size;
+
+        SyncSample(int index, long offset, int size) {
+            this.index = index;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    /**
+     * 读取第一个视频轨道的关键帧, 按顺序
+     */
+    static List<SyncSample> readSyncSamples(File file) throws IOException {
+        ByteBuffer moov = readMoov(file);
+        if (moov == null) {
+            throw new IOException("moov not found");
+        }
+        ByteBuffer trak;
+        while ((trak = findBox(moov, "trak")) != null) {
+            ByteBuffer mdia = findBox(trak, "mdia");
+            if (mdia == null || !"vide".equals(handlerType(mdia.duplicate()))) {
+                continue;
+            }
+            ByteBuffer minf = findBox(mdia, "minf");
+            ByteBuffer stbl = minf == null ? null : findBox(minf, "stbl");
+            if (stbl != null) {
+                return parseStbl(stbl);
+            }
+        }
+        throw new IOException("video track not found");
+    }
+
+    private static List<SyncSample> parseStbl(ByteBuffer stbl) throws IOException {
+        ByteBuffer stsz = findBox(stbl.duplicate(), "stsz");
+        ByteBuffer stsc = findBox(stbl.duplicate(), "stsc");
+        ByteBuffer stco = findBox(stbl.duplicate(), "stco");
+        ByteBuffer co64 = stco == null ? findBox(stbl.duplicate(), "co64") : null;
+        ByteBuffer stss = findBox(stbl.duplicate(), "stss");
+        if (stsz == null || stsc == null || (stco == null && co64 == null)) {
+            throw new IOException("incomplete sample table");
+        }
+        //stsz
+        stsz.getInt();
+        int fixedSize = stsz.getInt();
+        int sampleCount = stsz.getInt();
+        int[] sizes = new int[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            sizes[i] = fixedSize != 0 ? fixedSize : stsz.getInt();
+        }
+        //stco/co64
+        ByteBuffer chunkBox = stco != null ? stco : co64;
+        chunkBox.getInt();
+        long[] chunkOffsets = new long[chunkBox.getInt()];
+        for (int i = 0; i < chunkOffsets.length; i++) {
+            chunkOffsets[i] = stco != null ? (chunkBox.getInt() & 0xFFFFFFFFL) : chunkBox.getLong();
+        }
+        //stsc
+        stsc.getInt();
+        int runCount = stsc.getInt();
+        int[] firstChunks = new int[runCount];
+        int[] samplesPerChunk = new int[runCount];
+        for (int i = 0; i < runCount; i++) {
+            firstChunks[i] = stsc.getInt();
+            samplesPerChunk[i] = stsc.getInt();
+            stsc.getInt();
+        }
+        //stss 没有时所有帧都是关键帧
+        int[] syncNumbers = null;
+        if (stss != null) {
+            stss.getInt();
+            syncNumbers = new int[stss.getInt()];
+            for (int i = 0; i < syncNumbers.length; i++) {
+                syncNumbers[i] = stss.getInt();
+            }
+        }
+
+        List<SyncSample> result = new ArrayList<>();
+        int sample = 0;
+        int syncPos = 0;
+        int run = 0;
+        for (int chunk = 0; chunk < chunkOffsets.length && sample < sampleCount; chunk++) {
+            while (run + 1 < runCount && firstChunks[run + 1] <= chunk + 1) {
+                run++;
+            }
+            long offset = chunkOffsets[chunk];
+            int count = runCount > 0 ? samplesPerChunk[run] : 0;
+            for (int k = 0; k < count && sample < sampleCount; k++, sample++) {
+                boolean sync = syncNumbers == null
+                        || (syncPos < syncNumbers.length && syncNumbers[syncPos] == sample + 1);
+                if (sync) {
+                    result.add(new SyncSample(sample, offset, sizes[sample]));
+                    syncPos++;
+                }
+                offset += sizes[sample];
+            }
+        }
+        return result;
+    }
+
+    private static String handlerType(ByteBuffer mdia) {
+        ByteBuffer hdlr = findBox(mdia, "hdlr");
+        if (hdlr == null || hdlr.remaining() < 12) {
+            return null;
+        }
+        hdlr.position(hdlr.position() + 8);
+        return readType(hdlr);
+    }
+
+    /**
+     * 从当前位置查找子box, 返回其内容, parent的position移动到该box之后
+     */
+    private static ByteBuffer findBox(ByteBuffer parent, String type) {
+        while (parent.remaining() >= 8) {
+            int start = parent.position();
+            long size = parent.getInt() & 0xFFFFFFFFL;
+            String boxType = readType(parent);
+            int headerSize = 8;
+            if (size == 1) {
+                size = parent.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = parent.limit() - start;
+            }
+            if (size < headerSize || start + size > parent.limit()) {
+                parent.position(parent.limit());
+                return null;
+            }
+            int end = (int) (start + size);
+            parent.position(end);
+            if (boxType.equals(type)) {
+                ByteBuffer content = parent.duplicate();
+                content.position(start + headerSize);
+                content.limit(end);
+                return content.slice();
+            }
+        }
+        return null;
+    }
+
+    private static String readType(ByteBuffer buffer) {
+        byte[] type = new byte[4];
+        buffer.get(type);
+        return new String(type);
+    }
+
+    private static ByteBuffer readMoov(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            long position = 0;
+            byte[] type = new byte[4];
+            while (position + 8 <= length) {
+                raf.seek(position);
+                long size = raf.readInt() & 0xFFFFFFFFL;
+                raf.readFully(type);
+                int headerSize = 8;
+                if (size == 1) {
+                    size = raf.readLong();
+                    headerSize = 16;
+                } else if (size == 0) {
+                    size = length - position;
+                }
+                if (size < headerSize) {
+                    return null;
+                }
+                if ("moov".equals(new String(type))) {
+                    long contentSize = size - headerSize;
+                    if (contentSize > MAX_MOOV_SIZE || position + size > length) {
+                        throw new IOException("invalid moov size: " + size);
+                    }
+                    byte[] content = new byte[(int) contentSize];
+                    raf.readFully(content);
+                    return ByteBuffer.wrap(content);
+                }
+                position += size;
+            }
+            return null;
+        } finally {
+            raf.close();
+        }
+    }
+}
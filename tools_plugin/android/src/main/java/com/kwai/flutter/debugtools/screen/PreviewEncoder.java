@@ -0,0 +1,121 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 预览图像编码, 每种格式一个实例, 同一格式的客户端共享编码结果
+ * <p>
+ * 除requestKeyFrame外都在预览分发线程中调用
+ */
+public abstract class PreviewEncoder {
+    //cpu占用高 流量小, 适合wifi
+    public static final String FORMAT_JPEG = "jpeg";
+    public static final String FORMAT_WEBP = "webp";
+    public static final String FORMAT_WEBP_LOSSLESS = "webp-lossless";
+    //不压缩只发送变化的块, cpu占用最低, 适合usb/adb forward
+    public static final String FORMAT_RAW_DELTA = "raw-delta";
+
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mEncodeNanos = new AtomicLong();
+
+    /**
+     * 支持的格式, 第一个为默认格式
+     */
+    public static List<String> getSupportedFormats() {
+        return new ArrayList<>(Arrays.asList(FORMAT_JPEG, FORMAT_WEBP, FORMAT_WEBP_LOSSLESS, FORMAT_RAW_DELTA));
+    }
+
+    /**
+     * @return 不支持的格式返回null
+     */
+    public static PreviewEncoder create(String format) {
+        if (FORMAT_JPEG.equals(format)) {
+            return new JpegPreviewEncoder(JpegPreviewEncoder.PREVIEW_QUALITY);
+        } else if (FORMAT_WEBP.equals(format)) {
+            return new WebpPreviewEncoder(false, WebpPreviewEncoder.LOSSY_QUALITY);
+        } else if (FORMAT_WEBP_LOSSLESS.equals(format)) {
+            return new WebpPreviewEncoder(true, WebpPreviewEncoder.LOSSLESS_QUALITY);
+        } else if (FORMAT_RAW_DELTA.equals(format)) {
+            return new RawDeltaPreviewEncoder();
+        }
+        return null;
+    }
+
+    /**
+     * 画面静止后补发的高质量编码器
+     *
+     * @return 不需要补发的格式返回null
+     */
+    public static PreviewEncoder createRefinement(String format) {
+        if (FORMAT_JPEG.equals(format)) {
+            return new JpegPreviewEncoder(JpegPreviewEncoder.REFINE_QUALITY);
+        } else if (FORMAT_WEBP.equals(format)) {
+            return new WebpPreviewEncoder(false, WebpPreviewEncoder.REFINE_QUALITY);
+        } else if (FORMAT_WEBP_LOSSLESS.equals(format)) {
+            return new WebpPreviewEncoder(true, WebpPreviewEncoder.LOSSLESS_QUALITY);
+        }
+        //增量格式需要画面尺寸不变, 本身也是无损的
+        return null;
+    }
+
+    public abstract String getFormat();
+
+    /**
+     * 编码一帧
+     *
+     * @param bitmap 已缩放的软件bitmap, 只读
+     * @return 没有需要发送的内容时返回null
+     */
+    protected abstract byte[] onEncode(Bitmap bitmap);
+
+    /**
+     * 有新客户端时调用, 增量格式下一帧需要输出完整画面, 可在任意线程调用
+     */
+    public void requestKeyFrame() {
+    }
+
+    public final byte[] encode(Bitmap bitmap) {
+        long start = FrameClock.nowNanos();
+        byte[] data = onEncode(bitmap);
+        mEncodeNanos.addAndGet(FrameClock.nowNanos() - start);
+        if (data != null) {
+            mFrames.incrementAndGet();
+            mBytes.addAndGet(data.length);
+        }
+        return data;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        long frames = mFrames.get();
+        stats.put("format", getFormat());
+        stats.put("frames", frames);
+        stats.put("bytes", mBytes.get());
+        stats.put("avgBytes", frames == 0 ? 0 : mBytes.get() / frames);
+        stats.put("avgEncodeMs", frames == 0 ? 0 : mEncodeNanos.get() / frames / 1e6);
+        return stats;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.graphics.Rect;
+import android.hardware.display.DisplayManager;
+import android.hardware.display.VirtualDisplay;
+import android.media.ImageReader;
+import android.media.projection.MediaProjection;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * 通过MediaProjection创建VirtualDisplay, 从ImageReader中取帧
+ */
+class ProjectionFrameSource implements ScreenCaptureService.IFrameSource {
+    private static final String TAG = "ProjectionFrameSource";
+    private final MediaProjection mMediaProjection;
+    private final CaptureBackend mBackend;
+    private Handler mHandler;
+    private Runnable mOnFrameAvailable;
+    private ImageReader mImageReader;
+    private Surface mSurface;
+    private VirtualDisplay mVirtualDisplay;
+    private boolean mSuspended = false;
+    private final ImageReader.OnImageAvailableListener mImageAvailableListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader imageReader) {
+            //尺寸变化后旧的ImageReader可能还有回调
+            if (imageReader == mImageReader) {
+                mOnFrameAvailable.run();
+            }
+        }
+    };
+
+    /**
+     * @param allowHardwareBuffer 是否允许在API 29以上使用HardwareBuffer零拷贝取帧
+     */
+    ProjectionFrameSource(MediaProjection mp, boolean allowHardwareBuffer) {
+        mMediaProjection = mp;
+        mBackend = CaptureBackend.create(allowHardwareBuffer);
+    }
+
+    @Override
+    public String getName() {
+        return mBackend.getName();
+    }
+
+    @Override
+    public void start(int width, int height, int dpi, final Handler handler, final Runnable onFrameAvailable) {
+        mHandler = handler;
+        mOnFrameAvailable = onFrameAvailable;
+        mImageReader = mBackend.createImageReader(width, height);
+        mSurface = mImageReader.getSurface();
+        mVirtualDisplay = mMediaProjection.createVirtualDisplay(TAG + "-display", width, height, dpi,
+                DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC, mSurface, null, handler);
+        Log.d(TAG, "created virtual display: " + mVirtualDisplay + ", backend: " + mBackend.getName());
+        //图像都被持有时 等有帧回收后再取
+        mBackend.setOnImageReleasedListener(new Runnable() {
+            @Override
+            public void run() {
+                handler.post(onFrameAvailable);
+            }
+        });
+        mImageReader.setOnImageAvailableListener(mImageAvailableListener, handler);
+    }
+
+    @Override
+    public SharedFrame acquireLatestFrame(long frameId) {
+        ImageReader reader = mImageReader;
+        return reader == null ? null : mBackend.acquireLatestFrame(reader, frameId);
+    }
+
+    @Override
+    public void resize(int width, int height, int dpi) {
+        if (mVirtualDisplay == null) {
+            return;
+        }
+        ImageReader oldReader = mImageReader;
+        ImageReader reader = mBackend.createImageReader(width, height);
+        reader.setOnImageAvailableListener(mImageAvailableListener, mHandler);
+        mImageReader = reader;
+        mSurface = reader.getSurface();
+        mVirtualDisplay.resize(width, height, dpi);
+        if (!mSuspended) {
+            mVirtualDisplay.setSurface(mSurface);
+        }
+        //已取出的帧持有自己的bitmap或HardwareBuffer, 关闭旧的ImageReader不影响它们
+        if (oldReader != null) {
+            oldReader.close();
+        }
+    }
+
+    @Override
+    public void setRegion(Rect region) {
+        mBackend.setRegion(region);
+    }
+
+    @Override
+    public void setSuspended(boolean suspended) {
+        if (mVirtualDisplay == null || mSuspended == suspended) {
+            return;
+        }
+        //断开surface后VirtualDisplay不再合成 也就不再产生图像, MediaProjection授权保留
+        mVirtualDisplay.setSurface(suspended ? null : mSurface);
+        mSuspended = suspended;
+    }
+
+    @Override
+    public void release() {
+        if (mImageReader != null) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+        if (mVirtualDisplay != null) {
+            mVirtualDisplay.release();
+            mVirtualDisplay = null;
+        }
+        if (mMediaProjection != null) {
+            mMediaProjection.stop();
+        }
+    }
+}
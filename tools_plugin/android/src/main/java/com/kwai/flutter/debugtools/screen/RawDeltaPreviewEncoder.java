@@ -0,0 +1,139 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 不压缩, 只输出和上一帧相比变化的块
+ * <p>
+ * 格式(大端): magic(4) flags(1) width(2) height(2) count(2) | tile*
+ * <ul>
+ * <li>flags: bit0 为关键帧, 关键帧包含整个画面</li>
+ * <li>tile: x(2) y(2) w(2) h(2) rgba(w*h*4)</li>
+ * </ul>
+ */
+class RawDeltaPreviewEncoder extends PreviewEncoder {
+    static final int MAGIC = 0x4B445244; //KDRD
+    static final int FLAG_KEY_FRAME = 1;
+    private static final int HEADER_SIZE = 11;
+    private static final int TILE_HEADER_SIZE = 8;
+    private static final int TILE_SIZE = 32;
+
+    private int mWidth;
+    private int mHeight;
+    private int[] mPixels;
+    private int[] mPrevPixels;
+    private boolean[] mChanged;
+    private volatile boolean mKeyFrameRequested = true;
+
+    @Override
+    public String getFormat() {
+        return FORMAT_RAW_DELTA;
+    }
+
+    @Override
+    public void requestKeyFrame() {
+        mKeyFrameRequested = true;
+    }
+
+    @Override
+    protected byte[] onEncode(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        boolean keyFrame = mKeyFrameRequested;
+        mKeyFrameRequested = false;
+        if (width != mWidth || height != mHeight || mPixels == null) {
+            mWidth = width;
+            mHeight = height;
+            mPixels = new int[width * height];
+            mPrevPixels = new int[width * height];
+            keyFrame = true;
+        }
+        bitmap.getPixels(mPixels, 0, width, 0, 0, width, height);
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        if (mChanged == null || mChanged.length != tilesX * tilesY) {
+            mChanged = new boolean[tilesX * tilesY];
+        }
+        int count = 0;
+        int size = HEADER_SIZE;
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                int x = tx * TILE_SIZE;
+                int y = ty * TILE_SIZE;
+                int w = Math.min(TILE_SIZE, width - x);
+                int h = Math.min(TILE_SIZE, height - y);
+                boolean changed = keyFrame || tileChanged(x, y, w, h);
+                mChanged[ty * tilesX + tx] = changed;
+                if (changed) {
+                    count++;
+                    size += TILE_HEADER_SIZE + w * h * 4;
+                }
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC);
+        out.put((byte) (keyFrame ? FLAG_KEY_FRAME : 0));
+        out.putShort((short) width);
+        out.putShort((short) height);
+        out.putShort((short) count);
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                if (!mChanged[ty * tilesX + tx]) {
+                    continue;
+                }
+                int x = tx * TILE_SIZE;
+                int y = ty * TILE_SIZE;
+                int w = Math.min(TILE_SIZE, width - x);
+                int h = Math.min(TILE_SIZE, height - y);
+                out.putShort((short) x);
+                out.putShort((short) y);
+                out.putShort((short) w);
+                out.putShort((short) h);
+                for (int row = y; row < y + h; row++) {
+                    int offset = row * width;
+                    for (int col = x; col < x + w; col++) {
+                        //ARGB -> RGBA, 浏览器可直接使用
+                        int p = mPixels[offset + col];
+                        out.putInt((p << 8) | (p >>> 24));
+                    }
+                }
+            }
+        }
+        int[] tmp = mPrevPixels;
+        mPrevPixels = mPixels;
+        mPixels = tmp;
+        return out.array();
+    }
+
+    private boolean tileChanged(int x, int y, int w, int h) {
+        for (int row = y; row < y + h; row++) {
+            int offset = row * mWidth;
+            for (int col = x; col < x + w; col++) {
+                if (mPixels[offset + col] != mPrevPixels[offset + col]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
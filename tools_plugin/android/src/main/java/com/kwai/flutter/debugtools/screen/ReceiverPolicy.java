@@ -0,0 +1,89 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kwai.flutter.debugtools.screen;
+
+/**
+ * 接收者声明的分发策略
+ */
+public class ReceiverPolicy {
+    /**
+     * 队列满时的丢弃策略
+     */
+    public enum DropPolicy {
+        //丢弃队列中最旧的帧, 适合预览
+        DROP_OLDEST,
+        //丢弃新来的帧, 适合需要连续帧的场景
+        DROP_NEWEST
+    }
+
+    public static final ReceiverPolicy DEFAULT = new ReceiverPolicy(0, 2, DropPolicy.DROP_OLDEST, 0);
+
+    //最大帧率, <=0 不限制
+    public final int maxFps;
+    //队列长度
+    public final int queueSize;
+    public final DropPolicy dropPolicy;
+    //最大延迟 ms, 超出且后面还有新帧时丢弃, <=0 不限制
+    public final long maxDelayMs;
+    //是否可以直接接收HARDWARE bitmap, 否则分发线程会先转换为软件bitmap
+    public final boolean acceptsHardwareBitmap;
+    //注册时是否立即收到最后一帧, 画面静止时不会有新帧, 预览需要马上显示
+    public final boolean replayLastFrame;
+    //分发线程优先级 android.os.Process.THREAD_PRIORITY_*
+    public final int threadPriority;
+
+    public ReceiverPolicy(int maxFps, int queueSize, DropPolicy dropPolicy, long maxDelayMs) {
+        this(maxFps, queueSize, dropPolicy, maxDelayMs, false);
+    }
+
+    public ReceiverPolicy(int maxFps, int queueSize, DropPolicy dropPolicy, long maxDelayMs,
+                          boolean acceptsHardwareBitmap) {
+        this(maxFps, queueSize, dropPolicy, maxDelayMs, acceptsHardwareBitmap, false);
+    }
+
+    public ReceiverPolicy(int maxFps, int queueSize, DropPolicy dropPolicy, long maxDelayMs,
+                          boolean acceptsHardwareBitmap, boolean replayLastFrame) {
+        this(maxFps, queueSize, dropPolicy, maxDelayMs, acceptsHardwareBitmap, replayLastFrame,
+                ScreenThreads.PRIORITY_ENCODE);
+    }
+
+    public ReceiverPolicy(int maxFps, int queueSize, DropPolicy dropPolicy, long maxDelayMs,
+                          boolean acceptsHardwareBitmap, boolean replayLastFrame, int threadPriority) {
+        this.maxFps = maxFps;
+        this.queueSize = Math.max(1, queueSize);
+        this.dropPolicy = dropPolicy;
+        this.maxDelayMs = maxDelayMs;
+        this.acceptsHardwareBitmap = acceptsHardwareBitmap;
+        this.replayLastFrame = replayLastFrame;
+        this.threadPriority = threadPriority;
+    }
+
+    /**
+     * 修改分发线程优先级, 其他策略不变
+     */
+    public ReceiverPolicy withThreadPriority(int priority) {
+        return new ReceiverPolicy(maxFps, queueSize, dropPolicy, maxDelayMs, acceptsHardwareBitmap,
+                replayLastFrame, priority);
+    }
+
+    @Override
+    public String toString() {
+        return "ReceiverPolicy{maxFps=" + maxFps + ", queueSize=" + queueSize
+                + ", dropPolicy=" + dropPolicy + ", maxDelayMs=" + maxDelayMs + ", acceptsHardwareBitmap=" + acceptsHardwareBitmap
+                + ", replayLastFrame=" + replayLastFrame + ", threadPriority=" + threadPriority + '}';
+    }
+}
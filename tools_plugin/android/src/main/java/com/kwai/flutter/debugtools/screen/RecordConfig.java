@@ -0,0 +1,187 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 录制编码参数
+ */
+public class RecordConfig {
+    private static final String TAG = "RecordConfig";
+    public static final String PRESET_DEFAULT = "default";
+    //界面录制 画面大部分时间静止
+    public static final String PRESET_SCREEN_CONTENT = "screenContent";
+    //码率模式 不设置时使用编码器默认
+    public static final int BITRATE_MODE_DEFAULT = -1;
+
+    public String mimeType = MediaFormat.MIMETYPE_VIDEO_AVC;
+    public int bitrateMode = BITRATE_MODE_DEFAULT;
+    //每像素码率 bit/s, bitrate = width * height * bitsPerPixel
+    public float bitsPerPixel = 12;
+    //指定码率 bit/s, >0 时忽略bitsPerPixel
+    public int bitrate = 0;
+    //CQ模式的质量 0-100, 会限制在编码器支持的范围内
+    public int quality = 60;
+    //<=0 使用编码器默认
+    public int profile = 0;
+    public int level = 0;
+    //最大关键帧间隔 秒
+    public int keyFrameInterval = 5;
+    public int frameRate = 30;
+
+    public static RecordConfig preset(String name) {
+        RecordConfig config = new RecordConfig();
+        if (PRESET_SCREEN_CONTENT.equals(name)) {
+            //静止画面几乎没有新帧输入, VBR加长关键帧间隔, 码率约为默认的1/8
+            config.mimeType = MediaFormat.MIMETYPE_VIDEO_HEVC;
+            config.bitrateMode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+            config.bitsPerPixel = 1.5f;
+            config.keyFrameInterval = 10;
+        }
+        return config;
+    }
+
+    /**
+     * 解析method call参数, 未指定的项使用preset中的值
+     * <p>
+     * preset: default/screenContent, mimeType: avc/hevc, bitrateMode: cbr/vbr/cq,
+     * bitrate, quality, profile, level, keyFrameInterval
+     */
+    public static RecordConfig fromArguments(Map<String, Object> args) {
+        if (args == null) {
+            return new RecordConfig();
+        }
+        RecordConfig config = preset((String) args.get("preset"));
+        String mimeType = (String) args.get("mimeType");
+        if ("hevc".equalsIgnoreCase(mimeType) || MediaFormat.MIMETYPE_VIDEO_HEVC.equalsIgnoreCase(mimeType)) {
+            config.mimeType = MediaFormat.MIMETYPE_VIDEO_HEVC;
+        } else if ("avc".equalsIgnoreCase(mimeType) || MediaFormat.MIMETYPE_VIDEO_AVC.equalsIgnoreCase(mimeType)) {
+            config.mimeType = MediaFormat.MIMETYPE_VIDEO_AVC;
+        }
+        String bitrateMode = (String) args.get("bitrateMode");
+        if ("cbr".equalsIgnoreCase(bitrateMode)) {
+            config.bitrateMode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+        } else if ("vbr".equalsIgnoreCase(bitrateMode)) {
+            config.bitrateMode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+        } else if ("cq".equalsIgnoreCase(bitrateMode)) {
+            config.bitrateMode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+        }
+        config.bitrate = intArg(args, "bitrate", config.bitrate);
+        config.quality = intArg(args, "quality", config.quality);
+        config.profile = intArg(args, "profile", config.profile);
+        config.level = intArg(args, "level", config.level);
+        config.keyFrameInterval = intArg(args, "keyFrameInterval", config.keyFrameInterval);
+        return config;
+    }
+
+    private static int intArg(Map<String, Object> args, String key, int defaultValue) {
+        Object value = args.get(key);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+    }
+
+    public int getBitrate(int width, int height) {
+        return bitrate > 0 ? bitrate : (int) (width * height * bitsPerPixel);
+    }
+
+    /**
+     * 选择编码器, 指定的mime不可用时退回AVC并忽略profile
+     */
+    EncoderRegistry.EncoderInfo selectEncoder(int width, int height) {
+        //MediaMuxer从API 24开始支持HEVC
+        if (!MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mimeType) || Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            EncoderRegistry.EncoderInfo encoder = select(mimeType, profile, width, height);
+            if (encoder != null) {
+                return encoder;
+            }
+        }
+        if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType)) {
+            Log.w(TAG, mimeType + " not available, fallback to avc");
+            mimeType = MediaFormat.MIMETYPE_VIDEO_AVC;
+            profile = 0;
+            level = 0;
+        }
+        return select(mimeType, profile, width, height);
+    }
+
+    private static EncoderRegistry.EncoderInfo select(String mimeType, int profile, int width, int height) {
+        EncoderRegistry.EncoderInfo encoder = EncoderRegistry.select(mimeType, profile, width, height);
+        if (encoder == null) {
+            //部分设备声明的尺寸对齐较严格 退回到不检查尺寸
+            encoder = EncoderRegistry.select(mimeType, profile, 0, 0);
+        }
+        return encoder;
+    }
+
+    /**
+     * 生成编码格式, 编码器不支持的码率模式不设置
+     */
+    MediaFormat createFormat(EncoderRegistry.EncoderInfo encoder, int width, int height, int bitrate) {
+        MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, encoder.inputColorFormat);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, keyFrameInterval);
+        int mode = bitrateMode;
+        if (mode == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ
+                && (!encoder.supportsCq || Build.VERSION.SDK_INT < Build.VERSION_CODES.P)) {
+            Log.w(TAG, encoder.name + " not support cq, fallback to vbr");
+            mode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+        }
+        if (mode == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, mode);
+            format.setInteger(MediaFormat.KEY_QUALITY, clampQuality(encoder));
+        } else {
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+            if ((mode == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR && encoder.supportsVbr)
+                    || (mode == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR && encoder.supportsCbr)) {
+                format.setInteger(MediaFormat.KEY_BITRATE_MODE, mode);
+            }
+        }
+        if (profile > 0 && encoder.isProfileSupported(profile)) {
+            format.setInteger(MediaFormat.KEY_PROFILE, profile);
+            if (level > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                format.setInteger(MediaFormat.KEY_LEVEL, level);
+            }
+        }
+        return format;
+    }
+
+    private int clampQuality(EncoderRegistry.EncoderInfo encoder) {
+        Range<Integer> range = encoder.getCodecInfo().getCapabilitiesForType(mimeType)
+                .getEncoderCapabilities().getQualityRange();
+        return range == null ? quality : range.clamp(quality);
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("mimeType", mimeType);
+        map.put("bitrateMode", bitrateMode);
+        map.put("bitrate", bitrate);
+        map.put("bitsPerPixel", bitsPerPixel);
+        map.put("quality", quality);
+        map.put("profile", profile);
+        map.put("level", level);
+        map.put("keyFrameInterval", keyFrameInterval);
+        return map;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.graphics.Bitmap;
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 录制视频的关键帧索引, 保存在视频旁边的 .idx 文件中
+ * <p>
+ * 录制中按行追加json: 缩略图 {"thumb": pts, "jpg": base64}, 关键帧 {"key": pts, "size": n}
+ * 结束后解析mp4得到关键帧在文件中的位置, 重写为一个json:
+ * {"version": 1, "width", "height", "keyframes": [{"pts", "offset", "size", "thumb"}]}
+ * 进程被杀没有结束时按行读取, offset为-1
+ */
+public class RecordingIndex {
+    private static final String TAG = "RecordingIndex";
+    private static final String SUFFIX = ".idx";
+    private static final int VERSION = 1;
+    //缩略图宽度
+    private static final int THUMB_WIDTH = 96;
+    private static final int THUMB_QUALITY = 50;
+
+    private final File mFile;
+    private final int mWidth;
+    private final int mHeight;
+    private Writer mWriter;
+    private final List<long[]> mKeyFrames = new ArrayList<>();
+    private final List<Long> mThumbPts = new ArrayList<>();
+    private final List<String> mThumbs = new ArrayList<>();
+
+    public static File indexFileOf(File video) {
+        return new File(video.getAbsolutePath() + SUFFIX);
+    }
+
+    RecordingIndex(File video, int width, int height) throws IOException {
+        mFile = indexFileOf(video);
+        mWidth = width;
+        mHeight = height;
+        mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mFile), "UTF-8"));
+    }
+
+    /**
+     * 生成缩略图, 在输入线程中调用
+     *
+     * @param ptsUs 该帧的pts
+     */
+    void addThumbnail(long ptsUs, Bitmap bitmap) {
+        int height = Math.max(1, bitmap.getHeight() * THUMB_WIDTH / bitmap.getWidth());
+        Bitmap thumb = Bitmap.createScaledBitmap(bitmap, THUMB_WIDTH, height, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        thumb.compress(Bitmap.CompressFormat.JPEG, THUMB_QUALITY, out);
+        thumb.recycle();
+        String jpg = Base64.encodeToString(out.toByteArray(), Base64.NO_WRAP);
+        synchronized (this) {
+            mThumbPts.add(ptsUs);
+            mThumbs.add(jpg);
+            appendLine("{\"thumb\":" + ptsUs + ",\"jpg\":\"" + jpg + "\"}");
+        }
+    }
+
+    /**
+     * 编码输出关键帧, 在输出线程中调用
+     */
+    synchronized void onKeyFrame(long ptsUs, int size) {
+        mKeyFrames.add(new long[]{ptsUs, size});
+        appendLine("{\"key\":" + ptsUs + ",\"size\":" + size + "}");
+    }
+
+    /**
+     * 录制结束, 解析视频中关键帧的位置后重写索引
+     */
+    synchronized void finish(File video) {
+        closeWriter();
+        List<Mp4SampleTable.SyncSample> samples = null;
+        try {
+            samples = Mp4SampleTable.readSyncSamples(video);
+        } catch (IOException e) {
+            Log.w(TAG, "read sample table failed", e);
+        }
+        try {
+            JSONObject json = new JSONObject();
+            json.put("version", VERSION);
+            json.put("width", mWidth);
+            json.put("height", mHeight);
+            JSONArray keyframes = new JSONArray();
+            for (int i = 0; i < mKeyFrames.size(); i++) {
+                long pts = mKeyFrames.get(i)[0];
+                JSONObject item = new JSONObject();
+                item.put("pts", pts);
+                //muxer按写入顺序保存, 第i个关键帧对应第i个同步帧
+                if (samples != null && i < samples.size()) {
+                    item.put("offset", samples.get(i).offset);
+                    item.put("size", samples.get(i).size);
+                } else {
+                    item.put("offset", -1);
+                    item.put("size", mKeyFrames.get(i)[1]);
+                }
+                String thumb = findThumb(mThumbPts, mThumbs, pts);
+                if (thumb != null) {
+                    item.put("thumb", thumb);
+                }
+                keyframes.put(item);
+            }
+            json.put("keyframes", keyframes);
+            Writer writer = new OutputStreamWriter(new FileOutputStream(mFile), "UTF-8");
+            try {
+                writer.write(json.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "write index failed", e);
+        }
+    }
+
+    /**
+     * 取消录制
+     */
+    synchronized void delete() {
+        closeWriter();
+        mFile.delete();
+    }
+
+    private void appendLine(String line) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.write(line);
+            mWriter.write('\n');
+            //录制中也可以读取
+            mWriter.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "append index failed", e);
+            closeWriter();
+        }
+    }
+
+    private void closeWriter() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close index failed", e);
+            }
+            mWriter = null;
+        }
+    }
+
+    //关键帧之前最近的缩略图
+    private static String findThumb(List<Long> thumbPts, List<String> thumbs, long pts) {
+        String result = null;
+        for (int i = 0; i < thumbPts.size() && thumbPts.get(i) <= pts; i++) {
+            result = thumbs.get(i);
+        }
+        if (result == null && !thumbs.isEmpty()) {
+            result = thumbs.get(0);
+        }
+        return result;
+    }
+
+    /**
+     * 读取视频的索引
+     *
+     * @return keyframes: [{pts, offset, size, thumb}], thumb为base64的jpg
+     */
+    public static Map<String, Object> read(File video) throws IOException {
+        File file = indexFileOf(video);
+        if (!file.exists()) {
+            throw new IOException("index not found: " + file.getAbsolutePath());
+        }
+        StringBuilder content = new StringBuilder();
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                content.append(line);
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        Map<String, Object> result = new HashMap<>();
+        List<Map<String, Object>> keyframes = new ArrayList<>();
+        result.put("keyframes", keyframes);
+        try {
+            JSONObject json = new JSONObject(content.toString());
+            if (json.has("version")) {
+                result.put("complete", true);
+                result.put("width", json.optInt("width"));
+                result.put("height", json.optInt("height"));
+                JSONArray array = json.getJSONArray("keyframes");
+                for (int i = 0; i < array.length(); i++) {
+                    JSONObject item = array.getJSONObject(i);
+                    keyframes.add(keyFrame(item.optLong("pts"), item.optLong("offset", -1),
+                            item.optInt("size"), item.optString("thumb", null)));
+                }
+                return result;
+            }
+        } catch (JSONException e) {
+            //录制中或者没有正常结束 按行读取
+        }
+        result.put("complete", false);
+        List<Long> thumbPts = new ArrayList<>();
+        List<String> thumbs = new ArrayList<>();
+        List<long[]> keys = new ArrayList<>();
+        for (String line : lines) {
+            try {
+                JSONObject item = new JSONObject(line);
+                if (item.has("thumb")) {
+                    thumbPts.add(item.optLong("thumb"));
+                    thumbs.add(item.optString("jpg"));
+                } else if (item.has("key")) {
+                    keys.add(new long[]{item.optLong("key"), item.optInt("size")});
+                }
+            } catch (JSONException e) {
+                //最后一行可能不完整
+            }
+        }
+        for (long[] key : keys) {
+            keyframes.add(keyFrame(key[0], -1, (int) key[1], findThumb(thumbPts, thumbs, key[0])));
+        }
+        return result;
+    }
+
+    private static Map<String, Object> keyFrame(long pts, long offset, int size, String thumb) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("pts", pts);
+        map.put("offset", offset);
+        map.put("size", size);
+        map.put("thumb", thumb);
+        return map;
+    }
+}
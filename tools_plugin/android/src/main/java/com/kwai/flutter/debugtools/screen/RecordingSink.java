@@ -0,0 +1,95 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * 录制编码输出的去向
+ * <p>
+ * 除open外都在编码输出线程中调用
+ */
+public abstract class RecordingSink {
+
+    /**
+     * 请求编码器尽快输出关键帧, 由录制器设置
+     */
+    interface IKeyFrameRequester {
+        void requestKeyFrame();
+    }
+
+    private volatile IKeyFrameRequester mKeyFrameRequester;
+
+    void setKeyFrameRequester(IKeyFrameRequester requester) {
+        mKeyFrameRequester = requester;
+    }
+
+    /**
+     * 请求关键帧, 丢弃数据后需要从关键帧恢复时调用
+     */
+    protected void requestKeyFrame() {
+        IKeyFrameRequester requester = mKeyFrameRequester;
+        if (requester != null) {
+            requester.requestKeyFrame();
+        }
+    }
+
+    /**
+     * 开始编码前调用, 不要在这里做网络操作
+     */
+    abstract void open() throws IOException;
+
+    /**
+     * 编码器输出格式确定
+     */
+    abstract void onOutputFormat(MediaFormat format) throws IOException;
+
+    /**
+     * 编码数据, 包括BUFFER_FLAG_CODEC_CONFIG的配置数据, data的position和limit已经设置好
+     */
+    abstract void writeSample(ByteBuffer data, MediaCodec.BufferInfo info) throws IOException;
+
+    /**
+     * 编码器暂时没有输出, 画面静止时会一直没有输出, 需要按时间输出缓冲数据的可以在这里处理
+     */
+    void onIdle() {
+    }
+
+    /**
+     * 结束
+     *
+     * @param abort 取消录制, 不需要保留输出
+     */
+    abstract void close(boolean abort);
+
+    /**
+     * 输出到文件时返回文件
+     */
+    File getFile() {
+        return null;
+    }
+
+    /**
+     * 描述信息, 返回给调用方
+     */
+    abstract Map<String, Object> describe();
+}
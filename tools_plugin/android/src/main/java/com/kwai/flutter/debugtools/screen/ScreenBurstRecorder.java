@@ -0,0 +1,261 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kwai.flutter.debugtools.screen;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连拍/延时截图 将每帧(或每N帧)无损保存到一个容器文件中
+ * 编码在线程池中进行, 写入在单独线程中顺序进行
+ */
+public class ScreenBurstRecorder implements ScreenCaptureService.IScreenDataReceiver {
+    private static final String TAG = "ScreenBurstRecorder";
+    //同时等待编码的帧数 超出丢弃 避免占用过多内存
+    private static final int MAX_PENDING_FRAMES = 6;
+    //分发策略 连拍需要连续帧 分发线程只做计数和提交, 队列满时丢弃新帧
+    //等待写入的编码数据最多占用总内存预算的比例
+    private static final float WRITE_QUOTA_RATIO = 0.25f;
+    private static final ReceiverPolicy POLICY = new ReceiverPolicy(0, MAX_PENDING_FRAMES, ReceiverPolicy.DropPolicy.DROP_NEWEST, 0)
+            .withThreadPriority(ScreenThreads.PRIORITY_BACKGROUND);
+
+    private final File mOutputFile;
+    private final int mInterval;
+    private final long mDurationMs;
+    private final ICompleteCallback mCallback;
+    private ExecutorService mEncodeExecutor;
+    private ExecutorService mWriteExecutor;
+    private BurstContainer.Writer mWriter;
+    private final Semaphore mPendingFrames = new Semaphore(MAX_PENDING_FRAMES);
+    private final AtomicBoolean mStarted = new AtomicBoolean(false);
+    private final AtomicBoolean mStopped = new AtomicBoolean(false);
+    private final AtomicInteger mDroppedFrames = new AtomicInteger(0);
+    private int mInputFrames = 0;
+    private int mAcceptedFrames = 0;
+    private long mStartTs = -1;
+    //等待写入的编码数据记账, 为null时不限制
+    private FrameMemoryBudget.Account mWriteAccount;
+
+    public interface ICompleteCallback {
+        void onComplete(File outputFile, int frameCount, int droppedCount);
+    }
+
+    /**
+     * @param outputFile 容器文件
+     * @param interval   每N帧保存一帧, 1为保存所有帧
+     * @param durationMs 最长时长, 超出后自动停止, <=0 不限制
+     */
+    public ScreenBurstRecorder(File outputFile, int interval, long durationMs, ICompleteCallback callback) {
+        mOutputFile = outputFile;
+        mInterval = Math.max(1, interval);
+        mDurationMs = durationMs;
+        mCallback = callback;
+    }
+
+    /**
+     * 写入跟不上时 超出预算的帧直接丢弃, 需要在start之前调用
+     */
+    public void setMemoryBudget(FrameMemoryBudget budget) {
+        mWriteAccount = budget == null ? null : budget.openAccount("burst", WRITE_QUOTA_RATIO);
+    }
+
+    public void start(int width, int height) throws IOException {
+        mWriter = new BurstContainer.Writer(mOutputFile, width, height);
+        int threads = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+        mEncodeExecutor = Executors.newFixedThreadPool(threads,
+                ScreenThreads.factory(TAG + "-encode", ScreenThreads.PRIORITY_BACKGROUND));
+        mWriteExecutor = Executors.newSingleThreadExecutor(
+                ScreenThreads.factory(TAG + "-write", ScreenThreads.PRIORITY_BACKGROUND));
+        mStarted.set(true);
+        Log.d(TAG, "burst started, interval: " + mInterval + ", duration: " + mDurationMs + ", encoders: " + threads);
+    }
+
+    public boolean isRunning() {
+        return mStarted.get() && !mStopped.get();
+    }
+
+    public File getOutputFile() {
+        return mOutputFile;
+    }
+
+    public int getFrameCount() {
+        return mAcceptedFrames;
+    }
+
+    public int getDroppedCount() {
+        return mDroppedFrames.get();
+    }
+
+    /**
+     * 停止, 等待已接收的帧编码写入后关闭文件
+     */
+    public void stop() {
+        if (!mStarted.get() || !mStopped.compareAndSet(false, true)) {
+            return;
+        }
+        Log.d(TAG, "stopping burst");
+        ScreenThreads.start(TAG + "-finish", ScreenThreads.PRIORITY_BACKGROUND, new Runnable() {
+            @Override
+            public void run() {
+                finish();
+            }
+        });
+    }
+
+    private void finish() {
+        try {
+            mEncodeExecutor.shutdown();
+            mEncodeExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            mWriteExecutor.shutdown();
+            mWriteExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "wait burst finish interrupted");
+        }
+        if (mWriteAccount != null) {
+            mWriteAccount.close();
+        }
+        int frameCount = mWriter.getFrameCount();
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close burst container error", e);
+        }
+        Log.d(TAG, "burst complete, frames: " + frameCount + ", dropped: " + mDroppedFrames.get());
+        if (mCallback != null) {
+            mCallback.onComplete(mOutputFile, frameCount, mDroppedFrames.get());
+        }
+    }
+
+    @Override
+    public ReceiverPolicy getReceiverPolicy() {
+        return POLICY;
+    }
+
+    @Override
+    public void onFrame(SharedFrame frame) {
+        if (!isRunning()) {
+            return;
+        }
+        if (mStartTs < 0) {
+            mStartTs = frame.frameTs;
+        }
+        if (mDurationMs > 0 && (frame.frameTs - mStartTs) / 1000000 > mDurationMs) {
+            stop();
+            return;
+        }
+        if (mInputFrames++ % mInterval != 0) {
+            return;
+        }
+        if (!mPendingFrames.tryAcquire()) {
+            //编码跟不上 丢弃
+            mDroppedFrames.incrementAndGet();
+            return;
+        }
+        //共享帧只读, 持有引用直到编码完成 不需要copy
+        if (!frame.retain()) {
+            mPendingFrames.release();
+            return;
+        }
+        final int seq = mAcceptedFrames++;
+        try {
+            mEncodeExecutor.execute(new EncodeTask(seq, frame));
+        } catch (RejectedExecutionException e) {
+            //已停止
+            frame.release();
+            mPendingFrames.release();
+        }
+    }
+
+    private class EncodeTask implements Runnable {
+        private final int seq;
+        private final SharedFrame frame;
+
+        EncodeTask(int seq, SharedFrame frame) {
+            this.seq = seq;
+            this.frame = frame;
+        }
+
+        @Override
+        public void run() {
+            final byte[] png;
+            final long frameTs = frame.frameTs;
+            try {
+                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(frame.bitmap.getByteCount() / 4);
+                frame.bitmap.compress(Bitmap.CompressFormat.PNG, 100, byteArrayOutputStream);
+                png = byteArrayOutputStream.toByteArray();
+            } finally {
+                frame.release();
+                mPendingFrames.release();
+            }
+            final FrameMemoryBudget.Account account = mWriteAccount;
+            if (account != null && !account.tryAllocate(png.length)) {
+                //写入积压 丢弃
+                mDroppedFrames.incrementAndGet();
+                return;
+            }
+            mWriteExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mWriter.append(seq, frameTs, png);
+                    } catch (IOException e) {
+                        Log.e(TAG, "write frame error", e);
+                        mDroppedFrames.incrementAndGet();
+                    } finally {
+                        if (account != null) {
+                            account.free(png.length);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 导出容器中的单帧为png
+     *
+     * @param container 容器文件
+     * @param index     帧序号
+     * @param output    输出文件
+     */
+    public static void exportFrame(File container, int index, File output) throws IOException {
+        List<BurstContainer.FrameEntry> entries = BurstContainer.readIndex(container);
+        if (index < 0 || index >= entries.size()) {
+            throw new IOException("frame index out of range: " + index + ", count: " + entries.size());
+        }
+        byte[] data = BurstContainer.readFrame(container, entries.get(index));
+        FileOutputStream fos = new FileOutputStream(output);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+    }
+}
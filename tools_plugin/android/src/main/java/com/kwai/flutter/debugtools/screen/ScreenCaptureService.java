@@ -18,57 +18,313 @@ package com.kwai.flutter.debugtools.screen;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.PixelFormat;
-import android.hardware.display.DisplayManager;
-import android.hardware.display.VirtualDisplay;
-import android.media.Image;
-import android.media.ImageReader;
+import android.graphics.Rect;
 import android.media.projection.MediaProjection;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
-import android.view.Surface;
 
 
-import java.io.ByteArrayOutputStream;
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 屏幕图像抓取
+ * 帧来源默认为MediaProjection, 可以通过 {@link IFrameSource} 替换
  */
 public class ScreenCaptureService {
     private static final String TAG = "ScreenCaptureService";
-    private int mWidth;
-    private int mHeight;
+    //没有接收者后等待多久暂停抓取
+    private static final long IDLE_SUSPEND_DELAY_MS = 3000;
+    //超出内存预算时 延后多久再取帧
+    private static final long BUDGET_RETRY_DELAY_MS = 30;
+    //开始后第一帧的目标延迟, 超出时主动取帧
+    private static final long FIRST_FRAME_TARGET_MS = 500;
+    //感兴趣区域的最小宽高
+    private static final int MIN_REGION_SIZE = 64;
+    //释放时等待抓取线程退出的最长时间
+    private static final long RELEASE_TIMEOUT_MS = 1000;
+    //抓取线程中修改
+    private volatile int mWidth;
+    private volatile int mHeight;
     private int mDpi;
-    private MediaProjection mMediaProjection;
-    private Surface mSurface;
-    private VirtualDisplay mVirtualDisplay;
-
-    private ImageReader mImageReader;
+    //感兴趣区域 相对屏幕的比例 left, top, right, bottom, 为null时输出整个屏幕
+    private volatile float[] mRegion;
+    private final IFrameSource mSource;
+    //帧来源已开始, 抓取线程中修改
+    private boolean mSourceStarted = false;
     private HandlerThread mImageThread;
-    private final List<IScreenDataReceiver> mScreenDataReceivers = new ArrayList<>();
+    //抓取、分发、录制共用的内存预算, 多个屏幕的抓取可以共用一个
+    private final FrameMemoryBudget mMemoryBudget;
+    private final FrameMemoryBudget.Account mCaptureAccount;
+    private final ScreenFrameDispatcher mDispatcher;
     private IStateCallback mStateCallback;
     private FpsHelper mFpsHelper;
-    private Bitmap mLastCompressedBitmap;
+    //最后一帧
+    private SharedFrame mLastFrame;
+    private final Object mLastFrameLock = new Object();
+    //帧序号 每个抓取到的图像递增
+    private long mFrameId = 0;
+    private Handler mHandler;
+    //没有接收者时暂停帧来源输出
+    private volatile boolean mSuspended = false;
+    private final Runnable mSuspendTask = new Runnable() {
+        @Override
+        public void run() {
+            suspendCapture();
+        }
+    };
+    //降级控制设置的最大抓取帧率, <=0 不限制
+    private volatile int mMaxCaptureFps = 0;
+    private long mLastCaptureTs = -1;
+    //抓取线程消耗的cpu时间
+    private final AtomicLong mCaptureCpuNanos = new AtomicLong();
+    private final Runnable mAcquireTask = new Runnable() {
+        @Override
+        public void run() {
+            acquireFrame();
+        }
+    };
+    //启动耗时统计 单调时间 纳秒, 0表示还没有
+    private volatile long mStartNanos;
+    private volatile long mDisplayReadyNanos;
+    private volatile long mFirstFrameNanos;
+    private volatile boolean mFirstFrameRetried = false;
+    private final Runnable mFirstFrameCheckTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mFirstFrameNanos == 0) {
+                //没有收到图像回调 主动取一次
+                Log.w(TAG, "no frame in " + FIRST_FRAME_TARGET_MS + "ms, acquire directly");
+                mFirstFrameRetried = true;
+                acquireFrame();
+            }
+        }
+    };
+    private final Runnable mResumeTask = new Runnable() {
+        @Override
+        public void run() {
+            resumeCapture();
+        }
+    };
 
     public ScreenCaptureService(int width, int height, int dpi, MediaProjection mp) {
+        this(width, height, dpi, mp, true);
+    }
+
+    /**
+     * @param allowHardwareBuffer 是否允许在API 29以上使用HardwareBuffer零拷贝取帧
+     */
+    public ScreenCaptureService(int width, int height, int dpi, MediaProjection mp, boolean allowHardwareBuffer) {
+        this(width, height, dpi, mp, allowHardwareBuffer, new FrameMemoryBudget());
+    }
+
+    /**
+     * @param budget 和其他屏幕的抓取共用的内存预算
+     */
+    public ScreenCaptureService(int width, int height, int dpi, MediaProjection mp, boolean allowHardwareBuffer,
+                                FrameMemoryBudget budget) {
+        this(width, height, dpi, new ProjectionFrameSource(mp, allowHardwareBuffer), budget, "");
+    }
+
+    /**
+     * @param source 帧来源, 可以替换为合成的帧用于没有授权时测试整个分发流程
+     */
+    public ScreenCaptureService(int width, int height, int dpi, IFrameSource source) {
+        this(width, height, dpi, source, new FrameMemoryBudget(), "");
+    }
+
+    /**
+     * @param budget 和其他抓取共用的内存预算
+     * @param name   区分共用预算中各抓取的记账名称, 可以为空
+     */
+    public ScreenCaptureService(int width, int height, int dpi, IFrameSource source, FrameMemoryBudget budget,
+                                String name) {
+        mSource = source;
+        mMemoryBudget = budget;
+        String prefix = name == null || name.isEmpty() ? "" : name + "-";
+        mCaptureAccount = budget.openAccount(prefix + "capture", 1f);
+        mDispatcher = new ScreenFrameDispatcher(budget, prefix);
         mWidth = width;
         mHeight = height;
         mDpi = dpi;
-        mMediaProjection = mp;
         mFpsHelper = new FpsHelper("ImageInput");
     }
 
-    public void addScreenDataReceiver(IScreenDataReceiver receiver) {
-        if (!mScreenDataReceivers.contains(receiver)) {
-            mScreenDataReceivers.add(receiver);
+    /**
+     * 添加接收者, 按接收者声明的策略在其自己的线程中分发, 可以在任意线程调用
+     */
+    public void addScreenDataReceiver(final IScreenDataReceiver receiver) {
+        mDispatcher.register(receiver);
+        onReceiverChanged();
+        Handler handler = mHandler;
+        if (handler != null && receiver.getReceiverPolicy().replayLastFrame) {
+            //入队只在抓取线程中进行
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    replayLastFrame(receiver);
+                }
+            });
         }
     }
 
+    /**
+     * 移除接收者, 返回后不会再收到回调
+     */
     public void removeScreenDataReceiver(IScreenDataReceiver receiver) {
-        mScreenDataReceivers.remove(receiver);
+        mDispatcher.unregister(receiver);
+        onReceiverChanged();
+    }
+
+    /**
+     * 限制抓取帧率, 超出的图像留在ImageReader中, 到时间后只取最新的一张
+     *
+     * @param fps <=0 不限制
+     */
+    public void setMaxCaptureFps(int fps) {
+        mMaxCaptureFps = fps;
+    }
+
+    /**
+     * 抓取线程和接收者线程处理帧消耗的cpu时间 纳秒
+     */
+    public long getCpuTimeNanos() {
+        return mCaptureCpuNanos.get() + mDispatcher.getCpuTimeNanos();
+    }
+
+    /**
+     * 接收者处理帧的总耗时 纳秒
+     */
+    public long getProcessTimeNanos() {
+        return mDispatcher.getProcessTimeNanos();
+    }
+
+    /**
+     * 接收者已处理的帧数
+     */
+    public long getProcessedFrames() {
+        return mDispatcher.getDeliveredCount();
+    }
+
+    /**
+     * 屏幕旋转、折叠屏展开或分屏后调整抓取尺寸, 不需要重新授权
+     * 在抓取线程中立即替换ImageReader并调整VirtualDisplay, 之后的帧为新尺寸
+     */
+    public void resize(final int width, final int height, final int dpi) {
+        Handler handler = mHandler;
+        if (handler == null) {
+            return;
+        }
+        handler.postAtFrontOfQueue(new Runnable() {
+            @Override
+            public void run() {
+                resizeCapture(width, height, dpi);
+            }
+        });
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * 只输出屏幕中的一个区域, 预览、录制和连拍都只处理这个区域
+     * 区域按比例保存, 抓取尺寸变化后自动换算
+     *
+     * @param region 相对屏幕的比例 left, top, right, bottom, null为整个屏幕
+     */
+    public void setRegion(float[] region) {
+        mRegion = region == null ? null : region.clone();
+        Handler handler = mHandler;
+        if (handler != null) {
+            handler.postAtFrontOfQueue(new Runnable() {
+                @Override
+                public void run() {
+                    applyRegion();
+                }
+            });
+        }
+    }
+
+    public float[] getRegion() {
+        float[] region = mRegion;
+        return region == null ? null : region.clone();
+    }
+
+    /**
+     * 输出帧的宽度, 有感兴趣区域时为区域宽度
+     */
+    public int getOutputWidth() {
+        Rect rect = computeRegion(mRegion, mWidth, mHeight);
+        return rect == null ? mWidth : rect.width();
+    }
+
+    /**
+     * 输出帧的高度, 有感兴趣区域时为区域高度
+     */
+    public int getOutputHeight() {
+        Rect rect = computeRegion(mRegion, mWidth, mHeight);
+        return rect == null ? mHeight : rect.height();
+    }
+
+    /**
+     * 比例换算为像素区域, 宽高对齐到偶数 方便视频编码
+     *
+     * @return 整个屏幕时返回null
+     */
+    static Rect computeRegion(float[] region, int width, int height) {
+        if (region == null || region.length < 4) {
+            return null;
+        }
+        int left = clamp(Math.round(region[0] * width), 0, width);
+        int top = clamp(Math.round(region[1] * height), 0, height);
+        int right = clamp(Math.round(region[2] * width), left, width);
+        int bottom = clamp(Math.round(region[3] * height), top, height);
+        //太小的区域编码器不支持
+        int regionWidth = Math.max(MIN_REGION_SIZE, (right - left) & ~1);
+        int regionHeight = Math.max(MIN_REGION_SIZE, (bottom - top) & ~1);
+        regionWidth = Math.min(regionWidth, width & ~1);
+        regionHeight = Math.min(regionHeight, height & ~1);
+        left = Math.min(left, width - regionWidth);
+        top = Math.min(top, height - regionHeight);
+        if (left == 0 && top == 0 && regionWidth >= (width & ~1) && regionHeight >= (height & ~1)) {
+            return null;
+        }
+        return new Rect(left, top, left + regionWidth, top + regionHeight);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * 内存预算, 接收者可以在其中记录自己额外占用的内存
+     */
+    public FrameMemoryBudget getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    /**
+     * 是否因为没有接收者暂停了抓取
+     */
+    public boolean isSuspended() {
+        return mSuspended;
+    }
+
+    /**
+     * 各接收者的分发统计
+     */
+    public List<Map<String, Object>> getReceiverStats() {
+        return mDispatcher.getStats();
     }
 
     public void setStateCallback(IStateCallback callback) {
@@ -80,123 +336,312 @@ public class ScreenCaptureService {
     }
 
     public final boolean isRunning() {
-        return mImageThread != null && mImageThread.isAlive();
+        if (mImageThread != null) {
+            return mImageThread.isAlive();
+        }
+        return mHandler != null;
+    }
+
+    /**
+     * 当前使用的取帧方式
+     */
+    public String getBackendName() {
+        return mSource.getName();
     }
 
     public Bitmap getLastCompressedBitmap() {
-        if (mLastCompressedBitmap != null) {
-            return mLastCompressedBitmap.copy(Bitmap.Config.ARGB_8888, true);
+        SharedFrame frame = null;
+        synchronized (mLastFrameLock) {
+            if (mLastFrame != null && mLastFrame.retain()) {
+                frame = mLastFrame;
+            }
+        }
+        if (frame == null) {
+            return null;
         }
-        return null;
+        try {
+            return frame.bitmap.copy(Bitmap.Config.ARGB_8888, true);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * 启动耗时, 各项为距离start的毫秒数, 还没有发生时为-1
+     */
+    public Map<String, Object> getStartupMetrics() {
+        Map<String, Object> map = new HashMap<>();
+        long firstDeliverNanos = mDispatcher.getFirstDeliverNanos();
+        long firstDeliverMs = sinceStartMillis(firstDeliverNanos);
+        map.put("targetMs", FIRST_FRAME_TARGET_MS);
+        map.put("displayMs", sinceStartMillis(mDisplayReadyNanos));
+        map.put("firstFrameMs", sinceStartMillis(mFirstFrameNanos));
+        map.put("firstDeliverMs", firstDeliverMs);
+        map.put("retried", mFirstFrameRetried);
+        map.put("withinTarget", firstDeliverMs >= 0 && firstDeliverMs <= FIRST_FRAME_TARGET_MS);
+        return map;
+    }
+
+    private long sinceStartMillis(long nanos) {
+        long start = mStartNanos;
+        return start == 0 || nanos == 0 ? -1 : (nanos - start) / 1000000;
     }
 
     public void start(Context context) {
+        //直接在抓取线程中初始化, 不再额外创建线程
+        mImageThread = ScreenThreads.startHandlerThread(TAG, ScreenThreads.PRIORITY_CAPTURE);
+        start(context, mImageThread.getLooper());
+    }
+
+    /**
+     * 在指定线程中抓取, 多个屏幕的抓取共用一个线程, 结束时不会退出该线程
+     */
+    public void start(Context context, Looper looper) {
         //todo 需要一个前台service保活,但是需要引入权限android.Manifest.permission.FOREGROUND_SERVICE,考虑考虑
-        new Thread() {
+        mStartNanos = FrameClock.nowNanos();
+        final Handler handler = new Handler(looper);
+        mHandler = handler;
+        handler.post(new Runnable() {
             @Override
             public void run() {
-                mImageReader = ImageReader.newInstance(mWidth, mHeight, PixelFormat.RGBA_8888, 2);
-                mSurface = mImageReader.getSurface();
-                mImageThread = new HandlerThread(TAG + "-handler");
-                mImageThread.start();
-                Handler handler = new Handler(mImageThread.getLooper());
-                mVirtualDisplay = mMediaProjection.createVirtualDisplay(TAG + "-display", mWidth, mHeight, mDpi,
-                        DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC, mSurface, null, handler);
-                Log.d(TAG, "created virtual display: " + mVirtualDisplay);
-                mImageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
-                    @Override
-                    public void onImageAvailable(ImageReader imageReader) {
-                        try {
-                            //获取最新图
-                            Image img = imageReader.acquireLatestImage();
-                            if (img != null) {
-//                        Log.d(TAG, "onImageAvailable");
-                                mFpsHelper.addFrame();
-                                long ts = System.currentTimeMillis();
-                                for (IScreenDataReceiver receiver : mScreenDataReceivers) {
-                                    receiver.onImageAvailable(ts, img);
-                                }
-
-                                int width = img.getWidth();
-                                int height = img.getHeight();
-                                Image.Plane[] planes = img.getPlanes();
-                                int pixelStride = planes[0].getPixelStride();
-                                int rowStride = planes[0].getRowStride();
-                                int rowPadding = rowStride - pixelStride * width;
-                                //读取到rawBitmap 宽度右边会有一个padding
-                                Bitmap rawBitmap = Bitmap.createBitmap(width + rowPadding / pixelStride, height, Bitmap.Config.ARGB_8888);
-                                rawBitmap.copyPixelsFromBuffer(planes[0].getBuffer());
-                                //关闭img
-                                img.close();
-
-                                for (IScreenDataReceiver receiver : mScreenDataReceivers) {
-                                    receiver.onRawBitmap(ts, width, height, rawBitmap);
-                                }
-
-                                //生成没有padding的图片
-                                Bitmap compressedBitmap = Bitmap.createBitmap(rawBitmap, 0, 0, width, height);
-                                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                                compressedBitmap.compress(Bitmap.CompressFormat.JPEG, 100, byteArrayOutputStream);
-                                //回收rawBitmap
-                                rawBitmap.recycle();
-
-                                for (IScreenDataReceiver receiver : mScreenDataReceivers) {
-                                    receiver.onCompressedBitmap(ts, compressedBitmap);
-                                }
-                                if (mLastCompressedBitmap != null) {
-                                    //回收compressedBitmap
-                                    mLastCompressedBitmap.recycle();
-                                }
-                                //保留最后一帧
-                                mLastCompressedBitmap = compressedBitmap;
-                                //这边的处理基本上在20ms左右
-                        //Log.d(TAG, "process image cost: " + (System.currentTimeMillis() - ts));
-                                mFpsHelper.print();
-                            }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }, handler);
+                applyRegion();
+                mSource.start(mWidth, mHeight, mDpi, handler, mAcquireTask);
+                mSourceStarted = true;
+                mDisplayReadyNanos = FrameClock.nowNanos();
+                Log.d(TAG, "frame source " + mSource.getName() + " started, cost: "
+                        + sinceStartMillis(mDisplayReadyNanos) + "ms");
+                handler.postDelayed(mFirstFrameCheckTask, FIRST_FRAME_TARGET_MS);
+                //启动时可能还没有接收者
+                onReceiverChanged();
             }
-        }.start();
+        });
     }
 
-    private void release() {
-        if (mStateCallback != null) {
-            mStateCallback.onRelease();
+    //接收者变化时调用, 没有接收者一段时间后暂停, 有接收者时立即恢复
+    private void onReceiverChanged() {
+        Handler handler = mHandler;
+        if (handler == null) {
+            return;
         }
+        handler.removeCallbacks(mSuspendTask);
+        handler.removeCallbacks(mResumeTask);
+        if (mDispatcher.getReceiverCount() > 0) {
+            if (mSuspended) {
+                handler.postAtFrontOfQueue(mResumeTask);
+            }
+        } else {
+            handler.postDelayed(mSuspendTask, IDLE_SUSPEND_DELAY_MS);
+        }
+    }
 
-        mScreenDataReceivers.clear();
+    //在抓取线程中调用
+    private void suspendCapture() {
+        if (mSuspended || !mSourceStarted || mDispatcher.getReceiverCount() > 0) {
+            return;
+        }
+        mSource.setSuspended(true);
+        mSuspended = true;
+        Log.d(TAG, "no receiver, capture suspended");
+    }
+
+    //在抓取线程中调用
+    private void resumeCapture() {
+        if (!mSuspended || !mSourceStarted) {
+            return;
+        }
+        mSource.setSuspended(false);
+        mSuspended = false;
+        Log.d(TAG, "capture resumed");
+    }
+
+    //在抓取线程中调用
+    private void applyRegion() {
+        Rect rect = computeRegion(mRegion, mWidth, mHeight);
+        mSource.setRegion(rect);
+        Log.d(TAG, "capture region: " + (rect == null ? "full" : rect.toShortString()));
+    }
 
-        if (mImageReader != null) {
-            mImageReader.close();
-            mImageReader = null;
+    //在抓取线程中调用
+    private void replayLastFrame(IScreenDataReceiver receiver) {
+        SharedFrame frame = null;
+        synchronized (mLastFrameLock) {
+            if (mLastFrame != null && mLastFrame.retain()) {
+                frame = mLastFrame;
+            }
         }
-        if (mVirtualDisplay != null) {
-            mVirtualDisplay.release();
+        if (frame != null) {
+            mDispatcher.dispatchTo(receiver, frame);
+            frame.release();
         }
-        if (mMediaProjection != null) {
-            mMediaProjection.stop();
+    }
+
+    //在抓取线程中调用
+    private void resizeCapture(int width, int height, int dpi) {
+        if (!mSourceStarted || (width == mWidth && height == mHeight && dpi == mDpi)) {
+            return;
         }
+        long start = FrameClock.nowNanos();
+        mWidth = width;
+        mHeight = height;
+        mDpi = dpi;
+        mSource.resize(width, height, dpi);
+        applyRegion();
+        //尺寸变化后不再按帧率延后, 尽快输出新尺寸的帧
+        mLastCaptureTs = -1;
+        Log.d(TAG, "capture resized to " + width + "x" + height + ", dpi: " + dpi
+                + ", cost: " + FrameClock.elapsedMillis(start) + "ms");
+    }
+
+    //在抓取线程中调用
+    private void acquireFrame() {
+        Handler handler = mHandler;
+        if (!mSourceStarted || handler == null) {
+            return;
+        }
+        int maxFps = mMaxCaptureFps;
+        if (maxFps > 0 && mLastCaptureTs >= 0) {
+            long waitNanos = 1000000000L / maxFps - (FrameClock.nowNanos() - mLastCaptureTs);
+            if (waitNanos > 0) {
+                //不丢弃 延后取最新的一张, 避免画面停在旧帧
+                handler.removeCallbacks(mAcquireTask);
+                handler.postDelayed(mAcquireTask, Math.max(1, waitNanos / 1000000));
+                return;
+            }
+        }
+        //超出预算时图像留在帧来源中, 等有帧回收后取最新的一张
+        //有感兴趣区域时按裁剪后的大小记账
+        Rect region = computeRegion(mRegion, mWidth, mHeight);
+        long frameBytes = region == null ? (long) mWidth * mHeight * 4 : (long) region.width() * region.height() * 4;
+        if (!mCaptureAccount.tryAllocate(frameBytes)) {
+            handler.removeCallbacks(mAcquireTask);
+            handler.postDelayed(mAcquireTask, BUDGET_RETRY_DELAY_MS);
+            return;
+        }
+        boolean charged = false;
+        long cpuStart = Debug.threadCpuTimeNanos();
+        try {
+            SharedFrame frame = mSource.acquireLatestFrame(mFrameId + 1);
+            if (frame == null) {
+                return;
+            }
+            frame.attachBudget(mCaptureAccount, frameBytes);
+            charged = true;
+            if (mFirstFrameNanos == 0) {
+                mFirstFrameNanos = FrameClock.nowNanos();
+                Log.d(TAG, "first frame cost: " + sinceStartMillis(mFirstFrameNanos) + "ms");
+            }
+            mLastCaptureTs = FrameClock.nowNanos();
+//            Log.d(TAG, "onImageAvailable");
+            mFpsHelper.addFrame();
+            mFrameId = frame.frameId;
+            //只入队, 接收者在各自线程中处理
+            mDispatcher.dispatch(frame);
+            //保留最后一帧, 原有引用转给mLastFrame
+            SharedFrame lastFrame;
+            synchronized (mLastFrameLock) {
+                lastFrame = mLastFrame;
+                mLastFrame = frame;
+            }
+            if (lastFrame != null) {
+                lastFrame.release();
+            }
+            //拷贝方式处理基本上在20ms左右
+            //Log.d(TAG, "process image cost: " + FrameClock.elapsedMillis(frame.frameTs));
+            mFpsHelper.print();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (!charged) {
+                mCaptureAccount.free(frameBytes);
+            }
+            mCaptureCpuNanos.addAndGet(Debug.threadCpuTimeNanos() - cpuStart);
+        }
+    }
+
+    private void release() {
+        if (mStateCallback != null) {
+            mStateCallback.onRelease();
+        }
+
+        mDispatcher.release();
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mSuspendTask);
+            mHandler.removeCallbacks(mResumeTask);
+            mHandler.removeCallbacks(mAcquireTask);
+            mHandler.removeCallbacks(mFirstFrameCheckTask);
+            mHandler = null;
+        }
+
+        mSource.release();
         if (mImageThread != null) {
             mImageThread.quit();
+            //release可能在抓取线程中调用, 此时join直接返回
+            ScreenThreads.join(mImageThread, RELEASE_TIMEOUT_MS);
             mImageThread = null;
         }
-        if (mLastCompressedBitmap != null && !mLastCompressedBitmap.isRecycled()) {
-            //回收compressedBitmap
-            mLastCompressedBitmap.recycle();
-            mLastCompressedBitmap = null;
+        //帧回收时仍会归还 关闭只影响统计
+        mCaptureAccount.close();
+        synchronized (mLastFrameLock) {
+            if (mLastFrame != null) {
+                mLastFrame.release();
+                mLastFrame = null;
+            }
         }
     }
 
 
+    /**
+     * 帧数据接收
+     */
     interface IScreenDataReceiver {
-        void onImageAvailable(long frameTs, Image image);
+        /**
+         * 分发策略, 注册时读取一次
+         */
+        ReceiverPolicy getReceiverPolicy();
+
+        /**
+         * 在接收者自己的分发线程中回调
+         * frame为多个接收者共享的只读帧, 回调结束后还要使用时需要retain, 用完后release
+         */
+        void onFrame(SharedFrame frame);
+    }
+
+    /**
+     * 帧来源, 除了getName都在抓取线程中调用
+     */
+    public interface IFrameSource {
+        String getName();
+
+        /**
+         * 开始产生图像, 有新图像时在抓取线程中调用onFrameAvailable
+         */
+        void start(int width, int height, int dpi, Handler handler, Runnable onFrameAvailable);
+
+        /**
+         * 取最新的一帧
+         *
+         * @return 没有新图像时返回null
+         */
+        SharedFrame acquireLatestFrame(long frameId);
+
+        /**
+         * 调整尺寸, 之后的帧为新尺寸
+         */
+        void resize(int width, int height, int dpi);
+
+        /**
+         * 只输出一个区域
+         *
+         * @param region 已限制在图像范围内, null为整个图像
+         */
+        void setRegion(Rect region);
 
-        void onRawBitmap(long frameTs, int imgWidth, int imgHeight, Bitmap rawBitmap);
+        /**
+         * 没有接收者时暂停产生图像
+         */
+        void setSuspended(boolean suspended);
 
-        void onCompressedBitmap(long frameTs, Bitmap bitmap);
+        void release();
     }
 
     public interface IStateCallback {
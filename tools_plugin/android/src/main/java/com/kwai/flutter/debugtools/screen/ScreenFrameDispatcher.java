@@ -0,0 +1,429 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kwai.flutter.debugtools.screen;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 帧分发
+ * <p>
+ * 每个接收者有自己的有界队列和线程, 抓取线程只负责入队, 慢的接收者只会丢自己的帧, 不影响抓取和其他接收者
+ * 接收者列表为copy-on-write, 可以在任意线程增删
+ */
+public class ScreenFrameDispatcher {
+    private static final String TAG = "ScreenFrameDispatcher";
+    //移除接收者时等待当前回调结束的最长时间
+    private static final long QUIT_TIMEOUT_MS = 1000;
+    //每个接收者队列最多占用总内存预算的比例
+    private static final float RECEIVER_QUOTA_RATIO = 0.5f;
+
+    private final List<ReceiverWorker> mWorkers = new CopyOnWriteArrayList<>();
+    private final AtomicLong mRemovedCpuNanos = new AtomicLong();
+    private final AtomicLong mRemovedProcessNanos = new AtomicLong();
+    private final AtomicLong mRemovedDelivered = new AtomicLong();
+    private final FrameMemoryBudget mBudget;
+    //共用内存预算时区分各抓取的记账名称
+    private final String mAccountPrefix;
+    //第一次回调任意接收者的单调时间 纳秒, 0表示还没有
+    private final AtomicLong mFirstDeliverNanos = new AtomicLong();
+
+    public ScreenFrameDispatcher(FrameMemoryBudget budget) {
+        this(budget, "");
+    }
+
+    /**
+     * @param accountPrefix 共用内存预算时区分各抓取的记账名称前缀
+     */
+    public ScreenFrameDispatcher(FrameMemoryBudget budget, String accountPrefix) {
+        mBudget = budget;
+        mAccountPrefix = accountPrefix;
+    }
+
+    public synchronized void register(ScreenCaptureService.IScreenDataReceiver receiver) {
+        if (findWorker(receiver) != null) {
+            return;
+        }
+        ReceiverWorker worker = new ReceiverWorker(receiver, receiver.getReceiverPolicy(),
+                mBudget.openAccount(mAccountPrefix + "queue-" + receiver.getClass().getSimpleName(), RECEIVER_QUOTA_RATIO),
+                mFirstDeliverNanos);
+        worker.start();
+        mWorkers.add(worker);
+        Log.d(TAG, "register " + worker.getName() + ", " + worker.policy);
+    }
+
+    /**
+     * 移除接收者, 会等待其当前回调结束, 之后不会再收到回调
+     */
+    public void unregister(ScreenCaptureService.IScreenDataReceiver receiver) {
+        ReceiverWorker worker;
+        synchronized (this) {
+            worker = findWorker(receiver);
+            if (worker == null) {
+                return;
+            }
+            mWorkers.remove(worker);
+        }
+        worker.quit(QUIT_TIMEOUT_MS);
+        accumulateRemoved(worker);
+    }
+
+    /**
+     * 在抓取线程中调用, 只做入队
+     */
+    public void dispatch(SharedFrame frame) {
+        for (ReceiverWorker worker : mWorkers) {
+            worker.offer(frame);
+        }
+    }
+
+    /**
+     * 只给一个接收者分发, 用于补发最后一帧, 在抓取线程中调用
+     */
+    public void dispatchTo(ScreenCaptureService.IScreenDataReceiver receiver, SharedFrame frame) {
+        ReceiverWorker worker = findWorker(receiver);
+        if (worker != null) {
+            worker.offer(frame);
+        }
+    }
+
+    /**
+     * 第一次回调接收者的单调时间 纳秒, 还没有时返回0
+     */
+    public long getFirstDeliverNanos() {
+        return mFirstDeliverNanos.get();
+    }
+
+    public int getReceiverCount() {
+        return mWorkers.size();
+    }
+
+    public void release() {
+        List<ReceiverWorker> workers;
+        synchronized (this) {
+            workers = new ArrayList<>(mWorkers);
+            mWorkers.clear();
+        }
+        for (ReceiverWorker worker : workers) {
+            worker.quit(QUIT_TIMEOUT_MS);
+            accumulateRemoved(worker);
+        }
+    }
+
+    /**
+     * 各接收者的统计信息
+     */
+    public List<Map<String, Object>> getStats() {
+        List<Map<String, Object>> stats = new ArrayList<>();
+        for (ReceiverWorker worker : mWorkers) {
+            Map<String, Object> map = new HashMap<>();
+            map.put("name", worker.getName());
+            map.put("delivered", worker.delivered.get());
+            map.put("dropped", worker.dropped.get());
+            map.put("skipped", worker.skipped.get());
+            map.put("queue", worker.queue.size());
+            map.put("queueBytes", worker.account.getUsedBytes());
+            long delivered = worker.delivered.get();
+            map.put("latencyAvgMs", delivered > 0 ? worker.latencyNanos.get() / delivered / 1000000 : 0);
+            map.put("latencyMaxMs", worker.maxLatencyNanos.get() / 1000000);
+            stats.add(map);
+        }
+        return stats;
+    }
+
+    /**
+     * 所有接收者处理帧消耗的线程cpu时间 纳秒, 只增不减(移除的接收者也计入)
+     */
+    public long getCpuTimeNanos() {
+        long total = mRemovedCpuNanos.get();
+        for (ReceiverWorker worker : mWorkers) {
+            total += worker.cpuNanos.get();
+        }
+        return total;
+    }
+
+    /**
+     * 所有接收者处理帧的耗时 纳秒, 只增不减
+     */
+    public long getProcessTimeNanos() {
+        long total = mRemovedProcessNanos.get();
+        for (ReceiverWorker worker : mWorkers) {
+            total += worker.processNanos.get();
+        }
+        return total;
+    }
+
+    /**
+     * 所有接收者已处理的帧数, 只增不减
+     */
+    public long getDeliveredCount() {
+        long total = mRemovedDelivered.get();
+        for (ReceiverWorker worker : mWorkers) {
+            total += worker.delivered.get();
+        }
+        return total;
+    }
+
+    //移除的接收者的统计累加到这里 保证总数单调
+    private void accumulateRemoved(ReceiverWorker worker) {
+        mRemovedCpuNanos.addAndGet(worker.cpuNanos.get());
+        mRemovedProcessNanos.addAndGet(worker.processNanos.get());
+        mRemovedDelivered.addAndGet(worker.delivered.get());
+    }
+
+    private ReceiverWorker findWorker(ScreenCaptureService.IScreenDataReceiver receiver) {
+        for (ReceiverWorker worker : mWorkers) {
+            if (worker.receiver == receiver) {
+                return worker;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 单个接收者的队列和线程
+     */
+    static class ReceiverWorker {
+        final ScreenCaptureService.IScreenDataReceiver receiver;
+        final ReceiverPolicy policy;
+        final BlockingQueue<SharedFrame> queue;
+        //已回调
+        final AtomicLong delivered = new AtomicLong();
+        //队列满或者超时丢弃
+        final AtomicLong dropped = new AtomicLong();
+        //超出帧率跳过
+        final AtomicLong skipped = new AtomicLong();
+        //队列中的帧占用的内存配额
+        final FrameMemoryBudget.Account account;
+        //所有接收者共享 记录第一次回调的时间
+        private final AtomicLong mFirstDeliverNanos;
+        //回调消耗的线程cpu时间
+        final AtomicLong cpuNanos = new AtomicLong();
+        //回调耗时
+        final AtomicLong processNanos = new AtomicLong();
+        //从抓取到开始回调的延迟
+        final AtomicLong latencyNanos = new AtomicLong();
+        final AtomicLong maxLatencyNanos = new AtomicLong();
+        private final long mMinIntervalNs;
+        private long mLastAcceptTs = -1;
+        private volatile boolean mQuit = false;
+        private Thread mThread;
+
+        ReceiverWorker(ScreenCaptureService.IScreenDataReceiver receiver, ReceiverPolicy policy,
+                       FrameMemoryBudget.Account account, AtomicLong firstDeliverNanos) {
+            this.receiver = receiver;
+            this.policy = policy;
+            this.account = account;
+            mFirstDeliverNanos = firstDeliverNanos;
+            this.queue = new ArrayBlockingQueue<>(policy.queueSize);
+            mMinIntervalNs = policy.maxFps > 0 ? 1000000000L / policy.maxFps : 0;
+        }
+
+        String getName() {
+            return receiver.getClass().getSimpleName();
+        }
+
+        void start() {
+            mThread = ScreenThreads.start(TAG + "-" + getName(), policy.threadPriority, new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            });
+        }
+
+        //唤醒空闲的分发线程, 不使用interrupt避免打断接收者中的io
+        private void wakeUp() {
+            Thread thread = mThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        /**
+         * 抓取线程中调用
+         */
+        void offer(SharedFrame frame) {
+            if (mQuit) {
+                return;
+            }
+            if (mMinIntervalNs > 0 && mLastAcceptTs >= 0 && frame.frameTs - mLastAcceptTs < mMinIntervalNs) {
+                skipped.incrementAndGet();
+                return;
+            }
+            if (!frame.retain()) {
+                return;
+            }
+            mLastAcceptTs = frame.frameTs;
+            long bytes = frame.getByteCount();
+            if (policy.dropPolicy == ReceiverPolicy.DropPolicy.DROP_NEWEST) {
+                //队列满或者超出内存配额 都丢弃新帧
+                if (!account.tryHold(bytes)) {
+                    frame.release();
+                    dropped.incrementAndGet();
+                    return;
+                }
+                if (!queue.offer(frame)) {
+                    account.unhold(bytes);
+                    frame.release();
+                    dropped.incrementAndGet();
+                    return;
+                }
+                onEnqueued();
+                return;
+            }
+            //超出内存配额时丢弃旧帧, 队列空了仍超出说明单帧就超出配额, 只能丢弃新帧
+            while (!account.tryHold(bytes)) {
+                if (!dropOldest()) {
+                    frame.release();
+                    dropped.incrementAndGet();
+                    return;
+                }
+            }
+            //只有抓取线程入队 这里不会一直循环
+            while (!queue.offer(frame)) {
+                dropOldest();
+            }
+            onEnqueued();
+        }
+
+        /**
+         * 入队后再检查一次退出标记
+         * quit在设置标记后清空队列, 入队在检查标记之后, 两者交错时由这里清空, 否则帧和配额不会归还
+         */
+        private void onEnqueued() {
+            if (mQuit) {
+                releaseQueued();
+                return;
+            }
+            wakeUp();
+        }
+
+        //清空队列, 释放帧并归还配额
+        private void releaseQueued() {
+            SharedFrame frame;
+            while ((frame = poll()) != null) {
+                frame.release();
+            }
+        }
+
+        //出队并归还内存配额
+        private SharedFrame poll() {
+            SharedFrame frame = queue.poll();
+            if (frame != null) {
+                account.unhold(frame.getByteCount());
+            }
+            return frame;
+        }
+
+        private boolean dropOldest() {
+            SharedFrame oldest = poll();
+            if (oldest == null) {
+                return false;
+            }
+            oldest.release();
+            dropped.incrementAndGet();
+            return true;
+        }
+
+        void quit(long timeoutMs) {
+            mQuit = true;
+            wakeUp();
+            if (mThread != null && mThread != Thread.currentThread()
+                    && !ScreenThreads.join(mThread, timeoutMs)) {
+                Log.w(TAG, "wait " + getName() + " quit timeout");
+            }
+            //抓取线程之后入队的帧在onEnqueued中释放
+            releaseQueued();
+            account.close();
+        }
+
+        private void loop() {
+            try {
+                while (!mQuit) {
+                    SharedFrame frame = queue.poll();
+                    if (frame == null) {
+                        //入队和退出时unpark, park可能提前返回 重新检查即可
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    account.unhold(frame.getByteCount());
+                    try {
+                        if (mQuit) {
+                            break;
+                        }
+                        //最大延迟控制, 有更新的帧时丢弃旧帧
+                        if (policy.maxDelayMs > 0 && !queue.isEmpty()
+                                && FrameClock.elapsedMillis(frame.frameTs) > policy.maxDelayMs) {
+                            dropped.incrementAndGet();
+                            continue;
+                        }
+                        long cpuStart = Debug.threadCpuTimeNanos();
+                        long start = FrameClock.nowNanos();
+                        long latency = start - frame.frameTs;
+                        latencyNanos.addAndGet(latency);
+                        if (latency > maxLatencyNanos.get()) {
+                            //只有本线程写入
+                            maxLatencyNanos.set(latency);
+                        }
+                        deliver(frame);
+                        long end = FrameClock.nowNanos();
+                        processNanos.addAndGet(end - start);
+                        mFirstDeliverNanos.compareAndSet(0, end);
+                        cpuNanos.addAndGet(Debug.threadCpuTimeNanos() - cpuStart);
+                    } catch (Exception e) {
+                        Log.e(TAG, getName() + " process frame error", e);
+                    } finally {
+                        frame.release();
+                    }
+                }
+            } finally {
+                releaseQueued();
+            }
+        }
+
+        private void deliver(SharedFrame frame) {
+            if (policy.acceptsHardwareBitmap || !frame.isHardware()) {
+                receiver.onFrame(frame);
+                delivered.incrementAndGet();
+                return;
+            }
+            //在接收者自己的线程转换 只有真正处理的帧才会拷贝
+            SharedFrame software = frame.acquireSoftwareFrame();
+            if (software == null) {
+                dropped.incrementAndGet();
+                return;
+            }
+            try {
+                receiver.onFrame(software);
+                delivered.incrementAndGet();
+            } finally {
+                software.release();
+            }
+        }
+    }
+}
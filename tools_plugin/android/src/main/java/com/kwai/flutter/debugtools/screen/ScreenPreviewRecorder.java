@@ -17,20 +17,21 @@
 package com.kwai.flutter.debugtools.screen;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.media.Image;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.os.Bundle;
 import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CountDownLatch;
+import java.util.Map;
 
 /**
  * 将屏幕bitmap保存为mp4
@@ -38,115 +39,245 @@ import java.util.concurrent.CountDownLatch;
 public class ScreenPreviewRecorder implements ScreenCaptureService.IScreenDataReceiver {
     private static final String TAG = "ScreenPreviewRecorder";
 
+    //分发策略 录制需要尽量连续的帧, 队列满时丢弃新帧
+    private static final ReceiverPolicy POLICY = new ReceiverPolicy(0, 3, ReceiverPolicy.DropPolicy.DROP_NEWEST, 0);
+
     private ICompleteCallback mCallback;
-    private File mOutputFile;
-    private Queue<FrameInfo> mEncodeQueue = new ConcurrentLinkedQueue<>();
+    private RecordingSink mSink;
     private MediaCodec mediaCodec;
-    private MediaMuxer mediaMuxer;
-
-    private Object mFrameSync = new Object();
-    private CountDownLatch mNewFrameLatch;
+    //编码器输入的颜色格式, Flexible时通过getInputImage写入
+    private int mInputColorFormat;
 
-    private static final String MIME_TYPE = "video/avc";
+    //输入(分发线程)和结束信号(stop)互斥
+    private final Object mInputLock = new Object();
 
-    private static final int FRAME_RATE = 30;
-    private static final int I_FRAME_INTERVAL = 5;
     private static final int TIMEOUT_US = 10000;
+    //结束后最长等待编码器输出的时间
+    private static final long DRAIN_TIMEOUT_MS = 2000;
+    private final RecordConfig mConfig;
     private int mBitRate;
+    //降级控制设置的码率系数
+    private volatile float mBitrateFactor = 1f;
     private int mWidth;
     private int mHeight;
     private int mGenerateIndex = 0;
-    private int mTrackIndex;
-    private boolean mNoMoreFrames = false;
-    private boolean mAbort = false;
-    //开始时间 微秒 nanoTime/1000
-    private long mStartTimeInMicro;
+    private volatile boolean mNoMoreFrames = false;
+    private volatile boolean mAbort = false;
+    private boolean mEndOfStreamQueued = false;
+    //第一帧的抓取时间 微秒, 小于0表示还没有收到帧
+    private long mStartTimeInMicro = -1;
+    private long mLastPtsUs = 0;
+    //暂停状态, 暂停期间编码器保持运行
+    private volatile boolean mPaused = false;
+    //恢复后第一帧需要重新计算暂停时长并请求关键帧
+    private boolean mResumePending = false;
+    //输出端请求的关键帧, 下一帧输入时发出
+    private volatile boolean mKeyFrameRequested = false;
+    //累计暂停时长 微秒, 从pts中扣除
+    private long mPausedUs = 0;
+    //关键帧索引, 只在输出到文件时生成
+    private RecordingIndex mIndex;
+    //渲染帧耗时, 只在输出到文件且设置了采集器时生成
+    private FrameTimingCollector mTimingCollector;
+    private FrameTimingLog mTimingLog;
+    //上一个请求关键帧并生成缩略图的pts
+    private long mLastThumbPtsUs = -1;
+    //一次录制中编码尺寸不变, 抓取尺寸变化(旋转等)后帧按比例居中绘制到这里, 新尺寸在下次录制时生效
+    private Bitmap mFitBitmap;
+    private Canvas mFitCanvas;
+    private final Paint mFitPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mFitRect = new Rect();
+    //取输出的线程, 结束时释放编码器
+    private Thread mDrainThread;
 
     public interface ICompleteCallback {
+        /**
+         * @param outputFile 输出不是文件时为null
+         */
         void onComplete(File outputFile);
     }
 
     public ScreenPreviewRecorder(int width, int height, ICompleteCallback callback) {
+        this(width, height, new RecordConfig(), callback);
+    }
+
+    public ScreenPreviewRecorder(int width, int height, RecordConfig config, ICompleteCallback callback) {
         mWidth = width;
         mHeight = height;
-        mBitRate = 12 * mWidth * mHeight;
+        mConfig = config;
+        mBitRate = config.getBitrate(width, height);
         mCallback = callback;
     }
 
+    /**
+     * 实际使用的参数, 开始编码后mime可能因为不支持退回为AVC
+     */
+    public RecordConfig getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * 录制到文件时同时保存宿主的渲染帧耗时, 需要在startEncoding之前调用
+     */
+    public void setFrameTimingCollector(FrameTimingCollector collector) {
+        mTimingCollector = collector;
+    }
+
     public boolean isEncodingStarted() {
-        return (mediaCodec != null) && (mediaMuxer != null) && !mNoMoreFrames && !mAbort;
+        return (mediaCodec != null) && (mSink != null) && !mNoMoreFrames && !mAbort;
+    }
+
+    /**
+     * 调整码率, 编码中也可以动态调整
+     *
+     * @param factor (0, 1]
+     */
+    public void setBitrateFactor(float factor) {
+        mBitrateFactor = factor;
+        synchronized (mInputLock) {
+            if (mediaCodec == null || mNoMoreFrames || mAbort) {
+                return;
+            }
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, (int) (mBitRate * factor));
+            try {
+                mediaCodec.setParameters(params);
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "set bitrate failed", e);
+            }
+        }
     }
 
-    public int getActiveBitmaps() {
-        return mEncodeQueue.size();
+    /**
+     * 暂停录制, 编码器和muxer保持不变
+     */
+    public void pause() {
+        synchronized (mInputLock) {
+            mPaused = true;
+        }
+    }
+
+    /**
+     * 恢复录制, 暂停的时长不计入输出, 恢复后的第一帧为关键帧
+     */
+    public void resume() {
+        synchronized (mInputLock) {
+            if (!mPaused) {
+                return;
+            }
+            mPaused = false;
+            mResumePending = mStartTimeInMicro >= 0;
+        }
+    }
+
+    public boolean isPaused() {
+        return mPaused;
     }
 
     public void setOutputFile(File outputFile) {
-        mOutputFile = outputFile;
+        mSink = new FileRecordingSink(outputFile);
     }
 
+    /**
+     * 设置输出, 需要在开始编码前调用
+     */
+    public void setSink(RecordingSink sink) {
+        mSink = sink;
+        sink.setKeyFrameRequester(new RecordingSink.IKeyFrameRequester() {
+            @Override
+            public void requestKeyFrame() {
+                mKeyFrameRequested = true;
+            }
+        });
+    }
+
+    /**
+     * 输出到文件时返回文件, 否则为null
+     */
     public File getOutputFile() {
-        return mOutputFile;
+        return mSink == null ? null : mSink.getFile();
     }
 
-    public void startEncoding() throws IOException {
-        String outputFileString = mOutputFile.getCanonicalPath();
+    /**
+     * 输出描述
+     */
+    public Map<String, Object> describeSink() {
+        return mSink == null ? null : mSink.describe();
+    }
 
-        MediaCodecInfo codecInfo = selectCodec(MIME_TYPE);
-        if (codecInfo == null) {
-            throw new IOException("Unable to find an appropriate codec for " + MIME_TYPE);
+    public void startEncoding() throws IOException {
+        if (mSink == null) {
+            throw new IOException("output not specified");
         }
-        Log.d(TAG, "found codec: " + codecInfo.getName());
-        int colorFormat;
         try {
-            colorFormat = selectColorFormat(codecInfo, MIME_TYPE);
-        } catch (Exception e) {
-            colorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+            prepareEncoder();
+        } catch (IOException | RuntimeException e) {
+            //启动失败 清理已经创建的编码器和输出
+            if (mediaCodec != null) {
+                mediaCodec.release();
+                mediaCodec = null;
+            }
+            mSink.close(true);
+            throw e;
         }
+        File file = mSink.getFile();
+        if (file != null) {
+            try {
+                mIndex = new RecordingIndex(file, mWidth, mHeight);
+            } catch (IOException e) {
+                Log.w(TAG, "create index failed", e);
+            }
+            if (mTimingCollector != null) {
+                try {
+                    mTimingLog = new FrameTimingLog(file);
+                    mTimingCollector.addListener(mTimingLog);
+                } catch (IOException e) {
+                    Log.w(TAG, "create timing failed", e);
+                }
+            }
+        }
+        Log.d(TAG, "Init complete. Starting encoder...");
+        //输入在分发线程中进行, 这里开启一个线程取输出
+        mDrainThread = ScreenThreads.start(TAG + "-drain", ScreenThreads.PRIORITY_ENCODE, new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        });
+    }
+
+    private void prepareEncoder() throws IOException {
+        EncoderRegistry.EncoderInfo encoder = mConfig.selectEncoder(mWidth, mHeight);
+        if (encoder == null) {
+            throw new IOException("Unable to find an appropriate codec for " + mConfig.mimeType);
+        }
+        Log.d(TAG, "found codec: " + encoder.name + ", hardware: " + encoder.hardware);
         try {
-            mediaCodec = MediaCodec.createByCodecName(codecInfo.getName());
+            mediaCodec = MediaCodec.createByCodecName(encoder.name);
         } catch (IOException e) {
             throw new IOException("Unable to create MediaCodec " + e.getMessage());
         }
 
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
-        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
-        mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
-        mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+        mInputColorFormat = encoder.inputColorFormat;
+        MediaFormat mediaFormat = mConfig.createFormat(encoder, mWidth, mHeight, (int) (mBitRate * mBitrateFactor));
+        Log.d(TAG, "format: " + mediaFormat);
         mediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mSink.open();
         mediaCodec.start();
-        try {
-            mediaMuxer = new MediaMuxer(outputFileString, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-        } catch (IOException e) {
-            throw new IOException("MediaMuxer creation failed. " + e.getMessage());
-        }
-        Log.d(TAG, "Init complete. Starting encoder...");
-        //开启一个线程跑任务
-        new Thread() {
-            @Override
-            public void run() {
-                loop();
-            }
-        }.start();
     }
 
     public void stopEncoding() {
         Log.d(TAG, "Stopping encoding");
         mNoMoreFrames = true;
-        if (mediaCodec == null || mediaMuxer == null) {
+        if (mediaCodec == null || mSink == null) {
             Log.d(TAG, "Failed to stop encoding since it never started");
             return;
         }
-        synchronized (mFrameSync) {
-            if ((mNewFrameLatch != null) && (mNewFrameLatch.getCount() > 0)) {
-                mNewFrameLatch.countDown();
-            }
-        }
+        signalEndOfStream();
     }
 
     public void abortEncoding() {
-        if (mediaCodec == null || mediaMuxer == null) {
+        if (mediaCodec == null || mSink == null) {
             Log.d(TAG, "Failed to abort encoding since it never started");
             return;
         }
@@ -154,94 +285,212 @@ public class ScreenPreviewRecorder implements ScreenCaptureService.IScreenDataRe
 
         mNoMoreFrames = true;
         mAbort = true;
-        mEncodeQueue = new ConcurrentLinkedQueue(); // Drop all frames
+    }
 
-        synchronized (mFrameSync) {
-            if ((mNewFrameLatch != null) && (mNewFrameLatch.getCount() > 0)) {
-                mNewFrameLatch.countDown();
+    /**
+     * 等待取输出的线程结束, 返回后编码器和输出都已释放
+     *
+     * @return 超时返回false
+     */
+    public boolean awaitRelease(long timeoutMs) {
+        Thread thread = mDrainThread;
+        return thread == null || thread == Thread.currentThread() || ScreenThreads.join(thread, timeoutMs);
+    }
+
+    /**
+     * 编码一帧, 在分发线程中调用
+     *
+     * @param frameTs 抓取时的单调时间 纳秒, 用于计算pts
+     */
+    private void encodeFrame(long frameTs, Bitmap bitmap) {
+        bitmap = fitToEncoderSize(bitmap);
+        byte[] byteConvertFrame = getNV21(bitmap.getWidth(), bitmap.getHeight(), bitmap);
+        boolean thumbnail;
+        long thumbPtsUs;
+        synchronized (mInputLock) {
+            if (mNoMoreFrames || mPaused || mediaCodec == null) {
+                return;
             }
+            int inputBufIndex = mediaCodec.dequeueInputBuffer(TIMEOUT_US);
+            if (inputBufIndex < 0) {
+                //编码器忙 丢弃这一帧
+                Log.w(TAG, "No input buffer available, drop frame");
+                return;
+            }
+            boolean resumed = mResumePending;
+            boolean requested = mKeyFrameRequested;
+            mKeyFrameRequested = false;
+            long ptsUsec = computePresentationTime(frameTs);
+            //按关键帧间隔主动请求关键帧 同时生成缩略图
+            thumbnail = mIndex != null && (resumed || mLastThumbPtsUs < 0
+                    || ptsUsec - mLastThumbPtsUs >= mConfig.keyFrameInterval * 1000000L);
+            //恢复后从关键帧开始, 输出端丢弃数据后也需要关键帧
+            if (resumed || thumbnail || requested) {
+                Bundle params = new Bundle();
+                params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                mediaCodec.setParameters(params);
+            }
+            if (mInputColorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible) {
+                Image image = mediaCodec.getInputImage(inputBufIndex);
+                int size = 0;
+                if (image != null) {
+                    writeNV12ToImage(byteConvertFrame, bitmap.getWidth(), bitmap.getHeight(), image);
+                    size = byteConvertFrame.length;
+                } else {
+                    Log.w(TAG, "no input image, drop frame");
+                }
+                mediaCodec.queueInputBuffer(inputBufIndex, 0, size, ptsUsec, 0);
+            } else {
+                final ByteBuffer inputBuffer = mediaCodec.getInputBuffer(inputBufIndex);
+                inputBuffer.clear();
+                inputBuffer.put(byteConvertFrame);
+                mediaCodec.queueInputBuffer(inputBufIndex, 0, byteConvertFrame.length, ptsUsec, 0);
+            }
+            mLastPtsUs = ptsUsec;
+            mGenerateIndex++;
+            if (thumbnail) {
+                mLastThumbPtsUs = ptsUsec;
+            }
+            thumbPtsUs = ptsUsec;
+        }
+        if (mTimingLog != null) {
+            mTimingLog.onFrame(thumbPtsUs, frameTs);
+        }
+        if (thumbnail) {
+            //编码输入已经完成 缩略图不占用锁
+            mIndex.addThumbnail(thumbPtsUs, bitmap);
         }
     }
 
-    public void queueFrame(Bitmap bitmap) {
-        if (mediaCodec == null || mediaMuxer == null) {
-            Log.d(TAG, "Failed to queue frame. Encoding not started");
-            return;
+    //只在分发线程中调用
+    private Bitmap fitToEncoderSize(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width == mWidth && height == mHeight) {
+            return bitmap;
         }
-//        Log.d(TAG, "Queueing frame");
-        mEncodeQueue.add(new FrameInfo(System.nanoTime() / 1000, bitmap));
-
-        synchronized (mFrameSync) {
-            if ((mNewFrameLatch != null) && (mNewFrameLatch.getCount() > 0)) {
-                mNewFrameLatch.countDown();
-            }
+        if (mFitBitmap == null) {
+            mFitBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            mFitCanvas = new Canvas(mFitBitmap);
         }
+        float scale = Math.min(1f * mWidth / width, 1f * mHeight / height);
+        int fitWidth = Math.round(width * scale);
+        int fitHeight = Math.round(height * scale);
+        int left = (mWidth - fitWidth) / 2;
+        int top = (mHeight - fitHeight) / 2;
+        mFitRect.set(left, top, left + fitWidth, top + fitHeight);
+        mFitCanvas.drawColor(Color.BLACK);
+        mFitCanvas.drawBitmap(bitmap, null, mFitRect, mFitPaint);
+        return mFitBitmap;
     }
 
-    private void loop() {
-        Log.d(TAG, "Encoder started");
-        mStartTimeInMicro = System.nanoTime() / 1000;
-        while (true) {
-            if (mNoMoreFrames && (mEncodeQueue.size() == 0)) break;
-            FrameInfo frameInfo = mEncodeQueue.poll();
-            if (frameInfo == null) {
-                synchronized (mFrameSync) {
-                    mNewFrameLatch = new CountDownLatch(1);
-                }
-                try {
-                    mNewFrameLatch.await();
-                } catch (InterruptedException e) {
-                }
-                frameInfo = mEncodeQueue.poll();
+    private void signalEndOfStream() {
+        synchronized (mInputLock) {
+            if (mEndOfStreamQueued || mediaCodec == null) {
+                return;
             }
-            if (frameInfo == null) continue;
-            Bitmap bitmap = frameInfo.bitmap;
-            byte[] byteConvertFrame = getNV21(bitmap.getWidth(), bitmap.getHeight(), bitmap);
-            int inputBufIndex = mediaCodec.dequeueInputBuffer(TIMEOUT_US);
-            long ptsUsec = computePresentationTime(frameInfo);
+            int inputBufIndex = mediaCodec.dequeueInputBuffer(TIMEOUT_US * 10);
             if (inputBufIndex >= 0) {
-                final ByteBuffer inputBuffer = mediaCodec.getInputBuffer(inputBufIndex);
-                inputBuffer.clear();
-                inputBuffer.put(byteConvertFrame);
-                mediaCodec.queueInputBuffer(inputBufIndex, 0, byteConvertFrame.length, ptsUsec, 0);
-                mGenerateIndex++;
+                mediaCodec.queueInputBuffer(inputBufIndex, 0, 0, mLastPtsUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                mEndOfStreamQueued = true;
+            } else {
+                Log.w(TAG, "No input buffer for end of stream");
             }
-            MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+        }
+    }
+
+    private void drainLoop() {
+        Log.d(TAG, "Encoder started");
+        MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+        long idleSince = 0;
+        while (!mAbort) {
             int encoderStatus = mediaCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_US);
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 // no output available yet
-                Log.e(TAG, "No output from encoder available");
-                try {
-                    // wait 10ms
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
+                mSink.onIdle();
+                if (mNoMoreFrames) {
+                    if (!mEndOfStreamQueued) {
+                        signalEndOfStream();
+                    }
+                    if (idleSince == 0) {
+                        idleSince = System.currentTimeMillis();
+                    } else if (System.currentTimeMillis() - idleSince > DRAIN_TIMEOUT_MS) {
+                        Log.w(TAG, "Wait end of stream timeout");
+                        break;
+                    }
                 }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // not expected for an encoder
-                MediaFormat newFormat = mediaCodec.getOutputFormat();
-                mTrackIndex = mediaMuxer.addTrack(newFormat);
-                mediaMuxer.start();
-            } else if (encoderStatus < 0) {
-                Log.e(TAG, "unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
-            } else if (mBufferInfo.size != 0) {
-                ByteBuffer encodedData = mediaCodec.getOutputBuffer(encoderStatus);
-                if (encodedData == null) {
-                    Log.e(TAG, "encoderOutputBuffer " + encoderStatus + " was null");
-                } else {
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-                    mediaMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    mediaCodec.releaseOutputBuffer(encoderStatus, false);
+                continue;
+            }
+            idleSince = 0;
+            try {
+                if (!handleOutput(encoderStatus, mBufferInfo)) {
+                    break;
                 }
+            } catch (IOException e) {
+                //输出失败 不再继续编码
+                Log.e(TAG, "write output failed", e);
+                mNoMoreFrames = true;
+                break;
             }
         }
         //todo 需要处理一下长度 否则最后一帧长时间没有变化时收不到导致视频长度不对
-        release();
-        if (mAbort) {
-            mOutputFile.delete();
+        synchronized (mInputLock) {
+            release();
+        }
+        mSink.close(mAbort);
+        if (mIndex != null) {
+            if (mAbort) {
+                mIndex.delete();
+            } else {
+                mIndex.finish(mSink.getFile());
+            }
+        }
+        if (mTimingLog != null) {
+            mTimingCollector.removeListener(mTimingLog);
+            if (mAbort) {
+                mTimingLog.delete(mSink.getFile());
+            } else {
+                mTimingLog.close();
+            }
+        }
+        if (!mAbort) {
+            mCallback.onComplete(mSink.getFile());
+        }
+    }
+
+    /**
+     * 处理一次编码输出
+     *
+     * @return 收到结束标记时返回false
+     */
+    private boolean handleOutput(int encoderStatus, MediaCodec.BufferInfo bufferInfo) throws IOException {
+        if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            // not expected for an encoder
+            mSink.onOutputFormat(mediaCodec.getOutputFormat());
+        } else if (encoderStatus < 0) {
+            Log.e(TAG, "unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
         } else {
-            mCallback.onComplete(mOutputFile);
+            ByteBuffer encodedData = mediaCodec.getOutputBuffer(encoderStatus);
+            try {
+                if (encodedData == null) {
+                    Log.e(TAG, "encoderOutputBuffer " + encoderStatus + " was null");
+                } else if (bufferInfo.size != 0) {
+                    encodedData.position(bufferInfo.offset);
+                    encodedData.limit(bufferInfo.offset + bufferInfo.size);
+                    mSink.writeSample(encodedData, bufferInfo);
+                    if (mIndex != null && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0
+                            && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        mIndex.onKeyFrame(bufferInfo.presentationTimeUs, bufferInfo.size);
+                    }
+                }
+            } finally {
+                mediaCodec.releaseOutputBuffer(encoderStatus, false);
+            }
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return false;
+            }
         }
+        return true;
     }
 
     private void release() {
@@ -255,81 +504,24 @@ public class ScreenPreviewRecorder implements ScreenCaptureService.IScreenDataRe
         } catch (Exception e) {
             Log.e(TAG, "RELEASE CODEC ERROR", e);
         }
-        try {
-            if (mediaMuxer != null) {
-                mediaMuxer.stop();
-                mediaMuxer.release();
-                mediaMuxer = null;
-                Log.d(TAG, "RELEASE MUXER");
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "RELEASE MUXER ERROR", e);
-        }
     }
 
     @Override
-    public void onImageAvailable(long frameTs, Image image) {
-
+    public ReceiverPolicy getReceiverPolicy() {
+        return POLICY;
     }
 
     @Override
-    public void onRawBitmap(long frameTs, int imgWidth, int imgHeight, Bitmap rawBitmap) {
-
-    }
-
-    @Override
-    public void onCompressedBitmap(long frameTs, Bitmap bitmap) {
-        if (mNoMoreFrames) {
+    public void onFrame(SharedFrame frame) {
+        if (mNoMoreFrames || mPaused) {
             //not recording
             return;
         }
-        queueFrame(bitmap.copy(Bitmap.Config.ARGB_8888, true));
-    }
-
-
-    private static MediaCodecInfo selectCodec(String mimeType) {
-        MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
-        for (MediaCodecInfo codecInfo : infos) {
-            if (!codecInfo.isEncoder()) {
-                continue;
-            }
-            String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                    return codecInfo;
-                }
-            }
-        }
-        return null;
+        encodeFrame(frame.frameTs, frame.bitmap);
     }
 
-    private static int selectColorFormat(MediaCodecInfo codecInfo,
-                                         String mimeType) {
-        MediaCodecInfo.CodecCapabilities capabilities = codecInfo
-                .getCapabilitiesForType(mimeType);
-        for (int i = 0; i < capabilities.colorFormats.length; i++) {
-            int colorFormat = capabilities.colorFormats[i];
-            if (isRecognizedFormat(colorFormat)) {
-                return colorFormat;
-            }
-        }
-        return 0; // not reached
-    }
-
-    private static boolean isRecognizedFormat(int colorFormat) {
-        switch (colorFormat) {
-            // these are the formats we know how to handle for
-            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
-            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar:
-            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
-            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar:
-            case MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar:
-                return true;
-            default:
-                return false;
-        }
-    }
 
+    //bitmap为共享帧 只读取不回收
     private byte[] getNV21(int inputWidth, int inputHeight, Bitmap scaled) {
 
         int[] argb = new int[inputWidth * inputHeight];
@@ -339,11 +531,50 @@ public class ScreenPreviewRecorder implements ScreenCaptureService.IScreenDataRe
         byte[] yuv = new byte[inputWidth * inputHeight * 3 / 2];
         encodeYUV420SP(yuv, argb, inputWidth, inputHeight);
 
-        scaled.recycle();
-
         return yuv;
     }
 
+    /**
+     * NV12写入编码器的输入Image, 按各平面的行步长和像素步长写入, 不假设平面的排列方式
+     */
+    private static void writeNV12ToImage(byte[] nv12, int width, int height, Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        //Y
+        ByteBuffer yBuffer = planes[0].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        int yPixelStride = planes[0].getPixelStride();
+        for (int row = 0; row < height; row++) {
+            int src = row * width;
+            if (yPixelStride == 1) {
+                yBuffer.position(row * yRowStride);
+                yBuffer.put(nv12, src, width);
+            } else {
+                int dst = row * yRowStride;
+                for (int col = 0; col < width; col++) {
+                    yBuffer.put(dst + col * yPixelStride, nv12[src + col]);
+                }
+            }
+        }
+        //U V, NV12中交错存放 UVUV...
+        ByteBuffer uBuffer = planes[1].getBuffer();
+        ByteBuffer vBuffer = planes[2].getBuffer();
+        int uRowStride = planes[1].getRowStride();
+        int uPixelStride = planes[1].getPixelStride();
+        int vRowStride = planes[2].getRowStride();
+        int vPixelStride = planes[2].getPixelStride();
+        int frameSize = width * height;
+        int chromaWidth = width / 2;
+        for (int row = 0; row < height / 2; row++) {
+            int src = frameSize + row * width;
+            int uDst = row * uRowStride;
+            int vDst = row * vRowStride;
+            for (int col = 0; col < chromaWidth; col++) {
+                uBuffer.put(uDst + col * uPixelStride, nv12[src + col * 2]);
+                vBuffer.put(vDst + col * vPixelStride, nv12[src + col * 2 + 1]);
+            }
+        }
+    }
+
     private void encodeYUV420SP(byte[] yuv420sp, int[] argb, int width, int height) {
         final int frameSize = width * height;
 
@@ -382,8 +613,20 @@ public class ScreenPreviewRecorder implements ScreenCaptureService.IScreenDataRe
         return 132 + frameIndex * 1000000 / framerate;
     }
 
-    //计算帧出现的时间点 微秒
-    private long computePresentationTime(FrameInfo frameInfo) {
-        return 132 + frameInfo.frameTs - mStartTimeInMicro;
+    //计算帧出现的时间点 微秒, 以抓取时间为准 而不是入队时间, 扣除暂停时长
+    private long computePresentationTime(long frameTs) {
+        long frameTimeInMicro = frameTs / 1000;
+        if (mStartTimeInMicro < 0) {
+            mStartTimeInMicro = frameTimeInMicro;
+        }
+        long ptsUs = 132 + frameTimeInMicro - mStartTimeInMicro - mPausedUs;
+        if (mResumePending) {
+            //恢复后的第一帧紧接暂停前的最后一帧
+            long expectedUs = mLastPtsUs + 1000000L / mConfig.frameRate;
+            mPausedUs += ptsUs - expectedUs;
+            ptsUs = expectedUs;
+            mResumePending = false;
+        }
+        return ptsUs;
     }
 }
@@ -18,27 +18,31 @@ package com.kwai.flutter.debugtools.screen;
 
 import android.graphics.Bitmap;
 import android.graphics.Matrix;
-import android.media.Image;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
-import android.os.SystemClock;
 import android.util.Log;
+import android.view.Display;
 
 import androidx.annotation.NonNull;
 
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.flutter.plugin.common.MethodChannel;
 
 /**
  * 将bitmap编码后发送给flutter
+ * 每帧只缩放一次, 再按正在使用的每种格式各编码一次
+ * 画面静止一段时间后, 按原始尺寸和高质量重新编码最后一帧补发一次
  */
 public class ScreenPreviewSender implements ScreenCaptureService.IScreenDataReceiver {
     private static final String TAG = "ScreenPreviewSender";
@@ -48,74 +52,116 @@ public class ScreenPreviewSender implements ScreenCaptureService.IScreenDataRece
     private static final int MAX_FPS = 10;
     //最大延迟控制 超出丢弃
     private static final long MAX_DELAY = 300;
+    //预览缩放
+    private static final float PREVIEW_SCALE = 0.8f;
+    //默认画面静止多久后补发高质量帧
+    public static final long DEFAULT_REFINE_IDLE_MS = 500;
+    //退出时等待补发线程结束的最长时间
+    private static final long QUIT_TIMEOUT_MS = 500;
     //队列应该的最大长度
     private static final long MAX_QUEUE_SIZE = Math.round(1.0 * MAX_DELAY / 1000 * MAX_FPS);
+    //分发策略 超出帧率跳过 队列满时丢弃旧帧, 注册时立即收到最后一帧
+    private static final ReceiverPolicy POLICY = new ReceiverPolicy(MAX_FPS, (int) MAX_QUEUE_SIZE,
+            ReceiverPolicy.DropPolicy.DROP_OLDEST, MAX_DELAY, false, true);
     private MethodChannel channel;
-    private BlockingQueue<FrameInfo> mFrameQueue;
+    //发送时带上屏幕id, 客户端按屏幕接收
+    private final int mDisplayId;
     private Handler mainHandler = new Handler(Looper.getMainLooper());
     private AtomicBoolean mQuit = new AtomicBoolean(false);
     private FpsHelper mInputFps = new FpsHelper("SenderInput");
     private FpsHelper mSendFps = new FpsHelper("SenderOutput");
-    private long preAcceptFrameTs = 0;
-    private Bitmap lastJpg = null;
+    //最后一帧 持有引用
+    private SharedFrame lastFrame = null;
     private final byte[] lastJpgLock = new byte[0];
+    //降级控制设置的额外缩放
+    private volatile float mScaleFactor = 1f;
+    //正在使用的格式, 整体替换
+    private volatile Map<String, PreviewEncoder> mEncoders = Collections.singletonMap(
+            PreviewEncoder.FORMAT_JPEG, PreviewEncoder.create(PreviewEncoder.FORMAT_JPEG));
+    //画面静止多久后补发高质量帧, <=0 不补发
+    private volatile long mRefineIdleMs = DEFAULT_REFINE_IDLE_MS;
+    //补发在单独的低优先级线程中编码, 不占用预览分发线程
+    private HandlerThread mRefineThread;
+    private volatile Handler mRefineHandler;
+    //补发使用的编码器, 只在补发线程中使用
+    private final Map<String, PreviewEncoder> mRefineEncoders = new HashMap<>();
+    //最新收到的帧, 补发时已经有新帧则放弃
+    private volatile long mLatestFrameId = -1;
+    private final AtomicLong mRefinements = new AtomicLong();
+    //宿主的渲染帧耗时, 随预览帧一起发送
+    private volatile FrameTimingCollector mTimingCollector;
+    //以下只在主线程中使用, 汇总上一个抓取帧到本帧之间的渲染帧
+    private final FrameTimingCollector.Summary mTimingSummary = new FrameTimingCollector.Summary();
+    private long mTimingFrameId = -1;
+    private long mTimingFromTs;
+    private long mTimingToTs;
+    private final Runnable mRefineTask = new Runnable() {
+        @Override
+        public void run() {
+            refine();
+        }
+    };
 
+    /**
+     * @param channel 为null时只编码不发送, 用于测试
+     */
     public ScreenPreviewSender(MethodChannel channel) {
+        this(channel, Display.DEFAULT_DISPLAY);
+    }
+
+    public ScreenPreviewSender(MethodChannel channel, int displayId) {
         this.channel = channel;
-        mFrameQueue = new LinkedBlockingQueue<>();
+        mDisplayId = displayId;
+    }
+
+    /**
+     * 预热jpeg编码, 第一次编码需要加载编码库, 在后台线程调用
+     */
+    public static void warmUpEncoder() {
+        Bitmap bitmap = Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 30, new ByteArrayOutputStream());
+        } finally {
+            bitmap.recycle();
+        }
     }
 
     /**
      * 开始处理
      */
-    public final void start() {
+    public final synchronized void start() {
         mQuit.set(false);
-        new Thread() {
-            @Override
-            public void run() {
-                try {
-                    while (!mQuit.get()) {
-                        FrameInfo frameInfo = null;
-                        try {
-                            frameInfo = mFrameQueue.poll(1, TimeUnit.SECONDS);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                        if (!mQuit.get() && frameInfo != null) {
-                            long delay = System.currentTimeMillis() - frameInfo.frameTs;
-                            //最大延迟控制
-                            if (MAX_DELAY < delay && !mFrameQueue.isEmpty()) {
-                                //Log.w(TAG, "drop " + delay + " > MAX_DELAY");
-                                frameInfo.bitmap.recycle();
-                                continue;
-                            }
-                            //Log.d(TAG, "compressFrame, frame delay: " + delay);
-                            JpgFrameData jpgFrameData = compressFrame(frameInfo);
-                            sendPreviewDataToFlutter(jpgFrameData);
-                            synchronized (lastJpgLock) {
-                                if (lastJpg != null) {
-                                    lastJpg.recycle();
-                                }
-                                lastJpg = frameInfo.bitmap;
-                            }
-                        }
-                    }
-                    //销毁最后一张
-                    synchronized (lastJpgLock) {
-                        if (lastJpg != null) {
-                            lastJpg.recycle();
-                            lastJpg = null;
-                        }
-                    }
-                } finally {
-                    mQuit.set(true);
-                }
-            }
-        }.start();
+        if (mRefineThread == null) {
+            mRefineThread = ScreenThreads.startHandlerThread(TAG + "-refine", ScreenThreads.PRIORITY_BACKGROUND);
+            mRefineHandler = new Handler(mRefineThread.getLooper());
+        }
     }
 
-    public final void quit() {
+    public final synchronized void quit() {
         mQuit.set(true);
+        if (mRefineThread != null) {
+            mRefineHandler.removeCallbacks(mRefineTask);
+            mRefineHandler = null;
+            mRefineThread.quit();
+            ScreenThreads.join(mRefineThread, QUIT_TIMEOUT_MS);
+            mRefineThread = null;
+        }
+        //销毁最后一张
+        synchronized (lastJpgLock) {
+            if (lastFrame != null) {
+                lastFrame.release();
+                lastFrame = null;
+            }
+        }
+    }
+
+    /**
+     * 降级控制调整预览分辨率
+     *
+     * @param factor (0, 1]
+     */
+    public void setScaleFactor(float factor) {
+        mScaleFactor = factor;
     }
 
     public boolean isRunning() {
@@ -123,100 +169,289 @@ public class ScreenPreviewSender implements ScreenCaptureService.IScreenDataRece
     }
 
     /**
-     * 最后一张jpg图像
+     * 画面静止多久后补发一次高质量帧
+     *
+     * @param idleMs <=0 不补发
+     */
+    public void setRefineIdleMs(long idleMs) {
+        mRefineIdleMs = idleMs;
+        Handler handler = mRefineHandler;
+        if (idleMs <= 0 && handler != null) {
+            handler.removeCallbacks(mRefineTask);
+        }
+    }
+
+    public Map<String, Object> getRefineState() {
+        Map<String, Object> state = new HashMap<>();
+        state.put("idleMs", mRefineIdleMs);
+        state.put("count", mRefinements.get());
+        return state;
+    }
+
+    /**
+     * 设置客户端正在使用的格式, 不支持的格式忽略, 为空时使用jpeg
+     *
+     * @param keyFrame 有新客户端, 增量格式需要输出完整画面
+     */
+    public synchronized void setFormats(Collection<String> formats, boolean keyFrame) {
+        Map<String, PreviewEncoder> current = mEncoders;
+        Map<String, PreviewEncoder> encoders = new LinkedHashMap<>();
+        if (formats != null) {
+            for (String format : formats) {
+                PreviewEncoder encoder = current.get(format);
+                if (encoder == null) {
+                    encoder = PreviewEncoder.create(format);
+                }
+                if (encoder != null) {
+                    encoders.put(format, encoder);
+                }
+            }
+        }
+        if (encoders.isEmpty()) {
+            PreviewEncoder encoder = current.get(PreviewEncoder.FORMAT_JPEG);
+            encoders.put(PreviewEncoder.FORMAT_JPEG,
+                    encoder != null ? encoder : PreviewEncoder.create(PreviewEncoder.FORMAT_JPEG));
+        }
+        if (keyFrame) {
+            for (PreviewEncoder encoder : encoders.values()) {
+                encoder.requestKeyFrame();
+            }
+        }
+        mEncoders = encoders;
+    }
+
+    /**
+     * 各格式的编码统计
+     */
+    public List<Map<String, Object>> getFormatStats() {
+        List<Map<String, Object>> stats = new ArrayList<>();
+        for (PreviewEncoder encoder : mEncoders.values()) {
+            stats.add(encoder.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * 用新的编码器编码最后一帧, 新客户端连接时立即显示, 增量格式输出完整画面
      *
-     * @return
+     * @param quality jpeg质量, 其他格式忽略
+     * @return 没有最后一帧或者格式不支持时返回null
      */
-    public Bitmap getLastFineJpg() {
-        Bitmap result = null;
+    public byte[] encodeLastFrame(String format, int quality) {
+        PreviewEncoder encoder = PreviewEncoder.FORMAT_JPEG.equals(format)
+                ? new JpegPreviewEncoder(quality) : PreviewEncoder.create(format);
+        if (encoder == null) {
+            return null;
+        }
+        Bitmap scaled = null;
         synchronized (lastJpgLock) {
-            if (lastJpg != null) {
-                Matrix matrix = new Matrix();
-                matrix.setScale(0.8f, 0.8f);
-                //和之前压缩一样进行 缩放 但不压缩
-                result = Bitmap.createBitmap(lastJpg, 0, 0, lastJpg.getWidth(), lastJpg.getHeight(), matrix, true);
+            if (lastFrame != null) {
+                scaled = scale(lastFrame.bitmap);
             }
         }
-        return result;
+        if (scaled == null) {
+            return null;
+        }
+        try {
+            return encoder.encode(scaled);
+        } finally {
+            scaled.recycle();
+        }
     }
 
-    private JpgFrameData compressFrame(@NonNull FrameInfo frameInfo) {
-        long start = SystemClock.uptimeMillis();
-        Bitmap bitmap = frameInfo.bitmap;
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    private Bitmap scale(Bitmap bitmap) {
         Matrix matrix = new Matrix();
-        matrix.setScale(0.8f, 0.8f);
-        //缩放
-        bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-        //todo 动态控制质量
-//        int quality = (int) (1 - Math.min(1, 1.0 * mInputFps.getFps() / MAX_FPS)) * (MAX_FPS - MIN_FPS) + MIN_FPS;
-        int quality = 30;
-//        Log.d(TAG, "fps: "+mInputFps.getFps()+", quality: " + quality);
-        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, byteArrayOutputStream);
-
-        byte[] b = byteArrayOutputStream.toByteArray();
+        float scale = PREVIEW_SCALE * mScaleFactor;
+        matrix.setScale(scale, scale);
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    }
+
+    private void compressFrame(@NonNull SharedFrame frame) {
+        //所有格式共用一次缩放
+        Bitmap bitmap = scale(frame.bitmap);
         try {
-            byteArrayOutputStream.flush();
-            byteArrayOutputStream.close();
-        } catch (IOException e) {
-            Log.e(TAG, "close error", e);
+            for (PreviewEncoder encoder : mEncoders.values()) {
+                byte[] data = encoder.encode(bitmap);
+                if (data != null) {
+                    sendPreviewDataToFlutter(new PreviewFrameData(frame.frameId, frame.frameTs,
+                            FrameClock.nowNanos(), encoder.getFormat(), data));
+                }
+            }
         } finally {
             bitmap.recycle();
         }
-        //Log.d(TAG, "encode cost " + (SystemClock.uptimeMillis() - start));
-        return new JpgFrameData(frameInfo.frameTs, b);
     }
 
-    private void sendPreviewDataToFlutter(JpgFrameData frameData) {
+    /**
+     * 在补发线程中, 用原始尺寸和高质量重新编码最后一帧
+     */
+    private void refine() {
+        if (mQuit.get()) {
+            return;
+        }
+        SharedFrame frame;
+        synchronized (lastJpgLock) {
+            if (lastFrame == null || !lastFrame.retain()) {
+                return;
+            }
+            frame = lastFrame;
+        }
+        boolean refined = false;
+        try {
+            for (String format : mEncoders.keySet()) {
+                if (!mRefineEncoders.containsKey(format)) {
+                    mRefineEncoders.put(format, PreviewEncoder.createRefinement(format));
+                }
+                PreviewEncoder encoder = mRefineEncoders.get(format);
+                if (encoder == null || frame.frameId != mLatestFrameId) {
+                    continue;
+                }
+                byte[] data = encoder.encode(frame.bitmap);
+                if (data != null) {
+                    PreviewFrameData frameData = new PreviewFrameData(frame.frameId, frame.frameTs,
+                            FrameClock.nowNanos(), format, data);
+                    frameData.refined = true;
+                    sendPreviewDataToFlutter(frameData);
+                    refined = true;
+                }
+            }
+            if (refined) {
+                mRefinements.incrementAndGet();
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void scheduleRefinement() {
+        Handler handler = mRefineHandler;
+        if (handler == null) {
+            return;
+        }
+        handler.removeCallbacks(mRefineTask);
+        if (mRefineIdleMs > 0) {
+            handler.postDelayed(mRefineTask, mRefineIdleMs);
+        }
+    }
+
+    /**
+     * 设置后每个预览帧带上产生该画面的渲染帧耗时
+     */
+    public void setFrameTimingCollector(FrameTimingCollector collector) {
+        mTimingCollector = collector;
+    }
+
+    private void sendPreviewDataToFlutter(final PreviewFrameData frameData) {
+        if (channel == null) {
+            return;
+        }
         mainHandler.post(new Runnable() {
             @Override
             public void run() {
+                if (frameData.refined && frameData.frameId != mLatestFrameId) {
+                    //补发编码期间已经发出了新帧
+                    return;
+                }
                 mSendFps.addFrame();
                 mSendFps.print();
-                //Log.d(TAG, "sendFrame, delay: " + (System.currentTimeMillis() - frameData.ts) + "queue: " + mFrameQueue.size());
+                //Log.d(TAG, "sendFrame, delay: " + FrameClock.elapsedMillis(frameData.frameTs) + "queue: " + mFrameQueue.size());
                 Map<String, Object> map = new HashMap<>();
-                //input time
-                map.put("ts", frameData.ts);
+                map.put("displayId", mDisplayId);
+                map.put("frameId", frameData.frameId);
+                //以下时间均为单调时间 微秒, 加上clockOffset为墙上时间
+                //capture time
+                map.put("captureTs", frameData.frameTs / 1000);
+                //encode done time
+                map.put("encodeTs", frameData.encodeTs / 1000);
                 //send time
-                map.put("sendts", System.currentTimeMillis());
-                map.put("data", frameData.jpgData);
+                map.put("sendTs", FrameClock.nowNanos() / 1000);
+                map.put("clockOffset", FrameClock.wallOffsetMicros());
+                //input time, 墙上时间 毫秒
+                map.put("ts", FrameClock.toWallMillis(frameData.frameTs));
+                map.put("format", frameData.format);
+                map.put("refined", frameData.refined);
+                putFrameTiming(map, frameData);
+                map.put("data", frameData.data);
                 channel.invokeMethod("onPreviewData", map);
             }
         });
     }
 
-    @Override
-    public void onImageAvailable(long ts, Image image) {
-        //ignore
+    //在主线程中调用, 多个格式的同一帧使用相同的范围
+    private void putFrameTiming(Map<String, Object> map, PreviewFrameData frameData) {
+        FrameTimingCollector collector = mTimingCollector;
+        if (collector == null || frameData.refined) {
+            return;
+        }
+        if (frameData.frameId != mTimingFrameId) {
+            mTimingFrameId = frameData.frameId;
+            mTimingFromTs = mTimingToTs;
+            mTimingToTs = frameData.frameTs;
+        }
+        FrameTimingCollector.Summary summary = mTimingSummary;
+        //画面静止时两帧之间没有渲染
+        collector.summarize(mTimingFromTs, mTimingToTs, summary);
+        map.put("renderCount", summary.count);
+        if (summary.count > 0) {
+            //单调时间 微秒
+            map.put("renderTs", summary.lastEndTs / 1000);
+            map.put("renderDur", summary.lastDurationNs / 1000);
+            map.put("renderMaxDur", summary.maxDurationNs / 1000);
+            map.put("renderJank", summary.jankCount);
+        }
     }
 
     @Override
-    public void onRawBitmap(long ts, int imgWidth, int imgHeight, Bitmap rawBitmap) {
-        //ignore
+    public ReceiverPolicy getReceiverPolicy() {
+        return POLICY;
     }
 
     @Override
-    public void onCompressedBitmap(long ts, Bitmap bitmap) {
-        long frame = SystemClock.uptimeMillis() - preAcceptFrameTs;
-        if (frame < (1000.0 / MAX_FPS)) {
-            //Log.w(TAG, "drop frame, ts: " + frame);
+    public void onFrame(SharedFrame frame) {
+        if (mQuit.get()) {
             return;
         }
-        preAcceptFrameTs = SystemClock.uptimeMillis();
         mInputFps.addFrame();
         mInputFps.print();
-        mFrameQueue.offer(new FrameInfo(ts, bitmap.copy(Bitmap.Config.ARGB_8888, true)));
+        mLatestFrameId = frame.frameId;
+        //Log.d(TAG, "compressFrame, frame delay: " + FrameClock.elapsedMillis(frame.frameTs));
+        compressFrame(frame);
+        //保留最后一帧
+        if (frame.retain()) {
+            synchronized (lastJpgLock) {
+                if (lastFrame != null) {
+                    lastFrame.release();
+                }
+                lastFrame = frame;
+                if (mQuit.get()) {
+                    //处理过程中已经quit
+                    lastFrame.release();
+                    lastFrame = null;
+                }
+            }
+            //重新计时, 静止到时后补发
+            scheduleRefinement();
+        }
     }
 
 
-    static class JpgFrameData {
-        long ts;
-        byte[] jpgData;
+    static class PreviewFrameData {
+        long frameId;
+        //抓取时间 单调时间 纳秒
+        long frameTs;
+        //编码完成时间 单调时间 纳秒
+        long encodeTs;
+        String format;
+        byte[] data;
+        //画面静止后补发的高质量帧
+        boolean refined;
 
-        JpgFrameData(long ts, byte[] jpgData) {
-            this.ts = ts;
-            this.jpgData = jpgData;
+        PreviewFrameData(long frameId, long frameTs, long encodeTs, String format, byte[] data) {
+            this.frameId = frameId;
+            this.frameTs = frameTs;
+            this.encodeTs = encodeTs;
+            this.format = format;
+            this.data = data;
         }
     }
 }
-
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 投屏相关线程的统一创建和管理
+ * <p>
+ * 所有线程都有名字和优先级, 未捕获的异常只记录日志不会导致app崩溃;
+ * 记录存活的线程, 用于检查多次开始/停止后是否有线程泄漏
+ */
+public final class ScreenThreads {
+    private static final String TAG = "ScreenThreads";
+    private static final String PREFIX = "KDebug-";
+    //抓取和编码 与界面同级, 不高于app的渲染线程
+    public static final int PRIORITY_CAPTURE = Process.THREAD_PRIORITY_DISPLAY;
+    public static final int PRIORITY_ENCODE = Process.THREAD_PRIORITY_DISPLAY;
+    //写文件、连拍编码、统计等
+    public static final int PRIORITY_BACKGROUND = Process.THREAD_PRIORITY_BACKGROUND;
+
+    private static final Set<Thread> sLiveThreads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    private static final AtomicLong sUncaughtCount = new AtomicLong();
+    private static final Thread.UncaughtExceptionHandler sUncaughtHandler = new Thread.UncaughtExceptionHandler() {
+        @Override
+        public void uncaughtException(Thread t, Throwable e) {
+            //调试工具的异常不应该让被调试的app崩溃
+            sUncaughtCount.incrementAndGet();
+            Log.e(TAG, "uncaught exception in " + t.getName(), e);
+        }
+    };
+
+    private ScreenThreads() {
+    }
+
+    /**
+     * 创建线程, 未启动
+     *
+     * @param priority android.os.Process.THREAD_PRIORITY_*
+     */
+    public static Thread newThread(String name, final int priority, final Runnable runnable) {
+        Thread thread = new Thread(PREFIX + name) {
+            @Override
+            public void run() {
+                sLiveThreads.add(this);
+                try {
+                    Process.setThreadPriority(priority);
+                    runnable.run();
+                } finally {
+                    sLiveThreads.remove(this);
+                }
+            }
+        };
+        thread.setUncaughtExceptionHandler(sUncaughtHandler);
+        return thread;
+    }
+
+    /**
+     * 创建并启动线程
+     */
+    public static Thread start(String name, int priority, Runnable runnable) {
+        Thread thread = newThread(name, priority, runnable);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * 创建并启动HandlerThread
+     */
+    public static HandlerThread startHandlerThread(String name, int priority) {
+        HandlerThread thread = new HandlerThread(PREFIX + name, priority) {
+            @Override
+            public void run() {
+                sLiveThreads.add(this);
+                try {
+                    super.run();
+                } finally {
+                    sLiveThreads.remove(this);
+                }
+            }
+        };
+        thread.setUncaughtExceptionHandler(sUncaughtHandler);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * 线程池使用的工厂, 线程名为 name-序号
+     */
+    public static ThreadFactory factory(final String name, final int priority) {
+        final AtomicInteger index = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return ScreenThreads.newThread(name + "-" + index.incrementAndGet(), priority, runnable);
+            }
+        };
+    }
+
+    /**
+     * 等待线程结束
+     *
+     * @return 超时仍未结束时返回false
+     */
+    public static boolean join(Thread thread, long timeoutMs) {
+        if (thread == null || thread == Thread.currentThread()) {
+            return true;
+        }
+        try {
+            thread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            Log.w(TAG, "wait " + thread.getName() + " quit timeout");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 存活的线程名
+     */
+    public static List<String> getLiveThreadNames() {
+        List<String> names = new ArrayList<>();
+        for (Thread thread : sLiveThreads) {
+            names.add(thread.getName());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * 未捕获异常的次数
+     */
+    public static long getUncaughtCount() {
+        return sUncaughtCount.get();
+    }
+}
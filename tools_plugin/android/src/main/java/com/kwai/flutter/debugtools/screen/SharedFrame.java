@@ -0,0 +1,174 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kwai.flutter.debugtools.screen;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多个接收者共享的一帧, 通过引用计数回收bitmap
+ * bitmap只读, 需要修改时自行copy
+ */
+public class SharedFrame {
+    //帧序号
+    public final long frameId;
+    //抓取时的单调时间 纳秒
+    public final long frameTs;
+    public final Bitmap bitmap;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+    //HARDWARE bitmap转换后的软件帧, 只转换一次
+    private SharedFrame mSoftwareFrame;
+    //内存预算记账, 回收时归还
+    private FrameMemoryBudget.Account mBudgetAccount;
+    private long mBudgetBytes;
+    //HARDWARE帧的感兴趣区域, 转换为软件帧时裁剪
+    private Rect mCropRegion;
+
+    SharedFrame(long frameId, long frameTs, Bitmap bitmap) {
+        this.frameId = frameId;
+        this.frameTs = frameTs;
+        this.bitmap = bitmap;
+    }
+
+    /**
+     * 增加引用, 在回调结束后还需要使用时调用
+     *
+     * @return 已经被回收时返回false
+     */
+    public boolean retain() {
+        for (; ; ) {
+            int count = mRefCount.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (mRefCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 释放引用, 为0时回收bitmap
+     */
+    public void release() {
+        if (mRefCount.decrementAndGet() == 0) {
+            onRecycle();
+        }
+    }
+
+    /**
+     * 帧占用的内存大小, HARDWARE bitmap按ARGB_8888估算
+     * 有感兴趣区域时按裁剪后的大小, 与抓取时的记账一致
+     */
+    public long getByteCount() {
+        Rect region = mCropRegion;
+        if (region != null) {
+            return (long) region.width() * region.height() * 4;
+        }
+        return (long) bitmap.getWidth() * bitmap.getHeight() * 4;
+    }
+
+    void setCropRegion(Rect region) {
+        mCropRegion = region;
+    }
+
+    /**
+     * 感兴趣区域, 只有HARDWARE帧会有, 直接使用HARDWARE bitmap的接收者需要自行裁剪
+     *
+     * @return null为整个bitmap
+     */
+    public Rect getCropRegion() {
+        return mCropRegion;
+    }
+
+    /**
+     * 记录已从预算中分配的内存, 回收时归还
+     */
+    void attachBudget(FrameMemoryBudget.Account account, long bytes) {
+        mBudgetAccount = account;
+        mBudgetBytes = bytes;
+    }
+
+    /**
+     * bitmap是否在图形内存中, 此时不能读取像素
+     */
+    public boolean isHardware() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && bitmap.getConfig() == Bitmap.Config.HARDWARE;
+    }
+
+    /**
+     * 获取可读取像素的帧, 已增加引用, 用完需要release
+     * HARDWARE帧会在第一次调用时拷贝一次并缓存, 随本帧一起回收
+     *
+     * @return 本帧已被回收、超出内存预算或者拷贝失败时返回null
+     */
+    public SharedFrame acquireSoftwareFrame() {
+        if (!isHardware()) {
+            return retain() ? this : null;
+        }
+        synchronized (this) {
+            if (mRefCount.get() <= 0) {
+                return null;
+            }
+            if (mSoftwareFrame == null) {
+                //拷贝和原帧记在同一个账户, 软件帧只保留裁剪后的区域
+                long bytes = getByteCount();
+                if (mBudgetAccount != null && !mBudgetAccount.tryAllocate(bytes)) {
+                    return null;
+                }
+                Bitmap copy = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+                if (copy != null && mCropRegion != null) {
+                    Bitmap cropped = Bitmap.createBitmap(copy, mCropRegion.left, mCropRegion.top,
+                            mCropRegion.width(), mCropRegion.height());
+                    if (cropped != copy) {
+                        copy.recycle();
+                    }
+                    copy = cropped;
+                }
+                if (copy == null) {
+                    if (mBudgetAccount != null) {
+                        mBudgetAccount.free(bytes);
+                    }
+                    return null;
+                }
+                mSoftwareFrame = new SharedFrame(frameId, frameTs, copy);
+                if (mBudgetAccount != null) {
+                    mSoftwareFrame.attachBudget(mBudgetAccount, bytes);
+                }
+            }
+            return mSoftwareFrame.retain() ? mSoftwareFrame : null;
+        }
+    }
+
+    protected void onRecycle() {
+        bitmap.recycle();
+        synchronized (this) {
+            if (mSoftwareFrame != null) {
+                mSoftwareFrame.release();
+                mSoftwareFrame = null;
+            }
+        }
+        if (mBudgetAccount != null) {
+            mBudgetAccount.free(mBudgetBytes);
+            mBudgetAccount = null;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 编码数据写入本机socket, 由dart端的ServerSocket接收后转发给浏览器
+ * <p>
+ * 输出为Annex-B裸流(AVC/HEVC), 写入阻塞时编码输出线程等待, 形成反压
+ */
+public class SocketRecordingSink extends RecordingSink {
+    private static final String TAG = "SocketRecordingSink";
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    private final int mPort;
+    private Socket mSocket;
+    private OutputStream mOut;
+    private byte[] mCopyBuffer = new byte[0];
+    private long mWrittenBytes = 0;
+
+    public SocketRecordingSink(int port) {
+        mPort = port;
+    }
+
+    @Override
+    void open() {
+        //连接在编码输出线程中进行 避免主线程网络操作
+    }
+
+    @Override
+    void onOutputFormat(MediaFormat format) throws IOException {
+        connect();
+    }
+
+    @Override
+    void writeSample(ByteBuffer data, MediaCodec.BufferInfo info) throws IOException {
+        connect();
+        if (mCopyBuffer.length < info.size) {
+            mCopyBuffer = new byte[info.size];
+        }
+        data.get(mCopyBuffer, 0, info.size);
+        mOut.write(mCopyBuffer, 0, info.size);
+        //每帧flush一次 降低浏览器端延迟
+        mOut.flush();
+        mWrittenBytes += info.size;
+    }
+
+    private void connect() throws IOException {
+        if (mSocket != null) {
+            return;
+        }
+        mSocket = new Socket(InetAddress.getByName("127.0.0.1"), mPort);
+        mSocket.setTcpNoDelay(true);
+        mOut = new BufferedOutputStream(mSocket.getOutputStream(), WRITE_BUFFER_SIZE);
+        Log.d(TAG, "connected to " + mPort);
+    }
+
+    @Override
+    void close(boolean abort) {
+        try {
+            if (mOut != null) {
+                mOut.flush();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "flush failed", e);
+        }
+        try {
+            if (mSocket != null) {
+                mSocket.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "close failed", e);
+        }
+        Log.d(TAG, "closed, written " + mWrittenBytes + " bytes");
+    }
+
+    @Override
+    Map<String, Object> describe() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("sink", "socket");
+        map.put("port", mPort);
+        return map;
+    }
+}
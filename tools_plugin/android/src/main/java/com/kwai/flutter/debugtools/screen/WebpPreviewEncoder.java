@@ -0,0 +1,53 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * webp预览, 相同画质下比jpeg小, 编码更耗cpu
+ */
+class WebpPreviewEncoder extends PreviewEncoder {
+    static final int LOSSY_QUALITY = 40;
+    static final int REFINE_QUALITY = 90;
+    //quality为100时无损
+    static final int LOSSLESS_QUALITY = 100;
+    private final boolean mLossless;
+    private final int mQuality;
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+
+    /**
+     * @param quality 无损时应为 {@link #LOSSLESS_QUALITY}
+     */
+    WebpPreviewEncoder(boolean lossless, int quality) {
+        mLossless = lossless;
+        mQuality = quality;
+    }
+
+    @Override
+    public String getFormat() {
+        return mLossless ? FORMAT_WEBP_LOSSLESS : FORMAT_WEBP;
+    }
+
+    @Override
+    protected byte[] onEncode(Bitmap bitmap) {
+        mOutput.reset();
+        bitmap.compress(Bitmap.CompressFormat.WEBP, mLossless ? LOSSLESS_QUALITY : mQuality, mOutput);
+        return mOutput.toByteArray();
+    }
+}
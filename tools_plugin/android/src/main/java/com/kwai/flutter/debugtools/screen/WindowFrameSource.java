@@ -0,0 +1,209 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.PixelCopy;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import android.view.Window;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * 通过PixelCopy抓取一个窗口, 用于MediaProjection抓取不到的副屏(Presentation、桌面模式)
+ * <p>
+ * 窗口绘制后才取帧, 画面静止时不产生新帧. 不包含SurfaceView等单独图层的内容
+ */
+@RequiresApi(api = Build.VERSION_CODES.O)
+class WindowFrameSource implements ScreenCaptureService.IFrameSource {
+    private static final String TAG = "WindowFrameSource";
+    //绘制回调时这一帧还没有提交, 稍后再取
+    private static final long COPY_DELAY_MS = 16;
+    private final int mDisplayId;
+    private final Window mWindow;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Handler mHandler;
+    private Runnable mOnFrameAvailable;
+    private volatile int mWidth;
+    private volatile int mHeight;
+    private Rect mRegion;
+    private volatile boolean mSuspended = false;
+    private volatile boolean mReleased = false;
+    //以下在抓取线程中修改
+    private boolean mCopying = false;
+    //拷贝过程中又有绘制
+    private boolean mDirty = false;
+    private Bitmap mPendingBitmap;
+    private long mPendingTs;
+    private final Runnable mCopyTask = new Runnable() {
+        @Override
+        public void run() {
+            copy();
+        }
+    };
+    private final ViewTreeObserver.OnDrawListener mDrawListener = new ViewTreeObserver.OnDrawListener() {
+        @Override
+        public void onDraw() {
+            Handler handler = mHandler;
+            if (handler != null && !mSuspended && !mReleased) {
+                handler.removeCallbacks(mCopyTask);
+                handler.postDelayed(mCopyTask, COPY_DELAY_MS);
+            }
+        }
+    };
+
+    WindowFrameSource(int displayId, Window window) {
+        mDisplayId = displayId;
+        mWindow = window;
+    }
+
+    @Override
+    public String getName() {
+        return "window-" + mDisplayId;
+    }
+
+    @Override
+    public void start(int width, int height, int dpi, Handler handler, Runnable onFrameAvailable) {
+        mWidth = width;
+        mHeight = height;
+        mHandler = handler;
+        mOnFrameAvailable = onFrameAvailable;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                View decor = mWindow.getDecorView();
+                if (!mReleased && decor != null) {
+                    decor.getViewTreeObserver().addOnDrawListener(mDrawListener);
+                }
+            }
+        });
+        //第一帧不等绘制
+        handler.post(mCopyTask);
+    }
+
+    @Override
+    public SharedFrame acquireLatestFrame(long frameId) {
+        Bitmap bitmap = mPendingBitmap;
+        if (bitmap == null) {
+            return null;
+        }
+        mPendingBitmap = null;
+        Rect region = mRegion;
+        if (region != null) {
+            Bitmap cropped = Bitmap.createBitmap(bitmap, region.left, region.top, region.width(), region.height());
+            if (cropped != bitmap) {
+                bitmap.recycle();
+            }
+            bitmap = cropped;
+        }
+        return new SharedFrame(frameId, mPendingTs, bitmap);
+    }
+
+    @Override
+    public void resize(int width, int height, int dpi) {
+        mWidth = width;
+        mHeight = height;
+        copy();
+    }
+
+    @Override
+    public void setRegion(Rect region) {
+        mRegion = region;
+    }
+
+    @Override
+    public void setSuspended(boolean suspended) {
+        mSuspended = suspended;
+        if (!suspended) {
+            //暂停期间的绘制被忽略了
+            copy();
+        }
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+        Handler handler = mHandler;
+        if (handler != null) {
+            handler.removeCallbacks(mCopyTask);
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                View decor = mWindow.getDecorView();
+                if (decor != null && decor.getViewTreeObserver().isAlive()) {
+                    decor.getViewTreeObserver().removeOnDrawListener(mDrawListener);
+                }
+            }
+        });
+    }
+
+    //在抓取线程中调用
+    private void copy() {
+        if (mReleased || mSuspended) {
+            return;
+        }
+        if (mCopying) {
+            mDirty = true;
+            return;
+        }
+        View decor = mWindow.getDecorView();
+        if (decor == null || decor.getWidth() == 0 || decor.getHeight() == 0) {
+            return;
+        }
+        //PixelCopy会缩放到目标bitmap的尺寸
+        final Bitmap bitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        final long ts = FrameClock.nowNanos();
+        mCopying = true;
+        try {
+            PixelCopy.request(mWindow, bitmap, new PixelCopy.OnPixelCopyFinishedListener() {
+                @Override
+                public void onPixelCopyFinished(int copyResult) {
+                    onCopyFinished(copyResult, bitmap, ts);
+                }
+            }, mHandler);
+        } catch (IllegalArgumentException e) {
+            //窗口已经没有surface
+            Log.w(TAG, "copy window failed", e);
+            mCopying = false;
+            bitmap.recycle();
+        }
+    }
+
+    private void onCopyFinished(int copyResult, Bitmap bitmap, long ts) {
+        mCopying = false;
+        if (copyResult != PixelCopy.SUCCESS || mReleased) {
+            bitmap.recycle();
+        } else {
+            if (mPendingBitmap != null) {
+                mPendingBitmap.recycle();
+            }
+            mPendingBitmap = bitmap;
+            mPendingTs = ts;
+            mOnFrameAvailable.run();
+        }
+        if (mDirty) {
+            mDirty = false;
+            copy();
+        }
+    }
+}
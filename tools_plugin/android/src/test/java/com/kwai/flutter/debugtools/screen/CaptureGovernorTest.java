@@ -0,0 +1,197 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.os.PowerManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 用假的负载数据驱动 {@link CaptureGovernor#evaluate(long)}, 检查逐级降级、恢复的滞后和严重过热时直接降到最低
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class CaptureGovernorTest {
+    private static final long INTERVAL_NANOS = 2000000000L;
+    private static final int LOWEST = CaptureGovernor.defaultLadder().size() - 1;
+
+    private FakeSensorSource mSensor;
+    private CaptureGovernor mGovernor;
+    private final List<Integer> mChanges = new ArrayList<>();
+    private long mNowNanos = 0;
+
+    @Before
+    public void setUp() {
+        mSensor = new FakeSensorSource();
+        mGovernor = new CaptureGovernor(mSensor, null);
+        mGovernor.setListener(new CaptureGovernor.ILevelListener() {
+            @Override
+            public void onLevelChanged(int index, CaptureGovernor.Level level) {
+                mChanges.add(index);
+            }
+        });
+        //第一次只记录基准
+        mGovernor.evaluate(mNowNanos);
+    }
+
+    @Test
+    public void firstEvaluateOnlyRecordsBaseline() {
+        CaptureGovernor governor = new CaptureGovernor(mSensor, null);
+        mSensor.cpuNanos = INTERVAL_NANOS * 10;
+        mSensor.thermalStatus = PowerManager.THERMAL_STATUS_SEVERE;
+        assertEquals(0, governor.evaluate(0));
+    }
+
+    @Test
+    public void highCpuStepsDownOneLevelPerEvaluate() {
+        for (int i = 1; i <= LOWEST; i++) {
+            assertEquals(i, step(1.0, 10));
+        }
+        //已经是最低级
+        assertEquals(LOWEST, step(1.0, 10));
+        assertEquals(LOWEST, mChanges.size());
+    }
+
+    @Test
+    public void slowFramesAndMemoryStepDown() {
+        assertEquals(1, step(0, CaptureGovernor.PROCESS_TIME_HIGH_MS + 10));
+        mSensor.memoryUsage = 0.9f;
+        assertEquals(2, step(0, 10));
+    }
+
+    @Test
+    public void moderateThermalStepsDown() {
+        mSensor.thermalStatus = PowerManager.THERMAL_STATUS_MODERATE;
+        assertEquals(1, step(0, 10));
+        assertEquals(2, step(0, 10));
+    }
+
+    @Test
+    public void severeThermalJumpsToLowest() {
+        mSensor.thermalStatus = PowerManager.THERMAL_STATUS_SEVERE;
+        assertEquals(LOWEST, step(0, 10));
+        assertEquals(1, mChanges.size());
+        assertEquals(LOWEST, (int) mChanges.get(0));
+    }
+
+    @Test
+    public void recoversOneLevelAfterConsecutiveHealthyEvaluations() {
+        step(1.0, 10);
+        step(1.0, 10);
+        assertEquals(2, mGovernor.getLevelIndex());
+        for (int i = 1; i < CaptureGovernor.RECOVER_COUNT; i++) {
+            assertEquals(2, step(0.1, 10));
+        }
+        assertEquals(1, step(0.1, 10));
+        //恢复后重新计数
+        for (int i = 1; i < CaptureGovernor.RECOVER_COUNT; i++) {
+            assertEquals(1, step(0.1, 10));
+        }
+        assertEquals(0, step(0.1, 10));
+        assertEquals(0, step(0.1, 10));
+    }
+
+    @Test
+    public void loadBetweenThresholdsHoldsLevelAndResetsRecovery() {
+        step(1.0, 10);
+        assertEquals(1, mGovernor.getLevelIndex());
+        double middle = (CaptureGovernor.CPU_LOAD_LOW + CaptureGovernor.CPU_LOAD_HIGH) / 2;
+        for (int i = 0; i < CaptureGovernor.RECOVER_COUNT * 2; i++) {
+            assertEquals(1, step(middle, 10));
+        }
+        //空闲次数被中间负载打断后重新计数
+        for (int i = 1; i < CaptureGovernor.RECOVER_COUNT; i++) {
+            assertEquals(1, step(0.1, 10));
+        }
+        assertEquals(1, step(middle, 10));
+        for (int i = 1; i < CaptureGovernor.RECOVER_COUNT; i++) {
+            assertEquals(1, step(0.1, 10));
+        }
+        assertEquals(0, step(0.1, 10));
+    }
+
+    @Test
+    public void lightThermalBlocksRecovery() {
+        step(1.0, 10);
+        mSensor.thermalStatus = PowerManager.THERMAL_STATUS_LIGHT;
+        for (int i = 0; i < CaptureGovernor.RECOVER_COUNT * 2; i++) {
+            assertEquals(1, step(0.1, 10));
+        }
+        mSensor.thermalStatus = PowerManager.THERMAL_STATUS_NONE;
+        for (int i = 1; i < CaptureGovernor.RECOVER_COUNT; i++) {
+            assertEquals(1, step(0.1, 10));
+        }
+        assertEquals(0, step(0.1, 10));
+    }
+
+    /**
+     * 推进一个评估间隔
+     *
+     * @param cpuLoad   这段时间的cpu占用(相对单核)
+     * @param processMs 这段时间每帧的处理耗时
+     * @return 评估后的级别
+     */
+    private int step(double cpuLoad, double processMs) {
+        long frames = 30;
+        mNowNanos += INTERVAL_NANOS;
+        mSensor.cpuNanos += (long) (cpuLoad * INTERVAL_NANOS);
+        mSensor.processNanos += (long) (processMs * 1000000 * frames);
+        mSensor.frames += frames;
+        return mGovernor.evaluate(mNowNanos);
+    }
+
+    private static class FakeSensorSource implements CaptureGovernor.ISensorSource {
+        int thermalStatus = PowerManager.THERMAL_STATUS_NONE;
+        long cpuNanos = 0;
+        long processNanos = 0;
+        long frames = 0;
+        float memoryUsage = 0.1f;
+
+        @Override
+        public int getThermalStatus() {
+            return thermalStatus;
+        }
+
+        @Override
+        public long getCpuTimeNanos() {
+            return cpuNanos;
+        }
+
+        @Override
+        public long getProcessTimeNanos() {
+            return processNanos;
+        }
+
+        @Override
+        public long getProcessedFrames() {
+            return frames;
+        }
+
+        @Override
+        public float getMemoryUsage() {
+            return memoryUsage;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 用合成的帧驱动抓取和分发, 检查吞吐、丢帧、内存峰值和延迟
+ * <p>
+ * 抓取线程的时钟由测试推进, 每次推进一帧, 检查帧率的测试让帧时间也跟随这个时钟; 分发线程是普通线程, 每帧之间留一点真实时间给它们处理
+ * 分发统计的延迟按真实时间计算, 只在帧时间也使用真实时间时检查
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class ScreenPipelineTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 640;
+    private static final int DPI = 320;
+    private static final long FRAME_BYTES = (long) WIDTH * HEIGHT * 4;
+    private static final int FPS = 30;
+    private static final long FRAME_MS = 1000 / FPS;
+    private static final int FRAMES = 60;
+    //每帧之间给分发线程的真实时间
+    private static final long STEP_REAL_MS = 5;
+
+    //跟随looper时钟的帧时间
+    private static final SyntheticFrameSource.IClock LOOPER_CLOCK = new SyntheticFrameSource.IClock() {
+        @Override
+        public long nowNanos() {
+            return SystemClock.uptimeMillis() * 1000000L;
+        }
+    };
+
+    private HandlerThread mCaptureThread;
+    private Looper mCaptureLooper;
+
+    @Before
+    public void setUp() {
+        mCaptureThread = new HandlerThread("capture-test");
+        mCaptureThread.start();
+        mCaptureLooper = mCaptureThread.getLooper();
+    }
+
+    @After
+    public void tearDown() {
+        mCaptureThread.quit();
+    }
+
+    @Test
+    public void fastReceiverGetsEveryFrame() throws Exception {
+        SyntheticFrameSource source = newSource(LOOPER_CLOCK);
+        ScreenCaptureService service = new ScreenCaptureService(WIDTH, HEIGHT, DPI, source);
+        TestReceiver receiver = new TestReceiver(ReceiverPolicy.DEFAULT, 0);
+        service.addScreenDataReceiver(receiver);
+        service.start(null, mCaptureLooper);
+        runFrames(FRAMES);
+        Thread.sleep(100);
+
+        long generated = (Long) source.getStats().get("generated");
+        Map<String, Object> stats = service.getReceiverStats().get(0);
+        long delivered = (Long) stats.get("delivered");
+        long dropped = (Long) stats.get("dropped");
+        service.quit();
+
+        //启动时一帧, 之后每次推进一帧
+        assertEquals(FRAMES + 1, generated);
+        assertEquals(0L, source.getStats().get("overwritten"));
+        //每一帧要么回调要么丢弃
+        assertEquals(generated, delivered + dropped);
+        assertEquals(delivered, receiver.getCount());
+        //按帧时间计算帧率
+        float fps = (delivered - 1) * 1000f / (FRAMES * FRAME_MS);
+        assertTrue("fps " + fps, fps >= FPS * 0.9f);
+        assertFramesReturned(service);
+    }
+
+    @Test
+    public void latencyStaysLow() throws Exception {
+        SyntheticFrameSource source = newSource();
+        ScreenCaptureService service = new ScreenCaptureService(WIDTH, HEIGHT, DPI, source);
+        TestReceiver receiver = new TestReceiver(ReceiverPolicy.DEFAULT, 0);
+        service.addScreenDataReceiver(receiver);
+        service.start(null, mCaptureLooper);
+        runFrames(FRAMES);
+        Thread.sleep(100);
+
+        Map<String, Object> stats = service.getReceiverStats().get(0);
+        long delivered = (Long) stats.get("delivered");
+        long latencyMaxMs = (Long) stats.get("latencyMaxMs");
+        service.quit();
+
+        assertTrue("delivered " + delivered, delivered > 0);
+        assertTrue("latency " + latencyMaxMs + "ms", latencyMaxMs <= 200);
+        assertFramesReturned(service);
+    }
+
+    @Test
+    public void slowReceiverDropsOldestWithoutBlockingOthers() throws Exception {
+        SyntheticFrameSource source = newSource();
+        ScreenCaptureService service = new ScreenCaptureService(WIDTH, HEIGHT, DPI, source);
+        TestReceiver fast = new TestReceiver(ReceiverPolicy.DEFAULT, 0);
+        TestReceiver slow = new TestReceiver(new ReceiverPolicy(0, 2, ReceiverPolicy.DropPolicy.DROP_OLDEST, 0), 50);
+        service.addScreenDataReceiver(fast);
+        service.addScreenDataReceiver(slow);
+        service.start(null, mCaptureLooper);
+        runFrames(FRAMES);
+        Thread.sleep(100);
+
+        long generated = (Long) source.getStats().get("generated");
+        List<Map<String, Object>> stats = service.getReceiverStats();
+        long fastDelivered = (Long) stats.get(0).get("delivered");
+        long slowDelivered = (Long) stats.get(1).get("delivered");
+        long slowDropped = (Long) stats.get(1).get("dropped");
+        long peak = (Long) service.getMemoryBudget().getState().get("peak");
+        service.quit();
+
+        assertTrue("fast delivered " + fastDelivered + " of " + generated, fastDelivered >= generated * 9 / 10);
+        assertTrue("slow dropped " + slowDropped, slowDropped > 0);
+        assertTrue("slow delivered " + slowDelivered, slowDelivered > 0 && slowDelivered < fastDelivered);
+        //每个接收者最多队列长度加正在处理的一帧, 抓取线程还保留最后一帧和正在取的一帧
+        long ceiling = FRAME_BYTES * (2 + (2 + 1) + (2 + 1));
+        assertTrue("peak " + peak + " > " + ceiling, peak <= ceiling);
+        assertFramesReturned(service);
+    }
+
+    @Test
+    public void memoryBudgetCapsCapture() throws Exception {
+        SyntheticFrameSource source = newSource();
+        long limit = FRAME_BYTES * 4;
+        ScreenCaptureService service = new ScreenCaptureService(WIDTH, HEIGHT, DPI, source,
+                new FrameMemoryBudget(limit), "");
+        //接收者保留帧不释放 占满预算
+        TestReceiver holder = new TestReceiver(new ReceiverPolicy(0, 8, ReceiverPolicy.DropPolicy.DROP_NEWEST, 0), 0);
+        holder.setRetainFrames(true);
+        service.addScreenDataReceiver(holder);
+        service.start(null, mCaptureLooper);
+        runFrames(FRAMES);
+        Thread.sleep(100);
+
+        long peak = (Long) service.getMemoryBudget().getState().get("peak");
+        long overwritten = (Long) source.getStats().get("overwritten");
+        assertTrue("peak " + peak + " > " + limit, peak <= limit);
+        //预算用完后新画面留在帧来源中被覆盖
+        assertTrue("overwritten " + overwritten, overwritten > 0);
+        assertTrue("held " + holder.getCount(), holder.getCount() <= 4);
+
+        holder.releaseRetained();
+        service.quit();
+        assertFramesReturned(service);
+    }
+
+    @Test
+    public void maxFpsSkipsFrames() throws Exception {
+        SyntheticFrameSource source = newSource(LOOPER_CLOCK);
+        ScreenCaptureService service = new ScreenCaptureService(WIDTH, HEIGHT, DPI, source);
+        TestReceiver receiver = new TestReceiver(new ReceiverPolicy(10, 2, ReceiverPolicy.DropPolicy.DROP_OLDEST, 0), 0);
+        service.addScreenDataReceiver(receiver);
+        service.start(null, mCaptureLooper);
+        runFrames(FRAMES);
+        Thread.sleep(100);
+
+        long generated = (Long) source.getStats().get("generated");
+        Map<String, Object> stats = service.getReceiverStats().get(0);
+        long delivered = (Long) stats.get("delivered");
+        long dropped = (Long) stats.get("dropped");
+        long skipped = (Long) stats.get("skipped");
+        service.quit();
+
+        //帧间隔为FRAME_MS, 距上次接收不少于100ms才接收, 即每隔几帧接收一帧
+        long framesPerAccept = (100 + FRAME_MS - 1) / FRAME_MS;
+        long expected = FRAMES / framesPerAccept + 1;
+        long accepted = delivered + dropped;
+        assertTrue("accepted " + accepted + ", expected " + expected, Math.abs(accepted - expected) <= 1);
+        assertEquals(generated, accepted + skipped);
+        assertTrue("delivered " + delivered, delivered >= expected - 1);
+        assertFramesReturned(service);
+    }
+
+    private static SyntheticFrameSource newSource() {
+        return new SyntheticFrameSource(FPS, 0.3f, 0, 0, 1);
+    }
+
+    private static SyntheticFrameSource newSource(SyntheticFrameSource.IClock clock) {
+        return new SyntheticFrameSource(FPS, 0.3f, 0, 0, 1, clock);
+    }
+
+    //推进抓取线程的时钟, 每次一帧
+    private void runFrames(int frames) throws InterruptedException {
+        for (int i = 0; i < frames; i++) {
+            shadowOf(mCaptureLooper).idleFor(FRAME_MS, TimeUnit.MILLISECONDS);
+            Thread.sleep(STEP_REAL_MS);
+        }
+    }
+
+    //结束后所有帧都已回收 预算全部归还
+    private static void assertFramesReturned(ScreenCaptureService service) {
+        assertEquals(0L, service.getMemoryBudget().getUsedBytes());
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 合成的帧来源, 不需要MediaProjection授权, 用于测试整个分发流程的吞吐、丢帧和延迟
+ * <p>
+ * 按固定帧率生成画面, 每帧随机改变一定比例的块, 比例为0时画面静止不再产生新帧(与VirtualDisplay一致);
+ * 可以设置连续产生若干帧后空闲一段时间来模拟突发. 随机数使用固定种子, 相同参数生成的画面序列相同
+ */
+public class SyntheticFrameSource implements ScreenCaptureService.IFrameSource {
+    //变化区域的块大小
+    private static final int TILE_SIZE = 32;
+
+    /**
+     * 帧时间来源, 单调时间 纳秒
+     */
+    public interface IClock {
+        long nowNanos();
+    }
+
+    private static final IClock FRAME_CLOCK = new IClock() {
+        @Override
+        public long nowNanos() {
+            return FrameClock.nowNanos();
+        }
+    };
+
+    private final int mFps;
+    private final float mChangeRatio;
+    private final int mBurstFrames;
+    private final long mIdleMs;
+    private final Random mRandom;
+    private final IClock mClock;
+    private final Paint mPaint = new Paint();
+    private Handler mHandler;
+    private Runnable mOnFrameAvailable;
+    private Bitmap mBitmap;
+    private Canvas mCanvas;
+    private Rect mRegion;
+    private boolean mSuspended = false;
+    private boolean mReleased = false;
+    //有还没有被取走的新画面
+    private boolean mPending = false;
+    private long mPendingTs;
+    private int mBurstIndex = 0;
+    //已生成的画面数
+    private long mGenerated = 0;
+    //还没有被取走就被新画面覆盖的数量
+    private long mOverwritten = 0;
+    private final Runnable mTickTask = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    /**
+     * @param fps         生成帧率
+     * @param changeRatio 每帧变化的面积比例 [0, 1]
+     * @param burstFrames 连续生成多少帧后空闲, <=0 不空闲
+     * @param idleMs      空闲时长
+     * @param seed        随机数种子
+     */
+    public SyntheticFrameSource(int fps, float changeRatio, int burstFrames, long idleMs, long seed) {
+        this(fps, changeRatio, burstFrames, idleMs, seed, FRAME_CLOCK);
+    }
+
+    /**
+     * @param clock 帧时间来源, 测试推进looper时钟时帧时间也要跟着走
+     */
+    public SyntheticFrameSource(int fps, float changeRatio, int burstFrames, long idleMs, long seed, IClock clock) {
+        mClock = clock;
+        mFps = Math.max(1, fps);
+        mChangeRatio = Math.max(0, Math.min(1, changeRatio));
+        mBurstFrames = burstFrames;
+        mIdleMs = idleMs;
+        mRandom = new Random(seed);
+    }
+
+    @Override
+    public String getName() {
+        return "synthetic";
+    }
+
+    @Override
+    public void start(int width, int height, int dpi, Handler handler, Runnable onFrameAvailable) {
+        mHandler = handler;
+        mOnFrameAvailable = onFrameAvailable;
+        createBitmap(width, height);
+        handler.post(mTickTask);
+    }
+
+    @Override
+    public SharedFrame acquireLatestFrame(long frameId) {
+        if (!mPending || mBitmap == null) {
+            return null;
+        }
+        mPending = false;
+        Rect region = mRegion;
+        //mBitmap是可变的 createBitmap会拷贝一份
+        Bitmap bitmap = region == null ? mBitmap.copy(Bitmap.Config.ARGB_8888, false)
+                : Bitmap.createBitmap(mBitmap, region.left, region.top, region.width(), region.height());
+        return new SharedFrame(frameId, mPendingTs, bitmap);
+    }
+
+    @Override
+    public void resize(int width, int height, int dpi) {
+        if (mBitmap != null) {
+            mBitmap.recycle();
+        }
+        createBitmap(width, height);
+        markPending();
+    }
+
+    @Override
+    public void setRegion(Rect region) {
+        mRegion = region;
+    }
+
+    @Override
+    public void setSuspended(boolean suspended) {
+        mSuspended = suspended;
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+        Handler handler = mHandler;
+        if (handler != null) {
+            handler.removeCallbacks(mTickTask);
+        }
+    }
+
+    /**
+     * 生成统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("generated", mGenerated);
+        map.put("overwritten", mOverwritten);
+        return map;
+    }
+
+    private void createBitmap(int width, int height) {
+        mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mBitmap);
+        mCanvas.drawColor(Color.rgb(mRandom.nextInt(256), mRandom.nextInt(256), mRandom.nextInt(256)));
+    }
+
+    //在抓取线程中调用
+    private void tick() {
+        if (mReleased) {
+            return;
+        }
+        if (!mSuspended && (mGenerated == 0 || drawChanges())) {
+            markPending();
+        }
+        long delayMs = 1000 / mFps;
+        if (mBurstFrames > 0 && ++mBurstIndex >= mBurstFrames) {
+            mBurstIndex = 0;
+            delayMs += mIdleMs;
+        }
+        mHandler.postDelayed(mTickTask, delayMs);
+    }
+
+    private void markPending() {
+        if (mPending) {
+            mOverwritten++;
+        }
+        mPending = true;
+        mPendingTs = mClock.nowNanos();
+        mGenerated++;
+        mOnFrameAvailable.run();
+    }
+
+    //随机改变一部分块, 没有变化时返回false
+    private boolean drawChanges() {
+        int columns = (mBitmap.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+        int rows = (mBitmap.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+        int count = Math.round(columns * rows * mChangeRatio);
+        for (int i = 0; i < count; i++) {
+            int left = mRandom.nextInt(columns) * TILE_SIZE;
+            int top = mRandom.nextInt(rows) * TILE_SIZE;
+            mPaint.setColor(Color.rgb(mRandom.nextInt(256), mRandom.nextInt(256), mRandom.nextInt(256)));
+            mCanvas.drawRect(left, top, left + TILE_SIZE, top + TILE_SIZE, mPaint);
+        }
+        return count > 0;
+    }
+}
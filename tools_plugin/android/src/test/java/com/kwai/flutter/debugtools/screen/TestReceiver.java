@@ -0,0 +1,79 @@
+/*
+ * Copyright 2021 Kwai, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kwai.flutter.debugtools.screen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用接收者, 记录收到的帧数, 可以模拟处理耗时或者一直持有帧
+ */
+class TestReceiver implements ScreenCaptureService.IScreenDataReceiver {
+    private final ReceiverPolicy mPolicy;
+    //每帧处理耗时 ms
+    private final long mProcessMs;
+    private final AtomicInteger mCount = new AtomicInteger();
+    private final List<SharedFrame> mRetained = new ArrayList<>();
+    private volatile boolean mRetainFrames = false;
+
+    TestReceiver(ReceiverPolicy policy, long processMs) {
+        mPolicy = policy;
+        mProcessMs = processMs;
+    }
+
+    /**
+     * 收到的帧不释放, 直到 {@link #releaseRetained()}
+     */
+    void setRetainFrames(boolean retain) {
+        mRetainFrames = retain;
+    }
+
+    int getCount() {
+        return mCount.get();
+    }
+
+    void releaseRetained() {
+        synchronized (mRetained) {
+            for (SharedFrame frame : mRetained) {
+                frame.release();
+            }
+            mRetained.clear();
+        }
+    }
+
+    @Override
+    public ReceiverPolicy getReceiverPolicy() {
+        return mPolicy;
+    }
+
+    @Override
+    public void onFrame(SharedFrame frame) {
+        mCount.incrementAndGet();
+        if (mRetainFrames && frame.retain()) {
+            synchronized (mRetained) {
+                mRetained.add(frame);
+            }
+        }
+        if (mProcessMs > 0) {
+            try {
+                Thread.sleep(mProcessMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
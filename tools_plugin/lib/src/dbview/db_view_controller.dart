@@ -13,10 +13,12 @@
 // limitations under the License.
 
 import 'dart:io';
+import 'dart:typed_data';
 
 import 'package:flutter/cupertino.dart';
 import 'package:k_debug_tools/src/dbview/db_controller.dart';
 import 'package:k_debug_tools/src/dbview/db_view_models.dart';
+import 'package:k_debug_tools/src/dbview/native_db_controller.dart';
 import 'package:path_provider/path_provider.dart';
 
 ///数据库读写
@@ -41,6 +43,10 @@ class DbViewController {
 
   ///自动扫描应用内的.db文件
   Future<List<String>> scanDbFile() async {
+    //重新扫描时关闭平台端缓存的连接
+    if (NativeDbController.instance.isSupported) {
+      await NativeDbController.instance.close();
+    }
     //从应用内根目录开始找
     List<Directory> dirs = await _getAppDirs();
     List<String> files = [];
@@ -150,6 +156,12 @@ class DbViewController {
     if (_dbFileMap[dbId] == null) {
       return null;
     } else {
+      if (NativeDbController.instance.isSupported) {
+        TableInfo info = await _getNativeTableInfo(dbId, tableName);
+        if (info != null) {
+          return info;
+        }
+      }
       DbController dbController = DbController(_dbFileMap[dbId].path);
       int count = await dbController.getCount(tableName);
       List<TableColumn> columns = await dbController.getTableColumns(tableName);
@@ -159,6 +171,41 @@ class DbViewController {
     }
   }
 
+  ///平台端查询表信息, 结构和行数有缓存, 失败时返回null
+  Future<TableInfo> _getNativeTableInfo(String dbId, String tableName) async {
+    try {
+      Map ret = await NativeDbController.instance
+          .tableInfo(_dbFileMap[dbId].path, tableName);
+      if (ret['code'] != 0) {
+        debugPrint('native table info failed: ${ret['msg']}');
+        return null;
+      }
+      Map data = ret['data'];
+      return TableInfo(
+          dbId: dbId,
+          name: tableName,
+          count: data['count'],
+          countExact: data['countExact'],
+          paging: data['paging'],
+          columns: (data['columns'] as List)
+              .map((e) => TableColumn.fromJson(Map<String, dynamic>.from(e)))
+              .toList());
+    } catch (e) {
+      debugPrint('native table info failed: $e');
+      return null;
+    }
+  }
+
+  ///平台端分页查询表数据, 返回列式二进制
+  Future<Uint8List> getDbTablePage(String dbId, String tableName,
+      String after, int offset, int limit) async {
+    if (_dbFileMap[dbId] == null || !NativeDbController.instance.isSupported) {
+      return null;
+    }
+    return NativeDbController.instance.page(_dbFileMap[dbId].path, tableName,
+        after: after, offset: offset, limit: limit);
+  }
+
   ///查询数据库表数据
   Future<List<Map>> getDbTableData(
       String dbId, String tableName, int offset, int limit) async {
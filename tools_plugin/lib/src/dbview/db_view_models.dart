@@ -96,6 +96,8 @@ class TableInfo {
     this.dbId,
     this.columns,
     this.count,
+    this.countExact = true,
+    this.paging,
   });
 
   String name;
@@ -103,11 +105,19 @@ class TableInfo {
   List<TableColumn> columns;
   int count;
 
+  ///大表的行数为估算值
+  bool countExact;
+
+  ///keyset/offset 使用平台端的分页查询, 为空时使用data接口
+  String paging;
+
   factory TableInfo.fromJson(Map<String, dynamic> json) => TableInfo(
     name: json["name"],
     dbId: json["dbId"],
     columns: List<TableColumn>.from(json["columns"].map((x) => TableColumn.fromJson(x))),
     count: json["count"],
+    countExact: json["countExact"] ?? true,
+    paging: json["paging"],
   );
 
   Map<String, dynamic> toJson() => {
@@ -115,6 +125,8 @@ class TableInfo {
     "dbId": dbId,
     "columns": List<dynamic>.from(columns.map((x) => x.toJson())),
     "count": count,
+    "countExact": countExact,
+    "paging": paging,
   };
 }
 
@@ -0,0 +1,58 @@
+// Copyright 2021 Kwai, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+import 'dart:io';
+import 'dart:typed_data';
+
+import 'package:flutter/services.dart';
+
+///平台端的只读分页查询, 只支持android
+///按rowid/主键游标分页, 每页代价固定; 数据为列式二进制, 直接转发给web, 格式见DbPageEncoder
+class NativeDbController {
+  NativeDbController._privateConstructor();
+
+  static final NativeDbController instance =
+      NativeDbController._privateConstructor();
+
+  static const MethodChannel _channel = const MethodChannel('kdebugtools/dbview');
+
+  bool get isSupported => Platform.isAndroid;
+
+  ///表信息 {name, columns, count, countExact, paging}
+  Future<Map> tableInfo(String path, String table) async {
+    return await _channel
+        .invokeMethod('tableInfo', {'path': path, 'table': table});
+  }
+
+  ///一页数据 [after]为上一页返回的游标, 为空时跳过[offset]行
+  Future<Uint8List> page(String path, String table,
+      {String after, int offset = 0, int limit = 100}) async {
+    dynamic ret = await _channel.invokeMethod('page', {
+      'path': path,
+      'table': table,
+      'after': after,
+      'offset': offset,
+      'limit': limit
+    });
+    if (ret is Uint8List) {
+      return ret;
+    }
+    throw Exception((ret as Map)['msg']);
+  }
+
+  ///关闭连接 [path]为空时全部关闭
+  Future close([String path]) async {
+    return await _channel.invokeMethod('close', {'path': path});
+  }
+}
@@ -0,0 +1,53 @@
+// Copyright 2021 Kwai, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+import 'dart:io';
+
+import 'package:flutter/services.dart';
+
+///平台端的文件下载服务, 只支持android
+///文件用sendfile直接写入socket并支持Range, 文件夹边压缩边发送, 不经过dart isolate
+class NativeFileServer {
+  NativeFileServer._privateConstructor();
+
+  static final NativeFileServer instance =
+      NativeFileServer._privateConstructor();
+
+  static const MethodChannel _channel =
+      const MethodChannel('kdebugtools/file_server');
+
+  bool get isSupported => Platform.isAndroid;
+
+  ///登记路径 返回 {port, path}, 浏览器访问 http://host:port/path
+  ///[preferredPort]被占用时使用随机端口
+  Future<Map> register(String path,
+      {String mime, String name, bool attachment, int preferredPort}) async {
+    return await _channel.invokeMethod('register', {
+      'path': path,
+      'mime': mime,
+      'name': name,
+      'attachment': attachment ?? false,
+      'preferredPort': preferredPort
+    });
+  }
+
+  ///停止服务 已登记的路径全部失效
+  Future<Map> stop() async {
+    return await _channel.invokeMethod('stop');
+  }
+
+  Future<Map> state() async {
+    return await _channel.invokeMethod('state');
+  }
+}
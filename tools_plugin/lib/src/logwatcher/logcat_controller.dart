@@ -0,0 +1,72 @@
+// Copyright 2021 Kwai, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+import 'dart:io';
+import 'dart:typed_data';
+
+import 'package:flutter/services.dart';
+import 'package:k_debug_tools/src/webserver/handlers/ws_handler.dart';
+
+///app进程的logcat, 只支持android
+///平台端过滤后按批次发来二进制数据, 直接转发给web, 格式见LogcatStreamer
+class LogcatController {
+  LogcatController._privateConstructor();
+
+  static final LogcatController instance =
+      LogcatController._privateConstructor();
+
+  static const String MODULE = 'logwatcher';
+
+  ///与dart日志的cmd 1区分
+  static const int CMD_LOGCAT = 2;
+
+  static const MethodChannel _channel = const MethodChannel('kdebugtools/logcat');
+  static const BasicMessageChannel<ByteData> _dataChannel =
+      const BasicMessageChannel<ByteData>(
+          'kdebugtools/logcat_data', BinaryCodec());
+
+  bool get isSupported => Platform.isAndroid;
+
+  ///开始读取 filter: {level: V/D/I/W/E/F, tags: [], regex}
+  Future<Map> start(Map filter) async {
+    _dataChannel.setMessageHandler(_onBatch);
+    return await _channel.invokeMethod('start', filter);
+  }
+
+  Future<Map> stop() async {
+    return await _channel.invokeMethod('stop');
+  }
+
+  ///修改过滤条件 之后的批次和历史按新条件过滤
+  Future<Map> setFilter(Map filter) async {
+    return await _channel.invokeMethod('setFilter', filter);
+  }
+
+  ///环形缓冲中[since]之后的记录, 格式和批次相同
+  Future<Uint8List> history(int since) async {
+    return await _channel.invokeMethod('history', {'since': since});
+  }
+
+  Future<Map> state() async {
+    return await _channel.invokeMethod('state');
+  }
+
+  Future<ByteData> _onBatch(ByteData data) async {
+    if (data != null) {
+      WebSocketHandler.broadcastBinary(MODULE, CMD_LOGCAT,
+          data.buffer.asUint8List(data.offsetInBytes, data.lengthInBytes));
+    }
+    return null;
+  }
+}
@@ -14,6 +14,8 @@
 
 import 'dart:async';
 import 'dart:convert';
+import 'dart:io';
+import 'dart:typed_data';
 
 import 'package:flutter/cupertino.dart';
 import 'package:k_debug_tools/src/dbview/db_view_controller.dart';
@@ -43,6 +45,9 @@ class DbViewHandler extends AbsAppHandler {
     //table data
     router.get('/db/<id|[0-9]+>/table/<table|.*>/data', _dbTableData);
 
+    //table data, keyset paging, binary
+    router.get('/db/<id|[0-9]+>/table/<table|.*>/page', _dbTablePage);
+
     //delete
     router.post('/db/<id|[0-9]+>/table/<table|.*>/delete', _dbTableDelete);
 
@@ -122,6 +127,29 @@ class DbViewHandler extends AbsAppHandler {
     return ok(data);
   }
 
+  ///表数据 平台端按游标分页, 返回列式二进制
+  Future<Response> _dbTablePage(
+      Request request, String id, String table) async {
+    Map<String, String> params = request.url.queryParameters;
+    String after = params['after'];
+    int offset = int.tryParse(params['offset'] ?? '') ?? 0;
+    int limit = int.tryParse(params['limit'] ?? '') ?? 100;
+    try {
+      Uint8List bytes = await DbViewController.instance
+          .getDbTablePage(id, table, after, offset, limit);
+      if (bytes == null) {
+        return error('page not supported');
+      }
+      return Response.ok(bytes, headers: {
+        'Access-Control-Allow-Origin': '*',
+        HttpHeaders.contentLengthHeader: bytes.length.toString(),
+        HttpHeaders.contentTypeHeader: 'application/octet-stream'
+      });
+    } catch (e) {
+      return error('$e');
+    }
+  }
+
   ///删除数据
   Future<Response> _dbTableDelete(
       Request request, String id, String table) async {
@@ -20,7 +20,9 @@ import 'package:flutter/cupertino.dart';
 import 'package:http_server/http_server.dart';
 import 'package:k_debug_tools/src/fileexplorer/file_explorer.dart';
 import 'package:k_debug_tools/src/fileexplorer/file_explorer_models.dart';
+import 'package:k_debug_tools/src/fileexplorer/native_file_server.dart';
 import 'package:k_debug_tools/src/webserver/handlers/static_handler.dart';
+import 'package:k_debug_tools/src/webserver/web_server.dart';
 import 'package:mime/mime.dart';
 import 'package:path_provider/path_provider.dart';
 import 'package:shelf/shelf.dart';
@@ -59,6 +61,12 @@ class FileHandler extends AbsAppHandler {
   Future<Response> _read(Request request, String path) async {
     path = Uri.decodeFull(path);
     if (FileSystemEntity.isFileSync(path)) {
+      Response redirect = await _redirectToNative(request, path,
+          mime: await lookupMime(File(path),
+              useHeaderBytesForContentType: true));
+      if (redirect != null) {
+        return redirect;
+      }
       return createStaticFileHandler(path, useHeaderBytesForContentType: true)(
           request);
     } else {
@@ -134,6 +142,16 @@ class FileHandler extends AbsAppHandler {
       String path = Uri.decodeFull(request.url.queryParameters['path']);
       String name = path.substring(1 + path.lastIndexOf('/'));
       bool isDir = FileSystemEntity.isDirectorySync(path);
+      if (isDir || FileSystemEntity.isFileSync(path)) {
+        //文件夹由平台端边压缩边发送
+        Response redirect = await _redirectToNative(request, path,
+            mime: isDir ? 'application/zip' : ContentType.binary.value,
+            name: isDir ? '$name.zip' : name,
+            attachment: true);
+        if (redirect != null) {
+          return redirect;
+        }
+      }
       File file;
       //do zip
       if (isDir) {
@@ -170,6 +188,39 @@ class FileHandler extends AbsAppHandler {
     }
   }
 
+  ///android上重定向到平台端的文件服务, 支持Range且不占用dart isolate
+  ///不支持或失败时返回null, 由dart处理; native=0时不重定向
+  Future<Response> _redirectToNative(Request request, String path,
+      {String mime, String name, bool attachment = false}) async {
+    if (!NativeFileServer.instance.isSupported ||
+        request.url.queryParameters['native'] == '0') {
+      return null;
+    }
+    try {
+      //使用相邻的端口, 便于adb forward
+      Map ret = await NativeFileServer.instance.register(path,
+          mime: mime,
+          name: name,
+          attachment: attachment,
+          preferredPort: WebServer.instance.port + 1);
+      if (ret['code'] != 0) {
+        debugPrint('native file server failed: ${ret['msg']}');
+        return null;
+      }
+      Map data = ret['data'];
+      Uri location = Uri(
+          scheme: request.requestedUri.scheme,
+          host: request.requestedUri.host,
+          port: data['port'],
+          path: data['path']);
+      return Response.found(location,
+          headers: {'Access-Control-Allow-Origin': '*'});
+    } catch (e) {
+      debugPrint('native file server failed: $e');
+      return null;
+    }
+  }
+
   ///列出文件夹的内容
   Future<Response> _list(Request request) async {
     Map<String, Object> data = Map<String, Object>();
@@ -14,9 +14,12 @@
 
 import 'dart:async';
 import 'dart:convert';
+import 'dart:io';
+import 'dart:typed_data';
 
 import 'package:flutter/cupertino.dart';
 import 'package:k_debug_tools/src/logwatcher/log_watcher_controller.dart';
+import 'package:k_debug_tools/src/logwatcher/logcat_controller.dart';
 import 'package:shelf/shelf.dart';
 import 'package:shelf_router/shelf_router.dart' as shelf;
 
@@ -29,6 +32,11 @@ class LogWatcherHandler extends AbsAppHandler {
 
     router.post('/toggle', _toggle);
     router.get('/state', _state);
+    //app进程的logcat
+    router.post('/logcat/start', _logcatStart);
+    router.post('/logcat/stop', _logcatStop);
+    router.post('/logcat/filter', _logcatFilter);
+    router.get('/logcat/history', _logcatHistory);
 
     router.all('/<ignored|.*>', (Request request) => notFound());
 
@@ -48,6 +56,68 @@ class LogWatcherHandler extends AbsAppHandler {
   Future<Response> _state(Request request) async {
     Map<String, Object> data = Map<String, Object>();
     data['enable'] = LogWatcherController.instance.enable;
+    data['logcatSupported'] = LogcatController.instance.isSupported;
+    if (LogcatController.instance.isSupported) {
+      Map result = await LogcatController.instance.state();
+      data['logcat'] = result['data'];
+    }
     return ok(data);
   }
+
+  ///开始读取logcat body: {level: V/D/I/W/E/F, tags: [], regex}
+  ///之后通过websocket按批次推送, 新连接先通过history读取已有的记录
+  Future<Response> _logcatStart(Request request) async {
+    if (!LogcatController.instance.isSupported) {
+      return error('logcat only supported on android');
+    }
+    String bodyStr = await request.readAsString();
+    Map body = (bodyStr.isNotEmpty ? jsonDecode(bodyStr) : null) ?? {};
+    Map result = await LogcatController.instance.start(body);
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  Future<Response> _logcatStop(Request request) async {
+    if (!LogcatController.instance.isSupported) {
+      return error('logcat only supported on android');
+    }
+    Map result = await LogcatController.instance.stop();
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///修改过滤条件 body同start
+  Future<Response> _logcatFilter(Request request) async {
+    if (!LogcatController.instance.isSupported) {
+      return error('logcat only supported on android');
+    }
+    String bodyStr = await request.readAsString();
+    Map body = (bodyStr.isNotEmpty ? jsonDecode(bodyStr) : null) ?? {};
+    Map result = await LogcatController.instance.setFilter(body);
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///已缓存的logcat记录 query: since=序号, 返回二进制批次
+  Future<Response> _logcatHistory(Request request) async {
+    if (!LogcatController.instance.isSupported) {
+      return error('logcat only supported on android');
+    }
+    int since = int.tryParse(request.url.queryParameters['since'] ?? '') ?? 0;
+    Uint8List bytes = await LogcatController.instance.history(since);
+    return Response.ok(bytes, headers: {
+      'Access-Control-Allow-Origin': '*',
+      HttpHeaders.contentLengthHeader: bytes.length.toString(),
+      HttpHeaders.contentTypeHeader: 'application/octet-stream'
+    });
+  }
 }
@@ -13,6 +13,7 @@
 // limitations under the License.
 
 import 'dart:async';
+import 'dart:convert';
 import 'dart:io';
 import 'dart:typed_data';
 import 'package:intl/intl.dart';
@@ -20,6 +21,7 @@ import 'package:flutter/cupertino.dart';
 import 'package:flutter/material.dart';
 import 'package:flutter/rendering.dart';
 import 'package:flutter/services.dart';
+import 'package:k_debug_tools/k_debug_tools.dart';
 import 'package:k_debug_tools/src/webserver/handlers/ws_handler.dart';
 import 'package:path_provider/path_provider.dart';
 import 'package:shelf/shelf.dart';
@@ -31,6 +33,7 @@ import 'package:stream_channel/stream_channel.dart';
 import '../handler_def.dart';
 
 const String JpgBoundaryTag = 'boundaryaaaaaxiba'; //随机字符串 用于分割响应内容
+const String PreviewFormatJpeg = 'jpeg'; //默认预览格式, mjpeg只支持jpeg
 
 class ScreenRecorderHandler extends AbsAppHandler {
   static const MethodChannel _recordChannel =
@@ -38,28 +41,77 @@ class ScreenRecorderHandler extends AbsAppHandler {
   static const String MODULE = 'screenrecorder';
   static const int CMD_STATE = 0;
   static const int CMD_KEEP_ALIVE = 1;
+  static const int CMD_METRICS = 2;
+
+  ///进程指标 与预览一起开启
+  static const MethodChannel _metricsChannel =
+      const MethodChannel('kdebugtools/process_metrics');
+
+  ///已发给web的最后一批指标
+  int _metricsSeq = 0;
 
   OnSocketData _onData;
   Timer _closeWatcher;
 
   List<StreamChannel<List<int>>> _previewCgiRequests =
       <StreamChannel<List<int>>>[];
-  List<WebSocketChannel> _previewWs = <WebSocketChannel>[];
+  ///websocket连接和协商后的预览格式、屏幕
+  Map<WebSocketChannel, _PreviewClient> _previewWs =
+      <WebSocketChannel, _PreviewClient>{};
+
+  ///已通知过平台端的副屏, 连接全部断开后还需要通知一次
+  Set<int> _previewDisplays = <int>{};
+
+  ///平台端支持的预览格式
+  List<String> _supportedFormats;
+
+  ///录制流
+  StreamController<List<int>> _recordStream;
+  String _recordStreamId;
+  String _recordStreamMime;
+  ServerSocket _recordStreamServer;
 
   @override
   shelf.Router get router {
     final router = shelf.Router();
 
     router.get('/state', _recordStat);
+    router.get('/encoderCapabilities', _encoderCapabilities);
     //preview websocket todo 目前flutter web使用mjpeg有bug xhr直接阻塞了 或者onprogress中reponse数据为空 提供websocket进行推送
     router.get('/previewws/<ws|.*>', ws.webSocketHandler(_handlePreviewWs));
     router.get('/previewcgi/<name|.*>', _previewCgi);
     //截图
     router.post('/takeCapture', _takeCapture);
+    router.post('/warmUp', _warmUp);
     router.post('/startPreview', _startPreview);
     router.post('/stopPreview', _stopPreview);
+    //多屏 副屏通过窗口抓取
+    router.get('/displays', _displays);
+    router.post('/startDisplayPreview', _startDisplayPreview);
+    router.post('/stopDisplayPreview', _stopDisplayPreview);
     router.post('/startRecordToFile', _startRecordToFile);
     router.post('/stopRecordToFile', _stopRecordToFile);
+    //边录边下载
+    router.post('/startRecordToStream', _startRecordToStream);
+    router.get('/recordStream', _recordStreamDownload);
+    router.post('/pauseRecord', _pauseRecord);
+    //录制视频的关键帧索引和缩略图
+    router.get('/recordingIndex', _recordingIndex);
+    //宿主的渲染帧耗时
+    router.get('/recordingTiming', _recordingTiming);
+    router.get('/frameTimings', _frameTimings);
+    router.post('/resumeRecord', _resumeRecord);
+    //连拍
+    router.post('/startBurst', _startBurst);
+    router.post('/stopBurst', _stopBurst);
+    router.post('/exportBurstFrame', _exportBurstFrame);
+    //降级阶梯
+    router.post('/setGovernorLadder', _setGovernorLadder);
+    router.post('/setMemoryBudget', _setMemoryBudget);
+    //画面静止后补发高质量帧
+    router.post('/setPreviewRefine', _setPreviewRefine);
+    //感兴趣区域
+    router.post('/setRegion', _setRegion);
 
     router.all('/<ignored|.*>', (Request request) => notFound());
 
@@ -67,27 +119,77 @@ class ScreenRecorderHandler extends AbsAppHandler {
   }
 
   ///投屏预览 websocket连接
+  ///连接后客户端可以发送 {"formats": ["webp", "jpeg"], "displayId": 1} 按优先级声明接受的格式和要看的屏幕
+  ///未声明时使用jpeg和主屏
   void _handlePreviewWs(WebSocketChannel webSocket) {
     debugPrint('preview ws onConnect');
-    _previewWs.add(webSocket);
+    _previewWs[webSocket] = _PreviewClient();
+    _updatePreviewClients(keyFrame: true);
     //立即输入第一张图
-    _recordChannel.invokeMethod('lastPreviewJpg').then((jpgBytes) {
-      if (jpgBytes != null && jpgBytes is Uint8List) {
-        debugPrint('write lastPreviewJpg to ws...');
-        _sendPreviewJpgToWs(jpgBytes, webSocket.sink);
+    _sendLastPreviewToWs(webSocket);
+    webSocket.stream.listen((m) {
+      if (m is String) {
+        _negotiatePreviewFormat(webSocket, m);
       }
-    });
-    webSocket.stream.listen((m) {})
+    })
       ..onDone(() {
         debugPrint('preview ws onDone');
         _previewWs.remove(webSocket);
+        _updatePreviewClients();
       })
       ..onError((e) {
         debugPrint('preview ws onError, $e');
         _previewWs.remove(webSocket);
+        _updatePreviewClients();
       });
   }
 
+  ///选择客户端接受的第一个平台端支持的格式, 结果通过 {"format": "webp"} 返回给客户端
+  Future _negotiatePreviewFormat(WebSocketChannel webSocket, String msg) async {
+    Map body;
+    try {
+      body = jsonDecode(msg);
+    } catch (e) {
+      debugPrint('preview ws bad message, $e');
+      return;
+    }
+    List accepts = body['formats'] ?? [];
+    if (_supportedFormats == null) {
+      var result = await _recordChannel.invokeMethod('previewFormats');
+      _supportedFormats = List<String>.from(result['data']['formats'] ?? []);
+    }
+    String format = accepts.firstWhere((f) => _supportedFormats.contains(f),
+        orElse: () => PreviewFormatJpeg);
+    _PreviewClient client = _previewWs[webSocket];
+    if (client == null) {
+      return;
+    }
+    client.displayId = body['displayId'] ?? client.displayId;
+    debugPrint('preview ws format: $format, display: ${client.displayId}');
+    client.format = format;
+    webSocket.sink.add(jsonEncode({'format': format}));
+    _updatePreviewClients(keyFrame: true);
+    _sendLastPreviewToWs(webSocket);
+  }
+
+  ///按客户端的格式发送最后一帧
+  void _sendLastPreviewToWs(WebSocketChannel webSocket) {
+    _PreviewClient client = _previewWs[webSocket];
+    if (client == null) {
+      return;
+    }
+    String format = client.format;
+    _recordChannel.invokeMethod('lastPreviewJpg',
+        {'format': format, 'displayId': client.displayId}).then(
+        (bytes) {
+      if (bytes != null && bytes is Uint8List) {
+        debugPrint('write last preview $format to ws...');
+        _sendPreviewFrameToWs(bytes, webSocket.sink,
+            meta: _PreviewFrameMeta.last(format));
+      }
+    });
+  }
+
   ///状态
   Future<Response> _recordStat(Request request) async {
     var state = await _recordChannel.invokeMethod('state');
@@ -101,9 +203,31 @@ class ScreenRecorderHandler extends AbsAppHandler {
     }
   }
 
+  ///编码器能力
+  Future<Response> _encoderCapabilities(Request request) async {
+    var result = await _recordChannel.invokeMethod('encoderCapabilities');
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///预热 加载编码器列表和jpeg编码 缩短开启预览后第一帧的时间
+  Future<Response> _warmUp(Request request) async {
+    var result = await _recordChannel.invokeMethod('warmUp');
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
   ///开启预览
   Future<Response> _startPreview(Request request) async {
     Map result = await _recordChannel.invokeMethod('startPreview');
+    //重新开启时可能已经有连接
+    _updatePreviewClients();
     //register data callback
     _recordChannel.setMethodCallHandler(handleMethodCall);
     _onData ??= (m) {
@@ -111,10 +235,12 @@ class ScreenRecorderHandler extends AbsAppHandler {
       if (m.cmd == CMD_KEEP_ALIVE) {
         //send state
         _sendRecorderState();
+        _sendProcessMetrics();
       }
     };
     _setupCloseWatcher();
     WebSocketHandler.registerSub(MODULE, _onData);
+    _metricsChannel.invokeMethod('start');
     if (result['code'] == 0) {
       //success
       return ok(result);
@@ -169,25 +295,32 @@ class ScreenRecorderHandler extends AbsAppHandler {
 
       //socket保存起来 后面更新后还要发送
       _previewCgiRequests.add(socket);
+      _updatePreviewClients();
 
       //监听断开 之后不再发送
       socket.stream.listen((dt) {}, onDone: () {
         debugPrint('previewCgi request onDone');
         _previewCgiRequests.remove(socket);
+        _updatePreviewClients();
       }, onError: (e) {
         debugPrint('previewCgi request onError $e');
         _previewCgiRequests.remove(socket);
+        _updatePreviewClients();
       }, cancelOnError: true);
     });
     return null;
   }
 
-  ///发送图像给websocket
-  void _sendPreviewJpgToWs(Uint8List jpgBytes, WebSocketSink sink) {
+  ///发送图像给websocket, 帧信息以chunk扩展的形式跟在长度后面: 长度;fmt=jpeg;fid=1;cts=...\r\n
+  void _sendPreviewFrameToWs(Uint8List jpgBytes, WebSocketSink sink,
+      {_PreviewFrameMeta meta}) {
     if (jpgBytes != null && jpgBytes is Uint8List && jpgBytes.length > 0) {
       BytesBuilder jpgBoundary = BytesBuilder(copy: true);
       jpgBoundary
           .add(jpgBytes.length.toRadixString(16).toUpperCase().codeUnits);
+      if (meta != null) {
+        jpgBoundary.add(meta.toChunkExtension().codeUnits);
+      }
       jpgBoundary.add('\r\n'.codeUnits);
       jpgBoundary.add(jpgBytes);
       jpgBoundary.add('\r\n'.codeUnits);
@@ -197,14 +330,18 @@ class ScreenRecorderHandler extends AbsAppHandler {
   }
 
   ///发送图像给cgi请求
-  void _sendPreviewJpgToRequest(
-      Uint8List jpgBytes, StreamSink<List<int>> sink) {
+  void _sendPreviewJpgToRequest(Uint8List jpgBytes, StreamSink<List<int>> sink,
+      {_PreviewFrameMeta meta}) {
     if (jpgBytes != null && jpgBytes is Uint8List && jpgBytes.length > 0) {
       BytesBuilder jpgBoundary = BytesBuilder(copy: true);
 
       jpgBoundary.add('--$JpgBoundaryTag\r\n'.codeUnits);
       jpgBoundary.add('Content-Type: image/jpeg\r\n'.codeUnits);
       jpgBoundary.add('Content-Length: ${jpgBytes.length}\r\n'.codeUnits);
+      if (meta != null) {
+        jpgBoundary.add('X-Frame-Id: ${meta.frameId}\r\n'.codeUnits);
+        jpgBoundary.add('X-Capture-Ts: ${meta.captureTs}\r\n'.codeUnits);
+      }
       jpgBoundary.add('\r\n'.codeUnits);
       jpgBoundary.add(jpgBytes);
       jpgBoundary.add('\r\n'.codeUnits);
@@ -228,11 +365,45 @@ class ScreenRecorderHandler extends AbsAppHandler {
       if (_previewCgiRequests.isEmpty && _previewWs.isEmpty) {
         debugPrint('Client not alive, stop preview ');
         _recordChannel.invokeMethod('stopPreview');
+        _metricsChannel.invokeMethod('stop');
         _closeWatcher?.cancel();
       }
     });
   }
 
+  ///按屏幕通知平台端预览连接数和使用中的格式 没有连接时平台端会暂停抓取
+  ///[keyFrame] 有新连接, 增量格式需要重新发送完整画面
+  void _updatePreviewClients({bool keyFrame = false}) {
+    Map<int, List<_PreviewClient>> byDisplay = <int, List<_PreviewClient>>{};
+    byDisplay[0] = <_PreviewClient>[];
+    //连接已全部断开的副屏通知数量为0
+    _previewDisplays.forEach((id) => byDisplay[id] = <_PreviewClient>[]);
+    _previewWs.values.forEach((client) {
+      byDisplay.putIfAbsent(client.displayId, () => <_PreviewClient>[]);
+      byDisplay[client.displayId].add(client);
+    });
+    byDisplay.forEach((displayId, clients) {
+      Set<String> formats = clients.map((c) => c.format).toSet();
+      int count = clients.length;
+      //mjpeg只能看主屏
+      if (displayId == 0) {
+        count += _previewCgiRequests.length;
+        if (_previewCgiRequests.isNotEmpty) {
+          formats.add(PreviewFormatJpeg);
+        }
+      }
+      _recordChannel.invokeMethod('setPreviewClients', {
+        'displayId': displayId,
+        'count': count,
+        'formats': formats.toList(),
+        'keyFrame': keyFrame
+      });
+    });
+    _previewDisplays = byDisplay.keys
+        .where((id) => id != 0 && byDisplay[id].isNotEmpty)
+        .toSet();
+  }
+
   ///发送状态信息给web 收到心跳后调用
   Future _sendRecorderState() async {
     var state = await _recordChannel.invokeMethod('state');
@@ -241,18 +412,53 @@ class ScreenRecorderHandler extends AbsAppHandler {
     WebSocketHandler.broadcastJson(MODULE, CMD_STATE, data);
   }
 
+  ///发送新的进程指标给web, 随心跳每秒一次
+  ///data按行与上一行做差, 见ProcessMetricsSampler.getBatch
+  Future _sendProcessMetrics() async {
+    var result =
+        await _metricsChannel.invokeMethod('batch', {'since': _metricsSeq});
+    if (result['code'] != 0) {
+      return;
+    }
+    Map data = result['data'] as Map;
+    _metricsSeq = data['seq'];
+    if (data['rows'] > 0) {
+      WebSocketHandler.broadcastJson(MODULE, CMD_METRICS, data);
+    }
+  }
+
   ///处理平台端发来的调用
   Future<dynamic> handleMethodCall(MethodCall call) {
 //    debugPrint('handleMethodCall >>> ${call.method}');
     if (call.method == 'onPreviewData') {
-      //发送给websocket
-      _previewWs.forEach((element) {
-        _sendPreviewJpgToWs(call.arguments['data'], element.sink);
+      _PreviewFrameMeta meta = _PreviewFrameMeta.fromArguments(call.arguments);
+      //发送给看该屏幕且使用该格式的websocket
+      _previewWs.forEach((element, client) {
+        if (client.displayId == meta.displayId &&
+            client.format == meta.format) {
+          _sendPreviewFrameToWs(call.arguments['data'], element.sink,
+              meta: meta);
+        }
       });
       //发送给cgi请求
-      _previewCgiRequests.forEach((element) {
-        _sendPreviewJpgToRequest(call.arguments['data'], element.sink);
-      });
+      if (meta.displayId == 0 && meta.format == PreviewFormatJpeg) {
+        _previewCgiRequests.forEach((element) {
+          _sendPreviewJpgToRequest(call.arguments['data'], element.sink,
+              meta: meta);
+        });
+      }
+      return Future.value(0);
+    } else if (call.method == 'onRecordChunk') {
+      StreamController<List<int>> controller = _recordStream;
+      if (controller != null && call.arguments['id'] == _recordStreamId) {
+        Uint8List data = call.arguments['data'];
+        if (data != null && data.isNotEmpty) {
+          controller.add(data);
+        }
+        if (call.arguments['eos'] == true) {
+          controller.close();
+        }
+      }
       return Future.value(0);
     }
     return Future.value("ok");
@@ -261,6 +467,7 @@ class ScreenRecorderHandler extends AbsAppHandler {
   ///结束预览
   Future<Response> _stopPreview(Request request) async {
     var result = await _recordChannel.invokeMethod('stopPreview');
+    _metricsChannel.invokeMethod('stop');
     WebSocketHandler.unregisterSub(MODULE, _onData);
     if (result['code'] == 0) {
       return ok(result['data']);
@@ -269,12 +476,55 @@ class ScreenRecorderHandler extends AbsAppHandler {
     }
   }
 
+  ///屏幕列表 副屏需要有窗口才能抓取
+  Future<Response> _displays(Request request) async {
+    var result = await _recordChannel.invokeMethod('displays');
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///开启副屏预览 body: displayId
+  ///副屏的帧也通过onPreviewData回调, 需要先开启主屏预览注册回调
+  Future<Response> _startDisplayPreview(Request request) async {
+    String bodyStr = await request.readAsString();
+    Map body = (bodyStr.isNotEmpty ? jsonDecode(bodyStr) : null) ?? {};
+    _recordChannel.setMethodCallHandler(handleMethodCall);
+    var result = await _recordChannel
+        .invokeMethod('startDisplayPreview', {'displayId': body['displayId']});
+    if (result['code'] == 0) {
+      //可能已经有连接
+      _updatePreviewClients(keyFrame: true);
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///结束副屏预览 body: displayId
+  Future<Response> _stopDisplayPreview(Request request) async {
+    String bodyStr = await request.readAsString();
+    Map body = (bodyStr.isNotEmpty ? jsonDecode(bodyStr) : null) ?? {};
+    var result = await _recordChannel
+        .invokeMethod('stopDisplayPreview', {'displayId': body['displayId']});
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
   ///开始录入文件
+  ///body: 编码参数 见[_recordConfigArgs]
   Future<Response> _startRecordToFile(Request request) async {
-    var result = await _recordChannel.invokeMethod('startRecordToFile', {
-      "fileAbsolutePath": await _recordFilePath(
-          DateFormat('yyyy-MM-dd HH:mm:ss').format((DateTime.now())) + '.mp4')
-    });
+    String bodyStr = await request.readAsString();
+    Map body = (bodyStr.isNotEmpty ? jsonDecode(bodyStr) : null) ?? {};
+    Map<String, dynamic> args = _recordConfigArgs(body);
+    args['fileAbsolutePath'] = await _recordFilePath(
+        DateFormat('yyyy-MM-dd HH:mm:ss').format((DateTime.now())) + '.mp4');
+    var result = await _recordChannel.invokeMethod('startRecordToFile', args);
     if (result['code'] == 0) {
       return ok(result['data']);
     } else {
@@ -282,6 +532,96 @@ class ScreenRecorderHandler extends AbsAppHandler {
     }
   }
 
+  ///编码参数 {preset: default/screenContent, mimeType: avc/hevc, bitrateMode: cbr/vbr/cq,
+  ///bitrate, quality, profile, level, keyFrameInterval} 均可选
+  Map<String, dynamic> _recordConfigArgs(Map body) {
+    Map<String, dynamic> args = {};
+    for (String key in const [
+      'preset',
+      'mimeType',
+      'bitrateMode',
+      'bitrate',
+      'quality',
+      'profile',
+      'level',
+      'keyFrameInterval'
+    ]) {
+      if (body[key] != null) {
+        args[key] = body[key];
+      }
+    }
+    return args;
+  }
+
+  ///开始录制到流 不落盘, 通过GET recordStream边录边下载 结束仍然调用stopRecordToFile
+  ///body: {sink: socket/chunk, 以及编码参数}
+  ///socket: 平台端连接本机ServerSocket写入 chunk: 平台端通过onRecordChunk分块回调
+  Future<Response> _startRecordToStream(Request request) async {
+    String bodyStr = await request.readAsString();
+    Map body = (bodyStr.isNotEmpty ? jsonDecode(bodyStr) : null) ?? {};
+    String sink = body['sink'] == 'chunk' ? 'chunk' : 'socket';
+    _closeRecordStream();
+    //下载请求到来之前的数据缓存在controller中
+    StreamController<List<int>> controller = StreamController<List<int>>();
+    String id = DateTime.now().millisecondsSinceEpoch.toString();
+    _recordStream = controller;
+    _recordStreamId = id;
+    Map<String, dynamic> args = _recordConfigArgs(body);
+    args['sink'] = sink;
+    args['id'] = id;
+    if (sink == 'socket') {
+      ServerSocket server =
+          await ServerSocket.bind(InternetAddress.loopbackIPv4, 0);
+      _recordStreamServer = server;
+      args['port'] = server.port;
+      server.first.then((socket) {
+        server.close();
+        controller.addStream(socket).whenComplete(() => controller.close());
+      }).catchError((e) {
+        debugPrint('record stream accept error $e');
+      });
+    }
+    var result = await _recordChannel.invokeMethod('startRecordToStream', args);
+    if (result['code'] == 0) {
+      Map data = result['data'] as Map;
+      _recordStreamMime = (data['config'] as Map)['mimeType'];
+      data['url'] = 'recordStream';
+      return ok(data);
+    } else {
+      _closeRecordStream();
+      return error(result['msg']);
+    }
+  }
+
+  ///边录边下载 只允许一个下载请求
+  Response _recordStreamDownload(Request request) {
+    StreamController<List<int>> controller = _recordStream;
+    if (controller == null || controller.hasListener) {
+      return notFound(msg: 'No Record Stream');
+    }
+    String ext = _recordStreamMime == 'video/hevc' ? 'h265' : 'h264';
+    return Response.ok(controller.stream,
+        headers: {
+          'content-type': 'video/$ext',
+          'content-disposition':
+              'attachment; filename="record-$_recordStreamId.$ext"',
+          'cache-control': 'no-cache',
+          'access-control-allow-origin': '*'
+        },
+        context: {'shelf.io.buffer_output': false});
+  }
+
+  void _closeRecordStream() {
+    _recordStreamServer?.close();
+    _recordStreamServer = null;
+    StreamController<List<int>> controller = _recordStream;
+    _recordStream = null;
+    _recordStreamId = null;
+    if (controller != null && !controller.isClosed) {
+      controller.close();
+    }
+  }
+
   ///结束录入文件
   Future<Response> _stopRecordToFile(Request request) async {
     var result = await _recordChannel.invokeMethod('stopRecordToFile');
@@ -293,6 +633,214 @@ class ScreenRecorderHandler extends AbsAppHandler {
     }
   }
 
+  ///录制视频的关键帧索引 query: path=视频路径
+  ///返回 {complete, width, height, keyframes: [{pts, offset, size, thumb}]} thumb为base64 jpg
+  Future<Response> _recordingIndex(Request request) async {
+    String path = request.url.queryParameters['path'];
+    if (path == null || path.isEmpty) {
+      return error('path required');
+    }
+    var result =
+        await _recordChannel.invokeMethod('recordingIndex', {"path": path});
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///录制视频的渲染帧耗时 query: path=视频路径
+  ///返回 {frames: [{pts, cts, renderTs, renderDur}], render: [endTs, dur, ...]} 单调时间 微秒
+  Future<Response> _recordingTiming(Request request) async {
+    String path = request.url.queryParameters['path'];
+    if (path == null || path.isEmpty) {
+      return error('path required');
+    }
+    var result =
+        await _recordChannel.invokeMethod('recordingTiming', {"path": path});
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///最近的渲染帧 query: sinceTs=单调时间 微秒, 只返回之后结束的帧
+  ///返回 {frames: [endTs, dur, ...], source, clockOffset}
+  Future<Response> _frameTimings(Request request) async {
+    int sinceTs = int.tryParse(request.url.queryParameters['sinceTs'] ?? '');
+    var result = await _recordChannel
+        .invokeMethod('frameTimings', {"sinceTs": sinceTs ?? 0});
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///暂停录制 编码器保持运行
+  Future<Response> _pauseRecord(Request request) async {
+    var result = await _recordChannel.invokeMethod('pauseRecord');
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///恢复录制
+  Future<Response> _resumeRecord(Request request) async {
+    var result = await _recordChannel.invokeMethod('resumeRecord');
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///开始连拍 body: {interval: 每N帧保存一帧, durationMs: 最长时长}
+  Future<Response> _startBurst(Request request) async {
+    String bodyStr = await request.readAsString();
+    Map body = (bodyStr.isNotEmpty ? jsonDecode(bodyStr) : null) ?? {};
+    var result = await _recordChannel.invokeMethod('startBurst', {
+      "fileAbsolutePath": await _recordFilePath('burst-' +
+          DateFormat('yyyy-MM-dd HH:mm:ss').format((DateTime.now())) +
+          '.kdbf'),
+      "interval": body['interval'] ?? 1,
+      "durationMs": body['durationMs'] ?? 0
+    });
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///结束连拍 返回文件路径和帧数
+  Future<Response> _stopBurst(Request request) async {
+    var result = await _recordChannel.invokeMethod('stopBurst');
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///导出连拍中的单帧到png body: {path: 连拍文件, index: 帧序号}
+  Future<Response> _exportBurstFrame(Request request) async {
+    Map body = jsonDecode(await request.readAsString());
+    String containerPath = body['path'];
+    int index = body['index'];
+    String name = containerPath.substring(containerPath.lastIndexOf('/') + 1);
+    var result = await _recordChannel.invokeMethod('exportBurstFrame', {
+      "containerPath": containerPath,
+      "index": index,
+      "fileAbsolutePath": await _recordFilePath('$name-$index.png')
+    });
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///设置降级阶梯 body: {levels: [{fps, scale, bitrate}]} 为空恢复默认
+  Future<Response> _setGovernorLadder(Request request) async {
+    String bodyStr = await request.readAsString();
+    Map body = (bodyStr.isNotEmpty ? jsonDecode(bodyStr) : null) ?? {};
+    var result = await _recordChannel
+        .invokeMethod('setGovernorLadder', {"levels": body['levels']});
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///设置画面静止多久后补发一次高质量帧 idleMs, <=0 不补发, 不传使用默认
+  Future<Response> _setPreviewRefine(Request request) async {
+    String bodyStr = await request.readAsString();
+    Map body = (bodyStr.isNotEmpty ? jsonDecode(bodyStr) : null) ?? {};
+    var result = await _recordChannel
+        .invokeMethod('setPreviewRefine', {"idleMs": body['idleMs']});
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///设置帧内存预算 limitMb, 不传使用默认
+  Future<Response> _setMemoryBudget(Request request) async {
+    String bodyStr = await request.readAsString();
+    Map body = (bodyStr.isNotEmpty ? jsonDecode(bodyStr) : null) ?? {};
+    var result = await _recordChannel
+        .invokeMethod('setMemoryBudget', {"limitMb": body['limitMb']});
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///设置感兴趣区域 只预览和录制屏幕中的一部分
+  ///body: {left, top, right, bottom} 相对屏幕的比例, 或者 {key} widget的key,
+  ///highRes: 是否按屏幕实际分辨率抓取, 都不传为整个屏幕
+  Future<Response> _setRegion(Request request) async {
+    String bodyStr = await request.readAsString();
+    Map body = (bodyStr.isNotEmpty ? jsonDecode(bodyStr) : null) ?? {};
+    Map<String, dynamic> args = {'highRes': body['highRes'] == true};
+    if (body['key'] != null) {
+      Rect rect = await _findWidgetRect(body['key'].toString());
+      if (rect == null) {
+        return error('widget not found: ${body['key']}');
+      }
+      Size screen = WidgetsBinding.instance.window.physicalSize /
+          WidgetsBinding.instance.window.devicePixelRatio;
+      args['left'] = (rect.left / screen.width).clamp(0.0, 1.0);
+      args['top'] = (rect.top / screen.height).clamp(0.0, 1.0);
+      args['right'] = (rect.right / screen.width).clamp(0.0, 1.0);
+      args['bottom'] = (rect.bottom / screen.height).clamp(0.0, 1.0);
+    } else {
+      for (String key in const ['left', 'top', 'right', 'bottom']) {
+        if (body[key] != null) {
+          args[key] = body[key];
+        }
+      }
+    }
+    var result = await _recordChannel.invokeMethod('setRegion', args);
+    if (result['code'] == 0) {
+      return ok(result['data']);
+    } else {
+      return error(result['msg']);
+    }
+  }
+
+  ///按key查找widget在屏幕上的区域 逻辑像素, key为ValueKey的值或者Key.toString()
+  Future<Rect> _findWidgetRect(String key) async {
+    Rect found;
+    void visit(Element e) {
+      if (found != null) {
+        return;
+      }
+      Key widgetKey = e.widget.key;
+      if (widgetKey != null &&
+          ((widgetKey is ValueKey && '${widgetKey.value}' == key) ||
+              widgetKey.toString() == key)) {
+        RenderObject renderObject = e.findRenderObject();
+        if (renderObject is RenderBox && renderObject.hasSize) {
+          found = renderObject.localToGlobal(Offset.zero) & renderObject.size;
+          return;
+        }
+      }
+      e.visitChildElements(visit);
+    }
+
+    BuildContext ctx = await Debugger.instance.appContext.future;
+    ctx.visitChildElements(visit);
+    return found;
+  }
+
   ///预览截图到png
   Future<Response> _takeCapture(Request request) async {
     var result = await _recordChannel.invokeMethod('takeCapture', {
@@ -325,3 +873,82 @@ class ScreenRecorderHandler extends AbsAppHandler {
     return '$path/screen/$name';
   }
 }
+
+///预览websocket客户端
+class _PreviewClient {
+  String format = PreviewFormatJpeg;
+
+  ///要看的屏幕 0为主屏
+  int displayId = 0;
+}
+
+///预览帧信息 时间均为墙上时间 微秒
+class _PreviewFrameMeta {
+  String format;
+
+  int displayId = 0;
+
+  ///画面静止后补发的高质量帧
+  bool refined = false;
+
+  int frameId;
+
+  ///抓取时间
+  int captureTs;
+
+  ///编码完成时间
+  int encodeTs;
+
+  ///平台端发出时间
+  int sendTs;
+
+  ///dart端收到时间
+  int recvTs;
+
+  ///上一个抓取帧到本帧之间宿主的渲染帧数量, 为null表示没有采集
+  int renderCount;
+
+  ///产生本帧画面的渲染帧耗时 微秒
+  int renderDur;
+
+  ///期间最长的渲染帧耗时 微秒
+  int renderMaxDur;
+
+  ///期间卡顿的渲染帧数量
+  int renderJank;
+
+  _PreviewFrameMeta.fromArguments(Map args) {
+    //平台端为单调时间 加上clockOffset转为墙上时间
+    int offset = args['clockOffset'] ?? 0;
+    format = args['format'] ?? PreviewFormatJpeg;
+    displayId = args['displayId'] ?? 0;
+    refined = args['refined'] ?? false;
+    frameId = args['frameId'] ?? 0;
+    captureTs = (args['captureTs'] ?? 0) + offset;
+    encodeTs = (args['encodeTs'] ?? 0) + offset;
+    sendTs = (args['sendTs'] ?? 0) + offset;
+    recvTs = DateTime.now().microsecondsSinceEpoch;
+    renderCount = args['renderCount'];
+    renderDur = args['renderDur'];
+    renderMaxDur = args['renderMaxDur'];
+    renderJank = args['renderJank'];
+  }
+
+  ///新连接补发的最后一帧, 只有格式
+  _PreviewFrameMeta.last(this.format);
+
+  String toChunkExtension() {
+    if (captureTs == null) {
+      return ';fmt=$format';
+    }
+    String ext =
+        ';fmt=$format${refined ? ';ref=1' : ''};fid=$frameId;cts=$captureTs;ets=$encodeTs;sts=$sendTs;rts=$recvTs';
+    if (renderCount != null) {
+      ext += ';rcnt=$renderCount';
+      if (renderCount > 0) {
+        ext += ';rdur=$renderDur;rmax=$renderMaxDur;rjk=$renderJank';
+      }
+    }
+    return ext;
+  }
+}
@@ -18,6 +18,7 @@ import 'dart:math';
 import 'package:flutter/material.dart';
 import 'package:flutter/widgets.dart';
 import 'package:http_multi_server/http_multi_server.dart';
+import 'package:k_debug_tools/src/fileexplorer/native_file_server.dart';
 import 'package:k_debug_tools/src/webserver/handlers/app_info_handler.dart';
 import 'package:k_debug_tools/src/webserver/handlers/db_view_handler.dart';
 import 'package:k_debug_tools/src/webserver/handlers/device_info_handler.dart';
@@ -122,6 +123,10 @@ class WebServer {
     _server = null;
     started.value = false;
     WebSocketHandler.disconnectAll();
+    //已登记的下载地址随服务失效
+    if (NativeFileServer.instance.isSupported) {
+      await NativeFileServer.instance.stop();
+    }
     return Future.value();
   }
 
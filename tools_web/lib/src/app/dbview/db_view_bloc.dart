@@ -141,6 +141,25 @@ class DbViewBloc extends AppBlocBase {
     }
   }
 
+  ///平台端分页的表数据 [after]为上一页的游标, 为空时跳过[offset]行
+  Future<DbTablePage> fetchTablePage(
+      String dbId, String tableName, String after, int offset, int limit) async {
+    var p = {
+      'offset': offset.toString(),
+      'limit': limit.toString(),
+    };
+    if (after != null) {
+      p['after'] = after;
+    }
+    Uri uri = Uri.http(getHost(), '$PATH/db/$dbId/table/$tableName/page', p);
+    var response = await httpGet(uri);
+    if (response.statusCode == 200) {
+      return DbTablePage.parse(response.bodyBytes);
+    } else {
+      return Future.error('failed');
+    }
+  }
+
   ///执行sql
   Future<ExecResult> executeSql(String dbId, String sql) async {
     Uri uri = Uri.http(getHost(), '$PATH/db/$dbId/execute');
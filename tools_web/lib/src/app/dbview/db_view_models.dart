@@ -12,6 +12,9 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
+import 'dart:convert';
+import 'dart:typed_data';
+
 ///数据库文件
 class DbFile {
   ///用path的hashcode作为id 后面操作需要使用
@@ -96,6 +99,8 @@ class TableInfo {
     this.dbId,
     this.columns,
     this.count,
+    this.countExact = true,
+    this.paging,
   });
 
   String name;
@@ -103,12 +108,20 @@ class TableInfo {
   List<TableColumn> columns;
   int count;
 
+  ///大表的行数为估算值
+  bool countExact;
+
+  ///keyset/offset 使用page接口, 为空时使用data接口
+  String paging;
+
   factory TableInfo.fromJson(Map<String, dynamic> json) => TableInfo(
         name: json["name"],
         dbId: json["dbId"],
         columns: List<TableColumn>.from(
             json["columns"].map((x) => TableColumn.fromJson(x))),
         count: json["count"],
+        countExact: json["countExact"] ?? true,
+        paging: json["paging"],
       );
 
   Map<String, dynamic> toJson() => {
@@ -116,9 +129,98 @@ class TableInfo {
         "dbId": dbId,
         "columns": List<dynamic>.from(columns.map((x) => x.toJson())),
         "count": count,
+        "countExact": countExact,
+        "paging": paging,
       };
 }
 
+///page接口返回的一页数据, 格式见插件的DbPageEncoder
+class DbTablePage {
+  static const int _MAGIC = 0x4B444442;
+  static const int _TYPE_INTEGER = 1;
+  static const int _TYPE_FLOAT = 2;
+  static const int _TYPE_STRING = 3;
+  static const int _TYPE_BLOB = 4;
+
+  List<Map> rows;
+
+  ///下一页的游标, 没有时为null
+  String next;
+  bool hasMore;
+  bool keyset;
+
+  DbTablePage({this.rows, this.next, this.hasMore, this.keyset});
+
+  ///按列解码后组装为行
+  static DbTablePage parse(Uint8List bytes) {
+    ByteData data =
+        ByteData.view(bytes.buffer, bytes.offsetInBytes, bytes.length);
+    if (bytes.length < 14 || data.getUint32(0) != _MAGIC) {
+      throw Exception('bad page data');
+    }
+    int flags = data.getUint8(5);
+    int colCount = data.getUint16(6);
+    int rowCount = data.getUint32(8);
+    int nextLen = data.getUint16(12);
+    int pos = 14;
+    String next = nextLen > 0 ? _string(bytes, pos, nextLen) : null;
+    pos += nextLen;
+    List<String> names = <String>[];
+    for (var i = 0; i < colCount; i++) {
+      int len = data.getUint16(pos);
+      names.add(_string(bytes, pos + 2, len));
+      pos += 2 + len;
+    }
+    List<Map> rows = List<Map>.generate(rowCount, (_) => Map());
+    for (var c = 0; c < colCount; c++) {
+      int bodyLen = data.getUint32(pos);
+      pos += 4;
+      int typePos = pos;
+      int valuePos = pos + rowCount;
+      String name = names[c];
+      for (var r = 0; r < rowCount; r++) {
+        dynamic value;
+        switch (bytes[typePos + r]) {
+          case _TYPE_INTEGER:
+            //web端不支持getInt64, 超过53位会丢失精度
+            value = data.getInt32(valuePos) * 0x100000000 +
+                data.getUint32(valuePos + 4);
+            valuePos += 8;
+            break;
+          case _TYPE_FLOAT:
+            value = data.getFloat64(valuePos);
+            valuePos += 8;
+            break;
+          case _TYPE_STRING:
+            int len = data.getUint32(valuePos);
+            value = _string(bytes, valuePos + 4, len);
+            valuePos += 4 + len;
+            break;
+          case _TYPE_BLOB:
+            int len = data.getUint32(valuePos);
+            value = Uint8List.fromList(Uint8List.view(
+                bytes.buffer, bytes.offsetInBytes + valuePos + 4, len));
+            valuePos += 4 + len;
+            break;
+        }
+        rows[r][name] = value;
+      }
+      pos += bodyLen;
+    }
+    return DbTablePage(
+        rows: rows,
+        next: next,
+        hasMore: (flags & 1) != 0,
+        keyset: (flags & 2) != 0);
+  }
+
+  static String _string(Uint8List bytes, int pos, int len) {
+    return utf8.decode(
+        Uint8List.view(bytes.buffer, bytes.offsetInBytes + pos, len),
+        allowMalformed: true);
+  }
+}
+
 ///sql执行结果
 class ExecResult {
   ExecResult({
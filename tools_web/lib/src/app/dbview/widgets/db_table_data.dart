@@ -201,6 +201,15 @@ class DbTableDataSource extends DataTableSource {
   bool _fetching = false;
   Map<int, Map> data = Map<int, Map>();
 
+  //平台端游标分页 起始行 - 游标
+  final Map<int, String> _cursors = Map<int, String>();
+
+  //已读到最后一页时的准确行数
+  int _endIndex;
+
+  //已读取的最大行数, 估算行数偏小时用来继续翻页
+  int _loadedEnd = 0;
+
   // $row/$cel
   String _editingCell;
 
@@ -231,9 +240,7 @@ class DbTableDataSource extends DataTableSource {
     } else if (!_fetching) {
       _fetching = true;
       int offset = index - (index % rowsPerPage);
-      dbViewBloc
-          .fetchTableData(tableInfo.dbId, tableInfo.name, offset, rowsPerPage)
-          .then((list) {
+      _fetchPage(offset).then((list) {
         int i = offset;
         list.forEach((element) {
           data[i] = element;
@@ -252,6 +259,29 @@ class DbTableDataSource extends DataTableSource {
     return null;
   }
 
+  ///平台端分页时使用上一页返回的游标, 没有游标(跳页)时按offset查询
+  Future<List<Map>> _fetchPage(int offset) {
+    if (tableInfo.paging == null) {
+      return dbViewBloc.fetchTableData(
+          tableInfo.dbId, tableInfo.name, offset, rowsPerPage);
+    }
+    return dbViewBloc
+        .fetchTablePage(tableInfo.dbId, tableInfo.name, _cursors[offset],
+            offset, rowsPerPage)
+        .then((page) {
+      int end = offset + page.rows.length;
+      if (page.next != null) {
+        _cursors[end] = page.next;
+      }
+      if (page.hasMore) {
+        _loadedEnd = end > _loadedEnd ? end : _loadedEnd;
+      } else {
+        _endIndex = end;
+      }
+      return page.rows;
+    });
+  }
+
   List<DataCell> _createRowCells(int row) {
     List<DataCell> cells = <DataCell>[];
     for (int i = 0; i < tableInfo.columns.length; i++) {
@@ -341,16 +371,24 @@ class DbTableDataSource extends DataTableSource {
 
   @override
   bool get isRowCountApproximate {
-    return false;
+    return _endIndex == null && tableInfo?.countExact == false;
   }
 
   @override
   int get rowCount {
-    return tableInfo?.count ?? 0;
+    if (_endIndex != null) {
+      return _endIndex;
+    }
+    int count = tableInfo?.count ?? 0;
+    //估算值偏小时多显示一行, 以便翻到下一页
+    return _loadedEnd > 0 && _loadedEnd >= count ? _loadedEnd + 1 : count;
   }
 
   void refresh() {
     data.clear();
+    _cursors.clear();
+    _endIndex = null;
+    _loadedEnd = 0;
     itemPicker.clear();
     notifyListeners();
   }
@@ -12,6 +12,9 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
+import 'dart:convert';
+import 'dart:typed_data';
+
 const LogLevelTag = ['E', 'W', 'I', 'D', 'V'];
 enum LogLevel {
   error,
@@ -26,7 +29,75 @@ class LogEntry {
   int time;
   String msg;
 
-  LogEntry({this.level, this.time, this.msg});
+  ///logcat记录的序号, dart日志为null
+  int seq;
+
+  LogEntry({this.level, this.time, this.msg, this.seq});
+
+  ///解析app端logcat的二进制批次, 格式见LogcatStreamer
+  ///magic(4) count(4) dropped(4) | seq(8) time(8) tid(4) level(1) tagLen(2) tag msgLen(4) msg
+  static List<LogEntry> parseLogcatBatch(Uint8List bytes) {
+    List<LogEntry> list = <LogEntry>[];
+    ByteData data = ByteData.view(bytes.buffer, bytes.offsetInBytes, bytes.length);
+    if (bytes.length < 12 || data.getUint32(0) != 0x4B444C43) {
+      return list;
+    }
+    int count = data.getUint32(4);
+    int dropped = data.getUint32(8);
+    int pos = 12;
+    for (var i = 0; i < count && pos + 27 <= bytes.length; i++) {
+      int seq = _getUint64(data, pos);
+      int time = _getUint64(data, pos + 8);
+      int tid = data.getInt32(pos + 16);
+      int priority = data.getUint8(pos + 20);
+      int tagLen = data.getUint16(pos + 21);
+      pos += 23;
+      String tag = utf8.decode(
+          Uint8List.view(bytes.buffer, bytes.offsetInBytes + pos, tagLen),
+          allowMalformed: true);
+      pos += tagLen;
+      int msgLen = data.getUint32(pos);
+      pos += 4;
+      String msg = utf8.decode(
+          Uint8List.view(bytes.buffer, bytes.offsetInBytes + pos, msgLen),
+          allowMalformed: true);
+      pos += msgLen;
+      list.add(LogEntry(
+          level: _logcatLevel(priority),
+          time: time,
+          msg: '$tid $tag: $msg',
+          seq: seq));
+    }
+    if (dropped > 0) {
+      list.add(LogEntry(
+          level: LogLevel.warn.index,
+          time: DateTime.now().millisecondsSinceEpoch,
+          msg: 'logcat: $dropped lines dropped'));
+    }
+    return list;
+  }
+
+  ///web端不支持getInt64, 序号和时间都不超过53位
+  static int _getUint64(ByteData data, int pos) {
+    return data.getUint32(pos) * 0x100000000 + data.getUint32(pos + 4);
+  }
+
+  ///android.util.Log的级别 2-7
+  static int _logcatLevel(int priority) {
+    if (priority >= 6) {
+      return LogLevel.error.index;
+    }
+    switch (priority) {
+      case 5:
+        return LogLevel.warn.index;
+      case 4:
+        return LogLevel.info.index;
+      case 3:
+        return LogLevel.debug.index;
+      default:
+        return LogLevel.verbose.index;
+    }
+  }
 
   LogEntry.fromJson(Map<String, dynamic> json) {
     level = json['level'];
@@ -186,6 +186,38 @@ class _LogWatcherState extends State<LogWatcher> {
               _logWatcherBloc.clear();
             },
           ),
+          //app进程的logcat
+          if (_logWatcherBloc.isLogcatSupported)
+            ActionIcon(
+              Icons.android,
+              tooltip: _logWatcherBloc.isLogcatEnable
+                  ? 'Stop Logcat'
+                  : 'Start Logcat',
+              enable: true,
+              customColor: _logWatcherBloc.isLogcatEnable
+                  ? CustomColor.iconActionRed
+                  : CustomColor.iconActionGreen,
+              onTap: () {
+                _logWatcherBloc
+                    .setLogcatEnable(!_logWatcherBloc.isLogcatEnable);
+              },
+            ),
+          if (_logWatcherBloc.isLogcatEnable)
+            PopupMenuButton<String>(
+              tooltip: 'Logcat Level',
+              child: Padding(
+                padding: EdgeInsets.symmetric(horizontal: 4),
+                child: Text(_logWatcherBloc.logcatLevel),
+              ),
+              initialValue: _logWatcherBloc.logcatLevel,
+              onSelected: (level) {
+                _logWatcherBloc.setLogcatLevel(level);
+              },
+              itemBuilder: (context) => LogWatcherBloc.LOGCAT_LEVELS
+                  .map((level) =>
+                      PopupMenuItem<String>(value: level, child: Text(level)))
+                  .toList(),
+            ),
           //filter
           Expanded(child: _filterActionWidget()),
         ],
@@ -23,6 +23,8 @@ import 'package:k_debug_tools_web/src/bloc_provider.dart';
 import 'package:k_debug_tools_web/src/web_http.dart';
 import 'package:k_debug_tools_web/src/websocket/web_socket_bloc.dart';
 
+import '../model.dart';
+
 class LogWatcherBloc extends AppBlocBase {
   static const String PATH = 'api/logwatcher';
   BuildContext context;
@@ -34,6 +36,25 @@ class LogWatcherBloc extends AppBlocBase {
   ///是否启
   bool get isEnable => _enable;
 
+  static const int CMD_LOGCAT = 2;
+  static const List<String> LOGCAT_LEVELS = ['V', 'D', 'I', 'W', 'E'];
+
+  ///app端是否支持logcat 只有android
+  bool _logcatSupported = false;
+
+  bool get isLogcatSupported => _logcatSupported;
+
+  bool _logcatEnable = false;
+
+  bool get isLogcatEnable => _logcatEnable;
+
+  String _logcatLevel = LOGCAT_LEVELS.first;
+
+  String get logcatLevel => _logcatLevel;
+
+  ///实时收到的第一条logcat序号, 读取历史时只补充之前的记录
+  int _firstLiveSeq;
+
   OnSocketData _onData;
 
   int _st = 0;
@@ -79,6 +100,16 @@ class LogWatcherBloc extends AppBlocBase {
     _webSocketBloc = BlocProvider.of<WebSocketBloc>(context).first;
     _onData = (msg) {
       try {
+        if (msg.cmd == CMD_LOGCAT) {
+          //app端按批次发来的logcat
+          List<LogEntry> entries = LogEntry.parseLogcatBatch(msg.data);
+          if (entries.isNotEmpty) {
+            _firstLiveSeq ??= entries.first.seq;
+            _logList.addAll(entries);
+            _setStateDelayIfNotlimited();
+          }
+          return;
+        }
         LogEntry archive = LogEntry.fromJson(
             jsonDecode(utf8.decode(msg.data)) as Map<String, dynamic>);
         _logList.add(archive);
@@ -115,11 +146,66 @@ class LogWatcherBloc extends AppBlocBase {
     Uri uri = Uri.http(getHost(), '$PATH/state');
     var response = await httpGet(uri);
     Map<String, Object> jsonResponse = jsonDecode(response.body);
-    _enable = (jsonResponse['data'] as Map)['enable'] as bool;
+    Map data = jsonResponse['data'] as Map;
+    _enable = data['enable'] as bool;
+    _logcatSupported = data['logcatSupported'] ?? false;
+    _logcatEnable = (data['logcat'] ?? {})['running'] ?? false;
+    setState();
+    return Future.value();
+  }
+
+  ///开关logcat, 开启后先补充app端已缓存的记录
+  Future setLogcatEnable(bool enable) async {
+    Uri uri = Uri.http(getHost(), '$PATH/logcat/${enable ? 'start' : 'stop'}');
+    var response = await httpPost(uri, body: _logcatFilterBody());
+    if (response.statusCode != 200) {
+      return Future.error(
+          ErrorResult.create('Error', jsonDecode(response.body)));
+    }
+    _logcatEnable = enable;
+    if (enable) {
+      _firstLiveSeq = null;
+      await _loadLogcatHistory();
+    }
+    setState();
+    return Future.value();
+  }
+
+  ///logcat最低级别, 在app端过滤
+  Future setLogcatLevel(String level) async {
+    _logcatLevel = level;
+    if (!_logcatEnable) {
+      return Future.value();
+    }
+    Uri uri = Uri.http(getHost(), '$PATH/logcat/filter');
+    var response = await httpPost(uri, body: _logcatFilterBody());
+    if (response.statusCode != 200) {
+      return Future.error(
+          ErrorResult.create('Error', jsonDecode(response.body)));
+    }
     setState();
     return Future.value();
   }
 
+  Map _logcatFilterBody() {
+    return {'level': _logcatLevel};
+  }
+
+  Future _loadLogcatHistory() async {
+    Uri uri = Uri.http(getHost(), '$PATH/logcat/history');
+    var response = await httpGet(uri);
+    if (response.statusCode != 200) {
+      return Future.value();
+    }
+    List<LogEntry> history = LogEntry.parseLogcatBatch(response.bodyBytes)
+        .where((e) =>
+            e.seq == null || _firstLiveSeq == null || e.seq < _firstLiveSeq)
+        .toList();
+    //历史都在打开之前
+    _logList.insertAll(0, history);
+    return Future.value();
+  }
+
   ///关键字过滤
   void applyKeywordFilter(String text) {
     if (_keywordFilter != text) {
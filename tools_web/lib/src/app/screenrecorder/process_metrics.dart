@@ -0,0 +1,207 @@
+// Copyright 2021 Kwai, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+import 'dart:math' as math;
+
+import 'package:flutter/material.dart';
+
+///app端一次采样, 由ProcessMetricsSampler的批次还原
+class ProcessMetricsSample {
+  ///墙上时间 ms
+  int ts;
+
+  ///进程cpu 单核百分比
+  double cpu;
+
+  ///投屏链路cpu 单核百分比
+  double pipelineCpu;
+
+  ///采样线程自身cpu 单核百分比
+  double samplerCpu;
+  int javaHeapKb;
+  int nativeHeapKb;
+  int pssKb;
+
+  ///本次间隔内的gc次数
+  int gcCount;
+  int threadCount;
+
+  ///本次间隔内cpu最多的线程 [name, cpuMs]
+  List<MapEntry<String, int>> topThreads;
+}
+
+///进程指标 保留最近[capacity]个采样
+///批次格式: data为按行展开的columns, 第一行为原值, 之后每行为与上一行的差
+///threads每行为 count, tid, cpuMs...
+class ProcessMetrics {
+  final int capacity;
+  final List<ProcessMetricsSample> samples = <ProcessMetricsSample>[];
+  final Map<int, String> _threadNames = <int, String>{};
+
+  ///上一批最后一行的原值, 用于计算间隔
+  List<int> _lastRow;
+
+  ProcessMetrics({this.capacity = 120});
+
+  ProcessMetricsSample get last => samples.isEmpty ? null : samples.last;
+
+  void addBatch(Map batch) {
+    List<String> columns = List<String>.from(batch['columns'] ?? []);
+    List data = batch['data'] ?? [];
+    List threads = batch['threads'] ?? [];
+    int rows = batch['rows'] ?? 0;
+    int clockOffset = batch['clockOffset'] ?? 0;
+    Map names = batch['threadNames'] ?? {};
+    names.forEach((k, v) => _threadNames[int.tryParse('') ?? 0] = v);
+    if (columns.isEmpty || rows <= 0) {
+      return;
+    }
+    if ((batch['dropped'] ?? 0) > 0) {
+      //中间有丢失 第一行不能和上一批做差
+      _lastRow = null;
+    }
+    int width = columns.length;
+    int col(String name) => columns.indexOf(name);
+    int t = 0;
+    for (var r = 0; r < rows; r++) {
+      List<int> row = List<int>.filled(width, 0);
+      for (var c = 0; c < width; c++) {
+        int v = data[r * width + c];
+        row[c] = r == 0 ? v : v + _lastRow[c];
+      }
+      int count = threads.length > t ? threads[t++] : 0;
+      List<MapEntry<String, int>> top = <MapEntry<String, int>>[];
+      for (var i = 0; i < count; i++) {
+        int tid = threads[t++];
+        int cpuMs = threads[t++];
+        top.add(MapEntry(_threadNames[tid] ?? '', cpuMs));
+      }
+      List<int> prev = _lastRow;
+      _lastRow = row;
+      if (prev == null) {
+        //第一行没有间隔
+        continue;
+      }
+      int interval = math.max(1, row[col('ts')] - prev[col('ts')]);
+      double percent(String name) =>
+          math.max(0, row[col(name)] - prev[col(name)]) * 100.0 / interval;
+      ProcessMetricsSample sample = ProcessMetricsSample()
+        ..ts = row[col('ts')] + clockOffset
+        ..cpu = percent('cpuMs')
+        ..pipelineCpu = percent('pipelineCpuMs')
+        ..samplerCpu = percent('samplerCpuUs') / 1000
+        ..javaHeapKb = row[col('javaHeapKb')]
+        ..nativeHeapKb = row[col('nativeHeapKb')]
+        ..pssKb = row[col('pssKb')]
+        ..gcCount = math.max(0, row[col('gcCount')] - prev[col('gcCount')])
+        ..threadCount = row[col('threadCount')]
+        ..topThreads = top;
+      samples.add(sample);
+    }
+    if (samples.length > capacity) {
+      samples.removeRange(0, samples.length - capacity);
+    }
+  }
+
+  void clear() {
+    samples.clear();
+    _lastRow = null;
+  }
+}
+
+///进程cpu和内存的实时曲线
+class ProcessMetricsChart extends StatelessWidget {
+  final ProcessMetrics metrics;
+
+  ProcessMetricsChart(this.metrics);
+
+  @override
+  Widget build(BuildContext context) {
+    ProcessMetricsSample last = metrics.last;
+    if (last == null) {
+      return SizedBox.shrink();
+    }
+    String top = last.topThreads
+        .take(3)
+        .map((e) => '${e.key} ${e.value}ms')
+        .join(', ');
+    return Container(
+      height: 64,
+      padding: EdgeInsets.symmetric(horizontal: 8),
+      child: Row(
+        children: [
+          Expanded(
+            child: CustomPaint(
+              painter: _MetricsPainter(metrics.samples, metrics.capacity),
+              size: Size.infinite,
+            ),
+          ),
+          SizedBox(width: 8),
+          Text(
+            'cpu ${last.cpu.toStringAsFixed(0)}% (pipeline ${last.pipelineCpu.toStringAsFixed(0)}%, sampler ${last.samplerCpu.toStringAsFixed(1)}%)\n'
+            'java ${last.javaHeapKb ~/ 1024}MB native ${last.nativeHeapKb ~/ 1024}MB pss ${last.pssKb ~/ 1024}MB gc ${last.gcCount}\n'
+            '${last.threadCount} threads: $top',
+            style: Theme.of(context).textTheme.caption,
+          ),
+        ],
+      ),
+    );
+  }
+}
+
+class _MetricsPainter extends CustomPainter {
+  final List<ProcessMetricsSample> samples;
+  final int capacity;
+
+  _MetricsPainter(this.samples, this.capacity);
+
+  @override
+  void paint(Canvas canvas, Size size) {
+    if (samples.length < 2) {
+      return;
+    }
+    double maxCpu = samples.fold(100.0, (m, s) => math.max(m, s.cpu));
+    int maxHeap = samples.fold(
+        1, (m, s) => math.max(m, s.javaHeapKb + s.nativeHeapKb));
+    _drawLine(canvas, size, Colors.orange, (s) => s.cpu / maxCpu);
+    _drawLine(canvas, size, Colors.red, (s) => s.pipelineCpu / maxCpu);
+    _drawLine(canvas, size, Colors.blue,
+        (s) => (s.javaHeapKb + s.nativeHeapKb) / maxHeap);
+  }
+
+  void _drawLine(Canvas canvas, Size size, Color color,
+      double Function(ProcessMetricsSample) value) {
+    double step = size.width / math.max(1, capacity - 1);
+    double x = size.width - (samples.length - 1) * step;
+    Path path = Path();
+    for (var i = 0; i < samples.length; i++) {
+      double y = size.height * (1 - value(samples[i]).clamp(0.0, 1.0));
+      if (i == 0) {
+        path.moveTo(x, y);
+      } else {
+        path.lineTo(x, y);
+      }
+      x += step;
+    }
+    canvas.drawPath(
+        path,
+        Paint()
+          ..color = color
+          ..style = PaintingStyle.stroke
+          ..strokeWidth = 1);
+  }
+
+  @override
+  bool shouldRepaint(covariant CustomPainter oldDelegate) => true;
+}
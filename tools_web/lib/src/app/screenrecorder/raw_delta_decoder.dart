@@ -0,0 +1,103 @@
+// Copyright 2021 Kwai, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+import 'dart:typed_data';
+
+///raw-delta预览格式解码, 把变化的块合成到完整画面并输出为bmp, 可直接用Image.memory显示
+///格式(大端): magic(4) flags(1) width(2) height(2) count(2) | tile*
+///tile: x(2) y(2) w(2) h(2) rgba(w*h*4), flags bit0 为关键帧
+class RawDeltaDecoder {
+  static const int MAGIC = 0x4B445244; //KDRD
+  static const int FLAG_KEY_FRAME = 1;
+  static const int HEADER_SIZE = 11;
+  static const int BMP_HEADER_SIZE = 54;
+
+  int _width = 0;
+  int _height = 0;
+
+  ///bmp文件 像素为从上到下的BGRA
+  Uint8List _bmp;
+
+  ///解码一帧
+  ///返回完整画面的bmp, 数据无效或者还没有收到关键帧时返回null
+  Uint8List decode(Uint8List data) {
+    if (data.length < HEADER_SIZE) {
+      return null;
+    }
+    ByteData view =
+        data.buffer.asByteData(data.offsetInBytes, data.lengthInBytes);
+    if (view.getUint32(0) != MAGIC) {
+      return null;
+    }
+    bool keyFrame = (view.getUint8(4) & FLAG_KEY_FRAME) != 0;
+    int width = view.getUint16(5);
+    int height = view.getUint16(7);
+    int count = view.getUint16(9);
+    if (keyFrame && (width != _width || height != _height || _bmp == null)) {
+      _resize(width, height);
+    }
+    if (_bmp == null || width != _width || height != _height) {
+      //等待关键帧
+      return null;
+    }
+    int pos = HEADER_SIZE;
+    for (int i = 0; i < count; i++) {
+      if (pos + 8 > data.length) {
+        return null;
+      }
+      int x = view.getUint16(pos);
+      int y = view.getUint16(pos + 2);
+      int w = view.getUint16(pos + 4);
+      int h = view.getUint16(pos + 6);
+      pos += 8;
+      if (pos + w * h * 4 > data.length || x + w > _width || y + h > _height) {
+        return null;
+      }
+      for (int row = y; row < y + h; row++) {
+        int dst = BMP_HEADER_SIZE + (row * _width + x) * 4;
+        for (int col = 0; col < w; col++) {
+          //RGBA -> BGRA
+          _bmp[dst] = data[pos + 2];
+          _bmp[dst + 1] = data[pos + 1];
+          _bmp[dst + 2] = data[pos];
+          _bmp[dst + 3] = data[pos + 3];
+          dst += 4;
+          pos += 4;
+        }
+      }
+    }
+    //Image.memory需要新的数据才会刷新
+    return Uint8List.fromList(_bmp);
+  }
+
+  void _resize(int width, int height) {
+    _width = width;
+    _height = height;
+    int imageSize = width * height * 4;
+    _bmp = Uint8List(BMP_HEADER_SIZE + imageSize);
+    ByteData header = _bmp.buffer.asByteData();
+    //file header
+    header.setUint8(0, 0x42); //B
+    header.setUint8(1, 0x4D); //M
+    header.setUint32(2, _bmp.length, Endian.little);
+    header.setUint32(10, BMP_HEADER_SIZE, Endian.little);
+    //info header, 高度为负表示从上到下
+    header.setUint32(14, 40, Endian.little);
+    header.setInt32(18, width, Endian.little);
+    header.setInt32(22, -height, Endian.little);
+    header.setUint16(26, 1, Endian.little);
+    header.setUint16(28, 32, Endian.little);
+    header.setUint32(34, imageSize, Endian.little);
+  }
+}
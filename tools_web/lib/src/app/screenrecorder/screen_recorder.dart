@@ -26,6 +26,7 @@ import 'package:flutter_gen/gen_l10n/app_localizations.dart';
 
 import '../../app_window_bloc.dart';
 import '../../web_bloc.dart';
+import 'process_metrics.dart';
 import 'screen_recorder_bloc.dart';
 
 class ScreenRecorderWindow extends StatefulWidget {
@@ -75,6 +76,7 @@ class _ScreenRecorderState extends State<ScreenRecorder> {
     _screenBloc.fetchState().then((value) {
       setState(() {});
     });
+    _screenBloc.fetchDisplays().catchError((e) {});
     super.initState();
   }
 
@@ -89,6 +91,9 @@ class _ScreenRecorderState extends State<ScreenRecorder> {
               children: <Widget>[
                 //顶部菜单 action
                 _buildActionWidget(),
+                //预览期间app的cpu和内存
+                if (_screenBloc.isAppServiceRunning)
+                  ProcessMetricsChart(_screenBloc.processMetrics),
                 Expanded(child: _buildContentWidget()),
               ],
             ),
@@ -236,11 +241,44 @@ class _ScreenRecorderState extends State<ScreenRecorder> {
               _screenBloc.pausePreview();
             },
           ),
+          PopupMenuButton<String>(
+            tooltip: 'Preview Format',
+            icon: Icon(Icons.image),
+            enabled: _screenBloc.isAppServiceRunning,
+            initialValue: _screenBloc.previewFormat,
+            onSelected: (format) {
+              _screenBloc.setPreviewFormat(format);
+            },
+            itemBuilder: (context) => ScreenRecorderBloc.PREVIEW_FORMATS
+                .map((format) =>
+                    PopupMenuItem<String>(value: format, child: Text(format)))
+                .toList(),
+          ),
+          //多屏时选择要看的屏幕
+          if (_screenBloc.displays.length > 1)
+            PopupMenuButton<int>(
+              tooltip: 'Display',
+              icon: Icon(Icons.devices_other),
+              enabled: _screenBloc.isAppServiceRunning,
+              initialValue: _screenBloc.previewDisplayId,
+              onSelected: (displayId) {
+                _screenBloc.setPreviewDisplay(displayId).catchError((e) {
+                  _windowBloc
+                      .toast('${AppLocalizations.of(context).startFailed} $e');
+                });
+              },
+              itemBuilder: (context) => _screenBloc.displays
+                  .map((d) => PopupMenuItem<int>(
+                      value: d['displayId'],
+                      enabled: d['capturable'] ?? false,
+                      child: Text('${d['displayId']} ${d['name']}')))
+                  .toList(),
+            ),
           Expanded(
             child: Align(
               alignment: Alignment.centerRight,
               child: Text(
-                '$recordState ${_screenBloc.fps}fps/${_screenBloc.bps ~/ 1000}Kbps',
+                '$recordState ${_screenBloc.previewFormat} ${_screenBloc.fps}fps/${_screenBloc.bps ~/ 1000}Kbps${_screenBloc.lastFrameMeta != null ? '/${_screenBloc.lastFrameMeta.latency}ms' : ''}${_renderInfo()}',
                 style: Theme.of(context).textTheme.bodyText2,
               ),
             ),
@@ -250,6 +288,19 @@ class _ScreenRecorderState extends State<ScreenRecorder> {
     );
   }
 
+  ///产生当前画面的渲染帧耗时, 期间有卡顿时显示最长耗时
+  String _renderInfo() {
+    PreviewFrameMeta meta = _screenBloc.lastFrameMeta;
+    if (meta == null || meta.renderDur == null) {
+      return '';
+    }
+    String info = ' render ${(meta.renderDur / 1000).toStringAsFixed(1)}ms';
+    if ((meta.renderJank ?? 0) > 0) {
+      info += ' jank ${meta.renderJank}/${(meta.renderMaxDur / 1000).toStringAsFixed(1)}ms';
+    }
+    return info;
+  }
+
   void _startPreview() {
     if (!_screenBloc.isAppServiceRunning) {
       _windowBloc.toast(AppLocalizations.of(context).checkScreenPermission);
@@ -26,6 +26,8 @@ import 'package:web_socket_channel/html.dart';
 import 'package:web_socket_channel/status.dart' as status;
 
 import '../model.dart';
+import 'process_metrics.dart';
+import 'raw_delta_decoder.dart';
 
 class ScreenRecorderBloc extends AppBlocBase {
   static const String PATH = 'api/screenrecorder';
@@ -33,6 +35,16 @@ class ScreenRecorderBloc extends AppBlocBase {
 
   static const int CMD_STATE = 0;
   static const int CMD_KEEP_ALIVE = 1;
+  static const int CMD_METRICS = 2;
+
+  ///预览格式 jpeg/webp适合wifi, raw-delta不压缩 适合usb/adb forward
+  static const List<String> PREVIEW_FORMATS = [
+    'jpeg',
+    'webp',
+    'webp-lossless',
+    'raw-delta'
+  ];
+  static const String FORMAT_RAW_DELTA = 'raw-delta';
 
   HtmlWebSocketChannel _wsChannel;
   int _st = 0;
@@ -70,6 +82,34 @@ class ScreenRecorderBloc extends AppBlocBase {
 
   Uint8List get lastPreviewData => _lastPreviewData;
 
+  ///最后一帧的帧信息 从ws数据的chunk扩展中解析
+  PreviewFrameMeta _lastFrameMeta;
+
+  PreviewFrameMeta get lastFrameMeta => _lastFrameMeta;
+
+  ///期望的预览格式, 连接后发给app端协商
+  String _preferredFormat = PREVIEW_FORMATS.first;
+
+  ///协商后实际使用的格式
+  String _previewFormat = PREVIEW_FORMATS.first;
+
+  String get previewFormat => _previewFormat;
+
+  RawDeltaDecoder _rawDeltaDecoder;
+
+  ///预览期间app的进程指标
+  final ProcessMetrics processMetrics = ProcessMetrics();
+
+  ///正在看的屏幕 0为主屏
+  int _previewDisplayId = 0;
+
+  int get previewDisplayId => _previewDisplayId;
+
+  ///app端的屏幕列表
+  List _displays = [];
+
+  List get displays => _displays;
+
   ///app投屏服务是否启动
   bool get isAppServiceRunning => _isAppServiceRunning ?? false;
 
@@ -124,6 +164,10 @@ class ScreenRecorderBloc extends AppBlocBase {
         _isAppRecording = map['recording'];
         _dir = map['dir'];
         _stateSink.add(_st++);
+      } else if (m.cmd == CMD_METRICS) {
+        processMetrics
+            .addBatch(jsonDecode(utf8.decode(m.data)) as Map<String, dynamic>);
+        _stateSink.add(_st++);
       }
     };
     _webSocketBloc.registerSub(MODULE, _onWsData);
@@ -144,11 +188,27 @@ class ScreenRecorderBloc extends AppBlocBase {
     _wsChannel = HtmlWebSocketChannel.connect(
         "ws://${getHost()}/$PATH/previewws/?Pin=${getPin()}",
         binaryType: BinaryType.list);
+    _sendPreferredFormat();
     int start = -1;
     int end = -1;
     _wsChannel.stream.listen((dt) {
       _isAppServiceRunning = true;
+      if (dt is String) {
+        //格式协商结果
+        _onFormatNegotiated(dt);
+        return;
+      }
       var data = dt as Uint8List;
+      PreviewFrameMeta meta = PreviewFrameMeta.tryParse(data);
+      if (meta != null) {
+        _lastFrameMeta = meta;
+      }
+      PreviewChunk chunk = PreviewChunk.tryParse(data);
+      if (chunk != null) {
+        //声明了格式 按长度取出一帧
+        _onPreviewChunk(chunk);
+        return;
+      }
       for (var i = 0; i < data.length - 1; i++) {
         if (data[i] == 0xff && data[i + 1] == 0xd8) {
           start = _imgDataBuffer.length + i;
@@ -180,6 +240,82 @@ class ScreenRecorderBloc extends AppBlocBase {
       });
   }
 
+  ///设置期望的预览格式, app端不支持时退回jpeg
+  void setPreviewFormat(String format) {
+    _preferredFormat = format;
+    _sendPreferredFormat();
+  }
+
+  void _sendPreferredFormat() {
+    _wsChannel?.sink?.add(jsonEncode({
+      'formats': [_preferredFormat, PREVIEW_FORMATS.first],
+      'displayId': _previewDisplayId
+    }));
+  }
+
+  ///获取app端的屏幕列表
+  Future fetchDisplays() async {
+    Uri uri = Uri.http(getHost(), '$PATH/displays');
+    var response = await httpGet(uri);
+    if (response.statusCode == 200) {
+      Map<String, Object> jsonResponse = jsonDecode(response.body);
+      _displays = (jsonResponse['data'] as Map)['displays'] ?? [];
+      _stateSink.add(_st++);
+      return Future.value();
+    } else {
+      return Future.error(
+          ErrorResult.create('Error', jsonDecode(response.body)));
+    }
+  }
+
+  ///切换预览的屏幕, 副屏需要先在app端开启抓取
+  Future setPreviewDisplay(int displayId) async {
+    if (displayId != 0) {
+      Uri uri = Uri.http(getHost(), '$PATH/startDisplayPreview');
+      var response = await httpPost(uri, body: {'displayId': displayId});
+      if (response.statusCode != 200) {
+        return Future.error(
+            ErrorResult.create('Error', jsonDecode(response.body)));
+      }
+    }
+    _previewDisplayId = displayId;
+    _rawDeltaDecoder = null;
+    _sendPreferredFormat();
+    _stateSink.add(_st++);
+    return Future.value();
+  }
+
+  void _onFormatNegotiated(String msg) {
+    Map body = jsonDecode(msg) ?? {};
+    if (body['format'] != null) {
+      _previewFormat = body['format'];
+      _rawDeltaDecoder = null;
+      _stateSink.add(_st++);
+    }
+  }
+
+  void _onPreviewChunk(PreviewChunk chunk) {
+    Uint8List image = chunk.payload;
+    if (chunk.format == FORMAT_RAW_DELTA) {
+      _rawDeltaDecoder ??= RawDeltaDecoder();
+      image = _rawDeltaDecoder.decode(chunk.payload);
+    } else if (chunk.format != _previewFormat) {
+      //切换格式前发出的帧
+      return;
+    }
+    if (image == null) {
+      return;
+    }
+    _lastPreviewData = image;
+    if (!chunk.refined) {
+      //统计fps 码率按实际传输的数据, 补发的高质量帧不计入
+      _addFrame(FrameInfo(
+          ts: DateTime.now().millisecondsSinceEpoch,
+          length: chunk.payload.length));
+    }
+    _stateSink.add(_st++);
+  }
+
   ///暂停 断开ws
   void pausePreview() {
     _isWsPause = true;
@@ -220,6 +356,7 @@ class ScreenRecorderBloc extends AppBlocBase {
       Uri uri = Uri.http(getHost(), '$PATH/startPreview');
       var response = await httpPost(uri);
       if (response.statusCode == 200) {
+        processMetrics.clear();
         _startKeepAliveTimer();
         return Future.value();
       } else {
@@ -242,10 +379,11 @@ class ScreenRecorderBloc extends AppBlocBase {
     }
   }
 
-  ///录制到文件
-  Future startRecordToFile() async {
+  ///录制到文件 preset: default/screenContent, 为空使用默认参数
+  Future startRecordToFile({String preset}) async {
     Uri uri = Uri.http(getHost(), '$PATH/startRecordToFile');
-    var response = await httpPost(uri);
+    var response =
+        await httpPost(uri, body: preset == null ? {} : {'preset': preset});
     if (response.statusCode == 200) {
       _startRecordingTs = DateTime.now().millisecondsSinceEpoch;
       _stateSink.add(_st++);
@@ -257,6 +395,32 @@ class ScreenRecorderBloc extends AppBlocBase {
     }
   }
 
+  ///暂停录制
+  Future pauseRecord() async {
+    Uri uri = Uri.http(getHost(), '$PATH/pauseRecord');
+    var response = await httpPost(uri);
+    if (response.statusCode == 200) {
+      _stateSink.add(_st++);
+      return Future.value();
+    } else {
+      return Future.error(
+          ErrorResult.create('Error', jsonDecode(response.body)));
+    }
+  }
+
+  ///恢复录制
+  Future resumeRecord() async {
+    Uri uri = Uri.http(getHost(), '$PATH/resumeRecord');
+    var response = await httpPost(uri);
+    if (response.statusCode == 200) {
+      _stateSink.add(_st++);
+      return Future.value();
+    } else {
+      return Future.error(
+          ErrorResult.create('Error', jsonDecode(response.body)));
+    }
+  }
+
   ///停止录制到文件 返回文件路径
   Future<String> stopRecordToFile() async {
     Uri uri = Uri.http(getHost(), '$PATH/stopRecordToFile');
@@ -274,6 +438,44 @@ class ScreenRecorderBloc extends AppBlocBase {
     }
   }
 
+  ///设置感兴趣区域 比例或者widget的key, 都为空时恢复整个屏幕
+  Future setRegion(
+      {double left,
+      double top,
+      double right,
+      double bottom,
+      String key,
+      bool highRes = false}) async {
+    Uri uri = Uri.http(getHost(), '$PATH/setRegion');
+    var response = await httpPost(uri, body: {
+      'left': left,
+      'top': top,
+      'right': right,
+      'bottom': bottom,
+      'key': key,
+      'highRes': highRes
+    });
+    if (response.statusCode == 200) {
+      _stateSink.add(_st++);
+      return Future.value();
+    } else {
+      return Future.error(
+          ErrorResult.create('Error', jsonDecode(response.body)));
+    }
+  }
+
+  ///设置画面静止多久后补发一次高质量帧, <=0 不补发
+  Future setPreviewRefine(int idleMs) async {
+    Uri uri = Uri.http(getHost(), '$PATH/setPreviewRefine');
+    var response = await httpPost(uri, body: {'idleMs': idleMs});
+    if (response.statusCode == 200) {
+      return Future.value();
+    } else {
+      return Future.error(
+          ErrorResult.create('Error', jsonDecode(response.body)));
+    }
+  }
+
   ///检查状态
   Future fetchState() async {
     Uri uri = Uri.http(getHost(), '$PATH/state');
@@ -284,6 +486,10 @@ class ScreenRecorderBloc extends AppBlocBase {
       _isAppServiceRunning = data['previewing'];
       _isAppRecording = data['recording'];
       _dir = data['dir'];
+      if (!_isAppServiceRunning) {
+        //打开页面时预热 缩短开启预览后第一帧的时间
+        _warmUp();
+      }
       return Future.value();
     } else {
       return Future.error(
@@ -291,6 +497,12 @@ class ScreenRecorderBloc extends AppBlocBase {
     }
   }
 
+  ///预热app端编码器 失败不影响预览
+  Future _warmUp() async {
+    Uri uri = Uri.http(getHost(), '$PATH/warmUp');
+    await httpPost(uri);
+  }
+
   ///截图下载
   Future downloadCapture() async {
     Uri uri = Uri.http(getHost(), '$PATH/takeCapture');
@@ -330,6 +542,38 @@ class ScreenRecorderBloc extends AppBlocBase {
   }
 }
 
+///ws中的一帧: 长度;fmt=jpeg;...\r\n data \r\n
+class PreviewChunk {
+  String format;
+  Uint8List payload;
+
+  ///画面静止后补发的高质量帧
+  bool refined;
+
+  PreviewChunk(this.format, this.payload, {this.refined = false});
+
+  ///没有fmt扩展时(旧版本app)返回null
+  static PreviewChunk tryParse(Uint8List data) {
+    int max = data.length < 256 ? data.length : 256;
+    for (var i = 0; i < max - 1; i++) {
+      if (data[i] == 0x0d && data[i + 1] == 0x0a) {
+        List<String> parts =
+            String.fromCharCodes(data.sublist(0, i)).split(';');
+        String format = parts
+            .firstWhere((ext) => ext.startsWith('fmt='), orElse: () => null)
+            ?.substring(4);
+        int length = int.tryParse(parts.first, radix: 16);
+        if (format == null || length == null || i + 2 + length > data.length) {
+          return null;
+        }
+        return PreviewChunk(format, data.sublist(i + 2, i + 2 + length),
+            refined: parts.contains('ref=1'));
+      }
+    }
+    return null;
+  }
+}
+
 ///帧信息
 class FrameInfo {
   int ts;
@@ -337,3 +581,91 @@ class FrameInfo {
 
   FrameInfo({this.ts, this.length});
 }
+
+///预览帧信息 时间均为墙上时间 微秒
+class PreviewFrameMeta {
+  int frameId;
+
+  ///抓取时间
+  int captureTs;
+
+  ///编码完成时间
+  int encodeTs;
+
+  ///app端发出时间
+  int sendTs;
+
+  ///app端webserver收到时间
+  int recvTs;
+
+  ///浏览器收到时间
+  int browserTs;
+
+  ///抓取到浏览器收到的延迟 ms, 两端时钟不同步时仅供参考
+  int get latency => (browserTs - captureTs) ~/ 1000;
+
+  ///上一帧到本帧之间app的渲染帧数量, 为null表示app端没有采集
+  int renderCount;
+
+  ///产生本帧画面的渲染帧耗时 微秒
+  int renderDur;
+
+  ///期间最长的渲染帧耗时 微秒
+  int renderMaxDur;
+
+  ///期间卡顿的渲染帧数量
+  int renderJank;
+
+  ///ws数据格式: 长度;fid=1;cts=...\r\n jpg \r\n
+  static PreviewFrameMeta tryParse(Uint8List data) {
+    int max = data.length < 256 ? data.length : 256;
+    for (var i = 0; i < max - 1; i++) {
+      if (data[i] == 0x0d && data[i + 1] == 0x0a) {
+        String line = String.fromCharCodes(data.sublist(0, i));
+        if (!line.contains(';')) {
+          return null;
+        }
+        PreviewFrameMeta meta = PreviewFrameMeta();
+        meta.browserTs = DateTime.now().microsecondsSinceEpoch;
+        line.split(';').skip(1).forEach((ext) {
+          List<String> kv = ext.split('=');
+          if (kv.length != 2) {
+            return;
+          }
+          int v = int.tryParse(kv[1]) ?? 0;
+          switch (kv[0]) {
+            case 'fid':
+              meta.frameId = v;
+              break;
+            case 'cts':
+              meta.captureTs = v;
+              break;
+            case 'ets':
+              meta.encodeTs = v;
+              break;
+            case 'sts':
+              meta.sendTs = v;
+              break;
+            case 'rts':
+              meta.recvTs = v;
+              break;
+            case 'rcnt':
+              meta.renderCount = v;
+              break;
+            case 'rdur':
+              meta.renderDur = v;
+              break;
+            case 'rmax':
+              meta.renderMaxDur = v;
+              break;
+            case 'rjk':
+              meta.renderJank = v;
+              break;
+          }
+        });
+        return meta.captureTs != null ? meta : null;
+      }
+    }
+    return null;
+  }
+}